@@ -74,6 +74,39 @@ public class NativeSecp256k1 {
         }
     }
 
+    /**
+     * Verifies a range of secp256k1 signatures that were packed into one direct buffer, each entry laid out as
+     * for {@link #verify(byte[], byte[], byte[])}: the 32 bytes of data, the signature, then the public key. Unlike
+     * calling {@link #verify(byte[], byte[], byte[])} repeatedly, nothing is copied and the context lock is taken
+     * only once. Calling when enabled == false is undefined (probably library not loaded)
+     *
+     * @param entries Direct buffer holding the entries
+     * @param offsets Offset of each entry in the buffer
+     * @param sigLengths Length of the signature of each entry
+     * @param pubLengths Length of the public key of each entry
+     * @param from Index of the first entry to verify
+     * @param to Index after the last entry to verify
+     * @param results Receives the result of each verified entry, at the index of that entry
+     */
+    public static void verifyBatch(ByteBuffer entries, int[] offsets, int[] sigLengths, int[] pubLengths, int from,
+                                   int to, boolean[] results) throws AssertFailException {
+        Preconditions.checkArgument(entries.isDirect());
+        Preconditions.checkArgument(from >= 0 && to <= offsets.length && to <= results.length);
+
+        ByteBuffer view = entries.duplicate();
+        r.lock();
+        try {
+            long context = Secp256k1Context.getContext();
+            for (int i = from; i < to; i++) {
+                Preconditions.checkArgument(sigLengths[i] <= 520 && pubLengths[i] <= 520);
+                view.limit(offsets[i] + 32 + sigLengths[i] + pubLengths[i]).position(offsets[i]);
+                results[i] = secp256k1_ecdsa_verify(view.slice(), context, sigLengths[i], pubLengths[i]) == 1;
+            }
+        } finally {
+            r.unlock();
+        }
+    }
+
     /**
      * libsecp256k1 Create an ECDSA signature.
      *
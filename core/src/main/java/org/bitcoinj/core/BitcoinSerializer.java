@@ -28,6 +28,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static org.bitcoinj.core.Utils.*;
 
 /**
@@ -92,18 +93,7 @@ public class BitcoinSerializer extends MessageSerializer {
     @Override
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
         byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
-        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
-
-        // The header array is initialized to zero by Java so we don't have to worry about
-        // NULL terminating the string here.
-        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
-            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
-        }
-
-        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
-
-        byte[] hash = Sha256Hash.hashTwice(message);
-        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
+        writeHeader(name, message, header);
         out.write(header);
         out.write(message);
 
@@ -116,11 +106,48 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public void serialize(Message message, OutputStream out) throws IOException {
+        serialize(getCommand(message), message.bitcoinSerialize(), out);
+    }
+
+    /**
+     * Returns the message with its header in a single array of exactly the right size, without the intermediate
+     * copies of writing it to a stream.
+     */
+    @Override
+    public byte[] serialize(Message message) {
+        String name = getCommand(message);
+        byte[] payload = message.bitcoinSerialize();
+        byte[] bytes = new byte[4 + COMMAND_LEN + 4 + 4 + payload.length];
+        writeHeader(name, payload, bytes);
+        System.arraycopy(payload, 0, bytes, 4 + COMMAND_LEN + 4 + 4, payload.length);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, HEX.encode(bytes));
+        return bytes;
+    }
+
+    private String getCommand(Message message) {
         String name = names.get(message.getClass());
         if (name == null) {
             throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
         }
-        serialize(name, message.bitcoinSerialize(), out);
+        return name;
+    }
+
+    // Writes the header for the given command and payload to the start of the given array.
+    private void writeHeader(String name, byte[] payload, byte[] header) {
+        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+
+        // The header array is initialized to zero by Java so we don't have to worry about
+        // NULL terminating the string here.
+        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
+            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
+        }
+
+        Utils.uint32ToByteArrayLE(payload.length, header, 4 + COMMAND_LEN);
+
+        byte[] hash = Sha256Hash.hashTwice(payload);
+        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
     }
 
     /**
@@ -165,6 +192,16 @@ public class BitcoinSerializer extends MessageSerializer {
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return deserializePayload(header, payloadBytes);
+    }
+
+    /**
+     * Deserialize payload only, without copying it first. The message is parsed straight from the given array, which
+     * must hold exactly the payload and must not be modified afterwards, as in parse retain mode the message keeps it.
+     */
+    @Override
+    public Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes) throws ProtocolException {
+        checkArgument(payloadBytes.length == header.size, "Payload doesn't match the header");
 
         // Verify the checksum.
         byte[] hash;
@@ -242,6 +242,8 @@ public class Block extends Message {
         transactions = new ArrayList<>(numTransactions);
         for (int i = 0; i < numTransactions; i++) {
             Transaction tx = new Transaction(params, payload, cursor, this, serializer, UNKNOWN_LENGTH);
+            // Hash the bytes we have anyway, rather than have the transaction serialize itself again to get its hash.
+            tx.setHash(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(payload, cursor, tx.getMessageSize())));
             // Label the transaction as coming from the P2P network, so code that cares where we first saw it knows.
             tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
             transactions.add(tx);
@@ -584,11 +586,6 @@ public class Block extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree();
-        return Sha256Hash.wrap(tree.get(tree.size() - 1));
-    }
-
-    private List<byte[]> buildMerkleTree() {
         // The Merkle root is based on a tree of hashes calculated from the transactions:
         //
         //     root
@@ -619,27 +616,26 @@ public class Block extends Message {
         //    2     3    4  4
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
-        ArrayList<byte[]> tree = new ArrayList<>();
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction t : transactions) {
-            tree.add(t.getHash().getBytes());
+        //
+        // Each level is kept in a single array in the byte order that is hashed, which is the reverse of how the hashes
+        // are displayed, and the next level is computed into the same array with one batch call.
+        int levelSize = transactions.size();
+        byte[] level = new byte[(levelSize + 1) / 2 * 2 * 32];
+        for (int i = 0; i < levelSize; i++) {
+            byte[] hash = transactions.get(i).getHash().getBytes();
+            for (int j = 0; j < 32; j++)
+                level[i * 32 + j] = hash[31 - j];
         }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
         // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(hashTwice(leftBytes, 0, 32, rightBytes, 0, 32)));
-            }
-            // Move to the next level.
-            levelOffset += levelSize;
+        while (levelSize > 1) {
+            // The right hand node can be the same as the left hand, in the case where we don't have enough
+            // transactions.
+            if (levelSize % 2 == 1)
+                System.arraycopy(level, (levelSize - 1) * 32, level, levelSize * 32, 32);
+            levelSize = (levelSize + 1) / 2;
+            Sha256Hash.hashTwice64(level, 0, level, 0, levelSize);
         }
-        return tree;
+        return Sha256Hash.wrapReversed(Arrays.copyOf(level, 32));
     }
 
     /**
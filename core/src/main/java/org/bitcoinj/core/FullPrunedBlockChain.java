@@ -30,13 +30,18 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -58,6 +63,16 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 	// Whether or not to execute scriptPubKeys before accepting a transaction (i.e. check signatures).
 	private boolean runScripts = true;
 
+	// Verifies the scripts of each block in parallel, input by input. Shared by all blocks.
+	private final ScriptVerificationScheduler scriptVerificationScheduler;
+
+	// Looks up the outputs spent by upcoming blocks while addAll() is running, null otherwise.
+	@Nullable private volatile UTXOPrefetcher utxoPrefetcher;
+
+	// Runs the lookups of the UTXOPrefetcher. Created by the first addAll() and kept for the lifetime of the chain, so
+	// stores that hold a connection per thread, like the DatabaseFullPrunedBlockStore, open at most one per worker.
+	@Nullable private ThreadPoolExecutor utxoPrefetchExecutor;
+
 	/**
 	 * Constructs a block chain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
 	 * one from scratch, or you can deserialize a saved wallet from disk using
@@ -100,6 +115,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 			BlockStoreException {
 		super(context, listeners, blockStore);
 		this.blockStore = blockStore;
+		this.scriptVerificationScheduler = new ScriptVerificationScheduler(context);
 		// Ignore upgrading for now
 		this.chainHead = blockStore.getVerifiedChainHead();
 	}
@@ -149,41 +165,94 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 		this.runScripts = value;
 	}
 
-	// TODO: Remove lots of duplicated code in the two connectTransactions
-
-	// TODO: execute in order of largest transaction (by input count) first
-	ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
-			Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Script verification"));
-
 	/**
-	 * A job submitted to the executor which verifies signatures.
+	 * <p>Adds the given blocks in order, like calling {@link #add(Block)} for each of them, but pipelined for bulk
+	 * imports: while one block is being connected and its scripts are verified, the outputs spent by up to
+	 * maxBlocksInFlight following blocks are already looked up from the block store in parallel. At most that many
+	 * blocks are read ahead from the iterator.</p>
+	 *
+	 * <p>The prefetched outputs are only used where it is safe to do so, so the result is the same as adding the blocks
+	 * one by one, including across re-orgs. If a block fails verification the exception is thrown and the remaining
+	 * blocks are not added.</p>
+	 *
+	 * @return the number of blocks that could be connected to the chain, see {@link #add(Block)}
 	 */
-	private static class Verifier implements Callable<VerificationException> {
-		final Transaction tx;
-		final List<Script> prevOutScripts;
-		final Set<VerifyFlag> verifyFlags;
-
-		public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags) {
-			this.tx = tx;
-			this.prevOutScripts = prevOutScripts;
-			this.verifyFlags = verifyFlags;
-		}
-
-		@Nullable
-		@Override
-		public VerificationException call() throws Exception {
-			try {
-				ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-				for (int index = 0; index < tx.getInputs().size(); index++) {
-					tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), verifyFlags);
+	public int addAll(Iterator<Block> blocks, int maxBlocksInFlight) throws VerificationException, PrunedException {
+		checkArgument(maxBlocksInFlight > 0, "maxBlocksInFlight must be positive");
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		ThreadPoolExecutor executor = getUTXOPrefetchExecutor(parallelism);
+		UTXOPrefetcher prefetcher = new UTXOPrefetcher(blockStore, executor, parallelism);
+		utxoPrefetcher = prefetcher;
+		try {
+			ArrayDeque<Block> inFlight = new ArrayDeque<>(maxBlocksInFlight);
+			int connected = 0;
+			while (true) {
+				while (inFlight.size() < maxBlocksInFlight && blocks.hasNext()) {
+					Block block = blocks.next();
+					prefetcher.prefetch(block);
+					inFlight.add(block);
 				}
-			} catch (VerificationException e) {
-				return e;
+				Block block = inFlight.poll();
+				if (block == null)
+					return connected;
+				if (add(block))
+					connected++;
 			}
-			return null;
+		} finally {
+			utxoPrefetcher = null;
+			prefetcher.clear();
+			// Lookups still running are left to finish, their results are no longer used.
+			executor.getQueue().clear();
 		}
 	}
 
+	private synchronized ThreadPoolExecutor getUTXOPrefetchExecutor(int parallelism) {
+		if (utxoPrefetchExecutor == null)
+			utxoPrefetchExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(parallelism,
+					new ContextPropagatingThreadFactory("UTXO prefetch"));
+		return utxoPrefetchExecutor;
+	}
+
+	// Returns the prefetched outputs for the given block, if any, see addAll().
+	@Nullable
+	private UTXOPrefetcher.Prefetch takePrefetchedOutputs(Sha256Hash blockHash) {
+		UTXOPrefetcher prefetcher = utxoPrefetcher;
+		return prefetcher != null ? prefetcher.take(blockHash) : null;
+	}
+
+	// Looks up whatever outputs spent by the given transactions haven't been prefetched with one batched call.
+	private UTXOPrefetcher.Prefetch fetchSpentOutputs(@Nullable UTXOPrefetcher.Prefetch prefetched,
+			List<Transaction> transactions) throws BlockStoreException {
+		if (prefetched == null)
+			prefetched = new UTXOPrefetcher.Prefetch(blockStore, transactions);
+		prefetched.fetchRemaining();
+		return prefetched;
+	}
+
+	// BIP30: returns true if any of the given transactions still has unspent outputs, looked up with one batched call.
+	private boolean hasUnspentOutputs(List<Transaction> transactions) throws BlockStoreException {
+		Map<Sha256Hash, Integer> numOutputs = new HashMap<>();
+		for (Transaction tx : transactions)
+			numOutputs.put(tx.getHash(), tx.getOutputs().size());
+		return !blockStore.getTransactionsWithUnspentOutputs(numOutputs).isEmpty();
+	}
+
+	// Lets pending prefetches know which outputs were spent by a connected block.
+	private void outputsSpent(List<UTXO> txOutsSpent) {
+		UTXOPrefetcher prefetcher = utxoPrefetcher;
+		if (prefetcher != null)
+			prefetcher.outputsSpent(txOutsSpent);
+	}
+
+	// Discards pending prefetches after changes to the set of unspent outputs that can't be tracked.
+	private void clearPrefetchedOutputs() {
+		UTXOPrefetcher prefetcher = utxoPrefetcher;
+		if (prefetcher != null)
+			prefetcher.clear();
+	}
+
+	// TODO: Remove lots of duplicated code in the two connectTransactions
+
 	/**
 	 * Get the {@link Script} from the script bytes or return Script of empty byte array.
 	 */
@@ -227,10 +296,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 		LinkedList<UTXO> txOutsCreated = new LinkedList<>();
 		long sigOps = 0;
 
-		if (scriptVerificationExecutor.isShutdown())
-			scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-		List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(block.transactions.size());
+		ScriptVerificationScheduler.Batch scriptVerifications = scriptVerificationScheduler.newBatch();
 		try {
 			if (!params.isCheckpoint(height)) {
 				// BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
@@ -238,19 +304,20 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 				// the
 				// BIP30 document for more details on this: https://github
 				// .com/bitcoin/bips/blob/master/bip-0030.mediawiki
+				// If we already have unspent outputs for any hash, we saw the tx already. Either the block is
+				// being added twice (bug) or the block is a BIP30 violator.
+				if (hasUnspentOutputs(block.transactions))
+					throw new VerificationException("Block failed BIP30 test!");
 				for (Transaction tx : block.transactions) {
 					final Set<VerifyFlag> verifyFlags = params.getTransactionVerificationFlags(block, tx,
 							getVersionTally(), height);
-					Sha256Hash hash = tx.getHash();
-					// If we already have unspent outputs for this hash, we saw the tx already. Either the block is
-					// being added twice (bug) or the block is a BIP30 violator.
-					if (blockStore.hasUnspentOutputs(hash, tx.getOutputs().size()))
-						throw new VerificationException("Block failed BIP30 test!");
 					if (verifyFlags.contains(VerifyFlag.P2SH)) // We already check non-BIP16 sigops in Block
 						// .verifyTransactions(true)
 						sigOps += tx.getSigOpCount();
 				}
 			}
+			UTXOPrefetcher.Prefetch spentOutputs = fetchSpentOutputs(takePrefetchedOutputs(block.getHash()),
+					block.transactions);
 			Coin totalFees = Coin.ZERO;
 			Coin coinbaseValue = null;
 			for (final Transaction tx : block.transactions) {
@@ -265,8 +332,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 					// outputs.
 					for (int index = 0; index < tx.getInputs().size(); index++) {
 						TransactionInput in = tx.getInputs().get(index);
-						UTXO prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-								in.getOutpoint().getIndex());
+						UTXO prevOut = spentOutputs.getTransactionOutput(in.getOutpoint());
 						if (prevOut == null)
 							throw new VerificationException("Attempted to spend a non-existent or already spent " +
 									"output!");
@@ -319,37 +385,18 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 					totalFees = totalFees.add(valueIn.subtract(valueOut));
 				}
 
-				if (!isCoinBase && runScripts) {
-					// Because correctlySpends modifies transactions, this must come after we are done with tx
-					FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts,
-							verifyFlags));
-					scriptVerificationExecutor.execute(future);
-					listScriptVerificationResults.add(future);
-				}
+				if (!isCoinBase && runScripts)
+					scriptVerifications.add(tx, prevOutScripts, verifyFlags);
 			}
 			if (totalFees.compareTo(params.getMaxMoney()) > 0 || block.getBlockInflation(height).add(totalFees)
 					.compareTo(coinbaseValue) < 0)
 				throw new VerificationException("Transaction fees out of range");
-			for (Future<VerificationException> future : listScriptVerificationResults) {
-				VerificationException e;
-				try {
-					e = future.get();
-				} catch (InterruptedException thrownE) {
-					throw new RuntimeException(thrownE); // Shouldn't happen
-				} catch (ExecutionException thrownE) {
-					log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-					throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some " +
-							"new and interesting way.", thrownE);
-				}
-				if (e != null)
-					throw e;
-			}
+			scriptVerifications.verify();
+			outputsSpent(txOutsSpent);
 		} catch (VerificationException e) {
-			scriptVerificationExecutor.shutdownNow();
 			blockStore.abortDatabaseBatchWrite();
 			throw e;
 		} catch (BlockStoreException e) {
-			scriptVerificationExecutor.shutdownNow();
 			blockStore.abortDatabaseBatchWrite();
 			throw e;
 		}
@@ -381,21 +428,13 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 				LinkedList<UTXO> txOutsCreated = new LinkedList<>();
 				long sigOps = 0;
 
-				if (!params.isCheckpoint(newBlock.getHeight())) {
-					for (Transaction tx : transactions) {
-						Sha256Hash hash = tx.getHash();
-						if (blockStore.hasUnspentOutputs(hash, tx.getOutputs().size()))
-							throw new VerificationException("Block failed BIP30 test!");
-					}
-				}
+				if (!params.isCheckpoint(newBlock.getHeight()) && hasUnspentOutputs(transactions))
+					throw new VerificationException("Block failed BIP30 test!");
+				UTXOPrefetcher.Prefetch spentOutputs = fetchSpentOutputs(null, transactions);
 				Coin totalFees = Coin.ZERO;
 				Coin coinbaseValue = null;
 
-				if (scriptVerificationExecutor.isShutdown())
-					scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors
-							());
-				List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(transactions.size
-						());
+				ScriptVerificationScheduler.Batch scriptVerifications = scriptVerificationScheduler.newBatch();
 				for (final Transaction tx : transactions) {
 					final Set<VerifyFlag> verifyFlags =
 							params.getTransactionVerificationFlags(newBlock.getHeader(), tx, getVersionTally(),
@@ -408,8 +447,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 					if (!isCoinBase) {
 						for (int index = 0; index < tx.getInputs().size(); index++) {
 							final TransactionInput in = tx.getInputs().get(index);
-							final UTXO prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-									in.getOutpoint().getIndex());
+							final UTXO prevOut = spentOutputs.getTransactionOutput(in.getOutpoint());
 							if (prevOut == null)
 								throw new VerificationException("Attempted spend of a non-existent or already spent " +
 										"output!");
@@ -460,52 +498,36 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 						totalFees = totalFees.add(valueIn.subtract(valueOut));
 					}
 
-					if (!isCoinBase) {
-						// Because correctlySpends modifies transactions, this must come after we are done with tx
-						FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts,
-								verifyFlags));
-						scriptVerificationExecutor.execute(future);
-						listScriptVerificationResults.add(future);
-					}
+					if (!isCoinBase)
+						scriptVerifications.add(tx, prevOutScripts, verifyFlags);
 				}
 				if (totalFees.compareTo(params.getMaxMoney()) > 0 ||
 						newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo
 								(coinbaseValue) < 0)
 					throw new VerificationException("Transaction fees out of range");
 				txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-				for (Future<VerificationException> future : listScriptVerificationResults) {
-					VerificationException e;
-					try {
-						e = future.get();
-					} catch (InterruptedException thrownE) {
-						throw new RuntimeException(thrownE); // Shouldn't happen
-					} catch (ExecutionException thrownE) {
-						log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-						throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in " +
-								"some new and interesting way.", thrownE);
-					}
-					if (e != null)
-						throw e;
-				}
+				scriptVerifications.verify();
+				outputsSpent(txOutsSpent);
 			} else {
 				txOutChanges = block.getTxOutChanges();
-				if (!params.isCheckpoint(newBlock.getHeight()))
-					for (UTXO out : txOutChanges.txOutsCreated) {
-						Sha256Hash hash = out.getHash();
-						if (blockStore.getTransactionOutput(hash, out.getIndex()) != null)
+				if (!params.isCheckpoint(newBlock.getHeight())) {
+					List<TransactionOutPoint> created = new ArrayList<>(txOutChanges.txOutsCreated.size());
+					for (UTXO out : txOutChanges.txOutsCreated)
+						created.add(new TransactionOutPoint(params, out.getIndex(), out.getHash()));
+					for (UTXO out : blockStore.getTransactionOutputs(created))
+						if (out != null)
 							throw new VerificationException("Block failed BIP30 test!");
-					}
+				}
 				for (UTXO out : txOutChanges.txOutsCreated)
 					blockStore.addUnspentTransactionOutput(out);
 				for (UTXO out : txOutChanges.txOutsSpent)
 					blockStore.removeUnspentTransactionOutput(out);
+				outputsSpent(txOutChanges.txOutsSpent);
 			}
 		} catch (VerificationException e) {
-			scriptVerificationExecutor.shutdownNow();
 			blockStore.abortDatabaseBatchWrite();
 			throw e;
 		} catch (BlockStoreException e) {
-			scriptVerificationExecutor.shutdownNow();
 			blockStore.abortDatabaseBatchWrite();
 			throw e;
 		}
@@ -519,6 +541,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 	@Override
 	protected void disconnectTransactions(StoredBlock oldBlock) throws PrunedException, BlockStoreException {
 		checkState(lock.isHeldByCurrentThread());
+		// Disconnecting makes spent outputs unspent again, which pending prefetches would miss.
+		clearPrefetchedOutputs();
 		blockStore.beginDatabaseBatchWrite();
 		try {
 			StoredUndoableBlock undoBlock = blockStore.getUndoBlock(oldBlock.getHeader().getHash());
@@ -546,6 +570,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
 	@Override
 	protected void notSettingChainHead() throws BlockStoreException {
+		// Prefetches may have seen outputs created by the writes that are being aborted.
+		clearPrefetchedOutputs();
 		blockStore.abortDatabaseBatchWrite();
 	}
 
@@ -0,0 +1,664 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Downloads the block chain headers first. The headers are fetched from one peer and checked to link up and to
+ * carry their proof of work, then the blocks, or filtered blocks, are fetched from all connected peers through a
+ * sliding window over the headers. Blocks may arrive in any order. They are buffered and added to the
+ * {@link AbstractBlockChain} in the order of the chain, so the chain and its wallets see the same blocks in the same
+ * order as with a single download peer. The difficulty rules are checked by the chain as the blocks are added.</p>
+ *
+ * <p>Each peer has its own limit on the blocks it may have in flight. The limit grows with every block the peer
+ * delivers and halves when a request times out, so faster peers get more of the window. Requests that time out, that
+ * the peer doesn't have or that were sent to a peer that disconnected go to another peer. The block at the start of
+ * the window, which holds up all others, is asked from another peer if it takes too long.</p>
+ *
+ * <p>Blocks from before the fast catchup time are added as headers only, like {@link Peer} does. If a filtered block
+ * exhausts the Bloom filter, the filtered blocks after it are thrown away and fetched again with the new filter.</p>
+ *
+ * <p>The download attaches itself to the peers it is given, which then pass it all headers and blocks they receive.
+ * It is done, and detaches, once the header peer has no more headers and all blocks were added, or once something
+ * went wrong, in which case the future fails and the caller can fall back to the download of {@link Peer}.</p>
+ */
+class HeadersFirstDownload {
+    private static final Logger log = LoggerFactory.getLogger(HeadersFirstDownload.class);
+
+    /** How many blocks may be requested ahead of the next one to add to the chain, for filtered blocks. */
+    static final int FILTERED_WINDOW = 1024;
+    /** How many blocks may be requested ahead of the next one to add to the chain, for full blocks. */
+    static final int FULL_WINDOW = 128;
+    /** How many blocks a peer may have in flight at first. */
+    static final int INITIAL_IN_FLIGHT = 4;
+    /** How many blocks a peer may have in flight at most. */
+    static final int MAX_IN_FLIGHT = 128;
+    /** After how long a request for headers or a block is given up on. */
+    static final long REQUEST_TIMEOUT_MILLIS = 20 * 1000;
+    /** After how long the block at the start of the window is asked from another peer. */
+    static final long STALL_MILLIS = 3 * 1000;
+
+    private final ReentrantLock lock = Threading.lock("headersfirst");
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final List<Wallet> wallets;
+    private final boolean useFilteredBlocks;
+    private final int window;
+    @Nullable private final PeerGroup peerGroup;
+    private final SettableFuture<Void> future = SettableFuture.create();
+
+    // A header of the chain being downloaded and its block, once it has arrived.
+    private static class Slot {
+        final Block header;
+        final int height;
+        // The block, the filtered block, or the header itself if only the header is added.
+        @Nullable Object body;
+        @Nullable Peer requestedFrom;
+        long requestedAt;
+        // The peer that last failed to deliver this block, to ask another one next.
+        @Nullable Peer avoid;
+
+        Slot(Block header, int height) {
+            this.header = header;
+            this.height = height;
+        }
+    }
+
+    private static class PeerState {
+        int limit = INITIAL_IN_FLIGHT;
+        int inFlight;
+        // Deliveries since the limit last grew, once it has been cut.
+        int credit;
+        boolean backedOff;
+        // Whether blocks requested with an exhausted filter may still be on the way from this peer.
+        boolean draining;
+    }
+
+    // The headers not added to the chain yet start at slots[first].
+    @GuardedBy("lock") private final ArrayList<Slot> slots = new ArrayList<>();
+    @GuardedBy("lock") private int first;
+    @GuardedBy("lock") private final Map<Sha256Hash, Slot> slotsByHash = new HashMap<>();
+    @GuardedBy("lock") private final Map<Peer, PeerState> peers = new LinkedHashMap<>();
+    @GuardedBy("lock") private long fastCatchupTimeSecs;
+
+    @GuardedBy("lock") @Nullable private Peer headerPeer;
+    @GuardedBy("lock") private boolean headersRequested;
+    @GuardedBy("lock") private long headersRequestedAt;
+    @GuardedBy("lock") private boolean headersComplete;
+    // The last header received, or the chain head before any were.
+    @GuardedBy("lock") @Nullable private Sha256Hash lastHeaderHash;
+    @GuardedBy("lock") private int lastHeaderHeight;
+
+    // Only one thread adds blocks to the chain at a time, the others just buffer theirs.
+    @GuardedBy("lock") private boolean adding;
+    @GuardedBy("lock") private boolean awaitingFilter;
+    @GuardedBy("lock") private boolean finished;
+
+    /**
+     * @param wallets the wallets that are checked for filter exhaustion
+     * @param useFilteredBlocks whether to request filtered blocks from peers that support Bloom filtering
+     * @param peerGroup the group to recalculate the filter when it is exhausted, or null if there is no filter
+     */
+    HeadersFirstDownload(NetworkParameters params, AbstractBlockChain chain, List<Wallet> wallets,
+                         boolean useFilteredBlocks, long fastCatchupTimeSecs, @Nullable PeerGroup peerGroup) {
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.wallets = checkNotNull(wallets);
+        this.useFilteredBlocks = useFilteredBlocks;
+        this.window = useFilteredBlocks ? FILTERED_WINDOW : FULL_WINDOW;
+        this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+        this.peerGroup = peerGroup;
+    }
+
+    /** Completes once all headers were received and their blocks added, or fails if the download was abandoned. */
+    ListenableFuture<Void> getFuture() {
+        return future;
+    }
+
+    /** Lets the download request blocks from the given peer, and attaches it to the peer. */
+    void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (finished || peers.containsKey(peer))
+                return;
+            peers.put(peer, new PeerState());
+            peer.setHeadersFirstDownload(this);
+        } finally {
+            lock.unlock();
+        }
+        request();
+    }
+
+    /** Stops requesting from the given peer, and requests what it didn't deliver from the others. */
+    void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            if (peers.remove(peer) == null)
+                return;
+            peer.setHeadersFirstDownload(null);
+            for (int i = first; i < slots.size(); i++) {
+                Slot slot = slots.get(i);
+                if (slot.requestedFrom == peer)
+                    slot.requestedFrom = null;
+            }
+            if (peer == headerPeer) {
+                headerPeer = null;
+                headersRequested = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        request();
+    }
+
+    /** Makes the given peer the one headers are requested from. */
+    void setHeaderPeer(Peer peer) {
+        addPeer(peer);
+        lock.lock();
+        try {
+            if (finished || peer == headerPeer)
+                return;
+            headerPeer = peer;
+            headersRequested = false;
+            headersComplete = false;
+        } finally {
+            lock.unlock();
+        }
+        request();
+    }
+
+    /** Changes the time before which only headers are added, for the headers whose blocks weren't added yet. */
+    void setFastCatchupTimeSecs(long fastCatchupTimeSecs) {
+        lock.lock();
+        try {
+            this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+            for (int i = first; i < slots.size(); i++) {
+                Slot slot = slots.get(i);
+                boolean headerOnly = slot.header.getTimeSeconds() < fastCatchupTimeSecs;
+                if (slot.body == slot.header && !headerOnly)
+                    slot.body = null;
+                else if (slot.body == null && slot.requestedFrom == null && headerOnly)
+                    slot.body = slot.header;
+            }
+        } finally {
+            lock.unlock();
+        }
+        addReadyBlocks();
+    }
+
+    void onHeaders(Peer from, HeadersMessage message) {
+        lock.lock();
+        try {
+            if (finished || from != headerPeer || !headersRequested) {
+                log.info("{}: Ignoring headers we didn't ask for", from);
+                return;
+            }
+            headersRequested = false;
+            BlockStore store = chain.getBlockStore();
+            List<Block> headers = message.getBlockHeaders();
+            for (Block header : headers) {
+                Sha256Hash hash = header.getHash();
+                int height;
+                if (header.getPrevBlockHash().equals(lastHeaderHash)) {
+                    height = lastHeaderHeight + 1;
+                } else {
+                    // The first headers may fork off the chain somewhere below its head.
+                    StoredBlock prev = slots.size() == first ? store.get(header.getPrevBlockHash()) : null;
+                    if (prev == null) {
+                        fail("Got unconnected header from peer: " + hash, null);
+                        return;
+                    }
+                    height = prev.getHeight() + 1;
+                }
+                lastHeaderHash = hash;
+                lastHeaderHeight = height;
+                if (slots.size() == first && store.get(hash) != null)
+                    continue; // Already in the chain.
+                header.verifyHeader();
+                Slot slot = new Slot(header, height);
+                if (header.getTimeSeconds() < fastCatchupTimeSecs)
+                    slot.body = header;
+                slots.add(slot);
+                slotsByHash.put(hash, slot);
+            }
+            if (headers.size() < HeadersMessage.MAX_HEADERS)
+                headersComplete = true;
+            log.info("{}: Got {} headers, up to height {}", from, headers.size(), lastHeaderHeight);
+        } catch (VerificationException e) {
+            fail("Block header verification failed", e);
+            return;
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+        addReadyBlocks();
+    }
+
+    void onBlock(Peer from, Block block) {
+        receive(from, block.getHash(), block);
+    }
+
+    void onFilteredBlock(Peer from, FilteredBlock block) {
+        receive(from, block.getHash(), block);
+    }
+
+    /** The peer doesn't have the given blocks, so another one is asked. */
+    void onNotFound(Peer from, List<InventoryItem> items) {
+        lock.lock();
+        try {
+            for (InventoryItem item : items) {
+                Slot slot = slotsByHash.get(item.hash);
+                if (slot != null && slot.requestedFrom == from) {
+                    release(slot);
+                    slot.avoid = from;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        request();
+    }
+
+    /** Gives up on requests that took too long, and asks other peers. Call this every second or so. */
+    void checkTimeouts() {
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            long now = Utils.currentTimeMillis();
+            if (headersRequested && now - headersRequestedAt > REQUEST_TIMEOUT_MILLIS) {
+                log.info("{}: Timed out waiting for headers", headerPeer);
+                headersRequested = false;
+            }
+            int end = Math.min(slots.size(), first + window);
+            for (int i = first; i < end; i++) {
+                Slot slot = slots.get(i);
+                if (slot.body != null || slot.requestedFrom == null)
+                    continue;
+                long age = now - slot.requestedAt;
+                boolean stalled = i == first && age > STALL_MILLIS && peers.size() > 1;
+                if (age > REQUEST_TIMEOUT_MILLIS || stalled) {
+                    PeerState state = peers.get(slot.requestedFrom);
+                    if (state != null) {
+                        state.limit = Math.max(1, state.limit / 2);
+                        state.backedOff = true;
+                        state.credit = 0;
+                    }
+                    log.info("{}: Block {} at height {} took {} ms, asking another peer", slot.requestedFrom,
+                            slot.header.getHash(), slot.height, age);
+                    slot.avoid = slot.requestedFrom;
+                    release(slot);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        request();
+    }
+
+    private void receive(Peer from, Sha256Hash hash, Object body) {
+        lock.lock();
+        try {
+            Slot slot = slotsByHash.get(hash);
+            PeerState state = peers.get(from);
+            if (finished || slot == null || slot.body != null || state == null || state.draining) {
+                log.debug("{}: Ignoring block {}", from, hash);
+                return;
+            }
+            if (slot.requestedFrom == from) {
+                // Slow start until the first time out, then one more per limit delivered.
+                if (!state.backedOff || ++state.credit >= state.limit) {
+                    state.limit = Math.min(MAX_IN_FLIGHT, state.limit + 1);
+                    state.credit = 0;
+                }
+            }
+            if (slot.requestedFrom != null)
+                release(slot);
+            slot.body = body;
+        } finally {
+            lock.unlock();
+        }
+        addReadyBlocks();
+    }
+
+    @GuardedBy("lock")
+    private void release(Slot slot) {
+        PeerState owner = peers.get(slot.requestedFrom);
+        if (owner != null)
+            owner.inFlight--;
+        slot.requestedFrom = null;
+    }
+
+    // Adds the blocks that are next in the chain, then requests more.
+    private void addReadyBlocks() {
+        lock.lock();
+        try {
+            if (adding)
+                return;
+            adding = true;
+        } finally {
+            lock.unlock();
+        }
+        while (true) {
+            Slot slot;
+            Peer notify;
+            lock.lock();
+            try {
+                slot = first < slots.size() && !finished && !awaitingFilter ? slots.get(first) : null;
+                if (slot == null || slot.body == null) {
+                    adding = false;
+                    break;
+                }
+                notify = headerPeer;
+            } finally {
+                lock.unlock();
+            }
+            if (!add(slot, notify))
+                break;
+        }
+        request();
+        maybeFinish();
+    }
+
+    private boolean add(Slot slot, @Nullable Peer notify) {
+        Object body = checkNotNull(slot.body);
+        try {
+            boolean connected;
+            if (body instanceof FilteredBlock) {
+                FilteredBlock filteredBlock = (FilteredBlock) body;
+                if (checkForFilterExhaustion(filteredBlock)) {
+                    awaitFreshFilter();
+                    return false;
+                }
+                connected = chain.add(filteredBlock);
+                if (connected && notify != null)
+                    notify.invokeOnBlocksDownloaded(filteredBlock.getBlockHeader(), filteredBlock);
+            } else {
+                Block block = (Block) body;
+                connected = chain.add(block);
+                if (connected && notify != null)
+                    notify.invokeOnBlocksDownloaded(block, null);
+            }
+            if (!connected) {
+                fail("Block " + slot.header.getHash() + " at height " + slot.height + " didn't connect", null);
+                return false;
+            }
+        } catch (VerificationException e) {
+            fail("Block verification failed", e);
+            return false;
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        }
+        lock.lock();
+        try {
+            if (finished)
+                return false;
+            slotsByHash.remove(slot.header.getHash());
+            slots.set(first++, null);
+            if (first >= 4096) {
+                slots.subList(0, first).clear();
+                first = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    private boolean checkForFilterExhaustion(FilteredBlock block) {
+        boolean exhausted = false;
+        for (Wallet wallet : wallets)
+            exhausted |= wallet.checkForFilterExhaustion(block);
+        return exhausted;
+    }
+
+    // The filter ran out of keys: throw away the filtered blocks, wait for what is still on the way to arrive and be
+    // ignored, then fetch them again with the new filter.
+    private void awaitFreshFilter() {
+        List<Peer> toDrain = new ArrayList<>();
+        lock.lock();
+        try {
+            log.info("Bloom filter exhausted at height {}, discarding and fetching again", slots.get(first).height);
+            awaitingFilter = true;
+            adding = false;
+            for (int i = first; i < slots.size(); i++) {
+                Slot slot = slots.get(i);
+                if (slot.body instanceof FilteredBlock)
+                    slot.body = null;
+                if (slot.requestedFrom != null)
+                    release(slot);
+            }
+            for (Map.Entry<Peer, PeerState> entry : peers.entrySet()) {
+                entry.getValue().draining = true;
+                toDrain.add(entry.getKey());
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (final Peer peer : toDrain) {
+            try {
+                peer.ping().addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        drained(peer);
+                    }
+                }, MoreExecutors.directExecutor());
+            } catch (ProtocolException e) {
+                drained(peer);
+            }
+        }
+        Runnable filterReady = new Runnable() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    awaitingFilter = false;
+                } finally {
+                    lock.unlock();
+                }
+                addReadyBlocks();
+            }
+        };
+        if (peerGroup != null)
+            peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED)
+                    .addListener(filterReady, MoreExecutors.directExecutor());
+        else
+            filterReady.run();
+    }
+
+    private void drained(Peer peer) {
+        lock.lock();
+        try {
+            PeerState state = peers.get(peer);
+            if (state != null)
+                state.draining = false;
+        } finally {
+            lock.unlock();
+        }
+        request();
+    }
+
+    // Fills the window with requests to the peers with the most room, and asks for more headers when it runs low.
+    private void request() {
+        Map<Peer, GetDataMessage> getdatas = new LinkedHashMap<>();
+        Peer askForHeaders = null;
+        GetHeadersMessage getheaders = null;
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            long now = Utils.currentTimeMillis();
+            if (!awaitingFilter) {
+                int end = Math.min(slots.size(), first + window);
+                for (int i = first; i < end; i++) {
+                    Slot slot = slots.get(i);
+                    if (slot.body != null || slot.requestedFrom != null)
+                        continue;
+                    Peer peer = pickPeer(slot);
+                    // Later blocks are higher, so if nobody can take this one nobody can take those.
+                    if (peer == null)
+                        break;
+                    PeerState state = peers.get(peer);
+                    state.inFlight++;
+                    slot.requestedFrom = peer;
+                    slot.requestedAt = now;
+                    GetDataMessage getdata = getdatas.get(peer);
+                    if (getdata == null) {
+                        getdata = new GetDataMessage(params);
+                        getdatas.put(peer, getdata);
+                    }
+                    if (isFiltered(peer))
+                        getdata.addFilteredBlock(slot.header.getHash());
+                    else
+                        getdata.addBlock(slot.header.getHash());
+                }
+            }
+            if (headerPeer != null && !headersRequested && !headersComplete
+                    && slots.size() - first < window + HeadersMessage.MAX_HEADERS) {
+                askForHeaders = headerPeer;
+                getheaders = new GetHeadersMessage(params, blockLocator(), Sha256Hash.ZERO_HASH);
+                headersRequested = true;
+                headersRequestedAt = now;
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<Peer, GetDataMessage> entry : getdatas.entrySet()) {
+            Peer peer = entry.getKey();
+            peer.sendMessage(entry.getValue());
+            // The end of the transactions of the last filtered block is only seen with the next message.
+            if (isFiltered(peer))
+                peer.sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        }
+        if (askForHeaders != null)
+            askForHeaders.sendMessage(getheaders);
+    }
+
+    @GuardedBy("lock")
+    @Nullable
+    private Peer pickPeer(Slot slot) {
+        Peer best = null, avoided = null;
+        int bestRoom = 0;
+        for (Map.Entry<Peer, PeerState> entry : peers.entrySet()) {
+            Peer peer = entry.getKey();
+            PeerState state = entry.getValue();
+            int room = state.limit - state.inFlight;
+            if (state.draining || room <= 0 || peer.getBestHeight() < slot.height)
+                continue;
+            if (peer == slot.avoid) {
+                avoided = peer;
+                continue;
+            }
+            if (room > bestRoom) {
+                best = peer;
+                bestRoom = room;
+            }
+        }
+        return best != null ? best : avoided;
+    }
+
+    private boolean isFiltered(Peer peer) {
+        return useFilteredBlocks && peer.getPeerVersionMessage().isBloomFilteringSupported();
+    }
+
+    // The last header received, then the last 100 blocks of the chain and the genesis block.
+    @GuardedBy("lock")
+    private List<Sha256Hash> blockLocator() {
+        List<Sha256Hash> locator = new ArrayList<>(102);
+        StoredBlock cursor = chain.getChainHead();
+        if (lastHeaderHash == null) {
+            lastHeaderHash = cursor.getHeader().getHash();
+            lastHeaderHeight = cursor.getHeight();
+        }
+        if (!lastHeaderHash.equals(cursor.getHeader().getHash()))
+            locator.add(lastHeaderHash);
+        try {
+            for (int i = 100; cursor != null && i > 0; i--) {
+                locator.add(cursor.getHeader().getHash());
+                cursor = cursor.getPrev(chain.getBlockStore());
+            }
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+        if (cursor != null)
+            locator.add(params.getGenesisBlock().getHash());
+        return locator;
+    }
+
+    private void maybeFinish() {
+        lock.lock();
+        try {
+            if (finished || !headersComplete || first < slots.size())
+                return;
+            finished = true;
+            detach();
+            log.info("Headers first download done at height {}", chain.getBestChainHeight());
+        } finally {
+            lock.unlock();
+        }
+        future.set(null);
+    }
+
+    private void fail(String reason, @Nullable VerificationException cause) {
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            finished = true;
+            adding = false;
+            detach();
+        } finally {
+            lock.unlock();
+        }
+        log.warn("Abandoning headers first download: " + reason, cause);
+        future.setException(cause != null ? cause : new VerificationException(reason));
+    }
+
+    @GuardedBy("lock")
+    private void detach() {
+        for (Peer peer : peers.keySet())
+            peer.setHeadersFirstDownload(null);
+        peers.clear();
+        slots.clear();
+        slotsByHash.clear();
+        first = 0;
+    }
+}
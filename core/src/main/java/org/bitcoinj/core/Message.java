@@ -353,9 +353,15 @@ public abstract class Message {
     }
 
     protected Sha256Hash readHash() throws ProtocolException {
-        // We have to flip it around, as it's been read off the wire in little endian.
-        // Not the most efficient way to do this but the clearest.
-        return Sha256Hash.wrapReversed(readBytes(32));
+        // We have to flip it around, as it's been read off the wire in little endian. This is done while copying, as
+        // hashes are read a lot (every outpoint and inventory item) and would otherwise be copied twice.
+        if (cursor + Sha256Hash.LENGTH > payload.length)
+            throw new ProtocolException("Ran off the end of the message reading a hash");
+        byte[] hash = new byte[Sha256Hash.LENGTH];
+        for (int i = 0; i < Sha256Hash.LENGTH; i++)
+            hash[i] = payload[cursor + Sha256Hash.LENGTH - 1 - i];
+        cursor += Sha256Hash.LENGTH;
+        return Sha256Hash.wrap(hash);
     }
 
     protected boolean hasMoreBytes() {
@@ -18,6 +18,7 @@
 
 package org.bitcoinj.core;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
@@ -46,6 +47,14 @@ public abstract class MessageSerializer {
      */
     public abstract Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException, UnsupportedOperationException;
 
+    /**
+     * Deserialize payload only, from an array holding exactly the payload. The returned message may keep a reference
+     * to the array instead of copying it, so the caller must not modify the array afterwards.
+     */
+    public Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, byte[] payloadBytes) throws ProtocolException, BufferUnderflowException, UnsupportedOperationException {
+        return deserializePayload(header, ByteBuffer.wrap(payloadBytes));
+    }
+
     /**
      * Whether the serializer will produce cached mode Messages
      */
@@ -163,5 +172,16 @@ public abstract class MessageSerializer {
      * it does not support serializing the given message.
      */
     public abstract void serialize(Message message, OutputStream out) throws IOException, UnsupportedOperationException;
-    
+
+    /**
+     * Returns the message as it is written to the wire, header included. Subclasses may override this to build the
+     * array without going through a stream.
+     *
+     * @throws UnsupportedOperationException if this serializer/deserializer does not support serialization.
+     */
+    public byte[] serialize(Message message) throws IOException, UnsupportedOperationException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serialize(message, out);
+        return out.toByteArray();
+    }
 }
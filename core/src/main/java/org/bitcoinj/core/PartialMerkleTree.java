@@ -215,9 +215,13 @@ public class PartialMerkleTree extends Message {
     }
 
     private static Sha256Hash combineLeftRight(byte[] left, byte[] right) {
-        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(
-            reverseBytes(left), 0, 32,
-            reverseBytes(right), 0, 32));
+        byte[] node = new byte[64];
+        for (int i = 0; i < 32; i++) {
+            node[i] = left[31 - i];
+            node[32 + i] = right[31 - i];
+        }
+        Sha256Hash.hashTwice64(node, 0, node, 0, 1);
+        return Sha256Hash.wrapReversed(Arrays.copyOf(node, 32));
     }
 
     /**
@@ -137,6 +137,9 @@ public class Peer extends PeerSocketHandler {
     private final HashSet<TransactionConfidence> pendingTxDownloads = new HashSet<>();
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion;
+    // If set, the PeerGroup downloads the chain headers first from several peers, and this peer passes all headers and
+    // blocks it receives to the download instead of adding them to the chain itself.
+    @Nullable private volatile HeadersFirstDownload vHeadersFirstDownload;
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
     // whilst waiting for the response. Is not used for downloads Peer generates itself.
     private static class GetDataRequest {
@@ -421,7 +424,7 @@ public class Peer extends PeerSocketHandler {
     @Override
     public void connectionClosed() {
         for (final ListenerRegistration<PeerDisconnectedEventListener> registration : disconnectedEventListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.execute(registration.executor, Peer.this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onPeerDisconnected(Peer.this, 0);
@@ -600,7 +603,7 @@ public class Peer extends PeerSocketHandler {
         log.debug("{}: Handshake complete.", this);
         setTimeoutEnabled(false);
         for (final ListenerRegistration<PeerConnectedEventListener> registration : connectedEventListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.execute(registration.executor, Peer.this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onPeerConnected(Peer.this, 1);
@@ -633,6 +636,9 @@ public class Peer extends PeerSocketHandler {
     }
 
     protected void processNotFoundMessage(NotFoundMessage m) {
+        HeadersFirstDownload download = vHeadersFirstDownload;
+        if (download != null)
+            download.onNotFound(this, m.getItems());
         // This is received when we previously did a getdata but the peer couldn't find what we requested in it's
         // memory pool. Typically, because we are downloading dependencies of a relevant transaction and reached
         // the bottom of the dependency tree (where the unconfirmed transactions connect to transactions that are
@@ -676,6 +682,11 @@ public class Peer extends PeerSocketHandler {
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
 
+        HeadersFirstDownload download = vHeadersFirstDownload;
+        if (download != null) {
+            download.onHeaders(this, m);
+            return;
+        }
         lock.lock();
         try {
             if (blockChain == null) {
@@ -850,7 +861,7 @@ public class Peer extends PeerSocketHandler {
         // Tell all listeners about this tx so they can decide whether to keep it or not. If no listener keeps a
         // reference around then the memory pool will forget about it after a while too because it uses weak references.
         for (final ListenerRegistration<OnTransactionBroadcastListener> registration : onTransactionEventListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.execute(registration.executor, Peer.this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onTransaction(Peer.this, tx);
@@ -989,6 +1000,11 @@ public class Peer extends PeerSocketHandler {
             log.debug("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        HeadersFirstDownload download = vHeadersFirstDownload;
+        if (download != null) {
+            download.onBlock(this, m);
+            return;
+        }
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
@@ -1044,6 +1060,11 @@ public class Peer extends PeerSocketHandler {
     protected void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
+        HeadersFirstDownload download = vHeadersFirstDownload;
+        if (download != null) {
+            download.onFilteredBlock(this, m);
+            return;
+        }
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -1161,13 +1182,13 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
+    void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
         final int blocksLeft = Math.max(0, (int) vPeerVersionMessage.bestHeight - checkNotNull(blockChain).getBestChainHeight());
         for (final ListenerRegistration<BlocksDownloadedEventListener> registration : blocksDownloadedEventListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.execute(registration.executor, Peer.this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onBlocksDownloaded(Peer.this, block, fb, blocksLeft);
@@ -1246,7 +1267,8 @@ public class Peer extends PeerSocketHandler {
 
         lock.lock();
         try {
-            if (blocks.size() > 0 && downloadData && blockChain != null) {
+            // A headers first download fetches the blocks itself.
+            if (blocks.size() > 0 && downloadData && blockChain != null && vHeadersFirstDownload == null) {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
                 // so we just re-request it here, and if we get duplicates the block chain / wallet will filter them out.
@@ -1500,13 +1522,19 @@ public class Peer extends PeerSocketHandler {
         final int blocksLeft = getPeerBlockHeightDifference();
         if (blocksLeft >= 0) {
             for (final ListenerRegistration<ChainDownloadStartedEventListener> registration : chainDownloadStartedEventListeners) {
-                registration.executor.execute(new Runnable() {
+                Threading.execute(registration.executor, Peer.this, new Runnable() {
                     @Override
                     public void run() {
                         registration.listener.onChainDownloadStarted(Peer.this, blocksLeft);
                     }
                 });
             }
+        }
+        HeadersFirstDownload download = vHeadersFirstDownload;
+        if (download != null) {
+            // Even if this peer seems behind, asking for its headers lets the download finish.
+            download.setHeaderPeer(this);
+        } else if (blocksLeft >= 0) {
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
             try {
@@ -1517,6 +1545,11 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /** Passes the headers and blocks this peer receives to the given download, or stops doing so if null. */
+    void setHeadersFirstDownload(@Nullable HeadersFirstDownload download) {
+        this.vHeadersFirstDownload = download;
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public SettableFuture<Long> future;
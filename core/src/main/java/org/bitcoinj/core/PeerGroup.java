@@ -115,6 +115,9 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private Peer downloadPeer;
     // Callback for events related to chain download.
     @Nullable @GuardedBy("lock") private PeerDataEventListener downloadListener;
+    // Whether to download the headers first and then the blocks from all peers, see setHeadersFirstDownload.
+    private volatile boolean vHeadersFirstDownload;
+    @Nullable @GuardedBy("lock") private HeadersFirstDownload headersFirstDownload;
     private final CopyOnWriteArrayList<ListenerRegistration<BlocksDownloadedEventListener>> peersBlocksDownloadedEventListeners
         = new CopyOnWriteArrayList<>();
     private final CopyOnWriteArrayList<ListenerRegistration<ChainDownloadStartedEventListener>> peersChainDownloadStartedEventListeners
@@ -979,7 +982,7 @@ public class PeerGroup implements TransactionBroadcaster {
             }
             final ImmutableSet<PeerAddress> peersDiscoveredSet = ImmutableSet.copyOf(addressList);
             for (final ListenerRegistration<PeerDiscoveredEventListener> registration : peerDiscoveredEventListeners /* COW */) {
-                registration.executor.execute(new Runnable() {
+                Threading.execute(registration.executor, PeerGroup.this, new Runnable() {
                     @Override
                     public void run() {
                         registration.listener.onPeersDiscovered(peersDiscoveredSet);
@@ -1526,6 +1529,15 @@ public class PeerGroup implements TransactionBroadcaster {
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
+            final HeadersFirstDownload download = headersFirstDownload;
+            if (download != null) {
+                executeOnHeadersFirstDownload(new Runnable() {
+                    @Override
+                    public void run() {
+                        download.addPeer(peer);
+                    }
+                });
+            }
             if (downloadPeer == null) {
                 // Kick off chain download if we aren't already doing it.
                 setDownloadPeer(selectDownloadPeer(peers));
@@ -1558,7 +1570,7 @@ public class PeerGroup implements TransactionBroadcaster {
 
         final int fNewSize = newSize;
         for (final ListenerRegistration<PeerConnectedEventListener> registration : peerConnectedEventListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.execute(registration.executor, PeerGroup.this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onPeerConnected(peer, fNewSize);
@@ -1636,7 +1648,7 @@ public class PeerGroup implements TransactionBroadcaster {
      * before starting block chain download.
      * Do not use a {@code time > NOW - 1} block, as it will break some block download logic.
      */
-    public void setFastCatchupTimeSecs(long secondsSinceEpoch) {
+    public void setFastCatchupTimeSecs(final long secondsSinceEpoch) {
         lock.lock();
         try {
             checkState(chain == null || !chain.shouldVerifyTransactions(), "Fast catchup is incompatible with fully verifying");
@@ -1644,6 +1656,15 @@ public class PeerGroup implements TransactionBroadcaster {
             if (downloadPeer != null) {
                 downloadPeer.setDownloadParameters(secondsSinceEpoch, bloomFilterMerger.getLastFilter() != null);
             }
+            final HeadersFirstDownload download = headersFirstDownload;
+            if (download != null) {
+                executeOnHeadersFirstDownload(new Runnable() {
+                    @Override
+                    public void run() {
+                        download.setFastCatchupTimeSecs(secondsSinceEpoch);
+                    }
+                });
+            }
         } finally {
             lock.unlock();
         }
@@ -1678,6 +1699,15 @@ public class PeerGroup implements TransactionBroadcaster {
             PeerAddress address = peer.getAddress();
 
             log.info("{}: Peer died      ({} connected, {} pending, {} max)", address, peers.size(), pendingPeers.size(), maxConnections);
+            final HeadersFirstDownload download = headersFirstDownload;
+            if (download != null) {
+                executeOnHeadersFirstDownload(new Runnable() {
+                    @Override
+                    public void run() {
+                        download.removePeer(peer);
+                    }
+                });
+            }
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
@@ -1732,7 +1762,7 @@ public class PeerGroup implements TransactionBroadcaster {
         for (ListenerRegistration<OnTransactionBroadcastListener> registration : peersTransactionBroadastEventListeners)
             peer.removeOnTransactionBroadcastListener(registration.listener);
         for (final ListenerRegistration<PeerDisconnectedEventListener> registration : peerDisconnectedEventListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.execute(registration.executor, PeerGroup.this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onPeerDisconnected(peer, fNumConnectedPeers);
@@ -1883,7 +1913,7 @@ public class PeerGroup implements TransactionBroadcaster {
     }
     @Nullable private ChainDownloadSpeedCalculator chainDownloadSpeedCalculator;
 
-    private void startBlockChainDownloadFromPeer(Peer peer) {
+    private void startBlockChainDownloadFromPeer(final Peer peer) {
         lock.lock();
         try {
             setDownloadPeer(peer);
@@ -1894,14 +1924,99 @@ public class PeerGroup implements TransactionBroadcaster {
                 executor.scheduleAtFixedRate(chainDownloadSpeedCalculator, 1, 1, TimeUnit.SECONDS);
             }
             peer.addBlocksDownloadedEventListener(Threading.SAME_THREAD, chainDownloadSpeedCalculator);
+            if (vHeadersFirstDownload && chain != null && headersFirstDownload == null)
+                startHeadersFirstDownload();
 
-            // startBlockChainDownload will setDownloadData(true) on itself automatically.
-            peer.startBlockChainDownload();
+            if (headersFirstDownload != null) {
+                // Makes the peer the header peer of the download, once it has been attached to it.
+                executeOnHeadersFirstDownload(new Runnable() {
+                    @Override
+                    public void run() {
+                        peer.startBlockChainDownload();
+                    }
+                });
+            } else {
+                // startBlockChainDownload will setDownloadData(true) on itself automatically.
+                peer.startBlockChainDownload();
+            }
         } finally {
             lock.unlock();
         }
     }
 
+    // Attaches a new headers first download to all peers, the download peer then starts it by requesting headers.
+    @GuardedBy("lock")
+    private void startHeadersFirstDownload() {
+        final HeadersFirstDownload download = new HeadersFirstDownload(params, chain, wallets,
+                bloomFilterMerger.getLastFilter() != null, fastCatchupTimeSecs, this);
+        headersFirstDownload = download;
+        final List<Peer> peers = new ArrayList<>(this.peers);
+        executeOnHeadersFirstDownload(new Runnable() {
+            @Override
+            public void run() {
+                for (Peer peer : peers)
+                    download.addPeer(peer);
+            }
+        });
+        final ListenableScheduledFuture<?> timeouts = executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    download.checkTimeouts();
+                } catch (Throwable e) {
+                    log.error("Exception in headers first download", e);  // The executor swallows exceptions :(
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        download.getFuture().addListener(new Runnable() {
+            @Override
+            public void run() {
+                timeouts.cancel(false);
+                Peer peer;
+                lock.lock();
+                try {
+                    if (headersFirstDownload == download)
+                        headersFirstDownload = null;
+                    peer = downloadPeer;
+                } finally {
+                    lock.unlock();
+                }
+                // Blocks announced towards the end, or all of them if the download was abandoned, are downloaded the
+                // usual way.
+                if (peer != null && chain.getBestChainHeight() < peer.getBestHeight())
+                    peer.startBlockChainDownload();
+            }
+        }, executor);
+    }
+
+    // Calls into the headers first download are made on the executor, in the order they were made in while holding the
+    // lock. They may add blocks to the chain, while peer threads take the locks of the chain and the wallets before ours.
+    @GuardedBy("lock")
+    private void executeOnHeadersFirstDownload(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Can happen during shutdown.
+        }
+    }
+
+    /**
+     * <p>Sets whether to download the block chain headers first. The headers are then downloaded from the download
+     * peer, and the blocks, or filtered blocks, from all connected peers at once, with more requests in flight for the
+     * peers that deliver faster. Blocks that arrive out of order are buffered until they can be added to the chain.
+     * Once the chain has caught up, announced blocks are downloaded from the download peer as usual.</p>
+     *
+     * <p>Call this before starting block chain download. Defaults to false.</p>
+     */
+    public void setHeadersFirstDownload(boolean headersFirstDownload) {
+        this.vHeadersFirstDownload = headersFirstDownload;
+    }
+
+    /** Returns whether the block chain headers are downloaded first, see {@link #setHeadersFirstDownload(boolean)}. */
+    public boolean isHeadersFirstDownload() {
+        return vHeadersFirstDownload;
+    }
+
     /**
      * Returns a future that is triggered when the number of connected peers is equal to the given number of
      * peers. By using this with {@link PeerGroup#getMaxConnections()} you can wait until the
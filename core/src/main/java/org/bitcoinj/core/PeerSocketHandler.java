@@ -26,7 +26,6 @@ import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
@@ -85,11 +84,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            writeTarget.writeBytes(serializer.serialize(message));
         } catch (IOException e) {
             exceptionCaught(e);
         }
@@ -140,8 +136,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     largeReadBufferPos += bytesToGet;
                     // Check the largeReadBuffer's status
                     if (largeReadBufferPos == largeReadBuffer.length) {
-                        // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                        // ...processing a message if one is available, handing the buffer over instead of copying it
+                        processMessage(serializer.deserializePayload(header, largeReadBuffer));
                         largeReadBuffer = null;
                         header = null;
                         firstMessage = false;
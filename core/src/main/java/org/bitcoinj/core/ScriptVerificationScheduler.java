@@ -0,0 +1,258 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.script.ScriptPattern;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Verifies the scripts of the transactions in a block in parallel, used by {@link FullPrunedBlockChain}.</p>
+ *
+ * <p>Work is split per input rather than per transaction, so a block containing one huge transaction and many tiny
+ * ones keeps all cores busy. Inputs are submitted in order of decreasing expected cost (signature operations times
+ * the size of the signature hash), so the most expensive ones don't end up last on a single core, and idle workers
+ * steal from busy ones. The pool is shared by all schedulers, and so by all chains, and its daemon threads end when
+ * idle. As soon as one input fails, the remaining inputs of that block are skipped.</p>
+ *
+ * <p>Signature checks that can only fail a script, such as those of a final OP_CHECKSIG, are not verified while the
+ * scripts run but collected into a {@link SignatureBatch} for the whole block, which is verified once all scripts
+ * passed. This way libsecp256k1 is entered once per range of signatures rather than once per signature.</p>
+ *
+ * <p>After each block the wall clock time of verification is logged together with the wall and CPU time of the
+ * verification tasks summed over all of them, which shows how well the work was spread and how much of it was spent
+ * waiting. CPU time is only measured where the JVM supports it for the current thread.</p>
+ */
+class ScriptVerificationScheduler {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationScheduler.class);
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME_SUPPORTED = THREADS.isCurrentThreadCpuTimeSupported();
+
+    private final Context context;
+    private final ForkJoinPool pool;
+
+    /** Creates a scheduler whose verifications run with the given context. */
+    ScriptVerificationScheduler(Context context) {
+        this(context, VerificationPool.INSTANCE);
+    }
+
+    /** Creates a scheduler whose verifications run with the given context on the given pool, for unit tests. */
+    ScriptVerificationScheduler(Context context, ForkJoinPool pool) {
+        this.context = context;
+        this.pool = pool;
+    }
+
+    // Returns the CPU time of the current thread in nanoseconds, or -1 if it isn't measured.
+    private static long currentThreadCpuTime() {
+        return CPU_TIME_SUPPORTED ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+
+    /** Starts collecting the inputs of a new block. */
+    Batch newBatch() {
+        return new Batch();
+    }
+
+    /** The inputs of one block that are to be verified together. */
+    class Batch {
+        private final List<InputVerification> inputs = new ArrayList<>();
+        private final AtomicReference<VerificationException> failure = new AtomicReference<>();
+        private final AtomicLong taskWallNanos = new AtomicLong();
+        private final AtomicLong taskCpuNanos = new AtomicLong();
+        private final AtomicInteger verified = new AtomicInteger();
+        private final SignatureBatch signatures = new SignatureBatch();
+        @Nullable private CountDownLatch remaining;
+
+        private Batch() {
+        }
+
+        /**
+         * Adds all inputs of the given transaction.
+         *
+         * @param prevOutScripts the scripts of the connected outputs, in input order
+         */
+        void add(Transaction tx, List<Script> prevOutScripts, Set<VerifyFlag> verifyFlags) {
+            checkState(remaining == null, "Batch was already verified");
+            int index = 0;
+            for (Script prevOutScript : prevOutScripts)
+                inputs.add(new InputVerification(this, tx, index++, prevOutScript, verifyFlags));
+        }
+
+        /** Returns the number of inputs added so far. */
+        int size() {
+            return inputs.size();
+        }
+
+        /** Returns the number of inputs whose scripts were run, the others were skipped after a failure. */
+        int getVerifiedCount() {
+            return verified.get();
+        }
+
+        /**
+         * Verifies all inputs that were added and waits for the result.
+         *
+         * @throws VerificationException the first failure that was found, other inputs may not have been checked
+         */
+        void verify() throws VerificationException {
+            checkState(remaining == null, "Batch was already verified");
+            if (inputs.isEmpty())
+                return;
+            long start = System.nanoTime();
+            Collections.sort(inputs, InputVerification.BY_DECREASING_COST);
+            remaining = new CountDownLatch(inputs.size());
+            for (InputVerification input : inputs)
+                pool.execute(input);
+            try {
+                remaining.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e); // Shouldn't happen
+            }
+            if (failure.get() == null) {
+                int invalid = signatures.verifyAll(pool);
+                if (invalid >= 0)
+                    fail(new VerificationException("Signature check " + invalid + " of " + signatures.size() +
+                            " in block failed"));
+            }
+            if (log.isDebugEnabled()) {
+                long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                long taskWallMillis = TimeUnit.NANOSECONDS.toMillis(taskWallNanos.get());
+                String taskCpuMillis = CPU_TIME_SUPPORTED ?
+                        String.valueOf(TimeUnit.NANOSECONDS.toMillis(taskCpuNanos.get())) : "unknown";
+                log.debug("Verified scripts of {} of {} inputs with {} batched signatures in {} ms wall time, {} ms " +
+                        "wall and {} ms CPU time summed over tasks on {} workers{}", verified.get(), inputs.size(),
+                        signatures.size(), wallMillis, taskWallMillis, taskCpuMillis, pool.getParallelism(),
+                        failure.get() != null ? " (stopped early)" : "");
+            }
+            VerificationException e = failure.get();
+            if (e != null)
+                throw e;
+        }
+
+        private void fail(VerificationException e) {
+            failure.compareAndSet(null, e);
+        }
+
+        private Context context() {
+            return context;
+        }
+    }
+
+    private static class InputVerification extends RecursiveAction {
+        static final Comparator<InputVerification> BY_DECREASING_COST = new Comparator<InputVerification>() {
+            @Override
+            public int compare(InputVerification a, InputVerification b) {
+                return Long.compare(b.cost, a.cost);
+            }
+        };
+
+        private final Batch batch;
+        private final Transaction tx;
+        private final int index;
+        private final Script prevOutScript;
+        private final Set<VerifyFlag> verifyFlags;
+        private final long cost;
+
+        InputVerification(Batch batch, Transaction tx, int index, Script prevOutScript, Set<VerifyFlag> verifyFlags) {
+            this.batch = batch;
+            this.tx = tx;
+            this.index = index;
+            this.prevOutScript = prevOutScript;
+            this.verifyFlags = verifyFlags;
+            this.cost = estimateCost(tx, index, prevOutScript);
+        }
+
+        // Every signature check hashes (roughly) the whole transaction, so its size is what multiplies the sigops.
+        private static long estimateCost(Transaction tx, int index, Script prevOutScript) {
+            long sigOps;
+            try {
+                if (ScriptPattern.isPayToScriptHash(prevOutScript))
+                    sigOps = Script.getP2SHSigOpCount(tx.getInput(index).getScriptBytes());
+                else
+                    sigOps = Script.getSigOpCount(prevOutScript.getProgram());
+            } catch (ScriptException e) {
+                sigOps = 1;
+            }
+            return Math.max(sigOps, 1) * (tx.getInputs().size() + tx.getOutputs().size());
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (batch.failure.get() != null)
+                    return;
+                Context.propagate(batch.context());
+                batch.verified.incrementAndGet();
+                long start = System.nanoTime();
+                long cpuStart = currentThreadCpuTime();
+                try {
+                    tx.getInput(index).getScriptSig().correctlySpends(tx, index, prevOutScript, verifyFlags,
+                            batch.signatures);
+                } catch (VerificationException e) {
+                    batch.fail(e);
+                } catch (RuntimeException e) {
+                    log.error("Script.correctlySpends threw a non-normal exception: " + e);
+                    batch.fail(new VerificationException("Bug in Script.correctlySpends, likely script malformed in " +
+                            "some new and interesting way.", e));
+                } finally {
+                    batch.taskWallNanos.addAndGet(System.nanoTime() - start);
+                    long cpuEnd = currentThreadCpuTime();
+                    if (cpuStart >= 0 && cpuEnd >= 0)
+                        batch.taskCpuNanos.addAndGet(cpuEnd - cpuStart);
+                }
+            } finally {
+                batch.remaining.countDown();
+            }
+        }
+    }
+
+    // Shared by all schedulers and only created once needed. Its threads are daemons and end when idle.
+    private static class VerificationPool {
+        static final ForkJoinPool INSTANCE = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                    @Override
+                    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                        thread.setName("Script verification");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, Threading.uncaughtExceptionHandler, true);
+    }
+}
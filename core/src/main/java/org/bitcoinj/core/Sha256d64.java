@@ -0,0 +1,204 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.MessageDigest;
+import java.security.DigestException;
+
+/**
+ * <p>Double SHA-256 of many 64 byte inputs at once, as needed for the inner nodes of Merkle trees, used by
+ * {@link Sha256Hash#hashTwice64(byte[], int, byte[], int, int)}.</p>
+ *
+ * <p>There are two implementations, selected once at startup. {@link #DIGEST} uses the platform's
+ * {@link MessageDigest}, which newer JVMs compile down to the SHA instructions of the CPU. {@link #PURE_JAVA} is a
+ * SHA-256 specialised for 64 byte inputs: the second block of the first hash is all padding, so its message schedule
+ * is a constant that is computed only once, and the second hash needs a single block. It is the faster choice on JVMs
+ * without SHA intrinsics, such as Java 8 and Android. The choice can be forced with the system property
+ * {@code bitcoinj.sha256d64}, set to {@code digest} or {@code java}.</p>
+ */
+abstract class Sha256d64 {
+    private static final Logger log = LoggerFactory.getLogger(Sha256d64.class);
+
+    static final Sha256d64 DIGEST = new Sha256d64() {
+        @Override
+        void hash(byte[] input, int inputOffset, byte[] output, int outputOffset, int count) {
+            MessageDigest digest = Sha256Hash.threadLocalDigest();
+            try {
+                for (int i = 0; i < count; i++) {
+                    digest.update(input, inputOffset + i * 64, 64);
+                    digest.digest(output, outputOffset + i * 32, 32);
+                    digest.update(output, outputOffset + i * 32, 32);
+                    digest.digest(output, outputOffset + i * 32, 32);
+                }
+            } catch (DigestException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "digest";
+        }
+    };
+
+    static final Sha256d64 PURE_JAVA = new Sha256d64() {
+        @Override
+        void hash(byte[] input, int inputOffset, byte[] output, int outputOffset, int count) {
+            int[] w = new int[64];
+            int[] state = new int[8];
+            for (int i = 0; i < count; i++)
+                hash64(input, inputOffset + i * 64, output, outputOffset + i * 32, w, state);
+        }
+
+        @Override
+        public String toString() {
+            return "java";
+        }
+    };
+
+    static final Sha256d64 INSTANCE = select();
+
+    private static Sha256d64 select() {
+        String property = System.getProperty("bitcoinj.sha256d64");
+        Sha256d64 engine;
+        if ("digest".equals(property))
+            engine = DIGEST;
+        else if ("java".equals(property))
+            engine = PURE_JAVA;
+        else
+            engine = hasShaIntrinsics() ? DIGEST : PURE_JAVA;
+        log.debug("Using {} implementation of double SHA-256 for 64 byte inputs", engine);
+        return engine;
+    }
+
+    // SHA intrinsics were added in Java 9. Java 8 reports "1.8", Android "0.9".
+    private static boolean hasShaIntrinsics() {
+        String version = System.getProperty("java.specification.version", "");
+        return !version.startsWith("1.") && !version.startsWith("0.") && !Utils.isAndroidRuntime();
+    }
+
+    /**
+     * Writes the double SHA-256 of each of the {@code count} consecutive 64 byte inputs starting at
+     * {@code inputOffset} to the consecutive 32 byte outputs starting at {@code outputOffset}. Output may overlap the
+     * input, as long as it doesn't start after it.
+     */
+    abstract void hash(byte[] input, int inputOffset, byte[] output, int outputOffset, int count);
+
+    private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private static final int[] IV = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private static final int[] ZERO = new int[64];
+
+    // K plus the message schedule of the padding block that follows a 64 byte message.
+    private static final int[] PADDING_64_KW = new int[64];
+
+    static {
+        int[] w = new int[64];
+        w[0] = 0x80000000;
+        w[15] = 512;
+        expand(w);
+        for (int t = 0; t < 64; t++)
+            PADDING_64_KW[t] = K[t] + w[t];
+    }
+
+    private static void hash64(byte[] input, int inputOffset, byte[] output, int outputOffset, int[] w,
+                               int[] state) {
+        // First hash: the 64 input bytes, then the constant padding block.
+        for (int t = 0; t < 16; t++) {
+            int o = inputOffset + t * 4;
+            w[t] = (input[o] << 24) | ((input[o + 1] & 0xff) << 16) | ((input[o + 2] & 0xff) << 8)
+                    | (input[o + 3] & 0xff);
+        }
+        expand(w);
+        System.arraycopy(IV, 0, state, 0, 8);
+        compress(state, w, K);
+        compress(state, PADDING_64_KW, ZERO);
+
+        // Second hash: the 32 byte result of the first one and its padding, in a single block.
+        System.arraycopy(state, 0, w, 0, 8);
+        w[8] = 0x80000000;
+        for (int t = 9; t < 15; t++)
+            w[t] = 0;
+        w[15] = 256;
+        expand(w);
+        System.arraycopy(IV, 0, state, 0, 8);
+        compress(state, w, K);
+
+        for (int i = 0; i < 8; i++) {
+            int o = outputOffset + i * 4;
+            int s = state[i];
+            output[o] = (byte) (s >>> 24);
+            output[o + 1] = (byte) (s >>> 16);
+            output[o + 2] = (byte) (s >>> 8);
+            output[o + 3] = (byte) s;
+        }
+    }
+
+    private static void expand(int[] w) {
+        for (int t = 16; t < 64; t++) {
+            int w15 = w[t - 15], w2 = w[t - 2];
+            int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+            int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+    }
+
+    // Runs the 64 rounds on the given schedule plus the given constants, which are zero if the schedule includes K.
+    private static void compress(int[] state, int[] w, int[] k) {
+        int a = state[0], b = state[1], c = state[2], d = state[3];
+        int e = state[4], f = state[5], g = state[6], h = state[7];
+        for (int t = 0; t < 64; t++) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int t1 = h + s1 + ch + k[t] + w[t];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int t2 = s0 + maj;
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+        state[5] += f;
+        state[6] += g;
+        state[7] += h;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.Transaction.SigHash;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptOpCodes;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static org.bitcoinj.core.Utils.uint32ToByteArrayLE;
+
+/**
+ * <p>Holds the parts of a transaction that are shared between the signature hashes of all of its inputs, so that
+ * signing or verifying every input of an N-input transaction doesn't have to copy, re-parse and re-serialize the whole
+ * transaction N times.</p>
+ *
+ * <p>The context is built once from a "blanked" serialization of the transaction, in which every input script is
+ * empty. For {@link SigHash#ALL} signatures it additionally keeps a SHA-256 midstate for the prefix preceding each
+ * input's script, so only the connected script and the remainder of the transaction have to be hashed per input.
+ * The other modes are assembled from the same cached pieces without any intermediate objects.</p>
+ *
+ * <p>Instances are obtained via {@link Transaction#getSigHashContext()} and are invalidated by the transaction when
+ * anything covered by a signature hash changes (version, lock time, outpoints, sequence numbers or outputs). Changing
+ * input scripts does <i>not</i> invalidate the context, as they are blanked before hashing anyway. Instances are
+ * immutable and can be shared between threads.</p>
+ */
+public class SigHashContext {
+    // Each blanked input is the outpoint (36 bytes), an empty script (1 byte) and the sequence number (4 bytes).
+    private static final int BLANK_INPUT_LENGTH = TransactionOutPoint.MESSAGE_LENGTH + 1 + 4;
+    private static final byte[] NULL_OUTPUT = { -1, -1, -1, -1, -1, -1, -1, -1, 0 };
+    private static final byte[] ZERO_SEQUENCE = new byte[4];
+    private static final Sha256Hash SIGHASH_SINGLE_BUG = Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+
+    private final byte[] blanked;
+    private final int numInputs;
+    private final int inputsStart;
+    private final int outputsStart;
+    private final int[] outputOffsets;
+    private final int lockTimeStart;
+    // SHA-256 state after hashing everything up to and including the outpoint of each input, for SIGHASH_ALL.
+    private final MessageDigest[] midstates;
+
+    SigHashContext(Transaction tx) {
+        List<TransactionInput> inputs = tx.getInputs();
+        List<TransactionOutput> outputs = tx.getOutputs();
+        numInputs = inputs.size();
+        try {
+            UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(
+                    9 + numInputs * BLANK_INPUT_LENGTH + outputs.size() * 34 + 9 + 4);
+            Utils.uint32ToByteStreamLE(tx.getVersion(), bos);
+            bos.write(new VarInt(numInputs).encode());
+            inputsStart = bos.size();
+            for (TransactionInput input : inputs) {
+                input.getOutpoint().bitcoinSerialize(bos);
+                bos.write(0);
+                Utils.uint32ToByteStreamLE(input.getSequenceNumber(), bos);
+            }
+            outputsStart = bos.size();
+            bos.write(new VarInt(outputs.size()).encode());
+            outputOffsets = new int[outputs.size() + 1];
+            for (int i = 0; i < outputs.size(); i++) {
+                outputOffsets[i] = bos.size();
+                outputs.get(i).bitcoinSerialize(bos);
+            }
+            lockTimeStart = bos.size();
+            outputOffsets[outputs.size()] = lockTimeStart;
+            Utils.uint32ToByteStreamLE(tx.getLockTime(), bos);
+            blanked = bos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+
+        midstates = new MessageDigest[numInputs];
+        MessageDigest digest = Sha256Hash.newDigest();
+        int hashed = 0;
+        for (int i = 0; i < numInputs; i++) {
+            int scriptStart = inputStart(i) + TransactionOutPoint.MESSAGE_LENGTH;
+            digest.update(blanked, hashed, scriptStart - hashed);
+            hashed = scriptStart;
+            midstates[i] = cloneDigest(digest);
+        }
+    }
+
+    /** Returns the number of inputs of the transaction this context was built for. */
+    public int getNumInputs() {
+        return numInputs;
+    }
+
+    /**
+     * Calculates the signature hash for the given input, exactly as
+     * {@link Transaction#hashForSignature(int, byte[], byte)} would.
+     *
+     * @param inputIndex input the signature is being calculated for.
+     * @param connectedScript the bytes that should be in the given input during signing.
+     * @param sigHashType the raw sighash flags, which need not be representable by {@link SigHash}.
+     */
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        checkElementIndex(inputIndex, numInputs, "inputIndex");
+        // See Transaction.hashForSignature() for why this is done.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+
+        int baseType = sigHashType & 0x1f;
+        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+        if (baseType == SigHash.SINGLE.value && inputIndex >= outputOffsets.length - 1)
+            return SIGHASH_SINGLE_BUG;
+
+        MessageDigest digest;
+        if (!anyoneCanPay && baseType != SigHash.NONE.value && baseType != SigHash.SINGLE.value) {
+            // The common case: everything up to this input's script is shared with all other inputs.
+            digest = cloneDigest(midstates[inputIndex]);
+            updateWithScript(digest, connectedScript);
+            int sequenceStart = inputStart(inputIndex) + BLANK_INPUT_LENGTH - 4;
+            digest.update(blanked, sequenceStart, lockTimeStart + 4 - sequenceStart);
+        } else {
+            digest = Sha256Hash.newDigest();
+            digest.update(blanked, 0, 4);
+            if (anyoneCanPay) {
+                digest.update((byte) 1);
+                updateWithInput(digest, inputIndex, connectedScript, false);
+            } else {
+                digest.update(blanked, 4, inputsStart - 4);
+                for (int i = 0; i < numInputs; i++)
+                    updateWithInput(digest, i, i == inputIndex ? connectedScript : null, i != inputIndex);
+            }
+            if (baseType == SigHash.NONE.value) {
+                digest.update((byte) 0);
+            } else if (baseType == SigHash.SINGLE.value) {
+                digest.update(new VarInt(inputIndex + 1).encode());
+                for (int i = 0; i < inputIndex; i++)
+                    digest.update(NULL_OUTPUT);
+                digest.update(blanked, outputOffsets[inputIndex], outputOffsets[inputIndex + 1] - outputOffsets[inputIndex]);
+            } else {
+                digest.update(blanked, outputsStart, lockTimeStart - outputsStart);
+            }
+            digest.update(blanked, lockTimeStart, 4);
+        }
+        // We also have to write a hash type (sigHashType is actually an unsigned char)
+        byte[] type = new byte[4];
+        uint32ToByteArrayLE(0x000000ff & sigHashType, type, 0);
+        digest.update(type);
+        return Sha256Hash.wrap(digest.digest(digest.digest()));
+    }
+
+    private int inputStart(int inputIndex) {
+        return inputsStart + inputIndex * BLANK_INPUT_LENGTH;
+    }
+
+    private void updateWithInput(MessageDigest digest, int inputIndex, byte[] script, boolean zeroSequence) {
+        int start = inputStart(inputIndex);
+        digest.update(blanked, start, TransactionOutPoint.MESSAGE_LENGTH);
+        if (script != null)
+            updateWithScript(digest, script);
+        else
+            digest.update((byte) 0);
+        if (zeroSequence)
+            digest.update(ZERO_SEQUENCE);
+        else
+            digest.update(blanked, start + BLANK_INPUT_LENGTH - 4, 4);
+    }
+
+    private static void updateWithScript(MessageDigest digest, byte[] script) {
+        digest.update(new VarInt(script.length).encode());
+        digest.update(script);
+    }
+
+    private static MessageDigest cloneDigest(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);  // Cannot happen with the SHA-256 implementations shipped with the JRE.
+        }
+    }
+}
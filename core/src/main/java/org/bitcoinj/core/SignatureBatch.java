@@ -0,0 +1,199 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoin.NativeSecp256k1;
+import org.bitcoin.NativeSecp256k1Util;
+import org.bitcoin.Secp256k1Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Collects ECDSA signature checks so that they can be verified together, later. The hash, DER encoded signature
+ * and public key of each check are packed into a single direct buffer, the layout that
+ * {@link NativeSecp256k1#verifyBatch(ByteBuffer, int[], int[], int[], int, int, boolean[])} reads without copying.
+ * When libsecp256k1 isn't available, the checks are verified with Bouncy Castle instead, like
+ * {@link ECKey#verify(byte[], byte[], byte[])} does.</p>
+ *
+ * <p>Checks can be added from multiple threads. Verification splits the batch into ranges that are verified in
+ * parallel if a fork/join pool is given.</p>
+ */
+public class SignatureBatch {
+    private static final Logger log = LoggerFactory.getLogger(SignatureBatch.class);
+
+    // Below this many checks per range, a range isn't split any further.
+    private static final int MIN_RANGE = 16;
+
+    private ByteBuffer entries;
+    private int[] offsets;
+    private int[] sigLengths;
+    private int[] pubLengths;
+    private int size;
+
+    public SignatureBatch() {
+        this(64);
+    }
+
+    /** Creates a batch with room for the given number of checks of the usual size. */
+    public SignatureBatch(int expectedSize) {
+        int capacity = Math.max(expectedSize, 1);
+        entries = ByteBuffer.allocateDirect(capacity * (32 + 72 + 33)).order(ByteOrder.nativeOrder());
+        offsets = new int[capacity];
+        sigLengths = new int[capacity];
+        pubLengths = new int[capacity];
+    }
+
+    /**
+     * Adds a check of the given signature.
+     *
+     * @param hash      Hash of the data that was signed, 32 bytes.
+     * @param signature ASN.1 encoded signature.
+     * @param pubKey    The public key bytes to use.
+     * @return the index of the check, which is also the index of its result in {@link #verify(ForkJoinPool)}
+     */
+    public synchronized int add(byte[] hash, byte[] signature, byte[] pubKey) {
+        checkArgument(hash.length == 32 && signature.length <= 520 && pubKey.length <= 520);
+        if (size == offsets.length) {
+            int capacity = size * 2;
+            offsets = Arrays.copyOf(offsets, capacity);
+            sigLengths = Arrays.copyOf(sigLengths, capacity);
+            pubLengths = Arrays.copyOf(pubLengths, capacity);
+        }
+        int length = hash.length + signature.length + pubKey.length;
+        if (entries.remaining() < length) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(entries.capacity() * 2, entries.position() + length))
+                    .order(ByteOrder.nativeOrder());
+            entries.flip();
+            grown.put(entries);
+            entries = grown;
+        }
+        offsets[size] = entries.position();
+        sigLengths[size] = signature.length;
+        pubLengths[size] = pubKey.length;
+        entries.put(hash).put(signature).put(pubKey);
+        return size++;
+    }
+
+    /** Adds a check of the given signature, see {@link #add(byte[], byte[], byte[])}. */
+    public int add(byte[] hash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        return add(hash, signature.encodeToDER(), pubKey);
+    }
+
+    /** Returns the number of checks added so far. */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Verifies all checks that were added.
+     *
+     * @param pool Runs the verification of ranges of the batch in parallel, or null to verify them all in the calling
+     *             thread.
+     * @return the result of each check, by index
+     */
+    public boolean[] verify(@Nullable ForkJoinPool pool) {
+        final boolean[] results;
+        final Range all;
+        synchronized (this) {
+            results = new boolean[size];
+            all = new Range(entries.duplicate(), offsets, sigLengths, pubLengths, 0, size, results);
+        }
+        if (ECKey.FAKE_SIGNATURES)
+            Arrays.fill(results, true);
+        else if (pool != null && results.length > MIN_RANGE)
+            pool.invoke(all);
+        else
+            all.verifyRange();
+        return results;
+    }
+
+    /**
+     * Verifies all checks that were added, see {@link #verify(ForkJoinPool)}.
+     *
+     * @return the index of the first check that failed, or -1 if all passed
+     */
+    public int verifyAll(@Nullable ForkJoinPool pool) {
+        boolean[] results = verify(pool);
+        for (int i = 0; i < results.length; i++)
+            if (!results[i])
+                return i;
+        return -1;
+    }
+
+    private static class Range extends RecursiveAction {
+        private final ByteBuffer entries;
+        private final int[] offsets, sigLengths, pubLengths;
+        private final int from, to;
+        private final boolean[] results;
+
+        Range(ByteBuffer entries, int[] offsets, int[] sigLengths, int[] pubLengths, int from, int to,
+              boolean[] results) {
+            this.entries = entries;
+            this.offsets = offsets;
+            this.sigLengths = sigLengths;
+            this.pubLengths = pubLengths;
+            this.from = from;
+            this.to = to;
+            this.results = results;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= MIN_RANGE) {
+                verifyRange();
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Range(entries, offsets, sigLengths, pubLengths, from, middle, results),
+                    new Range(entries, offsets, sigLengths, pubLengths, middle, to, results));
+        }
+
+        void verifyRange() {
+            if (Secp256k1Context.isEnabled()) {
+                try {
+                    NativeSecp256k1.verifyBatch(entries, offsets, sigLengths, pubLengths, from, to, results);
+                    return;
+                } catch (NativeSecp256k1Util.AssertFailException e) {
+                    log.error("Caught AssertFailException inside secp256k1, verifying again one by one", e);
+                }
+            }
+            ByteBuffer view = entries.duplicate();
+            for (int i = from; i < to; i++) {
+                byte[] hash = new byte[32];
+                byte[] signature = new byte[sigLengths[i]];
+                byte[] pubKey = new byte[pubLengths[i]];
+                view.position(offsets[i]);
+                view.get(hash).get(signature).get(pubKey);
+                try {
+                    results[i] = ECKey.verify(hash, signature, pubKey);
+                } catch (RuntimeException e) {
+                    // Signatures and keys that can't even be decoded are simply invalid.
+                    results[i] = false;
+                }
+            }
+        }
+    }
+}
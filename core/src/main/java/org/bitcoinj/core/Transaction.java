@@ -24,7 +24,6 @@ import org.bitcoinj.script.Script.ScriptType;
 import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.script.ScriptError;
 import org.bitcoinj.script.ScriptException;
-import org.bitcoinj.script.ScriptOpCodes;
 import org.bitcoinj.script.ScriptPattern;
 import org.bitcoinj.signers.TransactionSigner;
 import org.bitcoinj.utils.ExchangeRate;
@@ -42,6 +41,8 @@ import org.spongycastle.crypto.params.KeyParameter;
 import javax.annotation.Nullable;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.bitcoinj.core.Utils.*;
 import static com.google.common.base.Preconditions.checkArgument;
@@ -163,6 +164,11 @@ public class Transaction extends ChildMessage {
     // can properly keep track of optimal encoded size
     private int optimalEncodingMessageSize;
 
+    // Shared state for calculating the signature hashes of all inputs, built on demand. Unlike the cached
+    // serialization this survives changes to input scripts, so it has to be reset explicitly via
+    // invalidateSigHashContext() whenever anything covered by a signature hash changes.
+    @Nullable private SigHashContext sigHashContext;
+
     /**
      * This enum describes the underlying reason the transaction was created. It's useful for rendering wallet GUIs
      * more appropriately.
@@ -202,6 +208,18 @@ public class Transaction extends ChildMessage {
     @Nullable
     private String memo;
 
+    // Source of the modification stamps of transactions and their confidence, see getModificationStamp().
+    private static final AtomicLong modifications = new AtomicLong();
+    private volatile long modificationStamp = nextModificationStamp();
+
+    // Told when the update time changes, like the wallets that keep their history in order of it. Created lazily.
+    @Nullable private transient volatile CopyOnWriteArrayList<UpdateTimeListener> updateTimeListeners;
+
+    /** Is told when the update time of a transaction changes, see {@link #addUpdateTimeListener(UpdateTimeListener)}. */
+    public interface UpdateTimeListener {
+        void onUpdateTimeChanged(Transaction tx);
+    }
+
     public Transaction(NetworkParameters params) {
         super(params);
         version = 1;
@@ -265,6 +283,7 @@ public class Transaction extends ChildMessage {
     /**
      * Used by BitcoinSerializer.  The serializer has to calculate a hash for checksumming so to
      * avoid wasting the considerable effort a set method is provided so the serializer can set it.
+     * Also used by Block, which hashes the bytes of its transactions while it parses them.
      *
      * No verification is performed on this hash.
      */
@@ -361,6 +380,7 @@ public class Transaction extends ChildMessage {
             appearsInHashes = new TreeMap<>();
         }
         appearsInHashes.put(blockHash, relativityOffset);
+        modified();
     }
 
     /**
@@ -483,6 +503,32 @@ public class Transaction extends ChildMessage {
 
     public void setUpdateTime(Date updatedAt) {
         this.updatedAt = updatedAt;
+        modified();
+        List<UpdateTimeListener> listeners = updateTimeListeners;
+        if (listeners != null) {
+            for (UpdateTimeListener listener : listeners)
+                listener.onUpdateTimeChanged(this);
+        }
+    }
+
+    /**
+     * Adds a listener that is called whenever {@link #setUpdateTime(Date)} is, on the same thread, so it should return
+     * quickly and not take any locks the caller may hold. Adding the same listener twice has no effect.
+     */
+    public void addUpdateTimeListener(UpdateTimeListener listener) {
+        CopyOnWriteArrayList<UpdateTimeListener> listeners;
+        synchronized (this) {
+            if (updateTimeListeners == null)
+                updateTimeListeners = new CopyOnWriteArrayList<>();
+            listeners = updateTimeListeners;
+        }
+        listeners.addIfAbsent(listener);
+    }
+
+    /** Removes a listener added with {@link #addUpdateTimeListener(UpdateTimeListener)}. */
+    public boolean removeUpdateTimeListener(UpdateTimeListener listener) {
+        List<UpdateTimeListener> listeners = updateTimeListeners;
+        return listeners != null && listeners.remove(listener);
     }
 
     /**
@@ -525,6 +571,26 @@ public class Transaction extends ChildMessage {
     protected void unCache() {
         super.unCache();
         hash = null;
+        modified();
+    }
+
+    /**
+     * Returns a value that is larger after every change to the transaction than before it, for telling whether it has
+     * to be saved again: changes to its inputs, outputs and other fields, to which blocks it appears in, to which
+     * inputs spend its outputs, and to the values of its connected inputs. Changes to its confidence are tracked
+     * separately, by {@link TransactionConfidence#getModificationStamp()}.
+     */
+    public long getModificationStamp() {
+        return modificationStamp;
+    }
+
+    // Called after every change that getModificationStamp() tracks.
+    void modified() {
+        modificationStamp = nextModificationStamp();
+    }
+
+    static long nextModificationStamp() {
+        return modifications.incrementAndGet();
     }
 
     protected static int calcLength(byte[] buf, int offset) {
@@ -777,6 +843,7 @@ public class Transaction extends ChildMessage {
      */
     public void clearInputs() {
         unCache();
+        invalidateSigHashContext();
         for (TransactionInput input : inputs) {
             input.setParent(null);
         }
@@ -802,6 +869,7 @@ public class Transaction extends ChildMessage {
      */
     public TransactionInput addInput(TransactionInput input) {
         unCache();
+        invalidateSigHashContext();
         input.setParent(this);
         inputs.add(input);
         adjustLength(inputs.size(), input.length);
@@ -872,6 +940,7 @@ public class Transaction extends ChildMessage {
      */
     public void clearOutputs() {
         unCache();
+        invalidateSigHashContext();
         for (TransactionOutput output : outputs) {
             output.setParent(null);
         }
@@ -885,6 +954,7 @@ public class Transaction extends ChildMessage {
      */
     public TransactionOutput addOutput(TransactionOutput to) {
         unCache();
+        invalidateSigHashContext();
         to.setParent(this);
         outputs.add(to);
         adjustLength(outputs.size(), to.length);
@@ -1046,85 +1116,52 @@ public class Transaction extends ChildMessage {
         // the purposes of the code in this method:
         //
         //   https://en.bitcoin.it/wiki/Contracts
+        //
+        // Conceptually the signature hash is calculated on a copy of this transaction, in which all input scripts are
+        // cleared and the script of the input being signed is set to the script of its output. Bitcoin Core does this
+        // but the step has no obvious purpose as the signature covers the hash of the prevout transaction which
+        // obviously includes the output script already.
+        //
+        // Before that, any OP_CODESEPARATOR is deleted from the connected script. This step has no purpose beyond
+        // being synchronized with Bitcoin Core's bugs. OP_CODESEPARATOR is a legacy holdover from a previous, broken
+        // design of executing scripts that shipped in Bitcoin 0.1. It was seriously flawed and would have let anyone
+        // take anyone elses money. Later versions switched to the design we use today where scripts are executed
+        // independently but share a stack. This left the OP_CODESEPARATOR instruction having no purpose as it was
+        // only meant to be used internally, not actually ever put into scripts. Deleting OP_CODESEPARATOR is a step
+        // that should never be required but if we don't do it, we could split off the main chain.
+        //
+        // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
+        // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output). In both modes the
+        // sequence numbers of the other inputs are zeroed, so the signature isn't broken by new versions of the
+        // transaction issued by other parties. SIGHASH_ANYONECANPAY means the signature in the input is not broken by
+        // changes/additions/removals of other inputs. For example, this is useful for building assurance contracts.
+        //
+        // Rather than copying the transaction for every input, the shared parts are serialized once into a
+        // SigHashContext which then assembles the simplified form for each input. See there for the details.
+        return getSigHashContext().hashForSignature(inputIndex, connectedScript, sigHashType);
+    }
 
-        try {
-            // Create a copy of this transaction to operate upon because we need make changes to the inputs and outputs.
-            // It would not be thread-safe to change the attributes of the transaction object itself.
-            Transaction tx = this.params.getDefaultSerializer().makeTransaction(this.bitcoinSerialize());
-
-            // Clear input scripts in preparation for signing. If we're signing a fresh
-            // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
-            // EC math so we'll do it anyway.
-            for (int i = 0; i < tx.inputs.size(); i++) {
-                tx.inputs.get(i).clearScriptBytes();
-            }
-
-            // This step has no purpose beyond being synchronized with Bitcoin Core's bugs. OP_CODESEPARATOR
-            // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
-            // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
-            // the design we use today where scripts are executed independently but share a stack. This left the
-            // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
-            // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
-            // do it, we could split off the main chain.
-            connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
-
-            // Set the input to the script of its output. Bitcoin Core does this but the step has no obvious purpose as
-            // the signature covers the hash of the prevout transaction which obviously includes the output script
-            // already. Perhaps it felt safer to him in some way, or is another leftover from how the code was written.
-            TransactionInput input = tx.inputs.get(inputIndex);
-            input.setScriptBytes(connectedScript);
-
-            if ((sigHashType & 0x1f) == SigHash.NONE.value) {
-                // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
-                tx.outputs = new ArrayList<>(0);
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < tx.inputs.size(); i++)
-                    if (i != inputIndex)
-                        tx.inputs.get(i).setSequenceNumber(0);
-            } else if ((sigHashType & 0x1f) == SigHash.SINGLE.value) {
-                // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
-                if (inputIndex >= tx.outputs.size()) {
-                    // The input index is beyond the number of outputs, it's a buggy signature made by a broken
-                    // Bitcoin implementation. Bitcoin Core also contains a bug in handling this case:
-                    // any transaction output that is signed in this case will result in both the signed output
-                    // and any future outputs to this public key being steal-able by anyone who has
-                    // the resulting signature and the public key (both of which are part of the signed tx input).
-
-                    // Bitcoin Core's bug is that SignatureHash was supposed to return a hash and on this codepath it
-                    // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
-                    return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
-                }
-                // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
-                // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
-                tx.outputs = new ArrayList<>(tx.outputs.subList(0, inputIndex + 1));
-                for (int i = 0; i < inputIndex; i++)
-                    tx.outputs.set(i, new TransactionOutput(tx.params, tx, Coin.NEGATIVE_SATOSHI, new byte[] {}));
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < tx.inputs.size(); i++)
-                    if (i != inputIndex)
-                        tx.inputs.get(i).setSequenceNumber(0);
-            }
-
-            if ((sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value) {
-                // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
-                // of other inputs. For example, this is useful for building assurance contracts.
-                tx.inputs = new ArrayList<TransactionInput>();
-                tx.inputs.add(input);
-            }
-
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(tx.length == UNKNOWN_LENGTH ? 256 : tx.length + 4);
-            tx.bitcoinSerialize(bos);
-            // We also have to write a hash type (sigHashType is actually an unsigned char)
-            uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
-            // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
-            // however then we would expect that it is IS reversed.
-            Sha256Hash hash = Sha256Hash.twiceOf(bos.toByteArray());
-            bos.close();
-
-            return hash;
-        } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
+    /**
+     * <p>Returns the shared state used for calculating the signature hashes of this transaction's inputs, building it
+     * if necessary. Callers that calculate signature hashes for many inputs in a row, like script verification or
+     * signing, should obtain the context once and use {@link SigHashContext#hashForSignature(int, byte[], byte)}
+     * directly.</p>
+     *
+     * <p>The returned context is immutable. It stays valid until the version, lock time, outpoints, sequence numbers or
+     * outputs of this transaction change, after which a new one will be returned.</p>
+     */
+    public SigHashContext getSigHashContext() {
+        SigHashContext context = sigHashContext;
+        if (context == null || context.getNumInputs() != inputs.size()) {
+            context = new SigHashContext(this);
+            sigHashContext = context;
         }
+        return context;
+    }
+
+    /** Discards the state cached for calculating signature hashes, see {@link #getSigHashContext()}. */
+    void invalidateSigHashContext() {
+        sigHashContext = null;
     }
 
     @Override
@@ -1171,6 +1208,7 @@ public class Transaction extends ChildMessage {
             log.warn("You are setting the lock time on a transaction but none of the inputs have non-default sequence numbers. This will not do what you expect!");
         }
         this.lockTime = lockTime;
+        invalidateSigHashContext();
     }
 
     public long getVersion() {
@@ -1180,6 +1218,7 @@ public class Transaction extends ChildMessage {
     public void setVersion(int version) {
         this.version = version;
         unCache();
+        invalidateSigHashContext();
     }
 
     /** Returns an unmodifiable view of all inputs. */
@@ -1213,6 +1252,7 @@ public class Transaction extends ChildMessage {
     /** Randomly re-orders the transaction outputs: good for privacy */
     public void shuffleOutputs() {
         Collections.shuffle(outputs);
+        invalidateSigHashContext();
     }
 
     /** Same as getInputs().get(index). */
@@ -1437,6 +1477,7 @@ public class Transaction extends ChildMessage {
      */
     public void setPurpose(Purpose purpose) {
         this.purpose = purpose;
+        modified();
     }
 
     /**
@@ -1452,6 +1493,7 @@ public class Transaction extends ChildMessage {
      */
     public void setExchangeRate(ExchangeRate exchangeRate) {
         this.exchangeRate = exchangeRate;
+        modified();
     }
 
     /**
@@ -1467,5 +1509,6 @@ public class Transaction extends ChildMessage {
      */
     public void setMemo(String memo) {
         this.memo = memo;
+        modified();
     }
 }
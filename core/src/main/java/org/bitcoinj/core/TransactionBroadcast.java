@@ -233,7 +233,8 @@ public class TransactionBroadcast {
                 if (executor == null)
                     callback.onBroadcastProgress(progress);
                 else
-                    executor.execute(new Runnable() {
+                    // Only the latest progress matters, so it supersedes the ones not yet reported.
+                    Threading.execute(executor, tx.getHash(), callback, new Runnable() {
                         @Override
                         public void run() {
                             callback.onBroadcastProgress(progress);
@@ -31,8 +31,6 @@ import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.*;
 
-// TODO: Modify the getDepthInBlocks method to require the chain height to be specified, in preparation for ceasing to touch every tx on every block.
-
 /**
  * <p>A TransactionConfidence object tracks data you can use to make a confidence decision about a transaction.
  * It also contains some pre-canned rules for common scenarios: if you aren't really sure what level of confidence
@@ -57,8 +55,9 @@ import static com.google.common.base.Preconditions.*;
  * <p>Alternatively, you may know that the transaction is "dead", that is, one or more of its inputs have
  * been double spent and will never confirm unless there is another re-org.</p>
  *
- * <p>TransactionConfidence is updated via the {@link TransactionConfidence#incrementDepthInBlocks()}
- * method to ensure the block depth is up to date.</p>
+ * <p>The depth of a building transaction whose confidence comes from a {@link TxConfidenceTable} is derived from the
+ * height of the best chain, as wallets report new blocks to the table. Other confidence objects are updated via the
+ * {@link TransactionConfidence#incrementDepthInBlocks()} method to ensure the block depth is up to date.</p>
  * To make a copy that won't be changed, use {@link TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence {
@@ -78,6 +77,12 @@ public class TransactionConfidence {
 
     // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
     private int depth;
+    // The table this confidence comes from, if any, and the height of the best chain that depth is as of, or -1 if
+    // unknown. A building transaction is one block deeper for every block the best chain of the table has grown since.
+    @Nullable private final TxConfidenceTable table;
+    private int depthSetAtHeight = -1;
+    // Changed after everything but the depth changes, see getModificationStamp().
+    private volatile long modificationStamp = Transaction.nextModificationStamp();
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -147,10 +152,24 @@ public class TransactionConfidence {
     private Source source = Source.UNKNOWN;
 
     public TransactionConfidence(Sha256Hash hash) {
+        this(hash, null);
+    }
+
+    TransactionConfidence(Sha256Hash hash, @Nullable TxConfidenceTable table) {
         // Assume a default number of peers for our set.
         broadcastBy = new CopyOnWriteArrayList<>();
         listeners = new CopyOnWriteArrayList<>();
         this.hash = hash;
+        this.table = table;
+    }
+
+    /**
+     * Returns the table this confidence object was created by, which keeps its depth up to date once it is building,
+     * or null if it wasn't created by a table.
+     */
+    @Nullable
+    public TxConfidenceTable getTable() {
+        return table;
     }
 
     /**
@@ -253,8 +272,9 @@ public class TransactionConfidence {
         if (appearedAtChainHeight < 0)
             throw new IllegalArgumentException("appearedAtChainHeight out of range");
         this.appearedAtChainHeight = appearedAtChainHeight;
-        this.depth = 1;
+        setDepth(1);
         setConfidenceType(ConfidenceType.BUILDING);
+        modified();
     }
 
     /**
@@ -271,6 +291,7 @@ public class TransactionConfidence {
     public synchronized void setConfidenceType(ConfidenceType confidenceType) {
         if (confidenceType == this.confidenceType)
             return;
+        int depth = getDepthInBlocks();
         this.confidenceType = confidenceType;
         if (confidenceType != ConfidenceType.DEAD) {
             overridingTransaction = null;
@@ -279,6 +300,8 @@ public class TransactionConfidence {
             depth = 0;
             appearedAtChainHeight = -1;
         }
+        setDepth(depth);
+        modified();
     }
 
 
@@ -292,13 +315,16 @@ public class TransactionConfidence {
      */
     public boolean markBroadcastBy(PeerAddress address) {
         lastBroadcastedAt = Utils.now();
-        if (!broadcastBy.addIfAbsent(address))
+        if (!broadcastBy.addIfAbsent(address)) {
+            modified();
             return false;  // Duplicate.
+        }
         synchronized (this) {
             if (getConfidenceType() == ConfidenceType.UNKNOWN) {
                 this.confidenceType = ConfidenceType.PENDING;
             }
         }
+        modified();
         return true;
     }
 
@@ -330,6 +356,7 @@ public class TransactionConfidence {
     /** Set the time the transaction was last announced to us. */
     public void setLastBroadcastedAt(Date lastBroadcastedAt) {
         this.lastBroadcastedAt = lastBroadcastedAt;
+        modified();
     }
 
     @Override
@@ -366,13 +393,15 @@ public class TransactionConfidence {
     }
 
     /**
-     * Called by the wallet when the tx appears on the best chain and a new block is added to the top. Updates the
-     * internal counter that tracks how deeply buried the block is.
+     * Called when the tx appears on the best chain and a new block is added to the top, if the block isn't reported
+     * to the {@link TxConfidenceTable} this confidence comes from. Updates the internal counter that tracks how deeply
+     * buried the block is.
      *
      * @return the new depth
      */
     public synchronized int incrementDepthInBlocks() {
-        return ++this.depth;
+        depth++;
+        return getDepthInBlocks();
     }
 
     /**
@@ -386,14 +415,40 @@ public class TransactionConfidence {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
+        if (confidenceType == ConfidenceType.BUILDING && table != null && depthSetAtHeight >= 0) {
+            // The best chain may not be reported up to that height yet, by a wallet that is still catching up.
+            int bestChainHeight = table.getBestChainHeight();
+            if (bestChainHeight > depthSetAtHeight)
+                return depth + bestChainHeight - depthSetAtHeight;
+        }
         return depth;
     }
 
     /*
-     * Set the depth in blocks. Having one block confirmation is a depth of one.
+     * Set the depth in blocks. Having one block confirmation is a depth of one. If the chain height at which the
+     * transaction appeared is known, the depth is taken to be as of the chain height it implies, otherwise as of the
+     * current height of the best chain of the table this confidence comes from, or if no block was reported to it yet,
+     * as of the block before the first one that is.
      */
     public synchronized void setDepthInBlocks(int depth) {
+        setDepth(depth);
+    }
+
+    private void setDepth(int depth) {
         this.depth = depth;
+        if (appearedAtChainHeight >= 0)
+            depthSetAtHeight = appearedAtChainHeight + depth - 1;
+        else if (table != null && confidenceType == ConfidenceType.BUILDING)
+            depthSetAtHeight = table.getDepthAnchor(this);
+        else
+            depthSetAtHeight = table != null ? table.getBestChainHeight() : -1;
+    }
+
+    // Called by the table when the first block is reported, if the depth was set before the height of the best chain
+    // was known.
+    synchronized void anchorDepth(int height) {
+        if (depthSetAtHeight < 0)
+            depthSetAtHeight = height;
     }
 
     /**
@@ -404,6 +459,7 @@ public class TransactionConfidence {
         checkState(getConfidenceType() != ConfidenceType.PENDING);
         broadcastBy.clear();
         lastBroadcastedAt = null;
+        modified();
     }
 
     /**
@@ -430,6 +486,7 @@ public class TransactionConfidence {
     public synchronized void setOverridingTransaction(@Nullable Transaction overridingTransaction) {
         this.overridingTransaction = overridingTransaction;
         setConfidenceType(ConfidenceType.DEAD);
+        modified();
     }
 
     /** Returns a copy of this object. Event listeners are not duplicated. */
@@ -453,7 +510,8 @@ public class TransactionConfidence {
      */
     public void queueListeners(final Listener.ChangeReason reason) {
         for (final ListenerRegistration<Listener> registration : listeners) {
-            registration.executor.execute(new Runnable() {
+            // The listener looks at the confidence when it runs, so a later change for the same reason supersedes it.
+            Threading.execute(registration.executor, hash, Arrays.asList(registration, reason), new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onConfidenceChanged(TransactionConfidence.this, reason);
@@ -480,6 +538,20 @@ public class TransactionConfidence {
      */
     public synchronized void setSource(Source source) {
         this.source = source;
+        modified();
+    }
+
+    /**
+     * Returns a value that is larger after every change to this confidence than before it, apart from changes to the
+     * depth, for telling whether it has to be saved again. It is comparable to
+     * {@link Transaction#getModificationStamp()}.
+     */
+    public long getModificationStamp() {
+        return modificationStamp;
+    }
+
+    private void modified() {
+        modificationStamp = Transaction.nextModificationStamp();
     }
 
     /**
@@ -491,11 +563,15 @@ public class TransactionConfidence {
         final SettableFuture<TransactionConfidence> result = SettableFuture.create();
         if (getDepthInBlocks() >= depth) {
             result.set(this);
+            return result;
         }
+        if (table != null)
+            table.subscribeToDepth(this);
         addEventListener(executor, new Listener() {
             @Override public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
-                if (getDepthInBlocks() >= depth) {
-                    removeEventListener(this);
+                if (getDepthInBlocks() >= depth && removeEventListener(this)) {
+                    if (table != null)
+                        table.unsubscribeFromDepth(TransactionConfidence.this);
                     result.set(confidence);
                 }
             }
@@ -212,6 +212,9 @@ public class TransactionInput extends ChildMessage {
     public void setSequenceNumber(long sequence) {
         unCache();
         this.sequence = sequence;
+        Transaction parentTransaction = getParentTransaction();
+        if (parentTransaction != null)
+            parentTransaction.invalidateSigHashContext();
     }
 
     /**
@@ -352,6 +355,9 @@ public class TransactionInput extends ChildMessage {
         outpoint.fromTx = out.getParentTransaction();
         out.markAsSpent(this);
         value = out.getValue();
+        Transaction parentTransaction = getParentTransaction();
+        if (parentTransaction != null)
+            parentTransaction.modified();
     }
 
     /**
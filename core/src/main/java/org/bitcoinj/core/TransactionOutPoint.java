@@ -193,6 +193,7 @@ public class TransactionOutPoint extends ChildMessage {
 
     void setHash(Sha256Hash hash) {
         this.hash = hash;
+        invalidateSigHashContext();
     }
 
     public long getIndex() {
@@ -201,6 +202,15 @@ public class TransactionOutPoint extends ChildMessage {
     
     public void setIndex(long index) {
         this.index = index;
+        invalidateSigHashContext();
+    }
+
+    private void invalidateSigHashContext() {
+        if (parent instanceof TransactionInput) {
+            Transaction tx = ((TransactionInput) parent).getParentTransaction();
+            if (tx != null)
+                tx.invalidateSigHashContext();
+        }
     }
 
     @Override
@@ -172,6 +172,9 @@ public class TransactionOutput extends ChildMessage {
         checkNotNull(value);
         unCache();
         this.value = value.value;
+        Transaction parentTransaction = getParentTransaction();
+        if (parentTransaction != null)
+            parentTransaction.invalidateSigHashContext();
     }
 
     /**
@@ -237,6 +240,9 @@ public class TransactionOutput extends ChildMessage {
         checkState(availableForSpending);
         availableForSpending = false;
         spentBy = input;
+        Transaction parentTransaction = getParentTransaction();
+        if (parentTransaction != null)
+            parentTransaction.modified();
         if (parent != null)
             if (log.isDebugEnabled()) log.debug("Marked {}:{} as spent by {}", getParentTransactionHash(), getIndex(), input);
         else
@@ -253,6 +259,9 @@ public class TransactionOutput extends ChildMessage {
             if (log.isDebugEnabled()) log.debug("Un-marked floating output as spent by {}", spentBy);
         availableForSpending = true;
         spentBy = null;
+        Transaction parentTransaction = getParentTransaction();
+        if (parentTransaction != null)
+            parentTransaction.modified();
     }
 
     /**
@@ -55,6 +55,23 @@ public class TxConfidenceTable {
     // if our peers flood us with invs but the MAX_SIZE param caps this.
     private ReferenceQueue<TransactionConfidence> referenceQueue;
 
+    // The block with the most work that wallets have reported as the top of their best chain, and its height, which the
+    // depth of building transactions is derived from. Wallets that are still catching up report blocks with less work,
+    // which don't change it.
+    @Nullable private StoredBlock bestBlock;
+    private volatile int bestChainHeight = -1;
+
+    // Confidence objects with depth futures pending, which wallets tell about every new block no matter how deep the
+    // transaction is. The count is the number of futures pending on each. Guarded by its own monitor, as it is used
+    // while holding the monitor of the confidence objects.
+    private final Map<TransactionConfidence, Integer> depthSubscriptions = new HashMap<>();
+
+    // Building confidence objects whose depth was set before any block was reported, like those of wallets loaded from
+    // files without the height the transaction appeared at. Their depth is taken to be as of the block before the first
+    // one reported. Guarded by its own monitor, like depthSubscriptions.
+    private final Set<TransactionConfidence> unanchoredDepths =
+            Collections.newSetFromMap(new WeakHashMap<TransactionConfidence, Boolean>());
+
     /** The max size of a table created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
 
@@ -164,7 +181,7 @@ public class TxConfidenceTable {
                 if (confidence != null)
                     return confidence;
             }
-            TransactionConfidence newConfidence = new TransactionConfidence(hash);
+            TransactionConfidence newConfidence = new TransactionConfidence(hash, this);
             table.put(hash, new WeakConfidenceReference(newConfidence, referenceQueue));
             return newConfidence;
         } finally {
@@ -192,4 +209,83 @@ public class TxConfidenceTable {
             lock.unlock();
         }
     }
+
+    /**
+     * Called by wallets when a block is added to the top of their best chain. If it has more work than any block
+     * reported before, its height becomes the height of the best chain, which the depth of all building transactions
+     * whose confidence comes from this table is derived from, instead of each of them having to be updated. Blocks
+     * reported by wallets that are still catching up, or that are on another chain, have less work and are ignored.
+     *
+     * @return true if the block is the new top of the best chain, false if it isn't
+     */
+    public boolean newBestBlock(StoredBlock block) {
+        checkNotNull(block);
+        lock.lock();
+        try {
+            if (bestBlock != null) {
+                int work = block.getChainWork().compareTo(bestBlock.getChainWork());
+                if (work < 0 || (work == 0 && block.getHeight() <= bestBlock.getHeight()))
+                    return false;
+            }
+            bestBlock = block;
+            bestChainHeight = block.getHeight();
+        } finally {
+            lock.unlock();
+        }
+        List<TransactionConfidence> unanchored;
+        synchronized (unanchoredDepths) {
+            if (unanchoredDepths.isEmpty())
+                return true;
+            unanchored = new ArrayList<>(unanchoredDepths);
+            unanchoredDepths.clear();
+        }
+        for (TransactionConfidence confidence : unanchored)
+            confidence.anchorDepth(block.getHeight() - 1);
+        return true;
+    }
+
+    /** Returns the height of the best chain as reported by {@link #newBestBlock(StoredBlock)}, or -1 if unknown. */
+    public int getBestChainHeight() {
+        return bestChainHeight;
+    }
+
+    /**
+     * Returns the confidence objects from this table that have futures from
+     * {@link TransactionConfidence#getDepthFuture(int)} pending. Wallets notify their listeners of each new block for
+     * these, even for transactions buried deeper than they otherwise would.
+     */
+    public List<TransactionConfidence> getDepthSubscriptions() {
+        synchronized (depthSubscriptions) {
+            return new ArrayList<>(depthSubscriptions.keySet());
+        }
+    }
+
+    // Returns the height of the best chain. If none was reported yet, returns -1 and anchors the depth of the given
+    // confidence once a block is.
+    int getDepthAnchor(TransactionConfidence confidence) {
+        synchronized (unanchoredDepths) {
+            // Read while holding the monitor, so the confidence is either anchored now or by newBestBlock.
+            int height = bestChainHeight;
+            if (height < 0)
+                unanchoredDepths.add(confidence);
+            return height;
+        }
+    }
+
+    void subscribeToDepth(TransactionConfidence confidence) {
+        synchronized (depthSubscriptions) {
+            Integer count = depthSubscriptions.get(confidence);
+            depthSubscriptions.put(confidence, count == null ? 1 : count + 1);
+        }
+    }
+
+    void unsubscribeFromDepth(TransactionConfidence confidence) {
+        synchronized (depthSubscriptions) {
+            Integer count = depthSubscriptions.get(confidence);
+            if (count == null || count == 1)
+                depthSubscriptions.remove(confidence);
+            else
+                depthSubscriptions.put(confidence, count - 1);
+        }
+    }
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.CommittedUTXOProvider;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * <p>Looks up the outputs spent by upcoming blocks in the background, used by
+ * {@link FullPrunedBlockChain#addAll(java.util.Iterator, int)}. The lookups of a block run in parallel on the given
+ * executor while earlier blocks are still being connected.</p>
+ *
+ * <p>Prefetched outputs are only a hint. Because they may have been read before earlier blocks were connected, every
+ * output spent by a block connected after a prefetch was started is invalidated in that prefetch, and each prefetched
+ * output is handed out only once so that a double spend within a block is still caught by the store. Anything that
+ * isn't known to be valid, or hasn't been looked up yet, falls back to
+ * {@link FullPrunedBlockStore#getTransactionOutput(Sha256Hash, long)}. The connecting thread never waits for a
+ * prefetch, as stores like H2 lock whole tables while a block is being written. Re-orgs and aborted writes discard all
+ * pending prefetches.</p>
+ *
+ * <p>Stores that aren't safe for use from several threads while a block is being connected, like the LevelDB store,
+ * implement {@link CommittedUTXOProvider}, and for them the lookups only read what was committed.</p>
+ */
+class UTXOPrefetcher {
+    private static final Logger log = LoggerFactory.getLogger(UTXOPrefetcher.class);
+
+    private final FullPrunedBlockStore blockStore;
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final Map<Sha256Hash, Prefetch> pending = new ConcurrentHashMap<>();
+
+    UTXOPrefetcher(FullPrunedBlockStore blockStore, ExecutorService executor, int parallelism) {
+        this.blockStore = blockStore;
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    /** Starts looking up all outputs spent by the given block that aren't created by the block itself. */
+    void prefetch(Block block) {
+        if (block.transactions == null)
+            return;
+        Prefetch prefetch = new Prefetch(blockStore, block.transactions);
+        List<TransactionOutPoint> outPoints = prefetch.outPoints;
+        if (outPoints.isEmpty())
+            return;
+        int chunkSize = (outPoints.size() + parallelism - 1) / parallelism;
+        pending.put(block.getHash(), prefetch);
+        for (int i = 0; i < outPoints.size(); i += chunkSize)
+            executor.execute(prefetch.new Chunk(outPoints.subList(i, Math.min(i + chunkSize, outPoints.size()))));
+    }
+
+    /** Returns and forgets the prefetched outputs of the given block, or null if there are none. */
+    @Nullable
+    Prefetch take(Sha256Hash blockHash) {
+        return pending.remove(blockHash);
+    }
+
+    /** Called after a block has been connected, so that pending prefetches won't hand out what it spent. */
+    void outputsSpent(List<UTXO> spent) {
+        if (pending.isEmpty() || spent.isEmpty())
+            return;
+        Set<TransactionOutPoint> outPoints = new HashSet<>(spent.size());
+        for (UTXO out : spent)
+            outPoints.add(new TransactionOutPoint(blockStore.getParams(), out.getIndex(), out.getHash()));
+        for (Prefetch prefetch : pending.values())
+            prefetch.invalidated.addAll(outPoints);
+    }
+
+    /** Discards all pending prefetches, for when the set of unspent outputs changed in a way we don't track. */
+    void clear() {
+        pending.clear();
+    }
+
+    /**
+     * The outputs spent by a single block, looked up ahead of connecting it. Also used on its own by
+     * {@link FullPrunedBlockChain} to look up all outputs spent by a block with a single batched store call.
+     */
+    static class Prefetch {
+        private final FullPrunedBlockStore blockStore;
+        // Outpoints spent by the block that aren't created by the block itself.
+        private final List<TransactionOutPoint> outPoints;
+        private final Map<TransactionOutPoint, UTXO> found = new ConcurrentHashMap<>();
+        // Outpoints spent by later blocks or already handed out, which must be looked up from the store.
+        private final Set<TransactionOutPoint> invalidated =
+                Collections.newSetFromMap(new ConcurrentHashMap<TransactionOutPoint, Boolean>());
+
+        Prefetch(FullPrunedBlockStore blockStore, List<Transaction> transactions) {
+            this.blockStore = blockStore;
+            Set<Sha256Hash> createdInBlock = new HashSet<>();
+            List<TransactionOutPoint> outPoints = new ArrayList<>();
+            for (Transaction tx : transactions) {
+                if (!tx.isCoinBase())
+                    for (TransactionInput input : tx.getInputs())
+                        if (!createdInBlock.contains(input.getOutpoint().getHash()))
+                            outPoints.add(input.getOutpoint());
+                createdInBlock.add(tx.getHash());
+            }
+            this.outPoints = outPoints;
+        }
+
+        /**
+         * Looks up everything that hasn't been prefetched yet, with a single call to
+         * {@link FullPrunedBlockStore#getTransactionOutputs(List)}.
+         */
+        void fetchRemaining() throws BlockStoreException {
+            List<TransactionOutPoint> remaining = new ArrayList<>();
+            for (TransactionOutPoint outPoint : outPoints)
+                if (!found.containsKey(outPoint) && !invalidated.contains(outPoint))
+                    remaining.add(outPoint);
+            if (!remaining.isEmpty())
+                found(remaining, blockStore.getTransactionOutputs(remaining));
+        }
+
+        private void found(List<TransactionOutPoint> outPoints, List<UTXO> outs) {
+            for (int i = 0; i < outPoints.size(); i++)
+                if (outs.get(i) != null)
+                    found.put(outPoints.get(i), outs.get(i));
+        }
+
+        /**
+         * Returns the output spent by the given outpoint. Falls back to the block store if the output wasn't
+         * prefetched (yet), might have been spent in the meantime or was already returned before.
+         */
+        @Nullable
+        UTXO getTransactionOutput(TransactionOutPoint outPoint) throws BlockStoreException {
+            UTXO out = found.remove(outPoint);
+            if (invalidated.add(outPoint) && out != null)
+                return out;
+            return blockStore.getTransactionOutput(outPoint.getHash(), outPoint.getIndex());
+        }
+
+        private class Chunk implements Runnable {
+            private final List<TransactionOutPoint> outPoints;
+
+            private Chunk(List<TransactionOutPoint> outPoints) {
+                this.outPoints = outPoints;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    if (blockStore instanceof CommittedUTXOProvider)
+                        found(outPoints, ((CommittedUTXOProvider) blockStore)
+                                .getCommittedTransactionOutputs(outPoints));
+                    else
+                        found(outPoints, blockStore.getTransactionOutputs(outPoints));
+                } catch (Exception e) {
+                    // Whatever is missing will be looked up again when the block is connected.
+                    log.warn("Failed to prefetch outputs", e);
+                }
+            }
+        }
+    }
+}
@@ -218,13 +218,15 @@ public class DeterministicKey extends ECKey {
      * Returns RIPE-MD160(SHA256(pub key bytes)).
      */
     public byte[] getIdentifier() {
-        return Utils.sha256hash160(getPubKey());
+        return getPubKeyHash().clone();
     }
 
     /** Returns the first 32 bits of the result of {@link #getIdentifier()}. */
     public int getFingerprint() {
         // TODO: why is this different than armory's fingerprint? BIP 32: "The first 32 bits of the identifier are called the fingerprint."
-        return ByteBuffer.wrap(Arrays.copyOfRange(getIdentifier(), 0, 4)).getInt();
+        // The identifier is the hash of the public key, which is cached, so that deserializing a chain doesn't hash the
+        // parent key again for each of its children.
+        return ByteBuffer.wrap(getPubKeyHash(), 0, 4).getInt();
     }
 
     @Nullable
@@ -18,12 +18,15 @@ package org.bitcoinj.crypto;
 
 import com.google.common.collect.*;
 import org.bitcoinj.core.*;
+import org.spongycastle.crypto.macs.HMac;
 import org.spongycastle.math.ec.*;
 
+import javax.annotation.Nullable;
 import java.math.*;
 import java.nio.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -51,6 +54,9 @@ public final class HDKeyDerivation {
      */
     public static final int MAX_CHILD_DERIVATION_ATTEMPTS = 100;
 
+    // The number of children derived by one task of deriveChildKeys, which also share one field inversion.
+    private static final int DERIVATION_RANGE = 64;
+
     /**
      * Generates a new deterministic key from the given seed, which can be any arbitrary byte array. However resist
      * the temptation to use a string as the seed - any key derived from a password is likely to be weak and easily
@@ -133,6 +139,111 @@ public final class HDKeyDerivation {
 
     }
 
+    /**
+     * <p>Derives the public keys of {@code count} children of the parent, starting at {@code firstChild}, like calling
+     * {@link #deriveThisOrNextChildKey(DeterministicKey, int)} for each would: a child that can't be derived is
+     * skipped in favour of the next one. The children must not be hardened, and the keys have no private key bytes
+     * even if the parent has.</p>
+     *
+     * <p>This is a lot cheaper than deriving the keys one by one. The parent's public key is encoded and its chain
+     * code set up for HMAC once, and the points of a range of children are normalized with a single field inversion.
+     * Watching keys are derived this way too, as only public derivation is needed.</p>
+     *
+     * @param pool derives ranges of the children in parallel, or null to derive them all in the calling thread
+     */
+    public static List<DeterministicKey> deriveChildKeys(DeterministicKey parent, int firstChild, int count,
+                                                         @Nullable ForkJoinPool pool) {
+        checkArgument(count >= 0, "count must not be negative");
+        checkArgument(firstChild >= 0 && (long) firstChild + count <= (ChildNumber.HARDENED_BIT & 0xFFFFFFFFL),
+                "Can't derive hardened children from the public key");
+        DeterministicKey[] keys = new DeterministicKey[count];
+        DeriveRange all = new DeriveRange(new PublicParent(parent), firstChild, keys, 0, count);
+        if (pool != null && count > DERIVATION_RANGE)
+            pool.invoke(all);
+        else
+            all.deriveRange();
+        List<DeterministicKey> result = new ArrayList<>(count);
+        for (DeterministicKey key : keys)
+            if (key != null)
+                result.add(key);
+        // Make up for the children that couldn't be derived, which is extremely unlikely to ever happen.
+        int nextChild = firstChild + count;
+        while (result.size() < count) {
+            DeterministicKey key = deriveThisOrNextChildKey(parent, nextChild).dropPrivateBytes();
+            result.add(key);
+            nextChild = key.getChildNumber().num() + 1;
+        }
+        return result;
+    }
+
+    // What deriving public children of a parent needs from it, worked out once.
+    private static class PublicParent {
+        final DeterministicKey key;
+        final byte[] publicKey;
+        final ECPoint point;
+
+        PublicParent(DeterministicKey key) {
+            this.key = key;
+            this.point = key.getPubKeyPoint().normalize();
+            this.publicKey = point.getEncoded(true);
+        }
+    }
+
+    private static class DeriveRange extends RecursiveAction {
+        private final PublicParent parent;
+        private final int firstChild;
+        private final DeterministicKey[] keys;
+        private final int from, to;
+
+        DeriveRange(PublicParent parent, int firstChild, DeterministicKey[] keys, int from, int to) {
+            this.parent = parent;
+            this.firstChild = firstChild;
+            this.keys = keys;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= DERIVATION_RANGE) {
+                deriveRange();
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new DeriveRange(parent, firstChild, keys, from, middle),
+                    new DeriveRange(parent, firstChild, keys, middle, to));
+        }
+
+        // Leaves the keys of children that can't be derived null.
+        void deriveRange() {
+            ECPoint[] points = new ECPoint[to - from];
+            byte[][] chainCodes = new byte[to - from][];
+            HMac hmac = HDUtils.createHmacSha512Digest(parent.key.getChainCode());
+            byte[] data = Arrays.copyOf(parent.publicKey, 37);
+            for (int j = 0; j < points.length; j++) {
+                Utils.uint32ToByteArrayBE(firstChild + from + j, data, 33);
+                byte[] i = HDUtils.hmacSha512(hmac, data);
+                BigInteger ilInt = new BigInteger(1, Arrays.copyOfRange(i, 0, 32));
+                if (ilInt.compareTo(ECKey.CURVE.getN()) > 0)
+                    continue;
+                ECPoint point = ECKey.publicPointFromPrivate(ilInt).add(parent.point);
+                if (point.isInfinity())
+                    continue;
+                points[j] = point;
+                chainCodes[j] = Arrays.copyOfRange(i, 32, 64);
+            }
+            ECKey.CURVE.getCurve().normalizeAll(points);
+            for (int j = 0; j < points.length; j++) {
+                if (points[j] == null)
+                    continue;
+                ChildNumber childNumber = new ChildNumber(firstChild + from + j);
+                keys[from + j] = new DeterministicKey(HDUtils.append(parent.key.getPath(), childNumber),
+                        chainCodes[j], new LazyECPoint(ECKey.CURVE.getCurve(), points[j].getEncoded(true)), null,
+                        parent.key);
+            }
+        }
+    }
+
     /**
      * @throws HDDerivationException if private derivation is attempted for a public-only parent key, or
      * if the resulting derived key is invalid (eg. private key == 0).
@@ -19,6 +19,7 @@ package org.bitcoinj.net;
 import com.google.common.util.concurrent.AbstractIdleService;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import javax.annotation.Nullable;
 import javax.net.SocketFactory;
 import java.io.IOException;
 import java.net.SocketAddress;
@@ -26,6 +27,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ThreadFactory;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -35,15 +37,23 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * <p>Generally, using {@link NioClient} and {@link NioClientManager} should be preferred over {@link BlockingClient}
  * and {@link BlockingClientManager} as they scale significantly better, unless you wish to connect over a proxy or use
  * some other network settings that cannot be set using NIO.</p>
+ *
+ * <p>The exception is when the runtime has virtual threads (Java 21 and later). Each client then blocks on a virtual
+ * thread, which takes a few hundred bytes of heap rather than a platform thread and its stack, so that thousands of
+ * connections are cheap. See {@link #BlockingClientManager(SocketFactory, boolean)}.</p>
  */
 public class BlockingClientManager extends AbstractIdleService implements ClientConnectionManager {
+    // Null if the runtime doesn't have virtual threads. Looked up reflectively as we still build for older runtimes.
+    @Nullable private static final ThreadFactory VIRTUAL_THREAD_FACTORY = createVirtualThreadFactory();
+
     private final SocketFactory socketFactory;
+    @Nullable private final ThreadFactory threadFactory;
     private final Set<BlockingClient> clients = Collections.synchronizedSet(new HashSet<BlockingClient>());
 
     private int connectTimeoutMillis = 1000;
 
     public BlockingClientManager() {
-        socketFactory = SocketFactory.getDefault();
+        this(SocketFactory.getDefault());
     }
 
     /**
@@ -51,7 +61,38 @@ public class BlockingClientManager extends AbstractIdleService implements Client
      * bitcoinj connects to the P2P network.
      */
     public BlockingClientManager(SocketFactory socketFactory) {
+        this(socketFactory, false);
+    }
+
+    /**
+     * Creates a blocking client manager that will obtain sockets from the given factory and, if virtualThreads is true
+     * and the runtime supports them, runs each client on a virtual thread. Otherwise each client gets a platform thread
+     * of its own, as with the other constructors.
+     */
+    public BlockingClientManager(SocketFactory socketFactory, boolean virtualThreads) {
         this.socketFactory = checkNotNull(socketFactory);
+        this.threadFactory = virtualThreads ? VIRTUAL_THREAD_FACTORY : null;
+    }
+
+    /** Returns whether the runtime supports virtual threads, that is whether it is Java 21 or later. */
+    public static boolean isVirtualThreadSupported() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /** Returns whether the clients of this manager run on virtual threads. */
+    public boolean isUsingVirtualThreads() {
+        return threadFactory != null;
+    }
+
+    @Nullable
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            // Thread.ofVirtual().factory()
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
     }
 
     @Override
@@ -59,7 +100,8 @@ public class BlockingClientManager extends AbstractIdleService implements Client
         try {
             if (!isRunning())
                 throw new IllegalStateException();
-            return new BlockingClient(serverAddress, connection, connectTimeoutMillis, socketFactory, clients).getConnectFuture();
+            return new BlockingClient(serverAddress, connection, connectTimeoutMillis, socketFactory, clients,
+                    threadFactory).getConnectFuture();
         } catch (IOException e) {
             throw new RuntimeException(e); // This should only happen if we are, eg, out of system resources
         }
@@ -18,6 +18,7 @@ package org.bitcoinj.net;
 
 import org.bitcoinj.core.Message;
 import org.bitcoinj.utils.Threading;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import org.slf4j.LoggerFactory;
 
@@ -28,10 +29,12 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -51,6 +54,15 @@ class ConnectionHandler implements MessageWriteTarget {
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
 
+    // Small messages (inv, getdata, ping...) are copied into direct buffers, several to a buffer, so that a burst of
+    // them goes out in one write without the JDK copying each into a temporary direct buffer. Larger messages are
+    // queued as they are. Every buffer of the write queue that is direct comes from and goes back to the pool.
+    @VisibleForTesting static final int POOLED_BUFFER_SIZE = 8192;
+    @VisibleForTesting static final int SMALL_MESSAGE_SIZE = 2048;
+    @VisibleForTesting static final BlockingQueue<ByteBuffer> bufferPool = new ArrayBlockingQueue<>(128);
+    // The most buffers handed to a single gathering write, well below the IOV_MAX of any OS.
+    @VisibleForTesting static final int MAX_BUFFERS_PER_WRITE = 64;
+
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
     private final ReentrantLock lock = Threading.lock("nioConnectionHandler");
@@ -61,10 +73,15 @@ class ConnectionHandler implements MessageWriteTarget {
     @GuardedBy("lock") private boolean closeCalled = false;
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<>();
+    @GuardedBy("lock") private final ArrayDeque<ByteBuffer> bytesToWrite = new ArrayDeque<>();
+    @GuardedBy("lock") private final ByteBuffer[] buffersToWrite = new ByteBuffer[MAX_BUFFERS_PER_WRITE];
 
     private Set<ConnectionHandler> connectedHandlers;
 
+    // If set, received bytes are handed to the connection on this executor instead of the selector thread. Reading
+    // stops while it has them, so the connection sees its bytes in order and a slow one doesn't hold up the others.
+    @Nullable private final Executor receiveExecutor;
+
     public ConnectionHandler(StreamConnectionFactory connectionFactory, SelectionKey key) throws IOException {
         this(connectionFactory.getNewConnection(((SocketChannel) key.channel()).socket().getInetAddress(), ((SocketChannel) key.channel()).socket().getPort()), key);
         if (connection == null)
@@ -72,7 +89,13 @@ class ConnectionHandler implements MessageWriteTarget {
     }
 
     private ConnectionHandler(@Nullable StreamConnection connection, SelectionKey key) {
+        this(connection, key, (Executor) null);
+    }
+
+    private ConnectionHandler(@Nullable StreamConnection connection, SelectionKey key,
+                              @Nullable Executor receiveExecutor) {
         this.key = key;
+        this.receiveExecutor = receiveExecutor;
         this.channel = checkNotNull(((SocketChannel)key.channel()));
         if (connection == null) {
             readBuff = null;
@@ -85,7 +108,12 @@ class ConnectionHandler implements MessageWriteTarget {
     }
 
     public ConnectionHandler(StreamConnection connection, SelectionKey key, Set<ConnectionHandler> connectedHandlers) {
-        this(checkNotNull(connection), key);
+        this(connection, key, connectedHandlers, null);
+    }
+
+    public ConnectionHandler(StreamConnection connection, SelectionKey key, Set<ConnectionHandler> connectedHandlers,
+                             @Nullable Executor receiveExecutor) {
+        this(checkNotNull(connection), key, receiveExecutor);
 
         // closeConnection() may have already happened because we invoked the other c'tor above, which called
         // connection.setWriteTarget which might have re-entered already. In this case we shouldn't add ourselves
@@ -112,14 +140,27 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
+            // Push as much of the outbound ByteBuff queue as possible into the OS' network buffer, handing several
+            // buffers to each write.
+            while (!bytesToWrite.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer buff : bytesToWrite) {
+                    buffersToWrite[count++] = buff;
+                    if (count == buffersToWrite.length)
+                        break;
+                }
+                try {
+                    bytesToWriteRemaining -= channel.write(buffersToWrite, 0, count);
+                } finally {
+                    Arrays.fill(buffersToWrite, 0, count, null);
+                }
+                int written = 0;
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.peek().hasRemaining()) {
+                    releaseBuffer(bytesToWrite.poll());
+                    written++;
+                }
+                if (written < count) {
+                    // The OS' network buffer is full, wait until it has room again.
                     setWriteOps();
                     break;
                 }
@@ -145,11 +186,16 @@ class ConnectionHandler implements MessageWriteTarget {
 
             if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
+            // Just dump the message onto the write buffer and let the selector thread write it. If the queue wasn't
+            // empty, it is already waiting to and the message goes out with the ones before it.
+            boolean wasEmpty = bytesToWrite.isEmpty();
+            if (message.length <= SMALL_MESSAGE_SIZE)
+                appendSmallMessage(message);
+            else
+                bytesToWrite.offer(ByteBuffer.wrap(message));
             bytesToWriteRemaining += message.length;
-            setWriteOps();
+            if (wasEmpty)
+                setWriteOps();
         } catch (IOException e) {
             lock.unlock();
             andUnlock = false;
@@ -168,6 +214,35 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    // Copies the message to the end of the last buffer of the queue if it is a pooled one with room left, otherwise
+    // into a new one
+    @GuardedBy("lock")
+    private void appendSmallMessage(byte[] message) {
+        ByteBuffer last = bytesToWrite.peekLast();
+        if (last != null && last.isDirect() && last.capacity() - last.limit() >= message.length) {
+            // The buffer is ready to be written from, with its unwritten bytes between position and limit.
+            int position = last.position();
+            last.position(last.limit());
+            last.limit(last.limit() + message.length);
+            last.put(message);
+            last.position(position);
+            return;
+        }
+        ByteBuffer buff = bufferPool.poll();
+        if (buff == null)
+            buff = ByteBuffer.allocateDirect(POOLED_BUFFER_SIZE);
+        buff.put(message);
+        buff.flip();
+        bytesToWrite.offer(buff);
+    }
+
+    private static void releaseBuffer(ByteBuffer buff) {
+        if (buff.isDirect()) {
+            buff.clear();
+            bufferPool.offer(buff); // Dropped if the pool is full
+        }
+    }
+
     // May NOT be called with lock held
     @Override
     public void closeConnection() {
@@ -186,6 +261,10 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            // Nothing more will be written, give the pooled buffers back.
+            while (!bytesToWrite.isEmpty())
+                releaseBuffer(bytesToWrite.poll());
+            bytesToWriteRemaining = 0;
         } finally {
             lock.unlock();
         }
@@ -219,12 +298,10 @@ class ConnectionHandler implements MessageWriteTarget {
                 }
                 // "flip" the buffer - setting the limit to the current position and setting position to 0
                 handler.readBuff.flip();
-                // Use connection.receiveBytes's return value as a check that it stopped reading at the right location
-                int bytesConsumed = checkNotNull(handler.connection).receiveBytes(handler.readBuff);
-                checkState(handler.readBuff.position() == bytesConsumed);
-                // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
-                // position)
-                handler.readBuff.compact();
+                if (handler.receiveExecutor != null)
+                    handler.receiveOnExecutor();
+                else
+                    handler.receiveBytes();
             }
             if (key.isWritable())
                 handler.tryWriteBytes();
@@ -236,4 +313,52 @@ class ConnectionHandler implements MessageWriteTarget {
             handler.closeConnection();
         }
     }
+
+    // Passes the bytes in readBuff to the connection, which may leave the start of an incomplete message in it
+    private void receiveBytes() throws Exception {
+        // Use connection.receiveBytes's return value as a check that it stopped reading at the right location
+        int bytesConsumed = checkNotNull(connection).receiveBytes(readBuff);
+        checkState(readBuff.position() == bytesConsumed);
+        // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
+        // position)
+        readBuff.compact();
+    }
+
+    // Stops reading and hands readBuff to the receive executor, which gives it back when the connection is done with it
+    private void receiveOnExecutor() {
+        lock.lock();
+        try {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        } finally {
+            lock.unlock();
+        }
+        checkNotNull(receiveExecutor).execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean reading = false;
+                try {
+                    receiveBytes();
+                    lock.lock();
+                    try {
+                        if (closeCalled || !key.isValid())
+                            return;
+                        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                        key.selector().wakeup();
+                        reading = true;
+                    } finally {
+                        lock.unlock();
+                    }
+                } catch (CancelledKeyException e) {
+                    // Closed while we were busy, nothing more to read
+                } catch (Exception e) {
+                    Throwable t = Throwables.getRootCause(e);
+                    log.warn("Error receiving bytes: {} {}", t.getClass().getName(), t.getMessage() != null ? t.getMessage() : "", e);
+                } finally {
+                    // Nothing reads from the connection anymore, so don't leave it open (also when an Error was thrown)
+                    if (!reading)
+                        closeConnection();
+                }
+            }
+        });
+    }
 }
@@ -23,7 +23,8 @@ import java.io.IOException;
  */
 public interface MessageWriteTarget {
     /**
-     * Writes the given bytes to the remote server.
+     * Writes the given bytes to the remote server. The array may be kept until it is written, so the caller must not
+     * modify it afterwards.
      */
     void writeBytes(byte[] message) throws IOException;
     /**
@@ -21,6 +21,7 @@ import com.google.common.util.concurrent.*;
 import org.bitcoinj.utils.*;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.SocketAddress;
@@ -37,6 +38,7 @@ public class NioClientManager extends AbstractExecutionThreadService implements
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
     private final Selector selector;
+    @Nullable private final Executor receiveExecutor;
 
     class PendingConnect {
         SocketChannel sc;
@@ -59,7 +61,7 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             PendingConnect data = (PendingConnect) key.attachment();
             StreamConnection connection = data.connection;
             SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers);
+            ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers, receiveExecutor);
             try {
                 if (sc.finishConnect()) {
                     log.info("Connected to {}", sc.socket().getRemoteSocketAddress());
@@ -91,6 +93,17 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
+        this(null);
+    }
+
+    /**
+     * Creates a new client manager which uses Java NIO for socket management. Uses a single thread to handle all select
+     * calls. If an executor is given, the bytes each connection receives are handed to it on that executor, so that
+     * message parsing and processing doesn't hold up the other connections. A connection isn't read from until it is
+     * done with the bytes it was given, so its messages stay in order whichever executor threads run them.
+     */
+    public NioClientManager(@Nullable Executor receiveExecutor) {
+        this.receiveExecutor = receiveExecutor;
         try {
             selector = SelectorProvider.provider().openSelector();
         } catch (IOException e) {
@@ -101,7 +114,9 @@ public class NioClientManager extends AbstractExecutionThreadService implements
     @Override
     public void run() {
         try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+            // Without a receive executor, this thread also parses and processes all messages.
+            if (receiveExecutor == null)
+                Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
             while (isRunning()) {
                 PendingConnect conn;
                 while ((conn = newConnectionChannels.poll()) != null) {
@@ -0,0 +1,132 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+
+import java.net.SocketAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A client manager for many connections. The connections are spread over several {@link NioClientManager}s, each
+ * with its own selector thread. The bytes the connections receive are parsed and processed on a shared pool of
+ * threads, with the messages of each connection processed in order, so a connection that is slow to process doesn't
+ * hold up the others.</p>
+ *
+ * <p>Meant for applications that keep hundreds of connections, like crawlers and monitors. A handful of connections
+ * are served just as well by a single {@link NioClientManager}.</p>
+ */
+public class ShardedNioClientManager extends AbstractIdleService implements ClientConnectionManager {
+    private final NioClientManager[] shards;
+    private final ExecutorService receiveExecutor;
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    /** Creates a client manager with as many selector threads and receiving threads as there are cores. */
+    public ShardedNioClientManager() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates a client manager with the given number of selector threads and a receiving thread for each core. */
+    public ShardedNioClientManager(int selectorThreads) {
+        this(selectorThreads, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates a client manager with the given number of selector threads and threads processing received bytes. */
+    public ShardedNioClientManager(int selectorThreads, int receiveThreads) {
+        checkArgument(selectorThreads > 0, "selectorThreads must be positive");
+        checkArgument(receiveThreads > 0, "receiveThreads must be positive");
+        receiveExecutor = Executors.newFixedThreadPool(receiveThreads,
+                new ContextPropagatingThreadFactory("NioClientManager receiver"));
+        shards = new NioClientManager[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++)
+            shards[i] = new NioClientManager(receiveExecutor);
+    }
+
+    @Override
+    protected void startUp() {
+        for (NioClientManager shard : shards)
+            shard.startAsync();
+        for (NioClientManager shard : shards)
+            shard.awaitRunning();
+    }
+
+    @Override
+    protected void shutDown() throws InterruptedException {
+        for (NioClientManager shard : shards)
+            shard.stopAsync();
+        for (NioClientManager shard : shards)
+            shard.awaitTerminated();
+        // The selector threads are gone, so nothing more is handed to the receiving threads.
+        receiveExecutor.shutdown();
+        receiveExecutor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public ListenableFuture<SocketAddress> openConnection(SocketAddress serverAddress, StreamConnection connection) {
+        if (!isRunning())
+            throw new IllegalStateException();
+        // Round-robin rather than by connection count, which doesn't include connects still in progress.
+        int shard = (nextShard.getAndIncrement() & Integer.MAX_VALUE) % shards.length;
+        return shards[shard].openConnection(serverAddress, connection);
+    }
+
+    @Override
+    public int getConnectedClientCount() {
+        int count = 0;
+        for (NioClientManager shard : shards)
+            count += shard.getConnectedClientCount();
+        return count;
+    }
+
+    @Override
+    public void closeConnections(int n) {
+        // Close from the busiest shards, so that the remaining connections stay spread out.
+        while (n-- > 0) {
+            NioClientManager busiest = null;
+            int busiestCount = 0;
+            for (NioClientManager shard : shards) {
+                int count = shard.getConnectedClientCount();
+                if (count > busiestCount) {
+                    busiest = shard;
+                    busiestCount = count;
+                }
+            }
+            if (busiest == null)
+                return;
+            busiest.closeConnections(1);
+        }
+    }
+
+    @Override
+    protected Executor executor() {
+        // Start and stop on a thread with our context, which the selector threads take on.
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                new ContextPropagatingThreadFactory("ShardedNioClientManager").newThread(command).start();
+            }
+        };
+    }
+}
@@ -763,13 +763,28 @@ public class Script {
      */
     public static void executeScript(@Nullable Transaction txContainingThis, long index,
                                      Script script, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+        executeScript(txContainingThis, index, script, stack, verifyFlags, null, false);
+    }
+
+    /**
+     * Like {@link #executeScript(Transaction, long, Script, LinkedList, Set)}, but if a batch is given, the signature
+     * checks whose outcome can only ever fail the script are added to it instead of being verified right away:
+     * those of OP_CHECKSIGVERIFY and, if deferFinalCheckSig is set, the one of an OP_CHECKSIG that ends the script.
+     * Their result is assumed to be valid until the batch is verified.
+     */
+    private static void executeScript(@Nullable Transaction txContainingThis, long index, Script script,
+                                      LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags,
+                                      @Nullable SignatureBatch deferredSignatures, boolean deferFinalCheckSig)
+            throws ScriptException {
         int opCount = 0;
         int lastCodeSepLocation = 0;
         
         LinkedList<byte[]> altstack = new LinkedList<>();
         LinkedList<Boolean> ifStack = new LinkedList<>();
         
+        int chunkIndex = 0;
         for (ScriptChunk chunk : script.chunks) {
+            boolean isLastChunk = ++chunkIndex == script.chunks.size();
             boolean shouldExecute = !ifStack.contains(false);
             int opcode = chunk.opcode;
 
@@ -1215,7 +1230,10 @@ public class Script {
                 case OP_CHECKSIGVERIFY:
                     if (txContainingThis == null)
                         throw new IllegalStateException("Script attempted signature check but no tx was provided");
-                    executeCheckSig(txContainingThis, (int) index, script, stack, lastCodeSepLocation, opcode, verifyFlags);
+                    boolean defer = deferredSignatures != null
+                            && (opcode == OP_CHECKSIGVERIFY || (deferFinalCheckSig && isLastChunk));
+                    executeCheckSig(txContainingThis, (int) index, script, stack, lastCodeSepLocation, opcode, verifyFlags,
+                            defer ? deferredSignatures : null);
                     break;
                 case OP_CHECKMULTISIG:
                 case OP_CHECKMULTISIGVERIFY:
@@ -1380,8 +1398,8 @@ public class Script {
     }
 
     private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
-                                        int lastCodeSepLocation, int opcode, 
-                                        Set<VerifyFlag> verifyFlags) throws ScriptException {
+                                        int lastCodeSepLocation, int opcode, Set<VerifyFlag> verifyFlags,
+                                        @Nullable SignatureBatch deferredSignatures) throws ScriptException {
         final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
             || verifyFlags.contains(VerifyFlag.DERSIG)
             || verifyFlags.contains(VerifyFlag.LOW_S);
@@ -1408,8 +1426,14 @@ public class Script {
                 verifyFlags.contains(VerifyFlag.LOW_S));
 
             // TODO: Should check hash type is known
-            Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-            sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            Sha256Hash hash = txContainingThis.getSigHashContext().hashForSignature(index, connectedScript,
+                    (byte) sig.sighashFlags);
+            if (deferredSignatures != null) {
+                deferredSignatures.add(hash.getBytes(), sig, pubKey);
+                sigValid = true;
+            } else {
+                sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            }
         } catch (Exception e1) {
             // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
             // Because I can't verify there aren't more, we use a very generic Exception catch
@@ -1479,13 +1503,14 @@ public class Script {
         }
 
         boolean valid = true;
+        SigHashContext sigHashContext = txContainingThis.getSigHashContext();
         while (sigs.size() > 0) {
             byte[] pubKey = pubkeys.pollFirst();
-            // We could reasonably move this out of the loop, but because signature verification is significantly
-            // more expensive than hashing, its not a big deal.
+            // The shared parts of the transaction are only serialized once per context, so computing the hash for
+            // every attempt costs little compared to the signature verification itself.
             try {
                 TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs.getFirst(), requireCanonical);
-                Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
+                Sha256Hash hash = sigHashContext.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
                 if (ECKey.verify(hash.getBytes(), sig, pubKey))
                     sigs.pollFirst();
             } catch (Exception e) {
@@ -1541,6 +1566,25 @@ public class Script {
      */
     public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
                                 Set<VerifyFlag> verifyFlags) throws ScriptException {
+        correctlySpends(txContainingThis, scriptSigIndex, scriptPubKey, verifyFlags, null);
+    }
+
+    /**
+     * Verifies that this script (interpreted as a scriptSig) correctly spends the given scriptPubKey, but adds
+     * signature checks that can only fail the script to the given batch rather than verifying them. The script only
+     * correctly spends the scriptPubKey if all checks that were added to the batch turn out to be valid as well.
+     * Checks whose result decides what the script does next, such as those of OP_CHECKMULTISIG or of an OP_CHECKSIG
+     * followed by more opcodes, are still verified right away.
+     * @param txContainingThis The transaction in which this input scriptSig resides.
+     *                         Accessing txContainingThis from another thread while this method runs results in undefined behavior.
+     * @param scriptSigIndex The index in txContainingThis of the scriptSig (note: NOT the index of the scriptPubKey).
+     * @param scriptPubKey The connected scriptPubKey containing the conditions needed to claim the value.
+     * @param verifyFlags Each flag enables one validation rule.
+     * @param deferredSignatures Receives the deferred signature checks, or null to verify all of them right away.
+     */
+    public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
+                                Set<VerifyFlag> verifyFlags, @Nullable SignatureBatch deferredSignatures)
+            throws ScriptException {
         // Clone the transaction because executing the script involves editing it, and if we die, we'll leave
         // the tx half broken (also it's not so thread safe to work on it directly.
         try {
@@ -1554,10 +1598,13 @@ public class Script {
         LinkedList<byte[]> stack = new LinkedList<>();
         LinkedList<byte[]> p2shStack = null;
         
-        executeScript(txContainingThis, scriptSigIndex, this, stack, verifyFlags);
+        // The result of a final OP_CHECKSIG is what decides the outcome only in the script that is evaluated last,
+        // whereas the stack left by the scriptSig is the input of the scriptPubKey.
+        boolean isP2SH = verifyFlags.contains(VerifyFlag.P2SH) && ScriptPattern.isPayToScriptHash(scriptPubKey);
+        executeScript(txContainingThis, scriptSigIndex, this, stack, verifyFlags, deferredSignatures, false);
         if (verifyFlags.contains(VerifyFlag.P2SH))
             p2shStack = new LinkedList<>(stack);
-        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, verifyFlags);
+        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, verifyFlags, deferredSignatures, !isP2SH);
         
         if (stack.size() == 0)
             throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Stack empty at end of script execution.");
@@ -1578,7 +1625,7 @@ public class Script {
         //     overall scalability and performance.
 
         // TODO: Check if we can take out enforceP2SH if there's a checkpoint at the enforcement block.
-        if (verifyFlags.contains(VerifyFlag.P2SH) && ScriptPattern.isPayToScriptHash(scriptPubKey)) {
+        if (isP2SH) {
             for (ScriptChunk chunk : chunks)
                 if (chunk.isOpCode() && chunk.opcode > OP_16)
                     throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_PUSHONLY, "Attempted to spend a P2SH scriptPubKey with a script that contained script ops");
@@ -1586,7 +1633,8 @@ public class Script {
             byte[] scriptPubKeyBytes = p2shStack.pollLast();
             Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
             
-            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, verifyFlags);
+            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, verifyFlags,
+                    deferredSignatures, true);
             
             if (p2shStack.size() == 0)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "P2SH stack empty at end of script execution.");
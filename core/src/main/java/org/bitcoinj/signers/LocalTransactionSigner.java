@@ -18,6 +18,8 @@ package org.bitcoinj.signers;
 
 import java.util.EnumSet;
 import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.SigHashContext;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionInput;
 import org.bitcoinj.crypto.DeterministicKey;
@@ -61,6 +63,9 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
     public boolean signInputs(ProposedTransaction propTx, KeyBag keyBag) {
         Transaction tx = propTx.partialTx;
         int numInputs = tx.getInputs().size();
+        // Setting the input scripts below doesn't invalidate the context, so the parts of the transaction that are
+        // shared between all signature hashes are only serialized once rather than once per input.
+        SigHashContext sigHashContext = tx.getSigHashContext();
         for (int i = 0; i < numInputs; i++) {
             TransactionInput txIn = tx.getInput(i);
             if (txIn.getConnectedOutput() == null) {
@@ -104,7 +109,9 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
             // a CHECKMULTISIG program for P2SH inputs
             byte[] script = redeemData.redeemScript.getProgram();
             try {
-                TransactionSignature signature = tx.calculateSignature(i, key, script, Transaction.SigHash.ALL, false);
+                Sha256Hash hash = sigHashContext.hashForSignature(i, script,
+                        (byte) TransactionSignature.calcSigHashValue(Transaction.SigHash.ALL, false));
+                TransactionSignature signature = new TransactionSignature(key.sign(hash), Transaction.SigHash.ALL, false);
 
                 // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We already
                 // have calculated the signature using the local key and now need to insert it in the correct place
@@ -0,0 +1,577 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.primitives.UnsignedBytes;
+import org.bitcoinj.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A write-back cache of unspent transaction outputs in front of any other {@link FullPrunedBlockStore}, similar to
+ * the coins cache of Bitcoin Core. It works the same with the H2, Postgres, MySQL, LevelDB and memory stores.</p>
+ *
+ * <p>Changes to the set of unspent outputs are kept in memory and only written to the underlying store once the
+ * cache grows beyond its memory budget, or on {@link #flush()} and {@link #close()}, in one large batch sorted by
+ * outpoint. Outputs that are created and spent again between two flushes never reach the underlying store at all,
+ * which during the initial block download is most of them. Outputs read from the underlying store are kept too, and
+ * are evicted in least recently used order when the cache is full.</p>
+ *
+ * <p>To keep the underlying store consistent, the verified chain head is only written to it along with the outputs
+ * it belongs to. After a crash the underlying store is at the state of the last flush, and a
+ * {@link FullPrunedBlockChain} using it resumes from there. This also means the underlying store only prunes its
+ * undoable blocks on flush. Everything else is passed through unchanged.</p>
+ *
+ * <p>All methods are synchronized, except {@link #getCommittedTransactionOutputs(List)}, which only holds the lock
+ * while looking at the cache and not while reading from the underlying store.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore, CommittedUTXOProvider {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    // Rough memory used by a cache entry besides the script and address: the entry, its key, the UTXO, the hash,
+    // the script object and the map node.
+    private static final int ENTRY_OVERHEAD = 300;
+
+    private final FullPrunedBlockStore store;
+    private final long maxCacheBytes;
+
+    // Least recently used first.
+    private final LinkedHashMap<StoredTransactionOutPoint, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheBytes;
+    private int dirtyEntries;
+
+    private StoredBlock verifiedChainHead;
+    private StoredBlock flushedVerifiedChainHead;
+
+    // The original entries of everything changed in the current batch write, null for those that didn't exist, so
+    // they can be restored on abort. Null if there is no batch write in progress.
+    @Nullable private Map<StoredTransactionOutPoint, Entry> batchOriginals;
+    private StoredBlock batchVerifiedChainHead;
+
+    private long hits, misses, evictions, flushes, flushedChanges, absorbedOutputs;
+    // Counts the writes to the underlying store that were started, including those that failed.
+    private long writes;
+
+    private static class Entry {
+        final UTXO out;
+        // Whether the output was spent since it was read from the underlying store.
+        final boolean spent;
+        // Whether the underlying store has to be updated.
+        final boolean dirty;
+        // Whether the output is known not to be in the underlying store, so it can be forgotten once it is spent.
+        final boolean fresh;
+
+        Entry(UTXO out, boolean spent, boolean dirty, boolean fresh) {
+            this.out = out;
+            this.spent = spent;
+            this.dirty = dirty;
+            this.fresh = fresh;
+        }
+
+        long size() {
+            String address = out.getAddress();
+            return ENTRY_OVERHEAD + out.getScript().getProgram().length + (address != null ? address.length() * 2 : 0);
+        }
+    }
+
+    /**
+     * Creates a cache in front of the given store.
+     *
+     * @param store the store to write the unspent outputs to, which must not be used directly afterwards
+     * @param maxCacheBytes the rough amount of memory the cache may use before it is written to the underlying store
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, long maxCacheBytes) throws BlockStoreException {
+        checkArgument(maxCacheBytes > 0, "maxCacheBytes must be positive");
+        this.store = store;
+        this.maxCacheBytes = maxCacheBytes;
+        this.verifiedChainHead = store.getVerifiedChainHead();
+        this.flushedVerifiedChainHead = verifiedChainHead;
+    }
+
+    @Override
+    public synchronized UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        Entry entry = lookup(new StoredTransactionOutPoint(hash, index));
+        return entry != null && !entry.spent ? entry.out : null;
+    }
+
+    @Override
+    public synchronized List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        UTXO[] outputs = new UTXO[outPoints.size()];
+        List<TransactionOutPoint> missing = new ArrayList<>();
+        List<Integer> missingIndexes = new ArrayList<>();
+        for (int i = 0; i < outputs.length; i++) {
+            TransactionOutPoint outPoint = outPoints.get(i);
+            Entry entry = cache.get(new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex()));
+            if (entry != null) {
+                hits++;
+                outputs[i] = entry.spent ? null : entry.out;
+            } else {
+                misses++;
+                missing.add(outPoint);
+                missingIndexes.add(i);
+            }
+        }
+        if (!missing.isEmpty()) {
+            List<UTXO> found = store.getTransactionOutputs(missing);
+            for (int i = 0; i < found.size(); i++) {
+                UTXO out = found.get(i);
+                if (out != null) {
+                    putEntry(new StoredTransactionOutPoint(out), new Entry(out, false, false, false));
+                    outputs[missingIndexes.get(i)] = out;
+                }
+            }
+            maybeEvict();
+        }
+        return Arrays.asList(outputs);
+    }
+
+    /**
+     * Looks up the given outputs as of the last committed batch write. Outputs changed by the batch write in progress
+     * are looked up as they were before it. Those that aren't cached are read from the underlying store without
+     * holding the lock of the cache, through {@link CommittedUTXOProvider#getCommittedTransactionOutputs(List)} if the
+     * underlying store implements it.
+     */
+    @Override
+    public List<UTXO> getCommittedTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        UTXO[] outputs = new UTXO[outPoints.size()];
+        List<TransactionOutPoint> missing = new ArrayList<>();
+        List<Integer> missingIndexes = new ArrayList<>();
+        long writesBefore;
+        synchronized (this) {
+            for (int i = 0; i < outputs.length; i++) {
+                TransactionOutPoint outPoint = outPoints.get(i);
+                StoredTransactionOutPoint key = new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex());
+                Entry entry = batchOriginals != null && batchOriginals.containsKey(key) ? batchOriginals.get(key)
+                        : cache.get(key);
+                if (entry != null) {
+                    hits++;
+                    outputs[i] = entry.spent ? null : entry.out;
+                } else {
+                    misses++;
+                    missing.add(outPoint);
+                    missingIndexes.add(i);
+                }
+            }
+            writesBefore = writes;
+        }
+        if (missing.isEmpty())
+            return Arrays.asList(outputs);
+        List<UTXO> found = store instanceof CommittedUTXOProvider
+                ? ((CommittedUTXOProvider) store).getCommittedTransactionOutputs(missing)
+                : store.getTransactionOutputs(missing);
+        synchronized (this) {
+            // Nothing was written to the underlying store in the meantime, so what was read is still current and can
+            // be cached, unless it was looked up since.
+            boolean current = writes == writesBefore;
+            for (int i = 0; i < found.size(); i++) {
+                UTXO out = found.get(i);
+                if (out == null)
+                    continue;
+                outputs[missingIndexes.get(i)] = out;
+                StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+                if (current && !cache.containsKey(key))
+                    putEntry(key, new Entry(out, false, false, false));
+            }
+            maybeEvict();
+        }
+        return Arrays.asList(outputs);
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        Entry old = cache.get(key);
+        boolean fresh;
+        if (old == null) {
+            // Outputs that aren't cached can't be in the underlying store either, except for coinbase outputs, which
+            // before BIP30 could duplicate an unspent one.
+            fresh = !out.isCoinbase() || store.getTransactionOutput(out.getHash(), out.getIndex()) == null;
+        } else {
+            // Re-adding a spent output that was never written as spent means it is still in the underlying store.
+            fresh = old.fresh;
+        }
+        setEntry(key, new Entry(out, false, true, fresh));
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        Entry old = lookup(key);
+        if (old == null || old.spent)
+            throw new BlockStoreException("Tried to remove a UTXO from CachingFullPrunedBlockStore that it didn't have!");
+        if (old.fresh) {
+            // Created and spent again since the last flush, so the underlying store never needs to know.
+            setEntry(key, null);
+            absorbedOutputs++;
+        } else {
+            setEntry(key, new Entry(old.out, true, true, false));
+        }
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        return hasUnspentOutputs(hash, numOutputs, store.hasUnspentOutputs(hash, numOutputs));
+    }
+
+    @Override
+    public synchronized Set<Sha256Hash> getTransactionsWithUnspentOutputs(Map<Sha256Hash, Integer> numOutputs)
+            throws BlockStoreException {
+        Set<Sha256Hash> inStore = store.getTransactionsWithUnspentOutputs(numOutputs);
+        Set<Sha256Hash> hashes = new HashSet<>();
+        for (Map.Entry<Sha256Hash, Integer> entry : numOutputs.entrySet())
+            if (hasUnspentOutputs(entry.getKey(), entry.getValue(), inStore.contains(entry.getKey())))
+                hashes.add(entry.getKey());
+        return hashes;
+    }
+
+    private boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs, boolean inStore) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, i);
+            // If the underlying store has none, only outputs added since the last flush can be unspent.
+            Entry entry = inStore ? lookup(key) : cache.get(key);
+            if (entry != null && !entry.spent)
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+        // The underlying store knows the outputs as of the last flush, so correct them with the changes since.
+        List<UTXO> outputs = new ArrayList<>();
+        Set<StoredTransactionOutPoint> seen = new HashSet<>();
+        for (UTXO out : store.getOpenTransactionOutputs(keys)) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+            Entry entry = cache.get(key);
+            if (entry == null || !entry.spent) {
+                outputs.add(out);
+                seen.add(key);
+            }
+        }
+        Set<String> addresses = new HashSet<>();
+        for (ECKey key : keys)
+            addresses.add(LegacyAddress.fromKey(getParams(), key).toString());
+        for (Map.Entry<StoredTransactionOutPoint, Entry> entry : cache.entrySet()) {
+            Entry value = entry.getValue();
+            if (value.dirty && !value.spent && addresses.contains(value.out.getAddress())
+                    && !seen.contains(entry.getKey()))
+                outputs.add(value.out);
+        }
+        return outputs;
+    }
+
+    @Override
+    public synchronized int getChainHeadHeight() throws UTXOProviderException {
+        return verifiedChainHead.getHeight();
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return verifiedChainHead;
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        // Only written to the underlying store with the next flush, but the header chain can move on already.
+        verifiedChainHead = chainHead;
+        if (store.getChainHead().getHeight() < chainHead.getHeight())
+            store.setChainHead(chainHead);
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        // This is often called twice in a row, but batches are not nested.
+        if (batchOriginals == null) {
+            batchOriginals = new HashMap<>();
+            batchVerifiedChainHead = verifiedChainHead;
+        }
+        store.beginDatabaseBatchWrite();
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        // Dropping clean entries is free, only write to the underlying store if that isn't enough.
+        evict(maxCacheBytes * 3 / 4);
+        boolean flush = cacheBytes > maxCacheBytes;
+        Stopwatch watch = Stopwatch.createStarted();
+        int changes = dirtyEntries;
+        try {
+            if (flush)
+                writeChanges();
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException | RuntimeException e) {
+            // Nothing of the batch may stick, neither in the cache nor in the half written underlying batch.
+            abortDatabaseBatchWrite();
+            throw e;
+        }
+        batchOriginals = null;
+        batchVerifiedChainHead = null;
+        if (flush) {
+            changesWritten(changes);
+            evict(maxCacheBytes / 2);
+            log.info("Flushed {} changed outputs in {}, {} outputs were spent before they were written, cache {}",
+                    changes, watch, absorbedOutputs, this);
+        }
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        if (batchOriginals != null) {
+            for (Map.Entry<StoredTransactionOutPoint, Entry> original : batchOriginals.entrySet())
+                putEntry(original.getKey(), original.getValue());
+            verifiedChainHead = batchVerifiedChainHead;
+            batchOriginals = null;
+            batchVerifiedChainHead = null;
+        }
+        store.abortDatabaseBatchWrite();
+    }
+
+    /**
+     * Writes all changes to the underlying store. Must not be called during a batch write.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        checkState(batchOriginals == null, "Cannot flush during a batch write");
+        store.beginDatabaseBatchWrite();
+        try {
+            writeChanges();
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException | RuntimeException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        changesWritten(dirtyEntries);
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (batchOriginals == null)
+            flush();
+        else
+            log.warn("Closing during a batch write, discarding changes since the last flush");
+        cache.clear();
+        store.close();
+    }
+
+    /** Number of lookups answered from the cache. */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** Number of lookups that had to go to the underlying store. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Number of unchanged outputs dropped from the cache to stay within its budget. */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** Number of times changes were written to the underlying store. */
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    /** Number of added or spent outputs written to the underlying store. */
+    public synchronized long getFlushedChanges() {
+        return flushedChanges;
+    }
+
+    /** Number of outputs that were created and spent again without ever being written to the underlying store. */
+    public synchronized long getAbsorbedOutputs() {
+        return absorbedOutputs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return cache.size() + " entries (" + dirtyEntries + " changed), " + cacheBytes / 1024 + " of "
+                + maxCacheBytes / 1024 + " KB, " + hits + " hits, " + misses + " misses, " + evictions
+                + " evictions, " + flushes + " flushes";
+    }
+
+    // Returns the entry for the given outpoint, reading it from the underlying store if it isn't cached.
+    @Nullable
+    private Entry lookup(StoredTransactionOutPoint key) throws BlockStoreException {
+        Entry entry = cache.get(key);
+        if (entry != null) {
+            hits++;
+            return entry;
+        }
+        misses++;
+        UTXO out = store.getTransactionOutput(key.getHash(), key.getIndex());
+        if (out == null)
+            return null;
+        entry = new Entry(out, false, false, false);
+        putEntry(key, entry);
+        maybeEvict();
+        return entry;
+    }
+
+    // Changes an entry, remembering the original if in a batch write.
+    private void setEntry(StoredTransactionOutPoint key, @Nullable Entry entry) {
+        if (batchOriginals != null && !batchOriginals.containsKey(key))
+            batchOriginals.put(key, cache.get(key));
+        putEntry(key, entry);
+        if (batchOriginals == null)
+            maybeEvict();
+    }
+
+    private void putEntry(StoredTransactionOutPoint key, @Nullable Entry entry) {
+        Entry old = entry != null ? cache.put(key, entry) : cache.remove(key);
+        if (old != null) {
+            cacheBytes -= old.size();
+            if (old.dirty)
+                dirtyEntries--;
+        }
+        if (entry != null) {
+            cacheBytes += entry.size();
+            if (entry.dirty)
+                dirtyEntries++;
+        }
+    }
+
+    // Outside of batch writes, keeps the cache within its budget without writing anything.
+    private void maybeEvict() {
+        if (batchOriginals == null && cacheBytes > maxCacheBytes)
+            evict(maxCacheBytes * 3 / 4);
+    }
+
+    // Drops unchanged entries, least recently used first, until the cache is below the given size.
+    private void evict(long targetBytes) {
+        Iterator<Entry> it = cache.values().iterator();
+        while (cacheBytes > targetBytes && it.hasNext()) {
+            Entry entry = it.next();
+            if (!entry.dirty) {
+                it.remove();
+                cacheBytes -= entry.size();
+                evictions++;
+            }
+        }
+    }
+
+    // Writes all changes to the underlying store, sorted by outpoint, with the verified chain head they belong to.
+    private void writeChanges() throws BlockStoreException {
+        writes++;
+        List<Entry> changes = new ArrayList<>(dirtyEntries);
+        for (Entry entry : cache.values())
+            if (entry.dirty)
+                changes.add(entry);
+        Collections.sort(changes, BY_OUTPOINT);
+        for (Entry entry : changes) {
+            if (entry.spent)
+                store.removeUnspentTransactionOutput(entry.out);
+            else
+                store.addUnspentTransactionOutput(entry.out);
+        }
+        if (verifiedChainHead != flushedVerifiedChainHead)
+            store.setVerifiedChainHead(verifiedChainHead);
+    }
+
+    // Marks the given number of changes as written, after the underlying store committed them.
+    private void changesWritten(int changes) {
+        Iterator<Map.Entry<StoredTransactionOutPoint, Entry>> it = cache.entrySet().iterator();
+        List<Map.Entry<StoredTransactionOutPoint, Entry>> written = new ArrayList<>(dirtyEntries);
+        while (it.hasNext()) {
+            Map.Entry<StoredTransactionOutPoint, Entry> entry = it.next();
+            Entry value = entry.getValue();
+            if (!value.dirty)
+                continue;
+            if (value.spent) {
+                it.remove();
+                cacheBytes -= value.size();
+                dirtyEntries--;
+            } else {
+                written.add(entry);
+            }
+        }
+        for (Map.Entry<StoredTransactionOutPoint, Entry> entry : written)
+            entry.setValue(new Entry(entry.getValue().out, false, false, false));
+        dirtyEntries = 0;
+        flushedVerifiedChainHead = verifiedChainHead;
+        flushedChanges += changes;
+        flushes++;
+    }
+
+    // The order of the keys in LevelDB and of the primary key of the SQL stores.
+    private static final Comparator<Entry> BY_OUTPOINT = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int result = UnsignedBytes.lexicographicalComparator().compare(a.out.getHash().getBytes(),
+                    b.out.getHash().getBytes());
+            return result != 0 ? result : Long.compare(a.out.getIndex(), b.out.getIndex());
+        }
+    };
+
+    // Everything else is passed through.
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+    }
+
+    @Override
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return store.get(hash);
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return store.getParams();
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        store.put(storedBlock, undoableBlock);
+    }
+
+    @Override
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Override
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getUndoBlock(hash);
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.UTXO;
+
+import java.util.List;
+
+/**
+ * A {@link FullPrunedBlockStore} that can look up unspent outputs from other threads while a block is being connected.
+ * {@link org.bitcoinj.core.FullPrunedBlockChain#addAll(java.util.Iterator, int)} uses this to look up the outputs
+ * spent by upcoming blocks in the background. Stores that don't implement it are read through
+ * {@link FullPrunedBlockStore#getTransactionOutputs(List)} instead.
+ */
+public interface CommittedUTXOProvider {
+    /**
+     * Looks up the given outputs like {@link FullPrunedBlockStore#getTransactionOutputs(List)}, but only from what was
+     * committed, without seeing the batch write in progress. May be called from any thread at any time while the
+     * store is open, and should not hold up the thread connecting blocks.
+     * @return a list with one entry per outpoint in the same order, which is null if no output is found
+     */
+    List<UTXO> getCommittedTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException;
+}
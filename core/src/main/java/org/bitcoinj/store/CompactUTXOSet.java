@@ -0,0 +1,455 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.SegwitAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.script.Script;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A set of unspent outputs stored outside of the Java heap, used by {@link MemoryFullPrunedBlockStore}. Instead of
+ * keeping a {@link UTXO} with all its objects per output, every output takes a fixed size slot of {@link #SLOT_SIZE}
+ * bytes in an open addressing hash table made of direct byte buffers, so that tens of millions of outputs neither
+ * take up the heap nor slow down the garbage collector. The table is keyed by transaction hash and output index,
+ * probed linearly and compacted on removal, so there are no tombstones.</p>
+ *
+ * <p>The common output scripts (pay to pubkey hash, pay to script hash, pay to witness pubkey/script hash and pay to
+ * pubkey) are stored as just their hash or key, and the address is stored as a flag if it is the one derived from
+ * the script, as {@link org.bitcoinj.core.FullPrunedBlockChain} does. Other scripts of up to
+ * {@link #MAX_RAW_SCRIPT} bytes are stored as they are. The few outputs that don't fit are kept as objects on the
+ * heap.</p>
+ *
+ * <p>The table is accessed as a {@link Map} of {@link UTXO}s, which are created on every read. Direct buffers count
+ * against {@code -XX:MaxDirectMemorySize}. This class is not thread-safe.</p>
+ */
+class CompactUTXOSet extends AbstractMap<StoredTransactionOutPoint, UTXO> {
+    // Slot layout: hash (32 bytes), index (4), height (4), value (8), flags (1), script type (1), payload length (1),
+    // payload (up to 37), padded to a multiple of 8 bytes.
+    static final int SLOT_SIZE = 88;
+    private static final int INDEX = 32, HEIGHT = 36, VALUE = 40, FLAGS = 48, TYPE = 49, LENGTH = 50, PAYLOAD = 51;
+    static final int MAX_RAW_SCRIPT = SLOT_SIZE - PAYLOAD;
+
+    private static final byte FLAG_USED = 1, FLAG_COINBASE = 2, FLAG_DERIVED_ADDRESS = 4;
+
+    private static final byte TYPE_RAW = 0, TYPE_P2PKH = 1, TYPE_P2SH = 2, TYPE_P2WPKH = 3, TYPE_P2WSH = 4,
+            TYPE_P2PK = 5, TYPE_P2PK_UNCOMPRESSED = 6;
+
+    private static final int MIN_CAPACITY = 1024;
+    private static final int MAX_SLOTS_PER_PAGE = 1 << 20;
+
+    private final NetworkParameters params;
+    // The table is split into pages, as a single buffer can't be larger than 2GB.
+    private ByteBuffer[] pages;
+    private int slotsPerPageBits;
+    private int capacity;
+    private int size;
+    // Outputs that can't be compressed into a slot.
+    private final Map<StoredTransactionOutPoint, UTXO> overflow = new HashMap<>();
+
+    CompactUTXOSet(NetworkParameters params) {
+        this.params = params;
+        allocate(MIN_CAPACITY);
+    }
+
+    /** Returns the number of bytes allocated outside of the heap. */
+    long getOffHeapBytes() {
+        return (long) capacity * SLOT_SIZE;
+    }
+
+    /** Returns the number of outputs that couldn't be compressed and are kept on the heap. */
+    int getOverflowSize() {
+        return overflow.size();
+    }
+
+    @Override
+    public int size() {
+        return size + overflow.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    @Nullable
+    public UTXO get(Object key) {
+        if (!(key instanceof StoredTransactionOutPoint))
+            return null;
+        StoredTransactionOutPoint outPoint = (StoredTransactionOutPoint) key;
+        int slot = find(outPoint.getHash().getBytes(), outPoint.getIndex());
+        if (slot >= 0)
+            return read(slot);
+        return overflow.isEmpty() ? null : overflow.get(outPoint);
+    }
+
+    @Override
+    @Nullable
+    public UTXO put(StoredTransactionOutPoint key, UTXO out) {
+        checkArgument(key.getHash().equals(out.getHash()) && key.getIndex() == out.getIndex(),
+                "Key doesn't match output");
+        checkArgument(out.getIndex() >= 0 && out.getIndex() <= 0xFFFFFFFFL, "Invalid output index");
+        UTXO old = remove(key);
+        byte[] compressed = compress(out);
+        if (compressed == null) {
+            overflow.put(key, out);
+            return old;
+        }
+        if (size + 1 > capacity / 4 * 3)
+            allocate(capacity * 2);
+        byte[] hash = out.getHash().getBytes();
+        int slot = home(hash, out.getIndex());
+        while (isUsed(slot))
+            slot = (slot + 1) & (capacity - 1);
+        ByteBuffer page = page(slot);
+        int offset = offset(slot);
+        for (int i = 0; i < 32; i++)
+            page.put(offset + i, hash[i]);
+        page.putInt(offset + INDEX, (int) out.getIndex());
+        page.putInt(offset + HEIGHT, out.getHeight());
+        page.putLong(offset + VALUE, out.getValue().getValue());
+        for (int i = 0; i < compressed.length; i++)
+            page.put(offset + FLAGS + i, compressed[i]);
+        size++;
+        return old;
+    }
+
+    @Override
+    @Nullable
+    public UTXO remove(Object key) {
+        if (!(key instanceof StoredTransactionOutPoint))
+            return null;
+        StoredTransactionOutPoint outPoint = (StoredTransactionOutPoint) key;
+        int slot = find(outPoint.getHash().getBytes(), outPoint.getIndex());
+        if (slot < 0)
+            return overflow.isEmpty() ? null : overflow.remove(outPoint);
+        UTXO old = read(slot);
+        delete(slot);
+        size--;
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        overflow.clear();
+        pages = null;
+        allocate(MIN_CAPACITY);
+    }
+
+    @Override
+    public Set<Entry<StoredTransactionOutPoint, UTXO>> entrySet() {
+        return new AbstractSet<Entry<StoredTransactionOutPoint, UTXO>>() {
+            @Override
+            public Iterator<Entry<StoredTransactionOutPoint, UTXO>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return CompactUTXOSet.this.size();
+            }
+        };
+    }
+
+    private class EntryIterator implements Iterator<Entry<StoredTransactionOutPoint, UTXO>> {
+        private final Iterator<Entry<StoredTransactionOutPoint, UTXO>> overflowIterator =
+                overflow.entrySet().iterator();
+        private int slot = nextUsed(0);
+
+        private int nextUsed(int slot) {
+            while (slot < capacity && !isUsed(slot))
+                slot++;
+            return slot;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return slot < capacity || overflowIterator.hasNext();
+        }
+
+        @Override
+        public Entry<StoredTransactionOutPoint, UTXO> next() {
+            if (slot < capacity) {
+                UTXO out = read(slot);
+                slot = nextUsed(slot + 1);
+                return new SimpleImmutableEntry<>(new StoredTransactionOutPoint(out), out);
+            }
+            if (!overflowIterator.hasNext())
+                throw new NoSuchElementException();
+            return overflowIterator.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // Table layout
+
+    private void allocate(int newCapacity) {
+        ByteBuffer[] oldPages = pages;
+        int oldCapacity = capacity;
+        int oldSlotsPerPageBits = slotsPerPageBits;
+        capacity = newCapacity;
+        slotsPerPageBits = Integer.numberOfTrailingZeros(Math.min(newCapacity, MAX_SLOTS_PER_PAGE));
+        int slotsPerPage = 1 << slotsPerPageBits;
+        pages = new ByteBuffer[newCapacity / slotsPerPage];
+        for (int i = 0; i < pages.length; i++)
+            pages[i] = ByteBuffer.allocateDirect(slotsPerPage * SLOT_SIZE);
+        size = 0;
+        if (oldPages == null)
+            return;
+        // Rehash by copying the slots as they are.
+        int oldMask = (1 << oldSlotsPerPageBits) - 1;
+        for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+            ByteBuffer oldPage = oldPages[oldSlot >>> oldSlotsPerPageBits];
+            int oldOffset = (oldSlot & oldMask) * SLOT_SIZE;
+            if ((oldPage.get(oldOffset + FLAGS) & FLAG_USED) == 0)
+                continue;
+            int slot = home(oldPage, oldOffset);
+            while (isUsed(slot))
+                slot = (slot + 1) & (capacity - 1);
+            copy(oldPage, oldOffset, page(slot), offset(slot));
+            size++;
+        }
+    }
+
+    private ByteBuffer page(int slot) {
+        return pages[slot >>> slotsPerPageBits];
+    }
+
+    private int offset(int slot) {
+        return (slot & ((1 << slotsPerPageBits) - 1)) * SLOT_SIZE;
+    }
+
+    private boolean isUsed(int slot) {
+        return (page(slot).get(offset(slot) + FLAGS) & FLAG_USED) != 0;
+    }
+
+    private static void copy(ByteBuffer from, int fromOffset, ByteBuffer to, int toOffset) {
+        for (int i = 0; i < SLOT_SIZE; i += 8)
+            to.putLong(toOffset + i, from.getLong(fromOffset + i));
+    }
+
+    // Transaction hashes are random already, but mix in the index and guard against crafted hashes anyway.
+    private int home(byte[] hash, long index) {
+        return mix(ByteBuffer.wrap(hash).getLong(), (int) index);
+    }
+
+    private int home(ByteBuffer page, int offset) {
+        return mix(page.getLong(offset), page.getInt(offset + INDEX));
+    }
+
+    private int mix(long hashPrefix, int index) {
+        long h = hashPrefix ^ (index * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h & (capacity - 1);
+    }
+
+    private int find(byte[] hash, long index) {
+        if (index < 0 || index > 0xFFFFFFFFL)
+            return -1;
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        long h0 = key.getLong(0), h1 = key.getLong(8), h2 = key.getLong(16), h3 = key.getLong(24);
+        for (int slot = home(hash, index); isUsed(slot); slot = (slot + 1) & (capacity - 1)) {
+            ByteBuffer page = page(slot);
+            int offset = offset(slot);
+            if (page.getLong(offset) == h0 && page.getInt(offset + INDEX) == (int) index
+                    && page.getLong(offset + 8) == h1 && page.getLong(offset + 16) == h2
+                    && page.getLong(offset + 24) == h3)
+                return slot;
+        }
+        return -1;
+    }
+
+    // Backward shift deletion: moves later slots of the same probe sequence up, so lookups never need tombstones.
+    private void delete(int slot) {
+        int mask = capacity - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; isUsed(next); next = (next + 1) & mask) {
+            int home = home(page(next), offset(next));
+            // Leave the slot where it is if its home lies cyclically in (hole, next].
+            boolean reachable = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (reachable)
+                continue;
+            copy(page(next), offset(next), page(hole), offset(hole));
+            hole = next;
+        }
+        page(hole).put(offset(hole) + FLAGS, (byte) 0);
+    }
+
+    // Output encoding
+
+    // Returns flags, script type, payload length and payload, or null if the output doesn't fit into a slot.
+    @Nullable
+    private byte[] compress(UTXO out) {
+        byte[] script = out.getScript().getProgram();
+        byte type;
+        byte[] payload;
+        if (script.length == 25 && script[0] == (byte) 0x76 && script[1] == (byte) 0xa9 && script[2] == 20
+                && script[23] == (byte) 0x88 && script[24] == (byte) 0xac) {
+            type = TYPE_P2PKH;
+            payload = Arrays.copyOfRange(script, 3, 23);
+        } else if (script.length == 23 && script[0] == (byte) 0xa9 && script[1] == 20 && script[22] == (byte) 0x87) {
+            type = TYPE_P2SH;
+            payload = Arrays.copyOfRange(script, 2, 22);
+        } else if (script.length == 22 && script[0] == 0 && script[1] == 20) {
+            type = TYPE_P2WPKH;
+            payload = Arrays.copyOfRange(script, 2, 22);
+        } else if (script.length == 34 && script[0] == 0 && script[1] == 32) {
+            type = TYPE_P2WSH;
+            payload = Arrays.copyOfRange(script, 2, 34);
+        } else if (script.length == 35 && script[0] == 33 && (script[1] == 2 || script[1] == 3)
+                && script[34] == (byte) 0xac) {
+            type = TYPE_P2PK;
+            payload = Arrays.copyOfRange(script, 1, 34);
+        } else if (script.length == 67 && script[0] == 65 && script[1] == 4 && script[66] == (byte) 0xac
+                && (payload = compressPubKey(Arrays.copyOfRange(script, 1, 66))) != null) {
+            type = TYPE_P2PK_UNCOMPRESSED;
+        } else if (script.length <= MAX_RAW_SCRIPT) {
+            type = TYPE_RAW;
+            payload = script;
+        } else {
+            return null;
+        }
+        byte flags = FLAG_USED;
+        if (out.isCoinbase())
+            flags |= FLAG_COINBASE;
+        String address = out.getAddress();
+        if (address != null && !address.isEmpty()) {
+            if (!address.equals(deriveAddress(type, payload)))
+                return null;
+            flags |= FLAG_DERIVED_ADDRESS;
+        }
+        byte[] compressed = new byte[3 + payload.length];
+        compressed[0] = flags;
+        compressed[1] = type;
+        compressed[2] = (byte) payload.length;
+        System.arraycopy(payload, 0, compressed, 3, payload.length);
+        return compressed;
+    }
+
+    // Returns the compressed form of an uncompressed public key, or null if it wouldn't decompress to the same bytes.
+    @Nullable
+    private static byte[] compressPubKey(byte[] pubKey) {
+        byte[] compressed = new byte[33];
+        compressed[0] = (byte) ((pubKey[64] & 1) == 0 ? 2 : 3);
+        System.arraycopy(pubKey, 1, compressed, 1, 32);
+        try {
+            if (Arrays.equals(decompressPubKey(compressed), pubKey))
+                return compressed;
+        } catch (IllegalArgumentException e) {
+            // Not a point on the curve.
+        }
+        return null;
+    }
+
+    private static byte[] decompressPubKey(byte[] compressed) {
+        return ECKey.fromPublicOnly(compressed).decompress().getPubKey();
+    }
+
+    // The address FullPrunedBlockChain stores for the output.
+    @Nullable
+    private String deriveAddress(byte type, byte[] payload) {
+        switch (type) {
+            case TYPE_P2PKH:
+                return LegacyAddress.fromPubKeyHash(params, payload).toString();
+            case TYPE_P2SH:
+                return LegacyAddress.fromScriptHash(params, payload).toString();
+            case TYPE_P2WPKH:
+            case TYPE_P2WSH:
+                return SegwitAddress.fromHash(params, payload).toString();
+            case TYPE_P2PK:
+                return LegacyAddress.fromPubKeyHash(params, Utils.sha256hash160(payload)).toString();
+            case TYPE_P2PK_UNCOMPRESSED:
+                return LegacyAddress.fromPubKeyHash(params, Utils.sha256hash160(decompressPubKey(payload))).toString();
+            default:
+                return null;
+        }
+    }
+
+    private UTXO read(int slot) {
+        ByteBuffer page = page(slot);
+        int offset = offset(slot);
+        byte[] hash = new byte[32];
+        for (int i = 0; i < 32; i++)
+            hash[i] = page.get(offset + i);
+        long index = page.getInt(offset + INDEX) & 0xFFFFFFFFL;
+        int height = page.getInt(offset + HEIGHT);
+        Coin value = Coin.valueOf(page.getLong(offset + VALUE));
+        byte flags = page.get(offset + FLAGS);
+        byte type = page.get(offset + TYPE);
+        byte[] payload = new byte[page.get(offset + LENGTH) & 0xFF];
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = page.get(offset + PAYLOAD + i);
+        byte[] script;
+        switch (type) {
+            case TYPE_P2PKH:
+                script = concat(new byte[] { (byte) 0x76, (byte) 0xa9, 20 }, payload,
+                        new byte[] { (byte) 0x88, (byte) 0xac });
+                break;
+            case TYPE_P2SH:
+                script = concat(new byte[] { (byte) 0xa9, 20 }, payload, new byte[] { (byte) 0x87 });
+                break;
+            case TYPE_P2WPKH:
+            case TYPE_P2WSH:
+                script = concat(new byte[] { 0, (byte) payload.length }, payload, new byte[0]);
+                break;
+            case TYPE_P2PK:
+                script = concat(new byte[] { 33 }, payload, new byte[] { (byte) 0xac });
+                break;
+            case TYPE_P2PK_UNCOMPRESSED:
+                script = concat(new byte[] { 65 }, decompressPubKey(payload), new byte[] { (byte) 0xac });
+                break;
+            default:
+                script = payload;
+        }
+        String address = (flags & FLAG_DERIVED_ADDRESS) != 0 ? deriveAddress(type, payload) : "";
+        return new UTXO(Sha256Hash.wrap(hash), index, value, height, (flags & FLAG_COINBASE) != 0,
+                new Script(script), address);
+    }
+
+    private static byte[] concat(byte[] prefix, byte[] payload, byte[] suffix) {
+        byte[] result = new byte[prefix.length + payload.length + suffix.length];
+        System.arraycopy(prefix, 0, result, 0, prefix.length);
+        System.arraycopy(payload, 0, result, prefix.length, payload.length);
+        System.arraycopy(suffix, 0, result, prefix.length + payload.length, suffix.length);
+        return result;
+    }
+}
@@ -107,6 +107,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash = ? AND index = ?";
     private static final String SELECT_OPENOUTPUTS_COUNT_SQL                    = "SELECT COUNT(*) FROM openoutputs WHERE hash = ?";
+    private static final String SELECT_OPENOUTPUTS_BY_HASHES_SQL                = "SELECT hash, index, height, value, scriptbytes, coinbase, toaddress FROM openoutputs WHERE hash IN ";
+    private static final String SELECT_OPENOUTPUTS_HASHES_SQL                   = "SELECT DISTINCT hash FROM openoutputs WHERE hash IN ";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND index = ?";
 
@@ -127,6 +129,9 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     // Compatibility SQL.
     private static final String SELECT_COMPATIBILITY_COINBASE_SQL               = "SELECT coinbase FROM openoutputs WHERE 1 = 2";
 
+    // Maximum number of transaction hashes bound to a single IN query, well below the parameter limits of databases.
+    private static final int MAX_HASHES_PER_QUERY = 500;
+
     protected Sha256Hash chainHeadHash;
     protected StoredBlock chainHeadBlock;
     protected Sha256Hash verifiedChainHeadHash;
@@ -360,6 +365,35 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return SELECT_OPENOUTPUTS_COUNT_SQL;
     }
 
+    /**
+     * Get the SQL to select all openoutputs records of a number of transactions, in the columns hash, index, height,
+     * value, scriptbytes, coinbase and toaddress.
+     * @param numHashes The number of transaction hash parameters.
+     * @return The SQL select statement.
+     */
+    protected String getSelectOpenoutputsByHashesSQL(int numHashes) {
+        return SELECT_OPENOUTPUTS_BY_HASHES_SQL + getParameterList(numHashes);
+    }
+
+    /**
+     * Get the SQL to select which of a number of transactions have any openoutputs records.
+     * @param numHashes The number of transaction hash parameters.
+     * @return The SQL select statement.
+     */
+    protected String getSelectOpenoutputsHashesSQL(int numHashes) {
+        return SELECT_OPENOUTPUTS_HASHES_SQL + getParameterList(numHashes);
+    }
+
+    /**
+     * Get a parenthesized list of the given number of parameters for an IN clause, e.g. {@code (?, ?, ?)}.
+     */
+    protected static String getParameterList(int numParameters) {
+        StringBuilder sql = new StringBuilder(numParameters * 3 + 1).append('(');
+        for (int i = 0; i < numParameters; i++)
+            sql.append(i == 0 ? "?" : ", ?");
+        return sql.append(')').toString();
+    }
+
     /**
      * Get the SQL to insert a openoutputs record.
      * @return The SQL insert statement.
@@ -1057,6 +1091,79 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    @Override
+    public List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        maybeConnect();
+        // Select all outputs of the transactions involved, in as few queries as possible, and pick what was asked for.
+        Set<Sha256Hash> hashes = new LinkedHashSet<>();
+        for (TransactionOutPoint outPoint : outPoints)
+            hashes.add(outPoint.getHash());
+        Map<StoredTransactionOutPoint, UTXO> found = new HashMap<>();
+        for (List<Sha256Hash> batch : Lists.partition(new ArrayList<>(hashes), MAX_HASHES_PER_QUERY)) {
+            PreparedStatement s = null;
+            try {
+                s = conn.get().prepareStatement(getSelectOpenoutputsByHashesSQL(batch.size()));
+                for (int i = 0; i < batch.size(); i++)
+                    s.setBytes(i + 1, batch.get(i).getBytes());
+                ResultSet results = s.executeQuery();
+                while (results.next()) {
+                    Sha256Hash hash = Sha256Hash.wrap(results.getBytes(1));
+                    // index is actually an unsigned int
+                    long index = results.getInt(2) & 0xFFFFFFFFL;
+                    int height = results.getInt(3);
+                    Coin value = Coin.valueOf(results.getLong(4));
+                    byte[] scriptBytes = results.getBytes(5);
+                    boolean coinbase = results.getBoolean(6);
+                    String address = results.getString(7);
+                    found.put(new StoredTransactionOutPoint(hash, index),
+                            new UTXO(hash, index, value, height, coinbase, new Script(scriptBytes), address));
+                }
+            } catch (SQLException ex) {
+                throw new BlockStoreException(ex);
+            } finally {
+                if (s != null) {
+                    try {
+                        s.close();
+                    } catch (SQLException e) {
+                        throw new BlockStoreException("Failed to close PreparedStatement");
+                    }
+                }
+            }
+        }
+        List<UTXO> outputs = new ArrayList<>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints)
+            outputs.add(found.get(new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex())));
+        return outputs;
+    }
+
+    @Override
+    public Set<Sha256Hash> getTransactionsWithUnspentOutputs(Map<Sha256Hash, Integer> numOutputs) throws BlockStoreException {
+        maybeConnect();
+        Set<Sha256Hash> hashes = new HashSet<>();
+        for (List<Sha256Hash> batch : Lists.partition(new ArrayList<>(numOutputs.keySet()), MAX_HASHES_PER_QUERY)) {
+            PreparedStatement s = null;
+            try {
+                s = conn.get().prepareStatement(getSelectOpenoutputsHashesSQL(batch.size()));
+                for (int i = 0; i < batch.size(); i++)
+                    s.setBytes(i + 1, batch.get(i).getBytes());
+                ResultSet results = s.executeQuery();
+                while (results.next())
+                    hashes.add(Sha256Hash.wrap(results.getBytes(1)));
+            } catch (SQLException ex) {
+                throw new BlockStoreException(ex);
+            } finally {
+                if (s != null) {
+                    try {
+                        s.close();
+                    } catch (SQLException e) {
+                        throw new BlockStoreException("Failed to close PreparedStatement");
+                    }
+                }
+            }
+        }
+        return hashes;
+    }
+
     @Override
     public NetworkParameters getParams() {
         return params;
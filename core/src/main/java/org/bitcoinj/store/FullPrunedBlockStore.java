@@ -18,6 +18,9 @@ package org.bitcoinj.store;
 
 import org.bitcoinj.core.*;
 
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
@@ -93,6 +96,20 @@ public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
      * @param numOutputs the number of outputs the given transaction has
      */
     boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException;
+
+    /**
+     * Gets the {@link UTXO}s for all of the given outpoints at once. With most stores this is much faster than calling
+     * {@link #getTransactionOutput(Sha256Hash, long)} for each of them.
+     * @return a list with one entry per outpoint in the same order, which is null if no output is found
+     */
+    List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException;
+
+    /**
+     * Like {@link #hasUnspentOutputs(Sha256Hash, int)}, but for many transactions at once.
+     * @param numOutputs the number of outputs of each transaction, by transaction hash
+     * @return the hashes of those transactions this store has any unspent outputs of
+     */
+    Set<Sha256Hash> getTransactionsWithUnspentOutputs(Map<Sha256Hash, Integer> numOutputs) throws BlockStoreException;
     
     /**
      * Returns the {@link StoredBlock} that represents the top of the chain of greatest total work that has
@@ -126,6 +126,18 @@ public class H2FullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         }
     }
 
+    /**
+     * H2 runs embedded, so a batched query saves no round trips, while selecting the outputs by transaction hash reads
+     * the other outputs of those transactions too. Looking them up one by one is faster here.
+     */
+    @Override
+    public List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        List<UTXO> outputs = new ArrayList<>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints)
+            outputs.add(getTransactionOutput(outPoint.getHash(), outPoint.getIndex()));
+        return outputs;
+    }
+
     @Override
     protected String getDuplicateKeyErrorCode() {
         return H2_DUPLICATE_KEY_ERROR_CODE;
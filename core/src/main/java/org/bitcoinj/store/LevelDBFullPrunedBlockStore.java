@@ -16,7 +16,10 @@
 
 package org.bitcoinj.store;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -24,6 +27,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 import java.io.*;
 import java.nio.ByteBuffer;
@@ -37,6 +41,7 @@ import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.StoredUndoableBlock;
 import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.TransactionOutputChanges;
 import org.bitcoinj.core.UTXO;
 import org.bitcoinj.core.UTXOProviderException;
@@ -52,6 +57,7 @@ import static org.fusesource.leveldbjni.JniDBFactory.*;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.UnsignedBytes;
 
 /**
  * <p>
@@ -61,9 +67,14 @@ import com.google.common.collect.Lists;
  * <p>
  * Includes number of caches to optimise the initial blockchain download.
  * </p>
+ *
+ * <p>
+ * Like the other stores, it is meant to be used from one thread at a time. Only
+ * {@link #getCommittedTransactionOutputs(List)} may be called from other threads while a block is being connected.
+ * </p>
  */
 
-public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
+public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore, CommittedUTXOProvider {
     private static final Logger log = LoggerFactory.getLogger(LevelDBFullPrunedBlockStore.class);
 
     NetworkParameters params;
@@ -972,6 +983,178 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         return false;
     }
 
+    @Override
+    public List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        if (instrument)
+            beginMethod("getTransactionOutputs");
+        UTXO[] outputs = new UTXO[outPoints.size()];
+        final byte[][] keys = new byte[outPoints.size()][];
+        List<Integer> misses = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            TransactionOutPoint outPoint = outPoints.get(i);
+            keys[i] = getTxKey(KeyType.OPENOUT_ALL, outPoint.getHash(), (int) outPoint.getIndex());
+            // Same caches as getTransactionOutput
+            ByteBuffer bbKey = ByteBuffer.wrap(keys[i]);
+            if (!autoCommit && utxoUncommittedDeletedCache.contains(bbKey)) {
+                hit++;
+                continue;
+            }
+            UTXO result = autoCommit ? null : utxoUncommittedCache.get(bbKey);
+            if (result == null)
+                result = utxoCache.get(bbKey);
+            if (result != null) {
+                hit++;
+                outputs[i] = result;
+            } else {
+                miss++;
+                misses.add(i);
+            }
+        }
+        // Read the rest in key order with a single iterator, so neighbouring keys come from the same table blocks.
+        Collections.sort(misses, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return UnsignedBytes.lexicographicalComparator().compare(keys[a], keys[b]);
+            }
+        });
+        DBIterator iterator = db.iterator();
+        try {
+            for (int i : misses) {
+                ByteBuffer bbKey = ByteBuffer.wrap(keys[i]);
+                // Uncommitted deletes and inserts, like batchGet
+                if (!autoCommit && uncommitedDeletes != null && uncommitedDeletes.contains(bbKey))
+                    continue;
+                byte[] value = !autoCommit && uncommited != null ? uncommited.get(bbKey) : null;
+                if (value == null) {
+                    iterator.seek(keys[i]);
+                    if (iterator.hasNext()) {
+                        Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+                        if (Arrays.equals(keys[i], entry.getKey()))
+                            value = entry.getValue();
+                    }
+                }
+                if (value != null)
+                    outputs[i] = new UTXO(new ByteArrayInputStream(value));
+            }
+        } catch (DBException e) {
+            log.error("Exception in getTransactionOutputs.", e);
+            throw new BlockStoreException(e);
+        } catch (IOException e) {
+            log.error("Exception in getTransactionOutputs.", e);
+            throw new BlockStoreException(e);
+        } finally {
+            try {
+                iterator.close();
+            } catch (IOException e) {
+                log.error("Error closing iterator", e);
+            }
+            if (instrument)
+                endMethod("getTransactionOutputs");
+        }
+        return Arrays.asList(outputs);
+    }
+
+    /**
+     * Looks up the given outputs like {@link #getTransactionOutputs(List)}, but only from what was committed, read
+     * through a LevelDB snapshot without touching the caches or uncommitted writes. Unlike the other methods this may
+     * be called from any thread while the store is in use, which is how
+     * {@link org.bitcoinj.core.FullPrunedBlockChain#addAll(java.util.Iterator, int)} looks up the outputs of upcoming
+     * blocks while one is being connected.
+     */
+    @Override
+    public List<UTXO> getCommittedTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        UTXO[] outputs = new UTXO[outPoints.size()];
+        final byte[][] keys = new byte[outPoints.size()][];
+        List<Integer> order = new ArrayList<>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            TransactionOutPoint outPoint = outPoints.get(i);
+            keys[i] = getTxKey(KeyType.OPENOUT_ALL, outPoint.getHash(), (int) outPoint.getIndex());
+            order.add(i);
+        }
+        // In key order with a single iterator, like getTransactionOutputs.
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return UnsignedBytes.lexicographicalComparator().compare(keys[a], keys[b]);
+            }
+        });
+        Snapshot snapshot = db.getSnapshot();
+        DBIterator iterator = db.iterator(new ReadOptions().snapshot(snapshot));
+        try {
+            for (int i : order) {
+                iterator.seek(keys[i]);
+                if (iterator.hasNext()) {
+                    Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+                    if (Arrays.equals(keys[i], entry.getKey()))
+                        outputs[i] = new UTXO(new ByteArrayInputStream(entry.getValue()));
+                }
+            }
+        } catch (DBException e) {
+            log.error("Exception in getCommittedTransactionOutputs.", e);
+            throw new BlockStoreException(e);
+        } catch (IOException e) {
+            log.error("Exception in getCommittedTransactionOutputs.", e);
+            throw new BlockStoreException(e);
+        } finally {
+            try {
+                iterator.close();
+                snapshot.close();
+            } catch (IOException e) {
+                log.error("Error closing iterator", e);
+            }
+        }
+        return Arrays.asList(outputs);
+    }
+
+    @Override
+    public Set<Sha256Hash> getTransactionsWithUnspentOutputs(Map<Sha256Hash, Integer> numOutputs)
+            throws BlockStoreException {
+        if (instrument)
+            beginMethod("getTransactionsWithUnspentOutputs");
+        Set<Sha256Hash> hashes = new HashSet<>();
+        // Only look for transactions the bloom filter doesn't rule out, in key order with a single iterator.
+        // Like hasUnspentOutputs, this doesn't check uncommitted inserts/deletes.
+        TreeMap<byte[], Sha256Hash> candidates = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+        for (Sha256Hash hash : numOutputs.keySet()) {
+            hasCall++;
+            if (bloom.wasAdded(hash))
+                candidates.put(getTxKey(KeyType.OPENOUT_ALL, hash), hash);
+            else
+                hasFalse++;
+        }
+        DBIterator iterator = db.iterator();
+        try {
+            for (Map.Entry<byte[], Sha256Hash> candidate : candidates.entrySet()) {
+                byte[] prefix = candidate.getKey();
+                iterator.seek(prefix);
+                if (iterator.hasNext() && startsWith(iterator.peekNext().getKey(), prefix)) {
+                    hasTrue++;
+                    hashes.add(candidate.getValue());
+                } else {
+                    hasFalse++;
+                }
+            }
+        } finally {
+            try {
+                iterator.close();
+            } catch (IOException e) {
+                log.error("Error closing iterator", e);
+            }
+            if (instrument)
+                endMethod("getTransactionsWithUnspentOutputs");
+        }
+        return hashes;
+    }
+
+    private static boolean startsWith(byte[] key, byte[] prefix) {
+        if (key.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++)
+            if (key[i] != prefix[i])
+                return false;
+        return true;
+    }
+
     @Override
     public StoredBlock getVerifiedChainHead() throws BlockStoreException {
         return verifiedChainHeadBlock;
@@ -87,13 +87,18 @@ class TransactionalHashMap<KeyType, ValueType> {
     ThreadLocal<HashSet<KeyType>> tempSetRemoved;
     private ThreadLocal<Boolean> inTransaction;
     
-    HashMap<KeyType, ValueType> map;
+    Map<KeyType, ValueType> map;
     
     public TransactionalHashMap() {
+        this(new HashMap<KeyType, ValueType>());
+    }
+
+    /** Creates a transaction-aware view of the given map, which holds the committed entries. */
+    public TransactionalHashMap(Map<KeyType, ValueType> map) {
         tempMap = new ThreadLocal<>();
         tempSetRemoved = new ThreadLocal<>();
         inTransaction = new ThreadLocal<>();
-        map = new HashMap<>();
+        this.map = map;
     }
     
     public void beginDatabaseBatchWrite() {
@@ -240,7 +245,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     }
     private TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag> blockMap;
     private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
-    //TODO: Use something more suited to remove-heavy use?
+    // The committed outputs are kept off-heap in compressed form, see CompactUTXOSet.
     private TransactionalHashMap<StoredTransactionOutPoint, UTXO> transactionOutputMap;
     private StoredBlock chainHead;
     private StoredBlock verifiedChainHead;
@@ -255,7 +260,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     public MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
         blockMap = new TransactionalHashMap<>();
         fullBlockMap = new TransactionalMultiKeyHashMap<>();
-        transactionOutputMap = new TransactionalHashMap<>();
+        transactionOutputMap = new TransactionalHashMap<StoredTransactionOutPoint, UTXO>(new CompactUTXOSet(params));
         this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
         // Insert the genesis block.
         try {
@@ -397,6 +402,23 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         return false;
     }
 
+    @Override
+    public synchronized List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        List<UTXO> outputs = new ArrayList<>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints)
+            outputs.add(getTransactionOutput(outPoint.getHash(), outPoint.getIndex()));
+        return outputs;
+    }
+
+    @Override
+    public synchronized Set<Sha256Hash> getTransactionsWithUnspentOutputs(Map<Sha256Hash, Integer> numOutputs) throws BlockStoreException {
+        Set<Sha256Hash> hashes = new HashSet<>();
+        for (Map.Entry<Sha256Hash, Integer> entry : numOutputs.entrySet())
+            if (hasUnspentOutputs(entry.getKey(), entry.getValue()))
+                hashes.add(entry.getKey());
+        return hashes;
+    }
+
     @Override
     public NetworkParameters getParams() {
         return params;
@@ -412,7 +434,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
     @Override
-    public List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+    public synchronized List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
         // This is *NOT* optimal: We go through all the outputs and select the ones we are looking for.
         // If someone uses this store for production then they have a lot more to worry about than an inefficient impl :)
         List<UTXO> foundOutputs = new ArrayList<>();
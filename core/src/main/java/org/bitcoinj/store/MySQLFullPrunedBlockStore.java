@@ -80,6 +80,7 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
     private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash = ? AND `index` = ?";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, `index`, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND `index`= ?";
+    private static final String SELECT_OPENOUTPUTS_BY_HASHES_SQL                = "SELECT hash, `index`, height, value, scriptbytes, coinbase, toaddress FROM openoutputs WHERE hash IN ";
 
     private static final String SELECT_TRANSACTION_OUTPUTS_SQL                  = "SELECT hash, value, scriptbytes, height, `index`, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress = ?";
 
@@ -109,6 +110,11 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         return SELECT_OPENOUTPUTS_SQL;
     }
 
+    @Override
+    protected String getSelectOpenoutputsByHashesSQL(int numHashes) {
+        return SELECT_OPENOUTPUTS_BY_HASHES_SQL + getParameterList(numHashes);
+    }
+
     @Override
     protected String getInsertOpenoutputsSQL() {
         return INSERT_OPENOUTPUTS_SQL;
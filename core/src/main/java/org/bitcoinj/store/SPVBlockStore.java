@@ -16,6 +16,8 @@
 
 package org.bitcoinj.store;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.bitcoinj.core.*;
 import org.bitcoinj.utils.*;
 import org.slf4j.*;
@@ -26,6 +28,7 @@ import java.nio.*;
 import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.*;
 
 import static com.google.common.base.Preconditions.*;
@@ -36,6 +39,10 @@ import static com.google.common.base.Preconditions.*;
  * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
+ *
+ * <p>Blocks are looked up via an in-memory index of the ring buffer, which is rebuilt when the store is opened, so
+ * the capacity doesn't affect the speed of lookups. Recently stored or read blocks and blocks that aren't in the store
+ * are looked up without taking the lock of the store.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -48,28 +55,42 @@ public class SPVBlockStore implements BlockStore {
     protected final int capacity;
     protected final NetworkParameters params;
 
+    // Taken by writers and by readers of the ring buffer. The index and the recent blocks are read without it.
     protected ReentrantLock lock = Threading.lock("SPVBlockStore");
 
+    // Maps the hash of every block in the ring buffer to the offset of its record, so lookups don't have to scan the
+    // ring. Records are written before they are added here and removed from here before they are overwritten.
+    private final ConcurrentHashMap<Sha256Hash, Integer> index = new ConcurrentHashMap<>();
+    // The blocks that were stored or read last, for readers that don't take the lock. Blocks are immutable, so they
+    // can be handed between threads through it. The records of the mapped buffer are only read under the lock.
+    private final Cache<Sha256Hash, StoredBlock> recentBlocks = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
+
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
     // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
     //
     // MMapping a file in Java does not give us a byte[] as you may expect but rather a ByteBuffer, and whilst on
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
-    // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
+    // let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
+    /**
+     * Blocks that were stored or read under the lock, guarded by it.
+     * @deprecated blocks are looked up through a cache that doesn't need the lock, this one will be removed
+     */
+    @Deprecated
     protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
         @Override
         protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
             return size() > 2050;  // Slightly more than the difficulty transition period.
         }
     };
-    // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
-    // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
-    // must efficiently respond.
-    //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
-    private static final Object NOT_FOUND_MARKER = new Object();
+    /**
+     * No longer read, as the index of the ring buffer tells which blocks aren't in the store. Blocks are still removed
+     * from it when they are stored.
+     * @deprecated will be removed
+     */
+    @Deprecated
     protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
         @Override
         protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
@@ -134,6 +155,7 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, StandardCharsets.US_ASCII).equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                buildIndex(buffer);
             } else {
                 initNewStore(params);
             }
@@ -164,6 +186,20 @@ public class SPVBlockStore implements BlockStore {
         setChainHead(storedGenesis);
     }
 
+    // Indexes all records, oldest first so that the latest copy of a block that was stored twice wins.
+    private void buildIndex(ByteBuffer buffer) {
+        final int fileSize = getFileSize(capacity);
+        int cursor = getRingCursor(buffer);
+        for (int i = 0; i < capacity; i++) {
+            if (cursor >= fileSize)
+                cursor = FILE_PROLOGUE_BYTES;
+            Sha256Hash hash = readHash(buffer, cursor);
+            if (hash != null)
+                index.put(hash, cursor);
+            cursor += RECORD_SIZE;
+        }
+    }
+
     /** Returns the size in bytes of the file that is used to store the chain with the current parameters. */
     public static final int getFileSize(int capacity) {
         return RECORD_SIZE * capacity + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
@@ -181,68 +217,77 @@ public class SPVBlockStore implements BlockStore {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
-            buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
+            // Forget the oldest block, unless it was stored again since.
+            Sha256Hash overwritten = readHash(buffer, cursor);
+            if (overwritten != null)
+                index.remove(overwritten, cursor);
+            buffer.position(cursor);
             notFoundCache.remove(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
             setRingCursor(buffer, buffer.position());
+            index.put(hash, cursor);
             blockCache.put(hash, block);
+            recentBlocks.put(hash, block);
         } finally { lock.unlock(); }
     }
 
+    /**
+     * Returns the block with the given hash. Recently stored or read blocks and blocks that aren't in the store are
+     * answered without taking the lock, other blocks are read from the ring buffer under the lock.
+     */
     @Override
     @Nullable
     public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
+        StoredBlock cacheHit = recentBlocks.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+        if (!index.containsKey(hash))
+            return null;
         lock.lock();
         try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
-                return null;
-
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize(capacity);
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, NOT_FOUND_MARKER);
-            return null;
+            StoredBlock storedBlock = blockCache.get(hash);
+            if (storedBlock == null) {
+                Integer offset = index.get(hash);
+                if (offset == null)
+                    return null;  // Overwritten since we looked it up.
+                buffer.position(offset + 32);
+                storedBlock = StoredBlock.deserializeCompact(params, buffer);
+                blockCache.put(hash, storedBlock);
+            }
+            recentBlocks.put(hash, storedBlock);
+            return storedBlock;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
         } finally { lock.unlock(); }
     }
 
-    protected StoredBlock lastChainHead = null;
+    // Returns the hash of the record at the given offset, or null if nothing was written there yet.
+    @Nullable
+    private static Sha256Hash readHash(ByteBuffer buffer, int offset) {
+        byte[] hash = new byte[32];
+        boolean empty = true;
+        for (int i = 0; i < hash.length; i++) {
+            hash[i] = buffer.get(offset + i);
+            empty &= hash[i] == 0;
+        }
+        return empty ? null : Sha256Hash.wrap(hash);
+    }
+
+    protected volatile StoredBlock lastChainHead = null;
 
     @Override
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
+        StoredBlock chainHead = lastChainHead;
+        if (chainHead != null)
+            return chainHead;
         lock.lock();
         try {
             if (lastChainHead == null) {
@@ -0,0 +1,341 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>An executor for event listeners with several threads, or lanes, each with its own queue. Events are dispatched
+ * with a key, such as the wallet or the transaction hash they are about, and all events with the same key run on the
+ * same lane in the order they were dispatched, while events with different keys may run in parallel. Events
+ * dispatched without a key, through {@link #execute(Runnable)}, all run on the first lane in order.</p>
+ *
+ * <p>An event may also be dispatched with a supersede key, for events that only tell the listener to look at the
+ * current state of something, like a confidence change. While such an event waits in its lane, a later one with the
+ * same key and supersede key drops it, so a flood of them doesn't pile up. The later event is still queued behind all
+ * events dispatched before it.</p>
+ *
+ * <p>To use it for all listeners registered without an executor of their own, set {@link Threading#USER_THREAD} to
+ * one before creating any bitcoinj objects. Keep in mind that listeners then no longer all run on the same thread, so
+ * events about different wallets or transactions may run at the same time or in a different order than they happened.
+ * The queue depths, the number of events dispatched and superseded and how long they waited are available for
+ * monitoring.</p>
+ */
+public class PartitionedExecutor implements Executor {
+    private static final Logger log = LoggerFactory.getLogger(PartitionedExecutor.class);
+
+    private final Lane[] lanes;
+    private final int laneCapacity;
+
+    /**
+     * Creates an executor with the given number of lanes, which warns once a lane has
+     * {@link Threading.UserThread#WARNING_THRESHOLD} pending events.
+     */
+    public PartitionedExecutor(String name, int lanes) {
+        this(name, lanes, Threading.UserThread.WARNING_THRESHOLD);
+    }
+
+    /**
+     * Creates an executor with the given number of lanes, which warns once a lane has laneCapacity pending events.
+     * Events past the capacity are still queued: bitcoinj dispatches events while holding locks that the listeners may
+     * take, so making it wait for room could deadlock.
+     */
+    public PartitionedExecutor(String name, int lanes, int laneCapacity) {
+        checkArgument(lanes > 0, "lanes must be positive");
+        checkArgument(laneCapacity > 0, "laneCapacity must be positive");
+        this.laneCapacity = laneCapacity;
+        this.lanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++)
+            this.lanes[i] = new Lane(lanes == 1 ? name : name + " " + i);
+    }
+
+    /** Runs the task on the first lane, after all tasks dispatched there before. */
+    @Override
+    public void execute(Runnable task) {
+        lanes[0].add(task, null);
+    }
+
+    /** Runs the task on the lane of the given key, after all tasks dispatched with the same key before. */
+    public void execute(Object key, Runnable task) {
+        laneFor(key).add(task, null);
+    }
+
+    /**
+     * Runs the task on the lane of the given key, after all tasks dispatched with the same key before. If a task with
+     * the same key and supersede key is still waiting, it is dropped.
+     */
+    public void execute(Object key, @Nullable Object supersedeKey, Runnable task) {
+        laneFor(key).add(task, supersedeKey != null ? Arrays.asList(key, supersedeKey) : null);
+    }
+
+    private Lane laneFor(Object key) {
+        return lanes[(key.hashCode() & Integer.MAX_VALUE) % lanes.length];
+    }
+
+    /** Waits until all tasks dispatched to any lane before have run. Mostly useful in unit tests. */
+    public void waitForLanes() {
+        final CountDownLatch latch = new CountDownLatch(lanes.length);
+        for (Lane lane : lanes) {
+            lane.add(new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            }, null);
+        }
+        Uninterruptibles.awaitUninterruptibly(latch);
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /** Returns the number of tasks waiting to run on the given lane. */
+    public int getQueueDepth(int lane) {
+        return lanes[lane].getQueueDepth();
+    }
+
+    /** Returns the number of tasks waiting to run on all lanes. */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes)
+            depth += lane.getQueueDepth();
+        return depth;
+    }
+
+    /** Returns the most tasks that were ever waiting on a single lane. */
+    public int getMaxQueueDepth() {
+        int max = 0;
+        for (Lane lane : lanes)
+            max = Math.max(max, lane.getMaxQueueDepth());
+        return max;
+    }
+
+    /** Returns the number of tasks that were started so far. */
+    public long getDispatchedCount() {
+        long count = 0;
+        for (Lane lane : lanes)
+            count += lane.getDispatchedCount();
+        return count;
+    }
+
+    /** Returns the number of tasks that were dropped because a later one with the same supersede key was dispatched. */
+    public long getSupersededCount() {
+        long count = 0;
+        for (Lane lane : lanes)
+            count += lane.getSupersededCount();
+        return count;
+    }
+
+    /** Returns how long tasks waited in their lane before they started, on average, in nanoseconds. */
+    public long getMeanDispatchLatencyNanos() {
+        long count = 0, total = 0;
+        for (Lane lane : lanes) {
+            count += lane.getDispatchedCount();
+            total += lane.getTotalLatencyNanos();
+        }
+        return count > 0 ? total / count : 0;
+    }
+
+    /** Returns the longest time a task waited in its lane before it started, in nanoseconds. */
+    public long getMaxDispatchLatencyNanos() {
+        long max = 0;
+        for (Lane lane : lanes)
+            max = Math.max(max, lane.getMaxLatencyNanos());
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return lanes.length + " lanes, " + getQueueDepth() + " queued (max " + getMaxQueueDepth() + "), "
+                + getDispatchedCount() + " dispatched, " + getSupersededCount() + " superseded, latency mean "
+                + getMeanDispatchLatencyNanos() / 1000 + "us max " + getMaxDispatchLatencyNanos() / 1000 + "us";
+    }
+
+    private static class Event {
+        final Runnable task;
+        @Nullable final Object supersedeKey;
+        final long queuedNanos;
+        // Set when a later event superseded this one, which then stays in the queue but is skipped.
+        boolean cancelled;
+
+        Event(Runnable task, @Nullable Object supersedeKey, long queuedNanos) {
+            this.task = task;
+            this.supersedeKey = supersedeKey;
+            this.queuedNanos = queuedNanos;
+        }
+    }
+
+    private class Lane extends Thread {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        @GuardedBy("lock") private final ArrayDeque<Event> queue = new ArrayDeque<>();
+        // The waiting events that may be superseded, by the combination of their key and supersede key.
+        @GuardedBy("lock") private final HashMap<Object, Event> supersedable = new HashMap<>();
+        // The number of events in the queue that weren't cancelled.
+        @GuardedBy("lock") private int depth;
+        @GuardedBy("lock") private int maxQueueDepth;
+        @GuardedBy("lock") private long dispatched, superseded, totalLatencyNanos, maxLatencyNanos;
+
+        Lane(String name) {
+            super(name);
+            setDaemon(true);
+            start();
+        }
+
+        void add(Runnable task, @Nullable Object supersedeKey) {
+            lock.lock();
+            try {
+                if (supersedeKey != null) {
+                    // The new event goes to the back, so it doesn't run ahead of events with the same key in between.
+                    // Finding the waiting one in the queue would take a scan, so it is only marked to be skipped.
+                    Event waiting = supersedable.remove(supersedeKey);
+                    if (waiting != null) {
+                        waiting.cancelled = true;
+                        superseded++;
+                        depth--;
+                        // Don't let skipped events pile up while the lane is stuck, sweeping them out takes as long
+                        // as the events cancelled since the last sweep.
+                        if (queue.size() > 2 * depth + 16)
+                            removeCancelled();
+                    }
+                }
+                Event event = new Event(task, supersedeKey, System.nanoTime());
+                queue.add(event);
+                if (supersedeKey != null)
+                    supersedable.put(supersedeKey, event);
+                depth++;
+                maxQueueDepth = Math.max(maxQueueDepth, depth);
+                if (depth == laneCapacity)
+                    log.warn("{} has {} pending tasks, check for deadlocked or slow event handlers", getName(), depth);
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @GuardedBy("lock")
+        private void removeCancelled() {
+            for (Iterator<Event> it = queue.iterator(); it.hasNext(); ) {
+                if (it.next().cancelled)
+                    it.remove();
+            }
+        }
+
+        @SuppressWarnings("InfiniteLoopStatement") @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                lock.lock();
+                try {
+                    while (depth == 0)
+                        notEmpty.awaitUninterruptibly();
+                    Event event = queue.poll();
+                    while (event.cancelled)
+                        event = queue.poll();
+                    depth--;
+                    if (event.supersedeKey != null)
+                        supersedable.remove(event.supersedeKey);
+                    long latency = System.nanoTime() - event.queuedNanos;
+                    dispatched++;
+                    totalLatencyNanos += latency;
+                    maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+                    task = event.task;
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    task.run();
+                } catch (Throwable throwable) {
+                    log.warn("Exception in " + getName(), throwable);
+                    Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+                    if (handler != null)
+                        handler.uncaughtException(this, throwable);
+                }
+            }
+        }
+
+        int getQueueDepth() {
+            lock.lock();
+            try {
+                return depth;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int getMaxQueueDepth() {
+            lock.lock();
+            try {
+                return maxQueueDepth;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long getDispatchedCount() {
+            lock.lock();
+            try {
+                return dispatched;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long getSupersededCount() {
+            lock.lock();
+            try {
+                return superseded;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long getTotalLatencyNanos() {
+            lock.lock();
+            try {
+                return totalLatencyNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long getMaxLatencyNanos() {
+            lock.lock();
+            try {
+                return maxLatencyNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
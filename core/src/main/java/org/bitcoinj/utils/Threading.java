@@ -46,6 +46,8 @@ public class Threading {
      * An executor with one thread that is intended for running event listeners on. This ensures all event listener code
      * runs without any locks being held. It's intended for the API user to run things on. Callbacks registered by
      * bitcoinj internally shouldn't normally run here, although currently there are a few exceptions.
+     * It may be replaced with a {@link PartitionedExecutor}, to run the events about different wallets and
+     * transactions in parallel.
      */
     public static Executor USER_THREAD;
 
@@ -63,6 +65,10 @@ public class Threading {
      * on it. You can then either block on that future, compose it, add listeners to it and so on.
      */
     public static void waitForUserCode() {
+        if (USER_THREAD instanceof PartitionedExecutor) {
+            ((PartitionedExecutor) USER_THREAD).waitForLanes();
+            return;
+        }
         final CountDownLatch latch = new CountDownLatch(1);
         USER_THREAD.execute(new Runnable() {
             @Override public void run() {
@@ -72,6 +78,27 @@ public class Threading {
         Uninterruptibles.awaitUninterruptibly(latch);
     }
 
+    /**
+     * Runs the task on the given executor. If it is a {@link PartitionedExecutor}, the task runs on the lane of the
+     * given key, in order with the other tasks about the same object.
+     */
+    public static void execute(Executor executor, Object key, Runnable task) {
+        execute(executor, key, null, task);
+    }
+
+    /**
+     * Runs the task on the given executor. If it is a {@link PartitionedExecutor}, the task runs on the lane of the
+     * given key, in order with the other tasks about the same object, and drops a task with the same key and
+     * supersede key that is still waiting. Only pass a supersede key for tasks that don't carry state of their own
+     * but look at the current one when they run.
+     */
+    public static void execute(Executor executor, Object key, @Nullable Object supersedeKey, Runnable task) {
+        if (executor instanceof PartitionedExecutor)
+            ((PartitionedExecutor) executor).execute(key, supersedeKey, task);
+        else
+            executor.execute(task);
+    }
+
     /**
      * An exception handler that will be invoked for any exceptions that occur in the user thread, and
      * any unhandled exceptions that are caught whilst the framework is processing network traffic or doing other
@@ -0,0 +1,227 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.Wallet.BalanceType;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Running totals of the unspent outputs of a {@link Wallet} for each {@link BalanceType}, so that
+ * {@link Wallet#getBalance(BalanceType)} doesn't have to walk all outputs and run the coin selector on every call.</p>
+ *
+ * <p>Every tracked output is classified once and its value is added to the totals it counts towards. Whether an
+ * output is available for spending can change without the wallet being told, e.g. when more peers announce a pending
+ * transaction or a coinbase matures, so that is only decided in advance for outputs that are <i>settled</i>: those of
+ * transactions in the best chain that aren't immature coinbases. The few other outputs are checked again whenever
+ * the available balance is asked for.</p>
+ *
+ * <p>The set of outputs is kept in sync by {@link UnspentOutputSet}, which the wallet uses for its unspent outputs.
+ * When the confidence of a transaction changes, the wallet calls {@link #update(Transaction)}. Changes that affect
+ * many outputs at once, like a re-org or new keys, just {@link #invalidate()} the index, which is then rebuilt when
+ * the balance is next asked for.</p>
+ *
+ * <p>All methods except {@link #getSnapshot()} and {@link #invalidate()} must be called with the wallet lock held.
+ * Snapshots are immutable and are published only once the wallet is in a consistent state again, so readers can use
+ * them without taking the lock.</p>
+ */
+abstract class BalanceIndex {
+    private static final int SPENDABLE = 1;
+    private static final int SETTLED = 2;
+    private static final int AVAILABLE = 4;
+
+    /** The totals for all balance types at one point in time. */
+    final class Snapshot {
+        private final long estimated, estimatedSpendable, settledAvailable, settledAvailableSpendable;
+        private final TransactionOutput[] unsettled;
+        private final boolean[] unsettledSpendable;
+
+        private Snapshot() {
+            this.estimated = BalanceIndex.this.estimated;
+            this.estimatedSpendable = BalanceIndex.this.estimatedSpendable;
+            this.settledAvailable = BalanceIndex.this.settledAvailable;
+            this.settledAvailableSpendable = BalanceIndex.this.settledAvailableSpendable;
+            this.unsettled = BalanceIndex.this.unsettled.keySet().toArray(new TransactionOutput[0]);
+            this.unsettledSpendable = new boolean[unsettled.length];
+            for (int i = 0; i < unsettled.length; i++)
+                unsettledSpendable[i] = BalanceIndex.this.unsettled.get(unsettled[i]);
+        }
+
+        Coin get(BalanceType type) {
+            switch (type) {
+                case ESTIMATED:
+                    return Coin.valueOf(estimated);
+                case ESTIMATED_SPENDABLE:
+                    return Coin.valueOf(estimatedSpendable);
+                case AVAILABLE:
+                case AVAILABLE_SPENDABLE:
+                    boolean spendableOnly = type == BalanceType.AVAILABLE_SPENDABLE;
+                    long value = spendableOnly ? settledAvailableSpendable : settledAvailable;
+                    for (int i = 0; i < unsettled.length; i++)
+                        if ((unsettledSpendable[i] || !spendableOnly) && isAvailable(unsettled[i]))
+                            value += unsettled[i].getValue().value;
+                    return Coin.valueOf(value);
+                default:
+                    throw new AssertionError("Unknown balance type");  // Unreachable.
+            }
+        }
+    }
+
+    // The classification of each output, a combination of the flags above.
+    private final Map<TransactionOutput, Integer> classes = new HashMap<>();
+    // The outputs that aren't settled, and whether they are spendable.
+    private final Map<TransactionOutput, Boolean> unsettled = new LinkedHashMap<>();
+    private long estimated, estimatedSpendable, settledAvailable, settledAvailableSpendable;
+    private volatile boolean dirty;
+    @Nullable private volatile Snapshot snapshot = new Snapshot();
+
+    /** Returns whether the wallet can sign for the given output. */
+    abstract boolean isSpendable(TransactionOutput output);
+
+    /**
+     * Returns whether the given output is settled, i.e. whether {@link #isAvailable(TransactionOutput)} can only
+     * change for it if the wallet changes the confidence of its transaction.
+     */
+    abstract boolean isSettled(TransactionOutput output);
+
+    /** Returns whether the given output counts towards the available balance. Called without the wallet lock. */
+    abstract boolean isAvailable(TransactionOutput output);
+
+    /** Returns the outputs to index, when the index has to be rebuilt. */
+    abstract Iterable<TransactionOutput> outputs();
+
+    /**
+     * Returns whether the totals can be used at all. If this returns false, the balance has to be calculated by
+     * walking the outputs, e.g. because the coin selector is not one whose choices can be predicted per output.
+     */
+    abstract boolean isUsable();
+
+    /** Returns the last published totals, or null if they are outdated. */
+    @Nullable
+    Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /** Brings the totals up to date and returns them. */
+    Snapshot current() {
+        if (dirty)
+            rebuild();
+        return new Snapshot();
+    }
+
+    /**
+     * Brings the totals up to date, publishes them and returns them. Must only be called when the wallet is in a
+     * consistent state, i.e. not from within a change to the wallet.
+     */
+    Snapshot publish() {
+        Snapshot current = current();
+        snapshot = isUsable() ? current : null;
+        return current;
+    }
+
+    /** Marks the totals as outdated. They will be rebuilt from scratch on the next {@link #current()}. */
+    void invalidate() {
+        dirty = true;
+        snapshot = null;
+    }
+
+    /** Classifies the tracked outputs of the given transaction again. */
+    void update(Transaction tx) {
+        if (dirty)
+            return;
+        for (TransactionOutput output : tx.getOutputs()) {
+            Integer old = classes.get(output);
+            if (old == null)
+                continue;
+            int now = classify(output);
+            if (now != old) {
+                apply(output, old, -1);
+                apply(output, now, 1);
+                snapshot = null;
+            }
+        }
+    }
+
+    private int classify(TransactionOutput output) {
+        int flags = isSpendable(output) ? SPENDABLE : 0;
+        if (isSettled(output)) {
+            flags |= SETTLED;
+            if (isAvailable(output))
+                flags |= AVAILABLE;
+        }
+        return flags;
+    }
+
+    /** Adds the given output, which has just become unspent. */
+    void added(TransactionOutput output) {
+        snapshot = null;
+        if (!dirty)
+            apply(output, classify(output), 1);
+    }
+
+    /** Removes the given output, which is no longer unspent. */
+    void removed(TransactionOutput output) {
+        snapshot = null;
+        Integer old = dirty ? null : classes.get(output);
+        if (old != null)
+            apply(output, old, -1);
+    }
+
+    /** Removes all outputs. */
+    void cleared() {
+        classes.clear();
+        unsettled.clear();
+        estimated = estimatedSpendable = settledAvailable = settledAvailableSpendable = 0;
+        dirty = false;
+        snapshot = null;
+    }
+
+    private void rebuild() {
+        cleared();
+        for (TransactionOutput output : outputs())
+            added(output);
+    }
+
+    // Adds the output with the given classification to the totals (sign 1) or takes it out again (sign -1).
+    private void apply(TransactionOutput output, int flags, int sign) {
+        long value = sign * output.getValue().value;
+        boolean spendable = (flags & SPENDABLE) != 0;
+        estimated += value;
+        if (spendable)
+            estimatedSpendable += value;
+        if ((flags & SETTLED) == 0) {
+            if (sign > 0)
+                unsettled.put(output, spendable);
+            else
+                unsettled.remove(output);
+        } else if ((flags & AVAILABLE) != 0) {
+            settledAvailable += value;
+            if (spendable)
+                settledAvailableSpendable += value;
+        }
+        if (sign > 0)
+            classes.put(output, flags);
+        else
+            classes.remove(output);
+    }
+}
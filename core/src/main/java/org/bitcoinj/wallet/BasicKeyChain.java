@@ -31,6 +31,7 @@ import org.spongycastle.crypto.params.KeyParameter;
 import javax.annotation.Nullable;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.Executor;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -49,9 +50,15 @@ public class BasicKeyChain implements EncryptableKeyChain {
     private final LinkedHashMap<ByteString, ECKey> pubkeyToKeys;
     @Nullable private final KeyCrypter keyCrypter;
     private boolean isWatching;
+    // The index of the key chain group the chain is part of, which the keys are added to as well.
+    @Nullable private OwnershipIndex ownershipIndex;
 
     private final CopyOnWriteArrayList<ListenerRegistration<KeyChainEventListener>> listeners;
 
+    // Shared by all key chains and groups, so that a stamp is never handed out twice, see getModificationStamp().
+    private static final AtomicLong modifications = new AtomicLong();
+    private volatile long modificationStamp = nextModificationStamp();
+
     public BasicKeyChain() {
         this(null);
     }
@@ -180,6 +187,9 @@ public class BasicKeyChain implements EncryptableKeyChain {
         ECKey previousKey = pubkeyToKeys.put(ByteString.copyFrom(key.getPubKey()), key);
         hashToKeys.put(ByteString.copyFrom(key.getPubKeyHash()), key);
         checkState(previousKey == null);
+        if (ownershipIndex != null)
+            addToIndex(ownershipIndex, key);
+        modificationStamp = nextModificationStamp();
     }
 
     private void importKeysLocked(List<ECKey> keys) {
@@ -264,12 +274,55 @@ public class BasicKeyChain implements EncryptableKeyChain {
             boolean a = hashToKeys.remove(ByteString.copyFrom(key.getPubKeyHash())) != null;
             boolean b = pubkeyToKeys.remove(ByteString.copyFrom(key.getPubKey())) != null;
             checkState(a == b);   // Should be in both maps or neither.
+            if (a && ownershipIndex != null)
+                removeFromIndex(ownershipIndex, key);
+            if (a)
+                modificationStamp = nextModificationStamp();
             return a;
         } finally {
             lock.unlock();
         }
     }
 
+    /** Returns a new value of a counter that is shared by all key chains and only goes up. */
+    static long nextModificationStamp() {
+        return modifications.incrementAndGet();
+    }
+
+    /**
+     * Returns a value that is larger after every change to the keys of this chain than before it, and larger than the
+     * stamps of all chains created before this one, so that a change can't go unnoticed even if the chain is replaced.
+     */
+    long getModificationStamp() {
+        return modificationStamp;
+    }
+
+    /** Adds the keys of this chain, and those added later, to the given index instead of to the previous one. */
+    void setOwnershipIndex(@Nullable OwnershipIndex index) {
+        lock.lock();
+        try {
+            for (ECKey key : hashToKeys.values()) {
+                if (ownershipIndex != null)
+                    removeFromIndex(ownershipIndex, key);
+                if (index != null)
+                    addToIndex(index, key);
+            }
+            ownershipIndex = index;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void addToIndex(OwnershipIndex index, ECKey key) {
+        index.add(OwnershipIndex.PUBKEY_HASH, key.getPubKeyHash());
+        index.add(OwnershipIndex.PUBKEY, key.getPubKey());
+    }
+
+    private static void removeFromIndex(OwnershipIndex index, ECKey key) {
+        index.remove(OwnershipIndex.PUBKEY_HASH, key.getPubKeyHash());
+        index.remove(OwnershipIndex.PUBKEY, key.getPubKey());
+    }
+
     @Override
     public long getEarliestKeyCreationTime() {
         lock.lock();
@@ -576,6 +629,19 @@ public class BasicKeyChain implements EncryptableKeyChain {
         return numKeys() * 2;
     }
 
+    // Adds the data getFilter inserts into the filter to the given list.
+    void addBloomFilterElements(List<byte[]> elements) {
+        lock.lock();
+        try {
+            for (ECKey key : hashToKeys.values()) {
+                elements.add(key.getPubKey());
+                elements.add(key.getPubKeyHash());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
 
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     //
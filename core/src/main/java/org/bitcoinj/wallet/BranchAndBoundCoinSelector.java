@@ -0,0 +1,164 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link CoinSelector} that first searches for a set of outputs that pays the target without any change, or with
+ * so little excess that a change output wouldn't be worth creating. Such a transaction is smaller and doesn't create
+ * another output the wallet has to keep track of. Outputs are chosen by the same rules as {@link DefaultCoinSelector}
+ * does, which is also used if no such set is found.</p>
+ *
+ * <p>The search is a depth first branch and bound over the outputs from the highest value to the lowest, cutting off
+ * branches that either can't reach the target any more or already overshoot it. Because the number of branches grows
+ * exponentially with the number of outputs, it gives up after a number of tries or once the time budget is used up,
+ * whichever comes first, keeping the best set found so far.</p>
+ */
+public class BranchAndBoundCoinSelector extends DefaultCoinSelector {
+    private static final int MAX_TRIES = 100000;
+    // How often the clock is looked at, in tries.
+    private static final int CLOCK_INTERVAL = 1024;
+
+    private final long costOfChange;
+    private final long timeBudgetNanos;
+
+    /** Creates a selector that accepts up to {@link Transaction#MIN_NONDUST_OUTPUT} of excess, searching for 10 ms. */
+    public BranchAndBoundCoinSelector() {
+        this(Transaction.MIN_NONDUST_OUTPUT, 10, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param costOfChange The most that may be paid above the target rather than creating change, usually what the
+     *                     change output would cost in fees plus the least value it would need to have.
+     * @param timeBudget   How long to search for a set of outputs without change.
+     * @param unit         The unit of the time budget.
+     */
+    public BranchAndBoundCoinSelector(Coin costOfChange, long timeBudget, TimeUnit unit) {
+        checkArgument(costOfChange.signum() >= 0, "Negative cost of change");
+        this.costOfChange = costOfChange.value;
+        this.timeBudgetNanos = unit.toNanos(timeBudget);
+    }
+
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        if (target.signum() > 0 && !target.equals(NetworkParameters.MAX_MONEY)) {
+            CoinSelection withoutChange = selectWithoutChange(target, candidates);
+            if (withoutChange != null)
+                return withoutChange;
+        }
+        return super.select(target, candidates);
+    }
+
+    @Override
+    void sortCandidates(ArrayList<TransactionOutput> candidates) {
+        // The wallet hands out its outputs in this order already, in which case the merge sort is linear.
+        Collections.sort(candidates, UnspentOutputSet.BY_DESCENDING_VALUE);
+    }
+
+    /**
+     * Returns the selection of outputs with the least excess over the target that is within the cost of change, or
+     * null if none was found.
+     */
+    @Nullable
+    CoinSelection selectWithoutChange(Coin target, List<TransactionOutput> candidates) {
+        ArrayList<TransactionOutput> outputs = new ArrayList<>(candidates.size());
+        for (TransactionOutput output : candidates)
+            if (shouldSelect(output.getParentTransaction()))
+                outputs.add(output);
+        if (!SortedCandidates.isSorted(candidates))
+            sortCandidates(outputs);
+        int size = outputs.size();
+        long[] values = new long[size];
+        // The sum of the values from each index to the end, to tell when a branch can't reach the target any more.
+        long[] remaining = new long[size + 1];
+        for (int i = size - 1; i >= 0; i--) {
+            values[i] = outputs.get(i).getValue().value;
+            remaining[i] = remaining[i + 1] + values[i];
+        }
+        long lower = target.value;
+        long upper = lower + costOfChange;
+        if (remaining[0] < lower)
+            return null;
+
+        boolean[] included = new boolean[size];
+        boolean[] best = null;
+        long bestExcess = Long.MAX_VALUE;
+        long total = 0;
+        int depth = 0;
+        long deadline = System.nanoTime() + timeBudgetNanos;
+        for (int tries = 1; tries <= MAX_TRIES; tries++) {
+            boolean backtrack;
+            if (total + remaining[depth] < lower || total > upper) {
+                backtrack = true;
+            } else if (total >= lower) {
+                long excess = total - lower;
+                if (excess < bestExcess) {
+                    best = included.clone();
+                    bestExcess = excess;
+                    if (excess == 0)
+                        break;
+                }
+                backtrack = true;
+            } else {
+                backtrack = false;
+            }
+            if (backtrack) {
+                // Go back to the last output that was included and try the branch without it.
+                depth--;
+                while (depth >= 0 && !included[depth])
+                    depth--;
+                if (depth < 0)
+                    break; // Searched everything.
+                included[depth] = false;
+                total -= values[depth];
+                depth++;
+            } else if (depth > 0 && !included[depth - 1] && values[depth] == values[depth - 1]) {
+                // Including this output can only lead to selections that were already tried with the previous one.
+                depth++;
+            } else {
+                included[depth] = true;
+                total += values[depth];
+                depth++;
+            }
+            if (tries % CLOCK_INTERVAL == 0 && System.nanoTime() - deadline > 0)
+                break;
+        }
+        if (best == null)
+            return null;
+        ArrayList<TransactionOutput> selected = new ArrayList<>();
+        long gathered = 0;
+        for (int i = 0; i < size; i++) {
+            if (best[i]) {
+                selected.add(outputs.get(i));
+                gathered += values[i];
+            }
+        }
+        return new CoinSelection(Coin.valueOf(gathered), selected);
+    }
+}
@@ -22,6 +22,7 @@ import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionConfidence;
 import org.bitcoinj.core.TransactionOutput;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.primitives.UnsignedBytes;
 
 import java.math.BigInteger;
 import java.util.*;
@@ -39,10 +40,10 @@ public class DefaultCoinSelector implements CoinSelector {
         // TODO: Consider changing the wallets internal format to track just outputs and keep them ordered.
         ArrayList<TransactionOutput> sortedOutputs = new ArrayList<>(candidates);
         // When calculating the wallet balance, we may be asked to select all possible coins, if so, avoid sorting
-        // them in order to improve performance.
+        // them in order to improve performance. Neither are candidates sorted that were sorted for us already.
         // TODO: Take in network parameters when instanatiated, and then test against the current network. Or just have a boolean parameter for "give me everything"
-        if (!target.equals(NetworkParameters.MAX_MONEY)) {
-            sortOutputs(sortedOutputs);
+        if (!target.equals(NetworkParameters.MAX_MONEY) && !SortedCandidates.isSorted(candidates)) {
+            sortCandidates(sortedOutputs);
         }
         // Now iterate over the sorted outputs until we have got as close to the target as possible or a little
         // bit over (excessive value will be change).
@@ -59,27 +60,103 @@ public class DefaultCoinSelector implements CoinSelector {
         return new CoinSelection(Coin.valueOf(total), selected);
     }
 
+    /** Sorts the candidates into the order in which {@link #select(Coin, List)} considers them. */
+    void sortCandidates(ArrayList<TransactionOutput> candidates) {
+        sortOutputs(candidates);
+    }
+
+    /**
+     * Returns a copy of the candidates sorted by {@link #sortCandidates(ArrayList)}, which {@link #select(Coin, List)}
+     * doesn't sort again. For selecting from the same candidates several times, with {@link SortedCandidates#copy()}
+     * for each selection.
+     */
+    SortedCandidates sortedCopy(List<TransactionOutput> candidates) {
+        SortedCandidates sorted = new SortedCandidates(candidates);
+        sortCandidates(sorted);
+        sorted.markSorted();
+        return sorted;
+    }
+
+    /** Candidates in the order of {@link #sortCandidates(ArrayList)}, see {@link #sortedCopy(List)}. */
+    static final class SortedCandidates extends ArrayList<TransactionOutput> {
+        // The modification count when the list was known to be sorted. Once elements are added or removed, like by a
+        // selector overriding select(), it is sorted again.
+        private int sortedModCount = -1;
+
+        private SortedCandidates(Collection<TransactionOutput> candidates) {
+            super(candidates);
+        }
+
+        /** Returns a copy that is still known to be sorted, for a selector to modify. */
+        SortedCandidates copy() {
+            SortedCandidates copy = new SortedCandidates(this);
+            if (isSorted(this))
+                copy.markSorted();
+            return copy;
+        }
+
+        private void markSorted() {
+            sortedModCount = modCount;
+        }
+
+        static boolean isSorted(List<TransactionOutput> candidates) {
+            return candidates instanceof SortedCandidates && ((SortedCandidates) candidates).isUnmodified();
+        }
+
+        private boolean isUnmodified() {
+            return sortedModCount == modCount;
+        }
+    }
+
     @VisibleForTesting static void sortOutputs(ArrayList<TransactionOutput> outputs) {
-        Collections.sort(outputs, new Comparator<TransactionOutput>() {
-            @Override
-            public int compare(TransactionOutput a, TransactionOutput b) {
-                int depth1 = a.getParentTransactionDepthInBlocks();
-                int depth2 = b.getParentTransactionDepthInBlocks();
-                Coin aValue = a.getValue();
-                Coin bValue = b.getValue();
-                BigInteger aCoinDepth = BigInteger.valueOf(aValue.value).multiply(BigInteger.valueOf(depth1));
-                BigInteger bCoinDepth = BigInteger.valueOf(bValue.value).multiply(BigInteger.valueOf(depth2));
-                int c1 = bCoinDepth.compareTo(aCoinDepth);
-                if (c1 != 0) return c1;
-                // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
-                int c2 = bValue.compareTo(aValue);
-                if (c2 != 0) return c2;
-                // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
-                BigInteger aHash = a.getParentTransactionHash().toBigInteger();
-                BigInteger bHash = b.getParentTransactionHash().toBigInteger();
-                return aHash.compareTo(bHash);
-            }
-        });
+        // Look up what is compared only once per output rather than once per comparison.
+        int size = outputs.size();
+        SortKey[] keys = new SortKey[size];
+        for (int i = 0; i < size; i++)
+            keys[i] = new SortKey(outputs.get(i));
+        Arrays.sort(keys);
+        for (int i = 0; i < size; i++)
+            outputs.set(i, keys[i].output);
+    }
+
+    private static final class SortKey implements Comparable<SortKey> {
+        private static final Comparator<byte[]> HASH_ORDER = UnsignedBytes.lexicographicalComparator();
+
+        final TransactionOutput output;
+        final long value;
+        final int depth;
+        final byte[] parentHash;
+
+        SortKey(TransactionOutput output) {
+            this.output = output;
+            this.value = output.getValue().value;
+            this.depth = output.getParentTransactionDepthInBlocks();
+            this.parentHash = output.getParentTransactionHash().getBytes();
+        }
+
+        @Override
+        public int compareTo(SortKey other) {
+            // Highest "coin*days" first.
+            int c1 = compareProducts(other.value, other.depth, value, depth);
+            if (c1 != 0) return c1;
+            // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
+            int c2 = Long.compare(other.value, value);
+            if (c2 != 0) return c2;
+            // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
+            return HASH_ORDER.compare(parentHash, other.parentHash);
+        }
+
+        // Compares a1 * b1 with a2 * b2, only resorting to big integers if one of the products overflows.
+        private static int compareProducts(long a1, long b1, long a2, long b2) {
+            if (fitsProduct(a1, b1) && fitsProduct(a2, b2))
+                return Long.compare(a1 * b1, a2 * b2);
+            return BigInteger.valueOf(a1).multiply(BigInteger.valueOf(b1))
+                    .compareTo(BigInteger.valueOf(a2).multiply(BigInteger.valueOf(b2)));
+        }
+
+        private static boolean fitsProduct(long a, long b) {
+            return a >= 0 && b >= 0 && (b == 0 || a <= Long.MAX_VALUE / b);
+        }
     }
 
     /** Sub-classes can override this to just customize whether transactions are usable, but keep age sorting. */
@@ -39,6 +39,7 @@ import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
@@ -159,6 +160,9 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     // and always 1 for other transaction types
     protected int sigsRequiredToSpend = 1;
 
+    // Changed along with everything serialized that isn't a key, see getModificationStamp().
+    private volatile long modificationStamp = BasicKeyChain.nextModificationStamp();
+
 
     public static class Builder<T extends Builder<T>> {
         protected SecureRandom random;
@@ -532,6 +536,7 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
                 default:
                     throw new UnsupportedOperationException();
             }
+            modified();
             // Optimization: potentially do a very quick key generation for just the number of keys we need if we
             // didn't already create them, ignoring the configured lookahead size. This ensures we'll be able to
             // retrieve the keys in the following loop, but if we're totally fresh and didn't get a chance to
@@ -582,11 +587,13 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         if (k.getParent() == internalParentKey) {
             if (issuedInternalKeys < numChildren) {
                 issuedInternalKeys = numChildren;
+                modified();
                 maybeLookAhead();
             }
         } else if (k.getParent() == externalParentKey) {
             if (issuedExternalKeys < numChildren) {
                 issuedExternalKeys = numChildren;
+                modified();
                 maybeLookAhead();
             }
         }
@@ -1129,6 +1136,27 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
 
     }
 
+    // Adds the data getFilter inserts into the filter to the given list.
+    void addBloomFilterElements(List<byte[]> elements) {
+        lock.lock();
+        try {
+            maybeLookAhead();
+            basicKeyChain.addBloomFilterElements(elements);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds the keys of this chain, including those looked ahead, to the given index instead of to the previous one. */
+    void setOwnershipIndex(@Nullable OwnershipIndex index) {
+        lock.lock();
+        try {
+            basicKeyChain.setOwnershipIndex(index);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * <p>The number of public keys we should pre-generate on each path before they are requested by the app. This is
      * required so that when scanning through the chain given only a seed, we can give enough keys to the remote node
@@ -1159,6 +1187,7 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
             this.lookaheadSize = lookaheadSize;
             if (readjustThreshold)
                 this.lookaheadThreshold = calcDefaultLookaheadThreshold();
+            modified();
         } finally {
             lock.unlock();
         }
@@ -1175,6 +1204,7 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
             if (num >= lookaheadSize)
                 throw new IllegalArgumentException("Threshold larger or equal to the lookaheadSize");
             this.lookaheadThreshold = num;
+            modified();
         } finally {
             lock.unlock();
         }
@@ -1239,21 +1269,25 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         log.info("{} keys needed for {} = {} issued + {} lookahead size + {} lookahead threshold - {} num children",
                 needed, parent.getPathAsString(), issued, lookaheadSize, lookaheadThreshold, numChildren);
 
-        List<DeterministicKey> result  = new ArrayList<>(needed);
         final Stopwatch watch = Stopwatch.createStarted();
-        int nextChild = numChildren;
-        for (int i = 0; i < needed; i++) {
-            DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
-            key = key.dropPrivateBytes();
+        ForkJoinPool pool = needed >= PARALLEL_LOOKAHEAD && Runtime.getRuntime().availableProcessors() > 1
+                ? DerivationPool.INSTANCE : null;
+        List<DeterministicKey> result = HDKeyDerivation.deriveChildKeys(parent, numChildren, needed, pool);
+        for (DeterministicKey key : result)
             hierarchy.putKey(key);
-            result.add(key);
-            nextChild = key.getChildNumber().num() + 1;
-        }
         watch.stop();
         log.info("Took {}", watch);
         return result;
     }
 
+    // Lookahead zones of at least this many keys are derived on all processors.
+    private static final int PARALLEL_LOOKAHEAD = 256;
+
+    // Shared by all chains and only created once needed. Its threads are daemons and end when idle.
+    private static class DerivationPool {
+        static final ForkJoinPool INSTANCE = new ForkJoinPool();
+    }
+
     /** Housekeeping call to call when lookahead might be needed.  Normally called automatically by KeychainGroup. */
     public void maybeLookAheadScripts() {
     }
@@ -1426,6 +1460,20 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     /** The number of signatures required to spend coins received by this keychain. */
     public void setSigsRequiredToSpend(int sigsRequiredToSpend) {
         this.sigsRequiredToSpend = sigsRequiredToSpend;
+        modified();
+    }
+
+    /** Records a change to what {@link #serializeToProtobuf()} returns other than keys being added or removed. */
+    protected void modified() {
+        modificationStamp = BasicKeyChain.nextModificationStamp();
+    }
+
+    /**
+     * Returns a value that is larger after every change to what {@link #serializeToProtobuf()} returns than before it,
+     * see {@link BasicKeyChain#getModificationStamp()}.
+     */
+    long getModificationStamp() {
+        return Math.max(modificationStamp, basicKeyChain.getModificationStamp());
     }
 
     /**
@@ -0,0 +1,88 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * One page of the transaction history of a wallet, as returned by
+ * {@link Wallet#getTransactionsByTime(java.util.Date, java.util.Date, Cursor, int, boolean)} and
+ * {@link Wallet#getTransactionsByHeight(int, int, Cursor, int)}. Pass the cursor of a page to the same query to get
+ * the next page.
+ */
+public final class HistoryPage {
+    private final List<Transaction> transactions;
+    @Nullable private final Cursor nextCursor;
+
+    HistoryPage(List<Transaction> transactions, @Nullable Cursor nextCursor) {
+        this.transactions = Collections.unmodifiableList(transactions);
+        this.nextCursor = nextCursor;
+    }
+
+    /** Returns the transactions of this page, in the order of the query. */
+    public List<Transaction> getTransactions() {
+        return transactions;
+    }
+
+    /** Returns the position after this page, or null if the query has no more transactions. */
+    @Nullable
+    public Cursor getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * A position in the history, right after a transaction that was returned. It stays valid while the wallet
+     * changes: transactions that are added before it aren't returned by the pages after it, and those that are
+     * removed aren't skipped over.
+     */
+    public static final class Cursor {
+        final TransactionHistory.Order order;
+        final long key;
+        final Sha256Hash hash;
+
+        Cursor(TransactionHistory.Order order, long key, Sha256Hash hash) {
+            this.order = order;
+            this.key = key;
+            this.hash = checkNotNull(hash);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Cursor other = (Cursor) o;
+            return order == other.order && key == other.key && hash.equals(other.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return (order.hashCode() * 31 + (int) (key ^ (key >>> 32))) * 31 + hash.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "Cursor{" + order + " " + key + " " + hash + "}";
+        }
+    }
+}
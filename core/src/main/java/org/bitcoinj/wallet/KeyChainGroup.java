@@ -71,6 +71,8 @@ public class KeyChainGroup implements KeyBag {
     private static final Logger log = LoggerFactory.getLogger(KeyChainGroup.class);
 
     private BasicKeyChain basic;
+    // What all chains own, kept up to date by the chains themselves.
+    private final OwnershipIndex ownershipIndex = new OwnershipIndex();
     private NetworkParameters params;
     protected final LinkedList<DeterministicKeyChain> chains;
     // currentKeys is used for normal, non-multisig/married wallets. currentAddresses is used when we're handing out
@@ -80,6 +82,8 @@ public class KeyChainGroup implements KeyBag {
     @Nullable private KeyCrypter keyCrypter;
     private int lookaheadSize = -1;
     private int lookaheadThreshold = -1;
+    // Changed whenever chains are added or replaced, see getSerializationStamp().
+    private long modificationStamp = BasicKeyChain.nextModificationStamp();
 
     /** Creates a keychain group with no basic chain, and a single, lazily created HD chain. */
     public KeyChainGroup(NetworkParameters params) {
@@ -126,6 +130,9 @@ public class KeyChainGroup implements KeyBag {
                 ? new EnumMap<KeyChain.KeyPurpose, DeterministicKey>(KeyChain.KeyPurpose.class)
                 : currentKeys;
         this.currentAddresses = new EnumMap<>(KeyChain.KeyPurpose.class);
+        basic.setOwnershipIndex(ownershipIndex);
+        for (DeterministicKeyChain chain : this.chains)
+            chain.setOwnershipIndex(ownershipIndex);
         maybeLookaheadScripts();
 
         if (isMarried()) {
@@ -136,6 +143,11 @@ public class KeyChainGroup implements KeyBag {
         }
     }
 
+    /** Returns the index of what the chains of this group own. */
+    OwnershipIndex getOwnershipIndex() {
+        return ownershipIndex;
+    }
+
     // This keeps married redeem data in sync with the number of keys issued
     private void maybeLookaheadScripts() {
         for (DeterministicKeyChain chain : chains) {
@@ -162,7 +174,9 @@ public class KeyChainGroup implements KeyBag {
             chain.setLookaheadSize(lookaheadSize);
         if (lookaheadThreshold >= 0)
             chain.setLookaheadThreshold(lookaheadThreshold);
+        chain.setOwnershipIndex(ownershipIndex);
         chains.add(chain);
+        modificationStamp = BasicKeyChain.nextModificationStamp();
     }
 
     /**
@@ -524,9 +538,7 @@ public class KeyChainGroup implements KeyBag {
         for (DeterministicKeyChain chain : chains)
             newChains.add(chain.toEncrypted(keyCrypter, aesKey));
         this.keyCrypter = keyCrypter;
-        basic = newBasic;
-        chains.clear();
-        chains.addAll(newChains);
+        replaceChains(newBasic, newChains);
     }
 
     /**
@@ -544,9 +556,20 @@ public class KeyChainGroup implements KeyBag {
             newChains.add(chain.toDecrypted(aesKey));
 
         this.keyCrypter = null;
+        replaceChains(newBasic, newChains);
+    }
+
+    private void replaceChains(BasicKeyChain newBasic, List<DeterministicKeyChain> newChains) {
+        basic.setOwnershipIndex(null);
+        for (DeterministicKeyChain chain : chains)
+            chain.setOwnershipIndex(null);
+        newBasic.setOwnershipIndex(ownershipIndex);
+        for (DeterministicKeyChain chain : newChains)
+            chain.setOwnershipIndex(ownershipIndex);
         basic = newBasic;
         chains.clear();
         chains.addAll(newChains);
+        modificationStamp = BasicKeyChain.nextModificationStamp();
     }
 
     /** Returns true if the group is encrypted. */
@@ -618,6 +641,15 @@ public class KeyChainGroup implements KeyBag {
         return filter;
     }
 
+    // The data getBloomFilter inserts into the filter.
+    List<byte[]> getBloomFilterElements() {
+        List<byte[]> elements = new ArrayList<>();
+        basic.addBloomFilterElements(elements);
+        for (DeterministicKeyChain chain : chains)
+            chain.addBloomFilterElements(elements);
+        return elements;
+    }
+
     public boolean isRequiringUpdateAllBloomFilter() {
         throw new UnsupportedOperationException();   // Unused.
     }
@@ -662,6 +694,22 @@ public class KeyChainGroup implements KeyBag {
         return result;
     }
 
+    /**
+     * Returns a value that is larger after every change to what {@link #serializeToProtobuf()} returns than before
+     * it: keys being imported, removed, derived or issued, chain settings like the lookahead size changing, chains
+     * being added, or the group being encrypted or decrypted. {@link WalletJournal} uses it to tell whether the keys
+     * have to be written again without serializing them. Changes made to key objects directly, such as their creation
+     * time, aren't noticed. The lookahead of all chains is filled up first, as it would be when loading the keys.
+     */
+    long getSerializationStamp() {
+        long stamp = Math.max(modificationStamp, basic.getModificationStamp());
+        for (DeterministicKeyChain chain : chains) {
+            chain.maybeLookAhead();
+            stamp = Math.max(stamp, chain.getModificationStamp());
+        }
+        return stamp;
+    }
+
     static KeyChainGroup fromProtobufUnencrypted(NetworkParameters params, List<Protos.Key> keys) throws UnreadableWalletException {
         return fromProtobufUnencrypted(params, keys, new DefaultKeyChainFactory());
     }
@@ -757,7 +805,9 @@ public class KeyChainGroup implements KeyBag {
         if (aesKey != null) {
             chain = chain.toEncrypted(checkNotNull(basic.getKeyCrypter()), aesKey);
         }
+        chain.setOwnershipIndex(ownershipIndex);
         chains.add(chain);
+        modificationStamp = BasicKeyChain.nextModificationStamp();
         return chain;
     }
 
@@ -59,6 +59,7 @@ public class MarriedKeyChain extends DeterministicKeyChain {
     // The map holds P2SH redeem script and corresponding ECKeys issued by this KeyChainGroup (including lookahead)
     // mapped to redeem script hashes.
     private LinkedHashMap<ByteString, RedeemData> marriedKeysRedeemData = new LinkedHashMap<>();
+    @Nullable private OwnershipIndex ownershipIndex;
 
     private List<DeterministicKeyChain> followingKeyChains;
 
@@ -143,6 +144,7 @@ public class MarriedKeyChain extends DeterministicKeyChain {
     void setFollowingKeyChains(List<DeterministicKeyChain> followingKeyChains) {
         checkArgument(!followingKeyChains.isEmpty());
         this.followingKeyChains = followingKeyChains;
+        modified();
     }
 
     @Override
@@ -202,6 +204,16 @@ public class MarriedKeyChain extends DeterministicKeyChain {
 
         this.sigsRequiredToSpend = sigsRequiredToSpend;
         this.followingKeyChains = followingKeyChains;
+        modified();
+    }
+
+    @Override
+    long getModificationStamp() {
+        long stamp = super.getModificationStamp();
+        if (followingKeyChains != null)
+            for (DeterministicKeyChain chain : followingKeyChains)
+                stamp = Math.max(stamp, chain.getModificationStamp());
+        return stamp;
     }
 
     @Override
@@ -268,7 +280,9 @@ public class MarriedKeyChain extends DeterministicKeyChain {
         for (DeterministicKey followedKey : getLeafKeys()) {
             RedeemData redeemData = getRedeemData(followedKey);
             Script scriptPubKey = ScriptBuilder.createP2SHOutputScript(redeemData.redeemScript);
-            marriedKeysRedeemData.put(ByteString.copyFrom(scriptPubKey.getPubKeyHash()), redeemData);
+            byte[] scriptHash = scriptPubKey.getPubKeyHash();
+            if (marriedKeysRedeemData.put(ByteString.copyFrom(scriptHash), redeemData) == null && ownershipIndex != null)
+                ownershipIndex.add(OwnershipIndex.SCRIPT_HASH, scriptHash);
         }
     }
 
@@ -294,6 +308,37 @@ public class MarriedKeyChain extends DeterministicKeyChain {
         return filter;
     }
 
+    @Override
+    void setOwnershipIndex(@Nullable OwnershipIndex index) {
+        lock.lock();
+        try {
+            super.setOwnershipIndex(index);
+            for (ByteString scriptHash : marriedKeysRedeemData.keySet()) {
+                if (ownershipIndex != null)
+                    ownershipIndex.remove(OwnershipIndex.SCRIPT_HASH, scriptHash.toByteArray());
+                if (index != null)
+                    index.add(OwnershipIndex.SCRIPT_HASH, scriptHash.toByteArray());
+            }
+            ownershipIndex = index;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    void addBloomFilterElements(List<byte[]> elements) {
+        lock.lock();
+        try {
+            maybeLookAhead();
+            for (Map.Entry<ByteString, RedeemData> entry : marriedKeysRedeemData.entrySet()) {
+                elements.add(entry.getKey().toByteArray());
+                elements.add(entry.getValue().redeemScript.getProgram());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public int numBloomFilterEntries() {
         maybeLookAhead();
@@ -0,0 +1,195 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The data a wallet owns, in one hash table for all of its key chains and watched scripts: public key hashes,
+ * which also are the programs of pay to witness public key hash outputs, pay to script hash hashes, public keys and
+ * watched scripts. Telling whether an output is the wallet's takes one lookup, instead of one per key chain.</p>
+ *
+ * <p>The table is keyed by the raw bytes and looks them up without copying them. The same data may be added more
+ * than once, by different key chains, and is owned until it has been removed as often.</p>
+ */
+final class OwnershipIndex {
+    /** The hash160 of a public key. */
+    static final int PUBKEY_HASH = 0;
+    /** The hash160 of a redeem script. */
+    static final int SCRIPT_HASH = 1;
+    /** A public key. */
+    static final int PUBKEY = 2;
+    /** The program of a watched script. */
+    static final int SCRIPT = 3;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Nothing else is locked while this is held, so it doesn't need the cycle detection of Threading.lock().
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Open addressing with linear probing, in parallel arrays. A slot is empty if its data is null.
+    private byte[][] data = new byte[INITIAL_CAPACITY][];
+    private byte[] kinds = new byte[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private int[] counts = new int[INITIAL_CAPACITY];
+    private int size;
+    private final int[] sizeOfKind = new int[SCRIPT + 1];
+
+    /** Returns whether the given data of the given kind is owned. */
+    boolean contains(int kind, byte[] bytes) {
+        int hash = hash(kind, bytes);
+        lock.lock();
+        try {
+            return find(kind, bytes, hash) >= 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds the given data of the given kind. */
+    void add(int kind, byte[] bytes) {
+        checkArgument(kind >= PUBKEY_HASH && kind <= SCRIPT, "Unknown kind: %s", kind);
+        int hash = hash(kind, bytes);
+        lock.lock();
+        try {
+            int slot = find(kind, bytes, hash);
+            if (slot >= 0) {
+                counts[slot]++;
+                return;
+            }
+            if ((size + 1) * 2 > data.length)
+                resize(data.length * 2);
+            slot = hash & (data.length - 1);
+            while (data[slot] != null)
+                slot = (slot + 1) & (data.length - 1);
+            data[slot] = bytes.clone();
+            kinds[slot] = (byte) kind;
+            hashes[slot] = hash;
+            counts[slot] = 1;
+            size++;
+            sizeOfKind[kind]++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes the given data of the given kind once. Returns false if it wasn't owned. */
+    boolean remove(int kind, byte[] bytes) {
+        int hash = hash(kind, bytes);
+        lock.lock();
+        try {
+            int slot = find(kind, bytes, hash);
+            if (slot < 0)
+                return false;
+            if (--counts[slot] == 0) {
+                deleteSlot(slot);
+                size--;
+                sizeOfKind[kind]--;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of distinct items owned. */
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether any data of the given kind is owned, which is cheaper to tell than whether some is. */
+    boolean containsAny(int kind) {
+        lock.lock();
+        try {
+            return sizeOfKind[kind] > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int find(int kind, byte[] bytes, int hash) {
+        int mask = data.length - 1;
+        for (int slot = hash & mask; data[slot] != null; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && kinds[slot] == kind && Arrays.equals(data[slot], bytes))
+                return slot;
+        }
+        return -1;
+    }
+
+    // Closes the gap left by the slot, by moving back the entries after it that would no longer be found.
+    private void deleteSlot(int slot) {
+        int mask = data.length - 1;
+        int gap = slot;
+        for (int next = (gap + 1) & mask; data[next] != null; next = (next + 1) & mask) {
+            int home = hashes[next] & mask;
+            // Whether home lies cyclically in (gap, next], in which case the entry stays.
+            boolean stays = gap <= next ? gap < home && home <= next : gap < home || home <= next;
+            if (!stays) {
+                data[gap] = data[next];
+                kinds[gap] = kinds[next];
+                hashes[gap] = hashes[next];
+                counts[gap] = counts[next];
+                gap = next;
+            }
+        }
+        data[gap] = null;
+        counts[gap] = 0;
+    }
+
+    private void resize(int capacity) {
+        byte[][] oldData = data;
+        byte[] oldKinds = kinds;
+        int[] oldHashes = hashes, oldCounts = counts;
+        data = new byte[capacity][];
+        kinds = new byte[capacity];
+        hashes = new int[capacity];
+        counts = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldData.length; i++) {
+            if (oldData[i] == null)
+                continue;
+            int slot = oldHashes[i] & mask;
+            while (data[slot] != null)
+                slot = (slot + 1) & mask;
+            data[slot] = oldData[i];
+            kinds[slot] = oldKinds[i];
+            hashes[slot] = oldHashes[i];
+            counts[slot] = oldCounts[i];
+        }
+    }
+
+    // Hashes and keys are mostly random already, but scripts and public keys start alike, so all bytes are mixed.
+    private static int hash(int kind, byte[] bytes) {
+        int h = kind * 0x9e3779b9 ^ bytes.length;
+        for (byte b : bytes)
+            h = h * 31 + b;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
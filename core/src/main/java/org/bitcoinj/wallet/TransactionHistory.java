@@ -0,0 +1,209 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The transactions of a {@link Wallet} in the order of their update time and of the height of the block they
+ * appear in, so that pages of the history can be read without sorting all of it. The orders are those of
+ * {@link Transaction#SORT_TX_BY_UPDATE_TIME} and {@link Transaction#SORT_TX_BY_HEIGHT}: most recent first, ties
+ * broken by hash. Only transactions building on the best chain have a height.</p>
+ *
+ * <p>Both keys are read from the transaction when it is added and when the wallet calls {@link #update(Transaction)}
+ * after its confidence changed, which is also when the wallet changes the update time. Keys changed from outside the
+ * wallet, by setting the update time or by another wallet sharing the confidence, are reported through
+ * {@link #changed(Sha256Hash)} and put right before the next page is read. The index doesn't know about pools; the
+ * wallet passes the transactions to leave out.</p>
+ *
+ * <p>All methods but {@link #changed(Sha256Hash)} must be called with the wallet lock held.</p>
+ */
+class TransactionHistory {
+    /** The orders the history can be read in. */
+    enum Order { TIME, HEIGHT }
+
+    // Most recent first, then by hash. A null hash comes before all hashes of the same key.
+    private static final class Key implements Comparable<Key> {
+        final long key;
+        @Nullable final Sha256Hash hash;
+
+        Key(long key, @Nullable Sha256Hash hash) {
+            this.key = key;
+            this.hash = hash;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            if (key != other.key)
+                return key > other.key ? -1 : 1;
+            if (hash == null || other.hash == null)
+                return hash == other.hash ? 0 : hash == null ? -1 : 1;
+            return hash.compareTo(other.hash);
+        }
+    }
+
+    private final TreeMap<Key, Transaction> byTime = new TreeMap<>();
+    private final TreeMap<Key, Transaction> byHeight = new TreeMap<>();
+    private final Map<Sha256Hash, Key> timeKeys = new HashMap<>();
+    private final Map<Sha256Hash, Key> heightKeys = new HashMap<>();
+    // Transactions whose keys may have been changed from outside the wallet, by hash.
+    private final Queue<Sha256Hash> changed = new ConcurrentLinkedQueue<>();
+
+    /** Adds the transaction, or updates its position if it was added already. */
+    void add(Transaction tx) {
+        update(tx);
+    }
+
+    /** Puts the transaction where its current update time and height belong. */
+    void update(Transaction tx) {
+        Sha256Hash hash = tx.getHash();
+        reposition(byTime, timeKeys, tx, new Key(currentKey(Order.TIME, tx), hash));
+        long height = currentKey(Order.HEIGHT, tx);
+        reposition(byHeight, heightKeys, tx, height != Long.MIN_VALUE ? new Key(height, hash) : null);
+    }
+
+    /** Only updates transactions that are in the history, see {@link #update(Transaction)}. */
+    void updateIfPresent(Transaction tx) {
+        if (timeKeys.containsKey(tx.getHash()))
+            update(tx);
+    }
+
+    private static void reposition(TreeMap<Key, Transaction> index, Map<Sha256Hash, Key> keys, Transaction tx,
+                                   @Nullable Key key) {
+        Key old = key != null ? keys.put(tx.getHash(), key) : keys.remove(tx.getHash());
+        if (old != null && key != null && old.key == key.key && index.get(old) == tx)
+            return;
+        if (old != null)
+            index.remove(old);
+        if (key != null)
+            index.put(key, tx);
+    }
+
+    /**
+     * Tells the index that the keys of the transaction with the given hash may have changed. Unlike the other methods,
+     * this may be called from any thread without holding the wallet lock, like from listeners.
+     */
+    void changed(Sha256Hash hash) {
+        changed.add(hash);
+    }
+
+    // Puts the transactions reported through changed() where they belong.
+    private void updateChanged() {
+        Sha256Hash hash;
+        while ((hash = changed.poll()) != null) {
+            Key key = timeKeys.get(hash);
+            if (key != null)
+                update(byTime.get(key));
+        }
+    }
+
+    void remove(Transaction tx) {
+        Key time = timeKeys.remove(tx.getHash());
+        if (time != null)
+            byTime.remove(time);
+        Key height = heightKeys.remove(tx.getHash());
+        if (height != null)
+            byHeight.remove(height);
+    }
+
+    void clear() {
+        changed.clear();
+        byTime.clear();
+        byHeight.clear();
+        timeKeys.clear();
+        heightKeys.clear();
+    }
+
+    int size() {
+        return byTime.size();
+    }
+
+    /**
+     * Returns up to {@code pageSize} transactions in the given order, starting after the cursor or else at the most
+     * recent key that is at most {@code newest}, and ending before the first key below {@code oldest}.
+     *
+     * @param excluded transactions to skip, by hash, or null
+     */
+    HistoryPage page(Order order, long newest, long oldest, @Nullable HistoryPage.Cursor cursor, int pageSize,
+                     @Nullable Map<Sha256Hash, Transaction> excluded) {
+        checkArgument(pageSize > 0, "pageSize must be positive");
+        checkArgument(cursor == null || cursor.order == order, "Cursor of a different order");
+        updateChanged();
+        List<Transaction> moved = new ArrayList<>();
+        while (true) {
+            HistoryPage page = scan(order, newest, oldest, cursor, pageSize, excluded, moved);
+            if (moved.isEmpty())
+                return page;
+            // Some keys were changed without being reported, put them in order and read the page again.
+            for (Transaction tx : moved)
+                update(tx);
+            moved.clear();
+        }
+    }
+
+    private HistoryPage scan(Order order, long newest, long oldest, @Nullable HistoryPage.Cursor cursor, int pageSize,
+                             @Nullable Map<Sha256Hash, Transaction> excluded, List<Transaction> moved) {
+        TreeMap<Key, Transaction> index = order == Order.TIME ? byTime : byHeight;
+        Map<Key, Transaction> tail;
+        if (cursor != null && cursor.key <= newest)
+            tail = index.tailMap(new Key(cursor.key, cursor.hash), false);
+        else
+            tail = index.tailMap(new Key(newest, null), true);
+        List<Transaction> transactions = new ArrayList<>(Math.min(pageSize, 64));
+        Key last = null;
+        for (Map.Entry<Key, Transaction> entry : tail.entrySet()) {
+            Key key = entry.getKey();
+            Transaction tx = entry.getValue();
+            if (key.key < oldest)
+                return new HistoryPage(transactions, null);
+            if (transactions.size() == pageSize)
+                return new HistoryPage(transactions, new HistoryPage.Cursor(order, last.key, last.hash));
+            if (excluded != null && excluded.containsKey(key.hash))
+                continue;
+            // Keys changed without being reported, like heights set on the confidence directly, may be stale.
+            if (key.key != currentKey(order, tx)) {
+                moved.add(tx);
+                continue;
+            }
+            transactions.add(tx);
+            last = key;
+        }
+        return new HistoryPage(transactions, null);
+    }
+
+    private static long currentKey(Order order, Transaction tx) {
+        if (order == Order.TIME)
+            return tx.getUpdateTime().getTime();
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() != TransactionConfidence.ConfidenceType.BUILDING)
+            return Long.MIN_VALUE;
+        return confidence.getAppearedAtChainHeight();
+    }
+}
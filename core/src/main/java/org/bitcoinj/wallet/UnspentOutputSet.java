@@ -0,0 +1,120 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.TransactionOutput;
+import com.google.common.primitives.UnsignedBytes;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * <p>The unspent outputs of a {@link Wallet}. Besides being a hash set, it keeps its outputs ordered by decreasing
+ * value, which is the order it iterates in, and it keeps the wallet's {@link BalanceIndex} up to date.</p>
+ *
+ * <p>Because the order is maintained as outputs come and go, the spend candidates that the wallet hands to coin
+ * selectors are already sorted by value, so selectors that need them in that order, like
+ * {@link BranchAndBoundCoinSelector}, sort them in linear time.</p>
+ */
+class UnspentOutputSet extends HashSet<TransactionOutput> {
+    /** Highest value first, then by parent transaction hash and output index to get a total order. */
+    static final Comparator<TransactionOutput> BY_DESCENDING_VALUE = new Comparator<TransactionOutput>() {
+        private final Comparator<byte[]> hashOrder = UnsignedBytes.lexicographicalComparator();
+
+        @Override
+        public int compare(TransactionOutput a, TransactionOutput b) {
+            int c = Long.compare(b.getValue().value, a.getValue().value);
+            if (c != 0)
+                return c;
+            if (a == b)
+                return 0;
+            c = hashOrder.compare(a.getParentTransactionHash().getBytes(), b.getParentTransactionHash().getBytes());
+            if (c != 0)
+                return c;
+            return Integer.compare(a.getIndex(), b.getIndex());
+        }
+    };
+
+    private final BalanceIndex balances;
+    private final TreeSet<TransactionOutput> byValue = new TreeSet<>(BY_DESCENDING_VALUE);
+
+    UnspentOutputSet(BalanceIndex balances) {
+        this.balances = balances;
+    }
+
+    @Override
+    public boolean add(TransactionOutput output) {
+        if (!super.add(output))
+            return false;
+        byValue.add(output);
+        balances.added(output);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!super.remove(o))
+            return false;
+        byValue.remove(o);
+        balances.removed((TransactionOutput) o);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        byValue.clear();
+        balances.cleared();
+    }
+
+    @Override
+    public Iterator<TransactionOutput> iterator() {
+        final Iterator<TransactionOutput> it = byValue.iterator();
+        return new Iterator<TransactionOutput>() {
+            private TransactionOutput last;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public TransactionOutput next() {
+                return last = it.next();
+            }
+
+            @Override
+            public void remove() {
+                it.remove();
+                UnspentOutputSet.super.remove(last);
+                balances.removed(last);
+            }
+        };
+    }
+
+    @Override
+    public Object[] toArray() {
+        return byValue.toArray();
+    }
+
+    @Override
+    public <T> T[] toArray(T[] a) {
+        return byValue.toArray(a);
+    }
+}
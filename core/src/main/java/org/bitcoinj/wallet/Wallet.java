@@ -50,6 +50,7 @@ import org.bitcoinj.core.TransactionConfidence;
 import org.bitcoinj.core.TransactionInput;
 import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.TxConfidenceTable;
 import org.bitcoinj.core.UTXO;
 import org.bitcoinj.core.UTXOProvider;
 import org.bitcoinj.core.UTXOProviderException;
@@ -156,9 +157,45 @@ public class Wallet extends BaseTaggableObject
     // All transactions together.
     protected final Map<Sha256Hash, Transaction> transactions;
 
+    // Running totals of myUnspents for each balance type.
+    private final BalanceIndex balances = new BalanceIndex() {
+        @Override
+        boolean isSpendable(TransactionOutput output) {
+            try {
+                return canSignFor(output.getScriptPubKey());
+            } catch (ScriptException e) {
+                return false;
+            }
+        }
+
+        @Override
+        boolean isSettled(TransactionOutput output) {
+            Transaction tx = checkNotNull(output.getParentTransaction());
+            return tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING && tx.isMature();
+        }
+
+        @Override
+        boolean isAvailable(TransactionOutput output) {
+            Transaction tx = checkNotNull(output.getParentTransaction());
+            CoinSelector selector = coinSelector;
+            return tx.isMature() && selector instanceof DefaultCoinSelector
+                    && ((DefaultCoinSelector) selector).shouldSelect(tx);
+        }
+
+        @Override
+        Iterable<TransactionOutput> outputs() {
+            return myUnspents;
+        }
+
+        @Override
+        boolean isUsable() {
+            return vUTXOProvider == null && isBalanceIndexable(coinSelector);
+        }
+    };
+
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
-    // Used to speed up various calculations.
-    protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
+    // Used to speed up various calculations. Iterates from the highest value to the lowest.
+    protected final HashSet<TransactionOutput> myUnspents = new UnspentOutputSet(balances);
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -180,6 +217,8 @@ public class Wallet extends BaseTaggableObject
 
     // A list of scripts watched by this wallet.
     @GuardedBy("keyChainGroupLock") private Set<Script> watchedScripts;
+    // What the key chain group owns and the watched scripts, which can be looked up without either lock.
+    private final OwnershipIndex ownershipIndex;
 
     protected final Context context;
     protected final NetworkParameters params;
@@ -204,11 +243,26 @@ public class Wallet extends BaseTaggableObject
     // A listener that relays confidence changes from the transaction confidence object to the wallet event listener,
     // as a convenience to API users so they don't have to register on every transaction themselves.
     private TransactionConfidence.Listener txConfidenceListener;
+    // Keeps the history in order when the update time of a transaction is changed from outside the wallet.
+    private Transaction.UpdateTimeListener txUpdateTimeListener;
 
     // If a TX hash appears in this set then notifyNewBestBlock will ignore it, as its confidence was already set up
     // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
     // it sent transactions to the wallet, without this we'd double count.
     private HashSet<Sha256Hash> ignoreNextNewBlock;
+    // Building transactions that notifyNewBestBlock still has something to do for as they get deeper: tell listeners
+    // about the new depth, forget the peers that announced them or, for coinbases, update the balances once they can
+    // be spent. The depth of all building transactions is kept up to date by the TxConfidenceTable, so new blocks
+    // don't touch deeper transactions at all.
+    private HashSet<Transaction> shallowBuilding;
+    // All transactions of the wallet by update time and by height, see getTransactionsByTime and
+    // getTransactionsByHeight. Repositioned whenever their confidence changes, as recorded in confidenceChanged.
+    private TransactionHistory history;
+    // The tables the confidence objects of our transactions come from, which derive their depth from the height of
+    // the best chain we report to them.
+    private HashSet<TxConfidenceTable> confidenceTables;
+    // Depth changes are reported for transactions up to this depth, and for those with depth futures pending.
+    private int depthNotificationLimit;
     // Whether or not to ignore pending transactions that are considered risky by the configured risk analyzer.
     private boolean acceptRiskyTransactions;
     // Object that performs risk analysis of pending transactions. We might reject transactions that seem like
@@ -222,6 +276,8 @@ public class Wallet extends BaseTaggableObject
     private boolean insideReorg;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
     protected volatile WalletFiles vFileManager;
+    // Takes snapshots for saving, so that serialization and disk IO happen without holding the lock.
+    private final WalletSnapshots snapshots = new WalletSnapshots(this);
     // Object that is used to send transactions asynchronously when the wallet requires it.
     protected volatile TransactionBroadcaster vTransactionBroadcaster;
     // UNIX time in seconds. Money controlled by keys created before this time will be automatically respent to a key
@@ -359,6 +415,8 @@ public class Wallet extends BaseTaggableObject
         if (this.keyChainGroup.numKeys() == 0)
             this.keyChainGroup.createAndActivateNewHDChain();
         watchedScripts = Sets.newHashSet();
+        ownershipIndex = this.keyChainGroup.getOwnershipIndex();
+        depthNotificationLimit = context.getEventHorizon();
         unspent = new HashMap<>();
         spent = new HashMap<>();
         pending = new HashMap<>();
@@ -374,9 +432,16 @@ public class Wallet extends BaseTaggableObject
 
     private void createTransientState() {
         ignoreNextNewBlock = new HashSet<>();
+        shallowBuilding = new HashSet<>();
+        history = new TransactionHistory();
+        confidenceTables = new HashSet<>();
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(TransactionConfidence confidence, TransactionConfidence.Listener.ChangeReason reason) {
+                // The confidence may be shared with other wallets, which change the height the transaction appears at
+                // while holding their own lock, so only note that the history may need updating.
+                if (reason == ChangeReason.TYPE)
+                    history.changed(confidence.getTransactionHash());
                 // This will run on the user code thread so we shouldn't do anything too complicated here.
                 // We only want to queue a wallet changed event and auto-save if the number of peers announcing
                 // the transaction has changed, as that confidence change is made by the networking code which
@@ -386,8 +451,10 @@ public class Wallet extends BaseTaggableObject
                 if (reason == ChangeReason.SEEN_PEERS) {
                     lock.lock();
                     try {
-                        checkBalanceFuturesLocked(null);
                         Transaction tx = getTransaction(confidence.getTransactionHash());
+                        if (tx != null)
+                            balances.update(tx);
+                        checkBalanceFuturesLocked(null);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
                     } finally {
@@ -396,6 +463,12 @@ public class Wallet extends BaseTaggableObject
                 }
             }
         };
+        txUpdateTimeListener = new Transaction.UpdateTimeListener() {
+            @Override
+            public void onUpdateTimeChanged(Transaction tx) {
+                history.changed(tx.getHash());
+            }
+        };
         acceptRiskyTransactions = false;
     }
 
@@ -589,6 +662,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.upgradeToDeterministic(vKeyRotationTimestamp, aesKey);
+            balances.invalidate();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -647,6 +721,7 @@ public class Wallet extends BaseTaggableObject
     public boolean removeKey(ECKey key) {
         keyChainGroupLock.lock();
         try {
+            balances.invalidate();
             return keyChainGroup.removeImportedKey(key);
         } finally {
             keyChainGroupLock.unlock();
@@ -716,6 +791,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             result = keyChainGroup.importKeys(keys);
+            balances.invalidate();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -746,6 +822,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             checkNoDeterministicKeys(keys);
+            balances.invalidate();
             return keyChainGroup.importKeysAndEncrypt(keys, aesKey);
         } finally {
             keyChainGroupLock.unlock();
@@ -767,6 +844,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.addAndActivateHDChain(chain);
+            balances.invalidate();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -909,6 +987,8 @@ public class Wallet extends BaseTaggableObject
                 // a script in the wallet with an incorrect creation time.
                 if (watchedScripts.contains(script))
                     watchedScripts.remove(script);
+                else
+                    ownershipIndex.add(OwnershipIndex.SCRIPT, script.getProgram());
                 if (script.getCreationTimeSeconds() == 0)
                     log.warn("Adding a script to the wallet with a creation time of zero, this will disable the checkpointing optimization!    {}", script);
                 watchedScripts.add(script);
@@ -962,6 +1042,7 @@ public class Wallet extends BaseTaggableObject
                     continue;
 
                 watchedScripts.remove(script);
+                ownershipIndex.remove(OwnershipIndex.SCRIPT, script.getProgram());
             }
 
             queueOnScriptsChanged(scripts, false);
@@ -1017,17 +1098,14 @@ public class Wallet extends BaseTaggableObject
 
     @Override
     public boolean isPubKeyHashMine(byte[] pubkeyHash) {
-        return findKeyFromPubHash(pubkeyHash) != null;
+        return ownershipIndex.contains(OwnershipIndex.PUBKEY_HASH, pubkeyHash);
     }
 
     @Override
     public boolean isWatchedScript(Script script) {
-        keyChainGroupLock.lock();
-        try {
-            return watchedScripts.contains(script);
-        } finally {
-            keyChainGroupLock.unlock();
-        }
+        // Most wallets watch no scripts, which spares copying the program.
+        return ownershipIndex.containsAny(OwnershipIndex.SCRIPT)
+                && ownershipIndex.contains(OwnershipIndex.SCRIPT, script.getProgram());
     }
 
     /**
@@ -1047,7 +1125,7 @@ public class Wallet extends BaseTaggableObject
 
     @Override
     public boolean isPubKeyMine(byte[] pubkey) {
-        return findKeyFromPubKey(pubkey) != null;
+        return ownershipIndex.contains(OwnershipIndex.PUBKEY, pubkey);
     }
 
     /**
@@ -1067,7 +1145,7 @@ public class Wallet extends BaseTaggableObject
 
     @Override
     public boolean isPayToScriptHashMine(byte[] payToScriptHash) {
-        return findRedeemDataFromScriptHash(payToScriptHash) != null;
+        return ownershipIndex.contains(OwnershipIndex.SCRIPT_HASH, payToScriptHash);
     }
 
     /**
@@ -1303,38 +1381,58 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
-    /** Saves the wallet first to the given temp file, then renames to the dest file. */
-    public void saveToFile(File temp, File destFile) throws IOException {
-        FileOutputStream stream = null;
-        lock.lock();
+    /** See {@link KeyChainGroup#getSerializationStamp()}. */
+    long getKeyChainGroupSerializationStamp() {
+        keyChainGroupLock.lock();
         try {
-            stream = new FileOutputStream(temp);
-            saveToFileStream(stream);
-            // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
-            // to not write through to physical media for at least a few seconds, but this is the best we can do.
-            stream.flush();
-            stream.getFD().sync();
-            stream.close();
-            stream = null;
-            if (Utils.isWindows()) {
-                // Work around an issue on Windows whereby you can't rename over existing files.
-                File canonical = destFile.getCanonicalFile();
-                if (canonical.exists() && !canonical.delete())
-                    throw new IOException("Failed to delete canonical wallet file for replacement with autosave");
-                if (temp.renameTo(canonical))
-                    return;  // else fall through.
-                throw new IOException("Failed to rename " + temp + " to " + canonical);
-            } else if (!temp.renameTo(destFile)) {
-                throw new IOException("Failed to rename " + temp + " to " + destFile);
-            }
+            return keyChainGroup.getSerializationStamp();
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
+    /** Returns the snapshots the wallet is saved from. */
+    WalletSnapshots getSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * Saves the wallet first to the given temp file, then renames to the dest file. The wallet lock is only held while
+     * taking a snapshot of the wallet, not while it is serialized and written.
+     */
+    public void saveToFile(final File temp, final File destFile) throws IOException {
+        try {
+            snapshots.save(new WalletSnapshots.Writer() {
+                @Override
+                public void write(WalletSnapshots.Snapshot snapshot) throws IOException {
+                    FileOutputStream stream = new FileOutputStream(temp);
+                    try {
+                        snapshot.writeTo(stream);
+                        // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still
+                        // decide to not write through to physical media for at least a few seconds, but this is the
+                        // best we can do.
+                        stream.flush();
+                        stream.getFD().sync();
+                    } finally {
+                        stream.close();
+                    }
+                    if (Utils.isWindows()) {
+                        // Work around an issue on Windows whereby you can't rename over existing files.
+                        File canonical = destFile.getCanonicalFile();
+                        if (canonical.exists() && !canonical.delete())
+                            throw new IOException(
+                                    "Failed to delete canonical wallet file for replacement with autosave");
+                        if (!temp.renameTo(canonical))
+                            throw new IOException("Failed to rename " + temp + " to " + canonical);
+                    } else if (!temp.renameTo(destFile)) {
+                        throw new IOException("Failed to rename " + temp + " to " + destFile);
+                    }
+                }
+            });
         } catch (RuntimeException e) {
             log.error("Failed whilst saving wallet", e);
             throw e;
         } finally {
-            lock.unlock();
-            if (stream != null) {
-                stream.close();
-            }
             if (temp.exists()) {
                 log.warn("Temp file still exists after failed save.");
             }
@@ -1344,9 +1442,15 @@ public class Wallet extends BaseTaggableObject
     /**
      * Uses protobuf serialization to save the wallet to the given file. To learn more about this file format, see
      * {@link WalletProtobufSerializer}. Writes out first to a temporary file in the same directory and then renames
-     * once written.
+     * once written. If the wallet auto-saves to the same file with a journal, the journal is compacted into the file.
      */
     public void saveToFile(File f) throws IOException {
+        WalletFiles files = vFileManager;
+        if (files != null && files.isJournaling(f)) {
+            // A journal would not apply to the file written below, so write it the way the journal expects.
+            files.compactNow();
+            return;
+        }
         File directory = f.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
         saveToFile(temp, f);
@@ -1371,6 +1475,37 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * <p>Sets how deep a transaction may get in the best chain and still have its depth changes reported to confidence
+     * listeners, both those of the wallet and those of the transaction. Defaults to the event horizon of the
+     * {@link Context}. Deeper transactions are only reported on if a future from
+     * {@link TransactionConfidence#getDepthFuture(int)} is pending for them, so that new blocks don't cost time in
+     * proportion to the size of the wallet. Their depth is up to date regardless.</p>
+     *
+     * <p>Note that this property is not serialized.</p>
+     */
+    public void setDepthNotificationLimit(int depthNotificationLimit) {
+        checkArgument(depthNotificationLimit >= 0, "depthNotificationLimit must not be negative");
+        lock.lock();
+        try {
+            this.depthNotificationLimit = depthNotificationLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * See {@link Wallet#setDepthNotificationLimit(int)} for an explanation of this property.
+     */
+    public int getDepthNotificationLimit() {
+        lock.lock();
+        try {
+            return depthNotificationLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * See {@link Wallet#setAcceptRiskyTransactions(boolean)} for an explanation of this property.
      */
@@ -1433,10 +1568,23 @@ public class Wallet extends BaseTaggableObject
      */
     public WalletFiles autosaveToFile(File f, long delayTime, TimeUnit timeUnit,
                                       @Nullable WalletFiles.Listener eventListener) {
+        return autosaveToFile(f, delayTime, timeUnit, eventListener, false);
+    }
+
+    /**
+     * <p>Sets up the wallet to auto-save itself to the given file, like
+     * {@link #autosaveToFile(File, long, TimeUnit, WalletFiles.Listener)}. If {@code journaled} is true, the file is
+     * only written in full once at first. After that, saves append what changed to a journal next to the file, which
+     * is much cheaper for large wallets, and the journal is compacted into the file on the background thread once it
+     * has grown large. {@link #loadFromFile(File, WalletExtension...)} applies the journal when loading the file.
+     * The event listener is only called when the file itself is written.</p>
+     */
+    public WalletFiles autosaveToFile(File f, long delayTime, TimeUnit timeUnit,
+                                      @Nullable WalletFiles.Listener eventListener, boolean journaled) {
         lock.lock();
         try {
             checkState(vFileManager == null, "Already auto saving this wallet.");
-            WalletFiles manager = new WalletFiles(this, f, delayTime, timeUnit);
+            WalletFiles manager = new WalletFiles(this, f, delayTime, timeUnit, journaled);
             if (eventListener != null)
                 manager.setListener(eventListener);
             vFileManager = manager;
@@ -1490,15 +1638,16 @@ public class Wallet extends BaseTaggableObject
 
     /**
      * Uses protobuf serialization to save the wallet to the given file stream. To learn more about this file format, see
-     * {@link WalletProtobufSerializer}.
+     * {@link WalletProtobufSerializer}. The wallet lock is only held while taking a snapshot of the wallet, not while
+     * it is serialized and written.
      */
-    public void saveToFileStream(OutputStream f) throws IOException {
-        lock.lock();
-        try {
-            new WalletProtobufSerializer().writeWallet(this, f);
-        } finally {
-            lock.unlock();
-        }
+    public void saveToFileStream(final OutputStream f) throws IOException {
+        snapshots.save(new WalletSnapshots.Writer() {
+            @Override
+            public void write(WalletSnapshots.Snapshot snapshot) throws IOException {
+                snapshot.writeTo(f);
+            }
+        });
     }
 
     /** Returns the parameters this wallet was created with. */
@@ -1519,6 +1668,8 @@ public class Wallet extends BaseTaggableObject
      * @param walletExtensions extensions possibly added to the wallet.
      */
     public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        if (WalletJournal.getJournalFile(file).exists())
+            return loadFromJournal(file, walletExtensions);
         try {
             FileInputStream stream = null;
             try {
@@ -1586,6 +1737,18 @@ public class Wallet extends BaseTaggableObject
                     throw new IllegalStateException("Inconsistent spent tx: " + tx.getHashAsString());
                 }
             }
+
+            if (!insideReorg && balances.isUsable()) {
+                updateBalanceIndex();
+                BalanceIndex.Snapshot indexed = balances.current();
+                for (BalanceType type : BalanceType.values()) {
+                    Coin calculated = calculateBalance(type);
+                    if (!indexed.get(type).equals(calculated))
+                        throw new IllegalStateException("Inconsistent " + type + " balance: " +
+                                indexed.get(type).toFriendlyString() + " indexed, " + calculated.toFriendlyString() +
+                                " calculated");
+                }
+            }
         } finally {
             lock.unlock();
         }
@@ -1615,6 +1778,23 @@ public class Wallet extends BaseTaggableObject
         return isActuallySpent == isSpent;
     }
 
+    // Loads a wallet file that was saved with a journal, see autosaveToFile().
+    private static Wallet loadFromJournal(File file, @Nullable WalletExtension[] walletExtensions)
+            throws UnreadableWalletException {
+        Wallet wallet;
+        try {
+            wallet = new WalletProtobufSerializer().readWallet(WalletJournal.read(file), false, walletExtensions);
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not open file", e);
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            throw new UnreadableWalletException("Could not parse wallet journal", e);
+        }
+        if (!wallet.isConsistent()) {
+            log.error("Loaded an inconsistent wallet");
+        }
+        return wallet;
+    }
+
     /** Returns a wallet deserialized from the given input stream and wallet extensions. */
     public static Wallet loadFromFileStream(InputStream stream, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
         Wallet wallet = new WalletProtobufSerializer().readWallet(stream, walletExtensions);
@@ -2098,8 +2278,13 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void informConfidenceListenersIfNotReorganizing() {
+        for (Transaction tx : confidenceChanged.keySet()) {
+            maybeAddShallowBuilding(tx);
+            history.updateIfPresent(tx);
+        }
         if (insideReorg)
             return;
+        updateBalanceIndex();
         for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
             final Transaction tx = entry.getKey();
             tx.getConfidence().queueListeners(entry.getValue());
@@ -2128,30 +2313,59 @@ public class Wallet extends BaseTaggableObject
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getHash())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // increment the tx confidence depth twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getHash());
-                } else {
-                    TransactionConfidence confidence = tx.getConfidence();
-                    if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
-                        // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go
-                        // pending again. We could clear this data the moment a tx is seen in the block chain, but
-                        // in cases where the chain re-orgs, this would mean that wallets would perceive a newly
-                        // pending tx has zero confidence at all, which would not be right: we expect it to be
-                        // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
-                        // but this way is backwards compatible with existing software, and the new state probably
-                        // wouldn't mean anything different to just remembering peers anyway.
-                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon())
-                            confidence.clearBroadcastBy();
-                        confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-                    }
+            // Transactions that became building since the last block, or got shallower in a re-org.
+            for (Transaction tx : confidenceChanged.keySet()) {
+                maybeAddShallowBuilding(tx);
+                history.updateIfPresent(tx);
+            }
+            // Makes all the BUILDING transactions one block deeper, unless another wallet has reported a block with
+            // as much work already.
+            for (TxConfidenceTable table : confidenceTables)
+                table.newBestBlock(block);
+            // Transactions in ignoreNextNewBlock were already processed in receive() due to them appearing in this
+            // block, so their depth is one.
+            for (Sha256Hash hash : ignoreNextNewBlock) {
+                Transaction tx = transactions.get(hash);
+                if (tx != null && tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING)
+                    tx.getConfidence().setDepthInBlocks(1);
+            }
+            Set<Transaction> notify = new HashSet<>();
+            int eventHorizon = context.getEventHorizon();
+            int shallowLimit = getShallowDepthLimit();
+            for (Iterator<Transaction> it = shallowBuilding.iterator(); it.hasNext();) {
+                Transaction tx = it.next();
+                TransactionConfidence confidence = tx.getConfidence();
+                int depth = confidence.getDepthInBlocks();
+                if (confidence.getConfidenceType() != ConfidenceType.BUILDING || !transactions.containsKey(tx.getHash())
+                        || depth > shallowLimit) {
+                    it.remove();
+                    continue;
+                }
+                // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go pending again.
+                // We could clear this data the moment a tx is seen in the block chain, but in cases where the chain
+                // re-orgs, this would mean that wallets would perceive a newly pending tx has zero confidence at all,
+                // which would not be right: we expect it to be included once again. We could have a separate
+                // was-in-chain-and-now-isn't confidence type but this way is backwards compatible with existing
+                // software, and the new state probably wouldn't mean anything different to just remembering peers
+                // anyway.
+                if (depth > eventHorizon)
+                    confidence.clearBroadcastBy();
+                if (depth <= depthNotificationLimit || (tx.isCoinBase() && depth <= params.getSpendableCoinbaseDepth()))
+                    notify.add(tx);
+            }
+            for (TxConfidenceTable table : confidenceTables) {
+                for (TransactionConfidence confidence : table.getDepthSubscriptions()) {
+                    Transaction tx = transactions.get(confidence.getTransactionHash());
+                    if (tx != null && tx.getConfidence() == confidence
+                            && confidence.getConfidenceType() == ConfidenceType.BUILDING)
+                        notify.add(tx);
                 }
             }
+            for (Transaction tx : notify) {
+                if (!ignoreNextNewBlock.contains(tx.getHash()))
+                    confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+            }
+            ignoreNextNewBlock.clear();
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
@@ -2714,7 +2928,7 @@ public class Wallet extends BaseTaggableObject
             if (registration.executor == Threading.SAME_THREAD) {
                 registration.listener.onTransactionConfidenceChanged(this, tx);
             } else {
-                registration.executor.execute(new Runnable() {
+                Threading.execute(registration.executor, this, Arrays.asList(registration, tx), new Runnable() {
                     @Override
                     public void run() {
                         registration.listener.onTransactionConfidenceChanged(Wallet.this, tx);
@@ -2731,7 +2945,7 @@ public class Wallet extends BaseTaggableObject
         checkState(onWalletChangedSuppressions >= 0);
         if (onWalletChangedSuppressions > 0) return;
         for (final ListenerRegistration<WalletChangeEventListener> registration : changeListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.execute(registration.executor, this, registration, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onWalletChanged(Wallet.this);
@@ -2743,7 +2957,7 @@ public class Wallet extends BaseTaggableObject
     protected void queueOnCoinsReceived(final Transaction tx, final Coin balance, final Coin newBalance) {
         checkState(lock.isHeldByCurrentThread());
         for (final ListenerRegistration<WalletCoinsReceivedEventListener> registration : coinsReceivedListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.execute(registration.executor, this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onCoinsReceived(Wallet.this, tx, balance, newBalance);
@@ -2755,7 +2969,7 @@ public class Wallet extends BaseTaggableObject
     protected void queueOnCoinsSent(final Transaction tx, final Coin prevBalance, final Coin newBalance) {
         checkState(lock.isHeldByCurrentThread());
         for (final ListenerRegistration<WalletCoinsSentEventListener> registration : coinsSentListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.execute(registration.executor, this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onCoinsSent(Wallet.this, tx, prevBalance, newBalance);
@@ -2768,7 +2982,7 @@ public class Wallet extends BaseTaggableObject
         checkState(lock.isHeldByCurrentThread());
         checkState(insideReorg);
         for (final ListenerRegistration<WalletReorganizeEventListener> registration : reorganizeListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.execute(registration.executor, this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onReorganize(Wallet.this);
@@ -2779,7 +2993,7 @@ public class Wallet extends BaseTaggableObject
 
     protected void queueOnScriptsChanged(final List<Script> scripts, final boolean isAddingScripts) {
         for (final ListenerRegistration<ScriptsChangeEventListener> registration : scriptChangeListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.execute(registration.executor, this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onScriptsChanged(Wallet.this, scripts, isAddingScripts);
@@ -2801,12 +3015,11 @@ public class Wallet extends BaseTaggableObject
     public Set<Transaction> getTransactions(boolean includeDead) {
         lock.lock();
         try {
-            Set<Transaction> all = new HashSet<>();
-            all.addAll(unspent.values());
-            all.addAll(spent.values());
-            all.addAll(pending.values());
-            if (includeDead)
-                all.addAll(dead.values());
+            // The transactions map holds all pools, so the set can be sized once and filled without duplicates.
+            Set<Transaction> all = new HashSet<>(Math.max(16, (int) (transactions.size() / .75f) + 1));
+            for (Transaction tx : transactions.values())
+                if (includeDead || !dead.containsKey(tx.getHash()))
+                    all.add(tx);
             return all;
         } finally {
             lock.unlock();
@@ -2845,6 +3058,8 @@ public class Wallet extends BaseTaggableObject
     public void addWalletTransaction(WalletTransaction wtx) {
         lock.lock();
         try {
+            // The confidence of transactions being loaded may not be known yet.
+            balances.invalidate();
             addWalletTransaction(wtx.getPool(), wtx.getTransaction());
         } finally {
             lock.unlock();
@@ -2857,6 +3072,7 @@ public class Wallet extends BaseTaggableObject
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
         transactions.put(tx.getHash(), tx);
+        history.add(tx);
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getHash(), tx) == null);
@@ -2882,6 +3098,24 @@ public class Wallet extends BaseTaggableObject
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(Threading.SAME_THREAD, txConfidenceListener);
+        tx.addUpdateTimeListener(txUpdateTimeListener);
+        TxConfidenceTable table = tx.getConfidence().getTable();
+        if (table != null)
+            confidenceTables.add(table);
+        maybeAddShallowBuilding(tx);
+    }
+
+    private void maybeAddShallowBuilding(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() == ConfidenceType.BUILDING
+                && confidence.getDepthInBlocks() <= getShallowDepthLimit())
+            shallowBuilding.add(tx);
+    }
+
+    // Up to this depth notifyNewBestBlock may have to do something for a building transaction, see shallowBuilding.
+    private int getShallowDepthLimit() {
+        return Math.max(Math.max(depthNotificationLimit, context.getEventHorizon() + 1),
+                params.getSpendableCoinbaseDepth());
     }
 
     /**
@@ -2894,33 +3128,82 @@ public class Wallet extends BaseTaggableObject
     /**
      * <p>Returns an list of N transactions, ordered by increasing age. Transactions on side chains are not included.
      * Dead transactions (overridden by double spends) are optionally included.</p>
-     * <p>Note: the current implementation is O(num transactions in wallet). Regardless of how many transactions are
-     * requested, the cost is always the same. In future, requesting smaller numbers of transactions may be faster
-     * depending on how the wallet is implemented (eg if backed by a database).</p>
+     * <p>Note: the transactions are kept ordered by update time, so the cost is in the number of transactions
+     * requested rather than in the number of transactions in the wallet. To page through the history, see
+     * {@link #getTransactionsByTime(Date, Date, HistoryPage.Cursor, int, boolean)}.</p>
      */
     public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
         lock.lock();
         try {
             checkArgument(numTransactions >= 0);
-            // Firstly, put all transactions into an array.
             int size = unspent.size() + spent.size() + pending.size();
             if (numTransactions > size || numTransactions == 0) {
                 numTransactions = size;
             }
-            ArrayList<Transaction> all = new ArrayList<>(getTransactions(includeDead));
-            // Order by update time.
-            Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
-            if (numTransactions == all.size()) {
-                return all;
-            } else {
-                all.subList(numTransactions, all.size()).clear();
-                return all;
-            }
+            if (numTransactions == 0)
+                return new ArrayList<>();
+            updateHistory();
+            return new ArrayList<>(history.page(TransactionHistory.Order.TIME, Long.MAX_VALUE, Long.MIN_VALUE, null,
+                    numTransactions, includeDead ? null : dead).getTransactions());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Returns a page of the transactions updated in the given time window, most recent first, in the order of
+     * {@link Transaction#SORT_TX_BY_UPDATE_TIME}. Dead transactions (overridden by double spends) are optionally
+     * included.</p>
+     *
+     * <p>To get the next page, pass the cursor of this one with the same window. Pages are read from an index kept
+     * by the wallet, so a page costs about as much as the transactions on it, however many the wallet has.</p>
+     *
+     * @param since the oldest update time to include, or null for no limit
+     * @param until the most recent update time to include, or null for no limit
+     * @param after the cursor of the previous page, or null for the first page
+     * @param pageSize the maximum number of transactions on the page, must be positive
+     */
+    public HistoryPage getTransactionsByTime(@Nullable Date since, @Nullable Date until,
+                                             @Nullable HistoryPage.Cursor after, int pageSize, boolean includeDead) {
+        lock.lock();
+        try {
+            updateHistory();
+            return history.page(TransactionHistory.Order.TIME, until != null ? until.getTime() : Long.MAX_VALUE,
+                    since != null ? since.getTime() : Long.MIN_VALUE, after, pageSize, includeDead ? null : dead);
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * <p>Returns a page of the transactions that appear in the best chain between the given heights, both inclusive,
+     * highest first, in the order of {@link Transaction#SORT_TX_BY_HEIGHT}. Pending and dead transactions and those
+     * only in side chains have no height and aren't included.</p>
+     *
+     * <p>To get the next page, pass the cursor of this one with the same heights. A page costs about as much as the
+     * transactions on it, however many the wallet has.</p>
+     *
+     * @param after the cursor of the previous page, or null for the first page
+     * @param pageSize the maximum number of transactions on the page, must be positive
+     */
+    public HistoryPage getTransactionsByHeight(int minHeight, int maxHeight, @Nullable HistoryPage.Cursor after,
+                                               int pageSize) {
+        lock.lock();
+        try {
+            updateHistory();
+            return history.page(TransactionHistory.Order.HEIGHT, maxHeight, minHeight, after, pageSize, null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Confidence changes are applied to the history when listeners are told about them, which may not have happened
+    // yet, for example during a re-org.
+    private void updateHistory() {
+        for (Transaction tx : confidenceChanged.keySet())
+            history.updateIfPresent(tx);
+    }
+
     /**
      * Returns a transaction object given its hash, if it exists in this wallet, or null otherwise.
      */
@@ -2998,8 +3281,13 @@ public class Wallet extends BaseTaggableObject
         spent.clear();
         pending.clear();
         dead.clear();
+        for (Transaction tx : transactions.values())
+            tx.removeUpdateTimeListener(txUpdateTimeListener);
         transactions.clear();
+        history.clear();
         myUnspents.clear();
+        shallowBuilding.clear();
+        confidenceTables.clear();
     }
 
     /**
@@ -3058,6 +3346,8 @@ public class Wallet extends BaseTaggableObject
 
                         i.remove();
                         transactions.remove(tx.getHash());
+                        history.remove(tx);
+                        tx.removeUpdateTimeListener(txUpdateTimeListener);
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -3480,6 +3770,24 @@ public class Wallet extends BaseTaggableObject
      * Returns the balance of this wallet as calculated by the provided balanceType.
      */
     public Coin getBalance(BalanceType balanceType) {
+        // The totals published after the last change don't need the lock, unless we are in the middle of a change.
+        BalanceIndex.Snapshot snapshot = balances.getSnapshot();
+        boolean changing = lock.isHeldByCurrentThread();
+        if (snapshot != null && !changing)
+            return snapshot.get(balanceType);
+        lock.lock();
+        try {
+            if (insideReorg || !balances.isUsable())
+                return calculateBalance(balanceType);
+            updateBalanceIndex();
+            return (changing ? balances.current() : balances.publish()).get(balanceType);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Walks all spend candidates to calculate the balance, which is what the balance index keeps track of.
+    private Coin calculateBalance(BalanceType balanceType) {
         lock.lock();
         try {
             if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
@@ -3499,6 +3807,24 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    // Brings the balance index up to date with the confidence changes that listeners haven't been told about yet. Of
+    // the depth changes, only those of coinbases can settle outputs.
+    private void updateBalanceIndex() {
+        checkState(lock.isHeldByCurrentThread());
+        for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
+            Transaction tx = entry.getKey();
+            if (entry.getValue() != TransactionConfidence.Listener.ChangeReason.DEPTH || tx.isCoinBase())
+                balances.update(tx);
+        }
+    }
+
+    // Only the built-in selectors pick every output for which shouldSelect is true when asked for all money, so for
+    // other selectors the AVAILABLE balance can't be known without running them.
+    private static boolean isBalanceIndexable(CoinSelector selector) {
+        return selector.getClass() == DefaultCoinSelector.class
+                || selector.getClass() == AllowUnconfirmedCoinSelector.class;
+    }
+
     /**
      * Returns the balance that would be considered spendable by the given coin selector, including watched outputs
      * (i.e. balance includes outputs we don't have the private keys for). Just asks it to select as many coins as
@@ -4096,7 +4422,8 @@ public class Wallet extends BaseTaggableObject
     /**
      * Returns a list of all outputs that are being tracked by this wallet either from the {@link UTXOProvider}
      * (in this case the existence or not of private keys is ignored), or the wallets internal storage (the default)
-     * taking into account the flags.
+     * taking into account the flags. Outputs from the wallet's internal storage are returned from the highest value to
+     * the lowest.
      *
      * @param excludeImmatureCoinbases Whether to ignore coinbase outputs that we will be able to spend in future once they mature.
      * @param excludeUnsignable Whether to ignore outputs that we are tracking but don't have the keys to sign for.
@@ -4236,6 +4563,7 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             this.coinSelector = checkNotNull(coinSelector);
+            balances.invalidate();
         } finally {
             lock.unlock();
         }
@@ -4277,6 +4605,7 @@ public class Wallet extends BaseTaggableObject
         try {
             checkArgument(provider == null || provider.getParams().equals(params));
             this.vUTXOProvider = provider;
+            balances.invalidate();
         } finally {
             lock.unlock();
         }
@@ -4383,6 +4712,8 @@ public class Wallet extends BaseTaggableObject
             checkState(confidenceChanged.size() == 0);
             checkState(!insideReorg);
             insideReorg = true;
+            // Almost anything can change, so the balances are calculated again from scratch afterwards.
+            balances.invalidate();
             checkState(onWalletChangedSuppressions == 0);
             onWalletChangedSuppressions++;
 
@@ -4653,6 +4984,28 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Returns the data {@link #getBloomFilter(int, double, long)} inserts into the filter, so that transactions can be
+     * matched against it exactly.
+     */
+    List<byte[]> getBloomFilterElements() {
+        beginBloomFilterCalculation();
+        try {
+            List<byte[]> elements = keyChainGroup.getBloomFilterElements();
+            for (Script script : watchedScripts) {
+                for (ScriptChunk chunk : script.getChunks()) {
+                    if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH)
+                        elements.add(chunk.data);
+                }
+            }
+            for (TransactionOutPoint point : bloomOutPoints)
+                elements.add(point.unsafeBitcoinSerialize());
+            return elements;
+        } finally {
+            endBloomFilterCalculation();
+        }
+    }
+
     // Returns true if the output is one that won't be selected by a data element matching in the scriptSig.
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
         Script script = out.getScriptPubKey();
@@ -4799,6 +5152,11 @@ public class Wallet extends BaseTaggableObject
         checkState(lock.isHeldByCurrentThread());
         FeeCalculation result;
         Coin fee = Coin.ZERO;
+        CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
+        // Selection runs again for every fee that is tried. The default selectors are handed their candidates sorted
+        // once up front, so they don't sort them again each time.
+        DefaultCoinSelector.SortedCandidates sorted = selector instanceof DefaultCoinSelector ?
+                ((DefaultCoinSelector) selector).sortedCopy(candidates) : null;
         while (true) {
             result = new FeeCalculation();
             Transaction tx = new Transaction(params);
@@ -4829,9 +5187,9 @@ public class Wallet extends BaseTaggableObject
                 }
                 tx.addOutput(output);
             }
-            CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
             // selector is allowed to modify candidates list.
-            CoinSelection selection = selector.select(valueNeeded, new LinkedList<>(candidates));
+            CoinSelection selection = selector.select(valueNeeded,
+                    sorted != null ? sorted.copy() : new ArrayList<>(candidates));
             result.bestCoinSelection = selection;
             // Can we afford this?
             if (selection.valueGathered.compareTo(valueNeeded) < 0) {
@@ -5115,6 +5473,7 @@ public class Wallet extends BaseTaggableObject
                 log.info(" ... no non-rotating random keys available, generating entirely new HD tree: backup required after this.");
                 keyChainGroup.createAndActivateNewHDChain();
             }
+            balances.invalidate();
             saveNow();
         }
 
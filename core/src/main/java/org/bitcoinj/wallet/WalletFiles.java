@@ -47,6 +47,9 @@ public class WalletFiles {
     private final long delay;
     private final TimeUnit delayTimeUnit;
     private final Callable<Void> saver;
+    @Nullable private final WalletJournal journal;
+    private final AtomicBoolean compactionPending;
+    private final Callable<Void> compactor;
 
     private volatile Listener vListener;
 
@@ -72,6 +75,17 @@ public class WalletFiles {
      * depending on the urgency of the changes.
      */
     public WalletFiles(final Wallet wallet, File file, long delay, TimeUnit delayTimeUnit) {
+        this(wallet, file, delay, delayTimeUnit, false);
+    }
+
+    /**
+     * Initialize atomic and optionally delayed writing of the wallet file to disk. If {@code journaled} is true, saves
+     * append the changes to a journal next to the wallet file instead of rewriting it, and the journal is compacted
+     * into the wallet file in the background once it has grown large. Such a wallet file must be loaded with
+     * {@link Wallet#loadFromFile(File, WalletExtension...)}, which applies the journal. The listener is only called
+     * when the wallet file itself is written.
+     */
+    public WalletFiles(final Wallet wallet, File file, long delay, TimeUnit delayTimeUnit, boolean journaled) {
         // An executor that starts up threads when needed and shuts them down later.
         this.executor = new ScheduledThreadPoolExecutor(1, new ContextPropagatingThreadFactory("Wallet autosave thread", Thread.MIN_PRIORITY));
         this.executor.setKeepAliveTime(5, TimeUnit.SECONDS);
@@ -83,6 +97,8 @@ public class WalletFiles {
         this.savePending = new AtomicBoolean();
         this.delay = delay;
         this.delayTimeUnit = checkNotNull(delayTimeUnit);
+        this.journal = journaled ? new WalletJournal(wallet, file) : null;
+        this.compactionPending = new AtomicBoolean();
 
         this.saver = new Callable<Void>() {
             @Override public Void call() throws Exception {
@@ -100,6 +116,15 @@ public class WalletFiles {
                 return null;
             }
         };
+        this.compactor = new Callable<Void>() {
+            @Override public Void call() throws Exception {
+                // Runs in an auto save thread.
+                if (!compactionPending.getAndSet(false))
+                    return null;
+                compactNow();
+                return null;
+            }
+        };
     }
 
     /**
@@ -111,8 +136,9 @@ public class WalletFiles {
 
     /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
     public void saveNow() throws IOException {
-        // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
-        // but they will serialize (using different temp files).
+        // Can be called by any thread. The wallet is only locked whilst taking a snapshot of it, so we can have two
+        // saves in flight, but they write one after the other in the order they took their snapshots (using
+        // different temp files).
         Date lastBlockSeenTime = wallet.getLastBlockSeenTime();
         log.info("Saving wallet; last seen block is height {}, date {}, hash {}", wallet.getLastBlockSeenHeight(),
                 lastBlockSeenTime != null ? Utils.dateTimeFormat(lastBlockSeenTime) : "unknown",
@@ -121,6 +147,12 @@ public class WalletFiles {
     }
 
     private void saveNowInternal() throws IOException {
+        if (journal != null) {
+            journal.save(vListener);
+            if (journal.isCompactionDue() && !compactionPending.getAndSet(true))
+                executor.submit(compactor);
+            return;
+        }
         final Stopwatch watch = Stopwatch.createStarted();
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
@@ -131,7 +163,23 @@ public class WalletFiles {
         if (listener != null)
             listener.onAfterAutoSave(file);
         watch.stop();
-        log.info("Save completed in {}", watch);
+        log.info("Save completed in {}, wallet locked for {} µs", watch,
+                wallet.getSnapshots().getLastLockHeldNanos() / 1000);
+    }
+
+    /**
+     * Rewrites the wallet file completely and, if journaling, starts a new journal. Runs on the current thread.
+     */
+    public void compactNow() throws IOException {
+        if (journal != null)
+            journal.compact(vListener);
+        else
+            saveNowInternal();
+    }
+
+    /** Returns whether saves are appended to a journal, and the given file is the wallet file. */
+    boolean isJournaling(File file) {
+        return journal != null && this.file.getAbsoluteFile().equals(file.getAbsoluteFile());
     }
 
     /** Queues up a save in the background. Useful for not very important wallet changes. */
@@ -0,0 +1,658 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerFilterProvider;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.core.listeners.OnTransactionBroadcastListener;
+import org.bitcoinj.core.listeners.ReorganizeListener;
+import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptChunk;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.bitcoinj.wallet.listeners.ScriptsChangeEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+import com.google.protobuf.ByteString;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Hosts many wallets on one block chain and peer group. Adding thousands of wallets to a chain directly means every
+ * transaction of every block is handed to every wallet, and a peer group merges thousands of Bloom filters. The host
+ * instead keeps one index of the data its wallets own, the same data their Bloom filters hold, and hands each
+ * transaction only to the wallets owning data it matches. The index serves as the one filter the peer group
+ * downloads blocks with.</p>
+ *
+ * <p>Wallets are spread over shards, each with a thread of its own, so that wallets on different shards process a
+ * block in parallel. The transactions of a block are handed to the shards as they arrive, and the host waits for
+ * all of them once the block becomes the best block or a re-org happens.</p>
+ *
+ * <p>Register the host with {@link #addTo(AbstractBlockChain)} and {@link #addTo(PeerGroup)}, instead of adding its
+ * wallets to the chain and peer group. Pending transactions are handed to the wallets without downloading their
+ * dependencies.</p>
+ */
+public class WalletHost implements NewBestBlockListener, ReorganizeListener, TransactionReceivedInBlockListener,
+        PeerFilterProvider, OnTransactionBroadcastListener {
+    private static final Logger log = LoggerFactory.getLogger(WalletHost.class);
+
+    protected final ReentrantLock lock = Threading.lock("wallethost");
+
+    private final ExecutorService[] shards;
+    private final List<List<Wallet>> shardWallets = new ArrayList<>();
+    private final Map<Wallet, Integer> walletShards = new HashMap<>();
+    private final Map<Wallet, ChangeListener> changeListeners = new HashMap<>();
+
+    // The data the wallets own: keys, script hashes, watched script data, the outpoints of their outputs and the
+    // outpoints spent by their pending transactions. Each is mapped to the wallets owning it.
+    private final SetMultimap<ByteString, Wallet> owners = HashMultimap.create();
+    private final Map<Wallet, Set<ByteString>> ownedData = new HashMap<>();
+    // Pending transactions, which blocks may only refer to by hash, mapped to the wallets that have them.
+    private final SetMultimap<Sha256Hash, Wallet> pendingOwners = HashMultimap.create();
+    private final Map<Wallet, Set<Sha256Hash>> ownedPending = new HashMap<>();
+    // Wallets whose owned data may have changed since they were last indexed.
+    private final Set<Wallet> changed = Collections.newSetFromMap(new ConcurrentHashMap<Wallet, Boolean>());
+    // Transactions handed to the shards that haven't been waited for yet.
+    private final List<Future<Void>> inFlight = new ArrayList<>();
+    @Nullable private volatile PeerGroup peerGroup;
+
+    /** Creates a host that processes wallets on as many shards as there are processors. */
+    public WalletHost() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates a host that processes wallets on the given number of shards, each of which has a thread. */
+    public WalletHost(int numShards) {
+        checkArgument(numShards > 0, "numShards must be positive");
+        shards = new ExecutorService[numShards];
+        for (int i = 0; i < numShards; i++) {
+            shards[i] = Executors.newSingleThreadExecutor(new ContextPropagatingThreadFactory("Wallet host shard " + i));
+            shardWallets.add(new ArrayList<Wallet>());
+        }
+    }
+
+    /** Makes the wallets of this host receive the blocks of the given chain. */
+    public void addTo(AbstractBlockChain chain) {
+        chain.addNewBestBlockListener(Threading.SAME_THREAD, this);
+        chain.addReorganizeListener(Threading.SAME_THREAD, this);
+        chain.addTransactionReceivedListener(Threading.SAME_THREAD, this);
+    }
+
+    /**
+     * Makes the wallets of this host receive the pending transactions of the given peer group and broadcast through
+     * it, and makes the peer group filter blocks for them.
+     */
+    public void addTo(PeerGroup peerGroup) {
+        lock.lock();
+        try {
+            checkState(this.peerGroup == null, "Already added to a peer group");
+            this.peerGroup = peerGroup;
+            for (Wallet wallet : walletShards.keySet())
+                wallet.setTransactionBroadcaster(peerGroup);
+        } finally {
+            lock.unlock();
+        }
+        peerGroup.addOnTransactionBroadcastListener(Threading.SAME_THREAD, this);
+        peerGroup.addPeerFilterProvider(this);
+    }
+
+    /** Adds a wallet to the host, on the shard with the fewest wallets. */
+    public void addWallet(Wallet wallet) {
+        lock.lock();
+        try {
+            checkState(!walletShards.containsKey(wallet), "Wallet already hosted");
+            int shard = 0;
+            for (int i = 1; i < shards.length; i++)
+                if (shardWallets.get(i).size() < shardWallets.get(shard).size())
+                    shard = i;
+            walletShards.put(wallet, shard);
+            shardWallets.get(shard).add(wallet);
+            ChangeListener listener = new ChangeListener(wallet);
+            changeListeners.put(wallet, listener);
+            wallet.addKeyChainEventListener(Threading.SAME_THREAD, listener);
+            wallet.addScriptChangeEventListener(Threading.SAME_THREAD, listener);
+            wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, listener);
+            wallet.addCoinsSentEventListener(Threading.SAME_THREAD, listener);
+            if (peerGroup != null)
+                wallet.setTransactionBroadcaster(peerGroup);
+            index(wallet);
+        } finally {
+            lock.unlock();
+        }
+        maybeRecalculateFilter(true);
+    }
+
+    /** Removes a wallet from the host. Returns false if it wasn't hosted. */
+    public boolean removeWallet(Wallet wallet) {
+        lock.lock();
+        try {
+            Integer shard = walletShards.remove(wallet);
+            if (shard == null)
+                return false;
+            // The shards may be processing the wallet, which must finish before it goes.
+            awaitInFlight();
+            shardWallets.get(shard).remove(wallet);
+            ChangeListener listener = changeListeners.remove(wallet);
+            wallet.removeKeyChainEventListener(listener);
+            wallet.removeScriptChangeEventListener(listener);
+            wallet.removeCoinsReceivedEventListener(listener);
+            wallet.removeCoinsSentEventListener(listener);
+            changed.remove(wallet);
+            unindex(wallet);
+            return true;
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the wallets of this host. */
+    public List<Wallet> getWallets() {
+        lock.lock();
+        try {
+            List<Wallet> wallets = new ArrayList<>();
+            for (List<Wallet> shard : shardWallets)
+                wallets.addAll(shard);
+            return wallets;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of distinct items in the index, which is also the number of elements of the filter. */
+    public int getIndexSize() {
+        lock.lock();
+        try {
+            return owners.keySet().size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops the threads of the shards, once they have finished what they have been given. */
+    public void shutdown() {
+        for (ExecutorService shard : shards)
+            shard.shutdown();
+    }
+
+    //region Block chain
+
+    @Override
+    public void receiveFromBlock(Transaction tx, StoredBlock block, BlockChain.NewBlockType blockType,
+                                 int relativityOffset) throws VerificationException {
+        Map<Wallet, Transaction> copies;
+        lock.lock();
+        try {
+            if (inFlight.isEmpty())
+                reindexChanged();
+            Set<Wallet> txOwners = findOwners(tx);
+            if (txOwners.isEmpty())
+                return;
+            // Transactions spending this one later in the same block need to be found before the wallets have
+            // processed it.
+            for (TransactionOutput output : tx.getOutputs()) {
+                ByteString outPoint = ByteString.copyFrom(output.getOutPointFor().unsafeBitcoinSerialize());
+                for (Wallet wallet : txOwners)
+                    addOwned(wallet, outPoint);
+            }
+            copies = copies(tx, txOwners);
+        } finally {
+            lock.unlock();
+        }
+        final StoredBlock storedBlock = block;
+        final BlockChain.NewBlockType type = blockType;
+        final int offset = relativityOffset;
+        submitPerShard(copies, new WalletTask() {
+            @Override
+            public void run(Wallet wallet, Transaction tx) throws VerificationException {
+                wallet.receiveFromBlock(tx, storedBlock, type, offset);
+            }
+        });
+    }
+
+    @Override
+    public boolean notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block,
+                                              BlockChain.NewBlockType blockType,
+                                              int relativityOffset) throws VerificationException {
+        Map<Wallet, Transaction> wallets = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            if (inFlight.isEmpty())
+                reindexChanged();
+            for (Wallet wallet : pendingOwners.get(txHash))
+                wallets.put(wallet, null);
+        } finally {
+            lock.unlock();
+        }
+        if (wallets.isEmpty())
+            return false;
+        final Sha256Hash hash = txHash;
+        final StoredBlock storedBlock = block;
+        final BlockChain.NewBlockType type = blockType;
+        final int offset = relativityOffset;
+        submitPerShard(wallets, new WalletTask() {
+            @Override
+            public void run(Wallet wallet, Transaction tx) throws VerificationException {
+                wallet.notifyTransactionIsInBlock(hash, storedBlock, type, offset);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void notifyNewBestBlock(final StoredBlock block) throws VerificationException {
+        runOnAllWallets(new WalletTask() {
+            @Override
+            public void run(Wallet wallet, Transaction tx) throws VerificationException {
+                wallet.notifyNewBestBlock(block);
+            }
+        });
+    }
+
+    @Override
+    public void reorganize(final StoredBlock splitPoint, final List<StoredBlock> oldBlocks,
+                           final List<StoredBlock> newBlocks) throws VerificationException {
+        runOnAllWallets(new WalletTask() {
+            @Override
+            public void run(Wallet wallet, Transaction tx) throws VerificationException {
+                wallet.reorganize(splitPoint, oldBlocks, newBlocks);
+            }
+        });
+    }
+
+    // Waits for the transactions handed to the shards, then runs the task for every wallet on its shard and waits for
+    // that too.
+    private void runOnAllWallets(WalletTask task) throws VerificationException {
+        boolean grown;
+        lock.lock();
+        try {
+            awaitInFlight();
+            Map<Wallet, Transaction> wallets = new LinkedHashMap<>();
+            for (List<Wallet> shard : shardWallets)
+                for (Wallet wallet : shard)
+                    wallets.put(wallet, null);
+            submitPerShard(wallets, task);
+            awaitInFlight();
+            grown = reindexChanged();
+        } finally {
+            lock.unlock();
+        }
+        maybeRecalculateFilter(grown);
+    }
+
+    //endregion
+
+    //region Pending transactions
+
+    @Override
+    public void onTransaction(Peer peer, Transaction tx) {
+        Map<Wallet, Transaction> copies;
+        lock.lock();
+        try {
+            if (inFlight.isEmpty())
+                reindexChanged();
+            Set<Wallet> txOwners = findOwners(tx);
+            if (txOwners.isEmpty())
+                return;
+            copies = copies(tx, txOwners);
+        } finally {
+            lock.unlock();
+        }
+        for (final Map.Entry<Wallet, Transaction> entry : copies.entrySet()) {
+            shards[walletShards(entry.getKey())].submit(new Runnable() {
+                @Override
+                public void run() {
+                    Wallet wallet = entry.getKey();
+                    Transaction tx = entry.getValue();
+                    try {
+                        if (wallet.isPendingTransactionRelevant(tx)) {
+                            wallet.receivePending(tx, null);
+                            lock.lock();
+                            try {
+                                if (ownedPending.containsKey(wallet)) {
+                                    addPending(wallet, tx.getHash());
+                                    for (TransactionInput input : tx.getInputs())
+                                        addOwned(wallet, outPoint(input));
+                                }
+                            } finally {
+                                lock.unlock();
+                            }
+                        }
+                    } catch (VerificationException e) {
+                        log.error("Wallet failed to process pending transaction {}", tx.getHash(), e);
+                    }
+                }
+            });
+        }
+    }
+
+    private int walletShards(Wallet wallet) {
+        lock.lock();
+        try {
+            return walletShards.get(wallet);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //endregion
+
+    //region Filter
+
+    @Override
+    public long getEarliestKeyCreationTime() {
+        lock.lock();
+        try {
+            long earliest = Utils.currentTimeSeconds();
+            for (Wallet wallet : walletShards.keySet())
+                earliest = Math.min(earliest, wallet.getEarliestKeyCreationTime());
+            return earliest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void beginBloomFilterCalculation() {
+        lock.lock();
+    }
+
+    @Override
+    public int getBloomFilterElementCount() {
+        return owners.keySet().size();
+    }
+
+    @Override
+    public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
+        BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
+        for (ByteString data : owners.keySet())
+            filter.insert(data.toByteArray());
+        return filter;
+    }
+
+    @Override
+    public boolean isRequiringUpdateAllBloomFilter() {
+        return false;
+    }
+
+    @Override
+    public void endBloomFilterCalculation() {
+        lock.unlock();
+    }
+
+    private void maybeRecalculateFilter(boolean grown) {
+        PeerGroup peerGroup = this.peerGroup;
+        if (grown && peerGroup != null)
+            peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+    }
+
+    //endregion
+
+    //region Index
+
+    // Matches the transaction the way a Bloom filter would, against the exact data of the wallets.
+    private Set<Wallet> findOwners(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        Set<Wallet> result = new HashSet<>();
+        for (TransactionOutput output : tx.getOutputs())
+            addOwners(output.getScriptPubKey(), result);
+        for (TransactionInput input : tx.getInputs()) {
+            if (!input.isCoinBase()) {
+                result.addAll(owners.get(outPoint(input)));
+                addOwners(input.getScriptSig(), result);
+            }
+        }
+        return result;
+    }
+
+    private void addOwners(Script script, Set<Wallet> result) {
+        for (ScriptChunk chunk : script.getChunks()) {
+            if (chunk.isPushData() && chunk.data != null)
+                result.addAll(owners.get(ByteString.copyFrom(chunk.data)));
+        }
+    }
+
+    // Returns the transaction for each wallet. Wallets mustn't share transaction objects, see bug 257.
+    private static Map<Wallet, Transaction> copies(Transaction tx, Set<Wallet> wallets) {
+        Map<Wallet, Transaction> copies = new LinkedHashMap<>();
+        boolean first = true;
+        for (Wallet wallet : wallets) {
+            copies.put(wallet, first ? tx : tx.getParams().getDefaultSerializer().makeTransaction(tx.bitcoinSerialize()));
+            first = false;
+        }
+        return copies;
+    }
+
+    // Returns whether any wallet owns data that isn't in the filter yet.
+    private boolean reindexChanged() {
+        checkState(lock.isHeldByCurrentThread());
+        boolean grown = false;
+        for (Wallet wallet : new ArrayList<>(changed)) {
+            if (walletShards.containsKey(wallet))
+                grown |= index(wallet);
+        }
+        return grown;
+    }
+
+    private boolean index(Wallet wallet) {
+        checkState(lock.isHeldByCurrentThread());
+        // Changes from now on will index the wallet again.
+        changed.remove(wallet);
+        Set<ByteString> data = new HashSet<>();
+        for (byte[] element : wallet.getBloomFilterElements())
+            data.add(ByteString.copyFrom(element));
+        // Bloom filters leave out the outputs spent by a public key in the input script, but not all inputs have one.
+        for (TransactionOutput output : wallet.getUnspents())
+            data.add(ByteString.copyFrom(output.getOutPointFor().unsafeBitcoinSerialize()));
+        // A block may double spend what a pending transaction spends, with an input that matches nothing else, such
+        // as a segwit one.
+        Set<Sha256Hash> pending = new HashSet<>();
+        for (Transaction tx : wallet.getPendingTransactions()) {
+            pending.add(tx.getHash());
+            for (TransactionInput input : tx.getInputs())
+                data.add(outPoint(input));
+        }
+
+        int sizeBefore = owners.keySet().size();
+        unindex(wallet);
+        for (ByteString element : data)
+            owners.put(element, wallet);
+        ownedData.put(wallet, data);
+        for (Sha256Hash hash : pending)
+            pendingOwners.put(hash, wallet);
+        ownedPending.put(wallet, pending);
+        return owners.keySet().size() > sizeBefore;
+    }
+
+    private void unindex(Wallet wallet) {
+        Set<ByteString> data = ownedData.remove(wallet);
+        if (data != null)
+            for (ByteString element : data)
+                owners.remove(element, wallet);
+        Set<Sha256Hash> pending = ownedPending.remove(wallet);
+        if (pending != null)
+            for (Sha256Hash hash : pending)
+                pendingOwners.remove(hash, wallet);
+    }
+
+    private static ByteString outPoint(TransactionInput input) {
+        return ByteString.copyFrom(input.getOutpoint().unsafeBitcoinSerialize());
+    }
+
+    private void addOwned(Wallet wallet, ByteString element) {
+        if (ownedData.get(wallet).add(element))
+            owners.put(element, wallet);
+    }
+
+    private void addPending(Wallet wallet, Sha256Hash hash) {
+        if (ownedPending.get(wallet).add(hash))
+            pendingOwners.put(hash, wallet);
+    }
+
+    //endregion
+
+    //region Shards
+
+    private interface WalletTask {
+        void run(Wallet wallet, @Nullable Transaction tx) throws VerificationException;
+    }
+
+    // Hands the task to the shards of the given wallets, in one piece of work per shard.
+    private void submitPerShard(Map<Wallet, Transaction> wallets, final WalletTask task) {
+        Map<Integer, Map<Wallet, Transaction>> perShard = new HashMap<>();
+        lock.lock();
+        try {
+            for (Map.Entry<Wallet, Transaction> entry : wallets.entrySet()) {
+                Integer shard = walletShards.get(entry.getKey());
+                if (shard == null)
+                    continue;
+                Map<Wallet, Transaction> shardWork = perShard.get(shard);
+                if (shardWork == null) {
+                    shardWork = new LinkedHashMap<>();
+                    perShard.put(shard, shardWork);
+                }
+                shardWork.put(entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<Integer, Map<Wallet, Transaction>> entry : perShard.entrySet()) {
+                final Map<Wallet, Transaction> shardWork = entry.getValue();
+                inFlight.add(shards[entry.getKey()].submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws VerificationException {
+                        // A wallet failing mustn't keep the others of the shard from the block.
+                        VerificationException failure = null;
+                        for (Map.Entry<Wallet, Transaction> work : shardWork.entrySet()) {
+                            try {
+                                task.run(work.getKey(), work.getValue());
+                            } catch (VerificationException e) {
+                                if (failure == null)
+                                    failure = e;
+                            }
+                        }
+                        if (failure != null)
+                            throw failure;
+                        return null;
+                    }
+                }));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits for the work handed to the shards, and throws the first exception of it.
+    private void awaitInFlight() throws VerificationException {
+        checkState(lock.isHeldByCurrentThread());
+        Throwable failure = null;
+        try {
+            for (Future<Void> future : inFlight) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null)
+                        failure = e.getCause();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            inFlight.clear();
+        }
+        if (failure instanceof VerificationException)
+            throw (VerificationException) failure;
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+        if (failure != null)
+            throw new RuntimeException(failure);
+    }
+
+    //endregion
+
+    // Marks the wallet for indexing again when its keys, scripts or outputs change.
+    private class ChangeListener implements KeyChainEventListener, ScriptsChangeEventListener,
+            WalletCoinsReceivedEventListener, WalletCoinsSentEventListener {
+        private final Wallet wallet;
+
+        ChangeListener(Wallet wallet) {
+            this.wallet = checkNotNull(wallet);
+        }
+
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            changed.add(wallet);
+        }
+
+        @Override
+        public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
+            changed.add(wallet);
+        }
+
+        @Override
+        public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            changed.add(wallet);
+        }
+
+        @Override
+        public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            changed.add(wallet);
+        }
+    }
+}
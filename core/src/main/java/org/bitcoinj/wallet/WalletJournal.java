@@ -0,0 +1,496 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+
+import com.google.common.base.Stopwatch;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Persists a wallet as a snapshot in the usual protocol buffer format, plus a journal of the changes made since.
+ * Saving then only appends the transactions that changed, and the keys, watched scripts and extensions if they
+ * changed, rather than rewriting the whole wallet. When the journal has grown to a good part of the size of the
+ * snapshot, the two are compacted into a new snapshot.</p>
+ *
+ * <p>The journal lives next to the snapshot, with {@code .journal} appended to its name. It starts with a header that
+ * names the generation of the snapshot it belongs to, which the snapshot records in a tag. A journal that belongs to
+ * another snapshot is ignored, so that neither a crash during compaction nor a snapshot written by
+ * {@link Wallet#saveToFile(File)} can get old changes applied to a newer snapshot. Each record is a
+ * {@link Protos.Wallet} of its own, prefixed by its length and checksum. A record that was torn by a crash while
+ * writing it, and everything after it, is ignored when reading.</p>
+ *
+ * <p>The depth of transactions isn't journaled, as it changes for all of them with every block. It is brought up to
+ * date from the height of the last seen block when the journal is read.</p>
+ *
+ * <p>Instances are used by {@link WalletFiles}. Like {@link Wallet#saveToFile(File)}, they only hold the wallet lock
+ * to take a snapshot of it with {@link WalletSnapshots}, and work out what to append or compact from that.</p>
+ */
+class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    private static final String TAG_PREFIX = "org.bitcoinj.journal.";
+    // In the snapshot: the generation it belongs to.
+    private static final String GENERATION_TAG = TAG_PREFIX + "generation";
+    // In a record: the hashes of the transactions that were removed.
+    private static final String REMOVED_TAG = TAG_PREFIX + "removed";
+    // In a record: the keys, or the watched scripts, of the record replace those before.
+    private static final String KEYS_TAG = TAG_PREFIX + "keys";
+    private static final String SCRIPTS_TAG = TAG_PREFIX + "scripts";
+
+    private static final int MAGIC = 0x626a776a; // "bjwj"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int MAX_RECORD_SIZE = 512 * 1024 * 1024;
+    // The journal is compacted once it is larger than both this and half of the snapshot.
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    private final Wallet wallet;
+    private final File file;
+    private final File journalFile;
+    private final SecureRandom random = new SecureRandom();
+
+    // What the files on disk contain, as far as the next record is concerned. Until the first compaction there is
+    // nothing to append to. Guarded by the monitor of this journal.
+    private boolean open;
+    private long snapshotLength;
+    private long journalLength;
+    private Map<Sha256Hash, Long> txStamps = new HashMap<>();
+    private long keyStamp;
+    private long scriptStamp;
+    private Map<String, Sha256Hash> extensionDigests = new HashMap<>();
+
+    WalletJournal(Wallet wallet, File file) {
+        this.wallet = wallet;
+        this.file = file;
+        this.journalFile = getJournalFile(file);
+    }
+
+    /** Returns the file the journal for the given wallet file is kept in. */
+    static File getJournalFile(File file) {
+        return new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".journal");
+    }
+
+    /** Returns whether the given wallet tag is one the journal uses for its own bookkeeping. */
+    static boolean isJournalTag(String tag) {
+        return tag.startsWith(TAG_PREFIX);
+    }
+
+    /** Returns the wallet file. */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Appends the changes made to the wallet since the last record, or compacts if there is no journal to append to
+     * yet.
+     *
+     * @param listener Called around compaction, see {@link #compact(WalletFiles.Listener)}.
+     */
+    void save(@Nullable WalletFiles.Listener listener) throws IOException {
+        boolean open;
+        synchronized (this) {
+            open = this.open;
+        }
+        if (!open) {
+            compact(listener);
+            return;
+        }
+        wallet.getSnapshots().save(new WalletSnapshots.Writer() {
+            @Override
+            public void write(WalletSnapshots.Snapshot snapshot) throws IOException {
+                append(snapshot);
+            }
+        });
+    }
+
+    private synchronized void append(WalletSnapshots.Snapshot snapshot) throws IOException {
+        // A save that came in between may have failed, and left nothing to append to.
+        if (!open)
+            throw new IOException("Journal " + journalFile + " needs to be compacted after a failed write");
+        Stopwatch watch = Stopwatch.createStarted();
+        Protos.Wallet.Builder record = snapshot.getFields().toBuilder();
+
+        Map<Sha256Hash, Long> stamps = new HashMap<>(snapshot.getTransactionCount() * 2);
+        for (int i = 0; i < snapshot.getTransactionCount(); i++) {
+            Sha256Hash hash = snapshot.getTransactionHash(i);
+            long stamp = snapshot.getTransactionStamp(i);
+            stamps.put(hash, stamp);
+            Long previous = txStamps.get(hash);
+            if (previous == null || previous != stamp)
+                record.addTransaction(snapshot.getTransaction(i));
+        }
+        ByteString.Output removed = ByteString.newOutput();
+        for (Sha256Hash hash : txStamps.keySet())
+            if (!stamps.containsKey(hash))
+                removed.write(hash.getBytes());
+        if (removed.size() > 0)
+            record.addTags(tag(REMOVED_TAG, removed.toByteString()));
+
+        if (snapshot.getKeyStamp() != keyStamp) {
+            record.addAllKey(snapshot.getKeys());
+            record.addTags(tag(KEYS_TAG, ByteString.EMPTY));
+        }
+        if (snapshot.getScriptStamp() != scriptStamp) {
+            record.addAllWatchedScript(snapshot.getScripts());
+            record.addTags(tag(SCRIPTS_TAG, ByteString.EMPTY));
+        }
+        Map<String, Sha256Hash> digests = digests(snapshot.getExtensions());
+        for (Protos.Extension extension : snapshot.getExtensions())
+            if (!digests.get(extension.getId()).equals(extensionDigests.get(extension.getId())))
+                record.addExtension(extension);
+
+        try {
+            journalLength = write(record.build().toByteArray());
+        } catch (IOException e) {
+            // The journal may be torn now, so start over with a new snapshot next time.
+            open = false;
+            throw e;
+        }
+        txStamps = stamps;
+        keyStamp = snapshot.getKeyStamp();
+        scriptStamp = snapshot.getScriptStamp();
+        extensionDigests = digests;
+        log.info("Journaled {} of {} transactions in {}, wallet locked for {} µs, journal is now {} bytes",
+                record.getTransactionCount(), stamps.size(), watch, snapshot.getLockHeldNanos() / 1000, journalLength);
+    }
+
+    /** Returns whether the journal has grown large enough to be compacted. */
+    synchronized boolean isCompactionDue() {
+        return !open || journalLength > Math.max(MIN_COMPACTION_SIZE, snapshotLength / 2);
+    }
+
+    /**
+     * Writes a new snapshot of the wallet and starts a new, empty journal for it.
+     *
+     * @param listener Called before the snapshot is written to a temporary file, and after it has been renamed.
+     */
+    void compact(@Nullable WalletFiles.Listener listener) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        final File temp = File.createTempFile("wallet", null, directory);
+        final File tempJournal = File.createTempFile("wallet", null, directory);
+        try {
+            if (listener != null)
+                listener.onBeforeAutoSave(temp);
+            wallet.getSnapshots().save(new WalletSnapshots.Writer() {
+                @Override
+                public void write(WalletSnapshots.Snapshot snapshot) throws IOException {
+                    compact(snapshot, temp, tempJournal);
+                }
+            });
+            if (listener != null)
+                listener.onAfterAutoSave(file);
+        } finally {
+            if (temp.exists() && !temp.delete())
+                log.warn("Could not delete {}", temp);
+            if (tempJournal.exists() && !tempJournal.delete())
+                log.warn("Could not delete {}", tempJournal);
+        }
+    }
+
+    private synchronized void compact(WalletSnapshots.Snapshot snapshot, File temp, File tempJournal)
+            throws IOException {
+        try {
+            Stopwatch watch = Stopwatch.createStarted();
+            long newGeneration = random.nextLong();
+            Protos.Wallet.Builder proto = snapshot.toProto();
+            proto.addTags(tag(GENERATION_TAG, ByteString.copyFrom(ByteBuffer.allocate(8).putLong(newGeneration).array())));
+            FileOutputStream stream = new FileOutputStream(temp);
+            try {
+                CodedOutputStream output = CodedOutputStream.newInstance(stream);
+                proto.build().writeTo(output);
+                output.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            long length = temp.length();
+            RandomAccessFile journal = new RandomAccessFile(tempJournal, "rw");
+            try {
+                journal.writeInt(MAGIC);
+                journal.writeInt(VERSION);
+                journal.writeLong(newGeneration);
+                journal.getFD().sync();
+            } finally {
+                journal.close();
+            }
+            // Once the snapshot is replaced, the old journal doesn't belong to it anymore and is ignored.
+            replace(temp, file);
+            replace(tempJournal, journalFile);
+
+            // What the snapshot contains, for the records that follow it.
+            Map<Sha256Hash, Long> stamps = new HashMap<>(snapshot.getTransactionCount() * 2);
+            for (int i = 0; i < snapshot.getTransactionCount(); i++)
+                stamps.put(snapshot.getTransactionHash(i), snapshot.getTransactionStamp(i));
+            open = true;
+            snapshotLength = length;
+            journalLength = HEADER_SIZE;
+            txStamps = stamps;
+            keyStamp = snapshot.getKeyStamp();
+            scriptStamp = snapshot.getScriptStamp();
+            extensionDigests = digests(snapshot.getExtensions());
+            log.info("Compacted wallet journal into a snapshot of {} bytes in {}, wallet locked for {} µs", length,
+                    watch, snapshot.getLockHeldNanos() / 1000);
+        } catch (IOException | RuntimeException e) {
+            open = false;
+            throw e;
+        }
+    }
+
+    private static Map<String, Sha256Hash> digests(List<Protos.Extension> extensions) {
+        Map<String, Sha256Hash> digests = new HashMap<>();
+        for (Protos.Extension extension : extensions)
+            digests.put(extension.getId(), Sha256Hash.of(extension.getData().toByteArray()));
+        return digests;
+    }
+
+    // Appends a record and returns the new length of the journal.
+    private long write(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+        buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+        try {
+            FileChannel channel = journal.getChannel();
+            long size = channel.size();
+            if (size < journalLength)
+                throw new IOException("Journal " + journalFile + " is shorter than expected");
+            // Drop whatever a failed write left behind.
+            if (size > journalLength)
+                channel.truncate(journalLength);
+            long position = journalLength;
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+            channel.force(false);
+            return position;
+        } finally {
+            journal.close();
+        }
+    }
+
+    private static void replace(File from, File to) throws IOException {
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = to.getCanonicalFile();
+            if (canonical.exists() && !canonical.delete())
+                throw new IOException("Failed to delete " + canonical + " for replacement");
+            to = canonical;
+        }
+        if (!from.renameTo(to))
+            throw new IOException("Failed to rename " + from + " to " + to);
+    }
+
+    /**
+     * Reads the snapshot in the given wallet file and applies the records of its journal, if it has one.
+     */
+    static Protos.Wallet read(File file) throws IOException {
+        Protos.Wallet snapshot;
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            snapshot = WalletProtobufSerializer.parseToProto(stream);
+        } finally {
+            stream.close();
+        }
+        Long snapshotGeneration = null;
+        for (Protos.Tag tag : snapshot.getTagsList())
+            if (tag.getTag().equals(GENERATION_TAG) && tag.getData().size() == 8)
+                snapshotGeneration = tag.getData().asReadOnlyByteBuffer().getLong();
+        Protos.Wallet.Builder merged = snapshot.toBuilder();
+        removeJournalTags(merged);
+        File journalFile = getJournalFile(file);
+        if (snapshotGeneration == null || !journalFile.exists())
+            return merged.build();
+
+        DataInputStream journal = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            if (journal.readInt() != MAGIC || journal.readInt() != VERSION) {
+                log.warn("Ignoring {}, not a wallet journal", journalFile);
+                return merged.build();
+            }
+            if (journal.readLong() != snapshotGeneration) {
+                log.info("Ignoring {}, it belongs to an older snapshot", journalFile);
+                return merged.build();
+            }
+            return replay(merged, journal, journalFile);
+        } catch (EOFException e) {
+            log.warn("Ignoring {}, its header is incomplete", journalFile);
+            return merged.build();
+        } finally {
+            journal.close();
+        }
+    }
+
+    private static Protos.Wallet replay(Protos.Wallet.Builder merged, DataInputStream journal, File journalFile)
+            throws IOException {
+        Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<>();
+        for (Protos.Transaction tx : merged.getTransactionList())
+            transactions.put(tx.getHash(), tx);
+        // The height of the last seen block at the time each transaction was last written.
+        int snapshotHeight = merged.hasLastSeenBlockHeight() ? merged.getLastSeenBlockHeight() : -1;
+        Map<ByteString, Integer> writtenAtHeight = new HashMap<>();
+        Map<String, Protos.Extension> extensions = new LinkedHashMap<>();
+        for (Protos.Extension extension : merged.getExtensionList())
+            extensions.put(extension.getId(), extension);
+
+        int records = 0;
+        long position = HEADER_SIZE;
+        while (true) {
+            Protos.Wallet record;
+            try {
+                int length = journal.readInt();
+                int checksum = journal.readInt();
+                if (length < 0 || length > MAX_RECORD_SIZE) {
+                    log.warn("Ignoring the rest of {} from {}, record has a bad length", journalFile, position);
+                    break;
+                }
+                byte[] payload = new byte[length];
+                journal.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("Ignoring the rest of {} from {}, record has a bad checksum", journalFile, position);
+                    break;
+                }
+                record = Protos.Wallet.parseFrom(payload);
+                position += 8 + length;
+            } catch (EOFException e) {
+                if (position < journalFile.length())
+                    log.warn("Ignoring the rest of {} from {}, record is incomplete", journalFile, position);
+                break;
+            } catch (InvalidProtocolBufferException e) {
+                log.warn("Ignoring the rest of {} from {}, record can't be parsed", journalFile, position);
+                break;
+            }
+            if (!record.getNetworkIdentifier().equals(merged.getNetworkIdentifier()))
+                throw new IOException("Journal " + journalFile + " is for another network");
+            int height = record.hasLastSeenBlockHeight() ? record.getLastSeenBlockHeight() : -1;
+            for (Protos.Transaction tx : record.getTransactionList()) {
+                transactions.put(tx.getHash(), tx);
+                writtenAtHeight.put(tx.getHash(), height);
+            }
+            for (Protos.Tag tag : record.getTagsList()) {
+                if (tag.getTag().equals(REMOVED_TAG)) {
+                    ByteString hashes = tag.getData();
+                    for (int i = 0; i + 32 <= hashes.size(); i += 32) {
+                        ByteString hash = hashes.substring(i, i + 32);
+                        transactions.remove(hash);
+                        writtenAtHeight.remove(hash);
+                    }
+                } else if (tag.getTag().equals(KEYS_TAG)) {
+                    merged.clearKey().addAllKey(record.getKeyList());
+                } else if (tag.getTag().equals(SCRIPTS_TAG)) {
+                    merged.clearWatchedScript().addAllWatchedScript(record.getWatchedScriptList());
+                }
+            }
+            for (Protos.Extension extension : record.getExtensionList())
+                extensions.put(extension.getId(), extension);
+            applyScalars(merged, record);
+            records++;
+        }
+
+        // Bring the depth of transactions up to date with the last seen block.
+        int finalHeight = merged.hasLastSeenBlockHeight() ? merged.getLastSeenBlockHeight() : -1;
+        merged.clearTransaction();
+        for (Protos.Transaction tx : transactions.values()) {
+            Integer written = writtenAtHeight.get(tx.getHash());
+            int height = written != null ? written : snapshotHeight;
+            if (height >= 0 && finalHeight >= 0 && height != finalHeight && tx.hasConfidence()
+                    && tx.getConfidence().getType() == Protos.TransactionConfidence.Type.BUILDING
+                    && tx.getConfidence().hasDepth()) {
+                int depth = Math.max(1, tx.getConfidence().getDepth() + finalHeight - height);
+                tx = tx.toBuilder().setConfidence(tx.getConfidence().toBuilder().setDepth(depth)).build();
+            }
+            merged.addTransaction(tx);
+        }
+        merged.clearExtension().addAllExtension(extensions.values());
+        log.info("Replayed {} records of {}", records, journalFile);
+        return merged.build();
+    }
+
+    // Takes the fields that records always contain in full from the given record.
+    private static void applyScalars(Protos.Wallet.Builder merged, Protos.Wallet record) {
+        if (record.hasDescription())
+            merged.setDescription(record.getDescription());
+        else
+            merged.clearDescription();
+        if (record.hasLastSeenBlockHash())
+            merged.setLastSeenBlockHash(record.getLastSeenBlockHash());
+        else
+            merged.clearLastSeenBlockHash();
+        if (record.hasLastSeenBlockHeight())
+            merged.setLastSeenBlockHeight(record.getLastSeenBlockHeight());
+        else
+            merged.clearLastSeenBlockHeight();
+        if (record.hasLastSeenBlockTimeSecs())
+            merged.setLastSeenBlockTimeSecs(record.getLastSeenBlockTimeSecs());
+        else
+            merged.clearLastSeenBlockTimeSecs();
+        if (record.hasEncryptionType())
+            merged.setEncryptionType(record.getEncryptionType());
+        else
+            merged.clearEncryptionType();
+        if (record.hasEncryptionParameters())
+            merged.setEncryptionParameters(record.getEncryptionParameters());
+        else
+            merged.clearEncryptionParameters();
+        if (record.hasKeyRotationTime())
+            merged.setKeyRotationTime(record.getKeyRotationTime());
+        else
+            merged.clearKeyRotationTime();
+        if (record.hasVersion())
+            merged.setVersion(record.getVersion());
+        else
+            merged.clearVersion();
+        merged.clearTags().addAllTags(record.getTagsList());
+        removeJournalTags(merged);
+        merged.clearTransactionSigners().addAllTransactionSigners(record.getTransactionSignersList());
+    }
+
+    private static void removeJournalTags(Protos.Wallet.Builder builder) {
+        for (int i = builder.getTagsCount() - 1; i >= 0; i--)
+            if (isJournalTag(builder.getTags(i).getTag()))
+                builder.removeTags(i);
+    }
+
+    private static Protos.Tag tag(String name, ByteString data) {
+        return Protos.Tag.newBuilder().setTag(name).setData(data).build();
+    }
+}
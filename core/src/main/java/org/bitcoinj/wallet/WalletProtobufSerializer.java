@@ -34,14 +34,18 @@ import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptException;
 import org.bitcoinj.signers.LocalTransactionSigner;
 import org.bitcoinj.signers.TransactionSigner;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.bitcoinj.utils.ExchangeRate;
 import org.bitcoinj.utils.Fiat;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
 import com.google.protobuf.WireFormat;
 
@@ -59,7 +63,13 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -88,12 +98,19 @@ public class WalletProtobufSerializer {
     public static final int CURRENT_WALLET_VERSION = Protos.Wallet.getDefaultInstance().getVersion();
     // 512 MB
     private static final int WALLET_SIZE_LIMIT = 512 * 1024 * 1024;
+    // Transactions are decoded in batches of this many.
+    private static final int DECODE_BATCH_SIZE = 512;
+    private static final int NETWORK_IDENTIFIER_TAG =
+            Protos.Wallet.NETWORK_IDENTIFIER_FIELD_NUMBER << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int TRANSACTION_TAG =
+            Protos.Wallet.TRANSACTION_FIELD_NUMBER << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
     // Used for de-serialization
     protected Map<ByteString, Transaction> txMap;
 
     private boolean requireMandatoryExtensions = true;
     private boolean requireAllExtensionsKnown = false;
     private int walletWriteBufferSize = CodedOutputStream.DEFAULT_BUFFER_SIZE;
+    private int readThreads = Runtime.getRuntime().availableProcessors();
 
     public interface WalletFactory {
         Wallet create(NetworkParameters params, KeyChainGroup keyChainGroup);
@@ -145,6 +162,15 @@ public class WalletProtobufSerializer {
         this.walletWriteBufferSize = walletWriteBufferSize;
     }
 
+    /**
+     * Change the number of threads transactions are decoded on when reading a wallet. Default is the number of
+     * available processors. With a single thread, the whole wallet is read on the calling thread.
+     */
+    public void setReadThreads(int readThreads) {
+        checkArgument(readThreads > 0, "readThreads must be positive");
+        this.readThreads = readThreads;
+    }
+
     /**
      * Formats the given wallet (transactions and keys) to the given output stream in protocol buffer format.<p>
      *
@@ -174,27 +200,31 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
+        return walletToProto(wallet, true).build();
+    }
+
+    /**
+     * Converts the given wallet to the object representation of the protocol buffers. If {@code complete} is false,
+     * the transactions, keys, watched scripts and extensions are left out, for {@link WalletJournal} to add those that
+     * changed.
+     */
+    Protos.Wallet.Builder walletToProto(Wallet wallet, boolean complete) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
         walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
         if (wallet.getDescription() != null) {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
-            Protos.Transaction txProto = makeTxProto(wtx);
-            walletBuilder.addTransaction(txProto);
-        }
-
-        walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
+        if (complete) {
+            for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+                Protos.Transaction txProto = makeTxProto(wtx);
+                walletBuilder.addTransaction(txProto);
+            }
 
-        for (Script script : wallet.getWatchedScripts()) {
-            Protos.Script protoScript =
-                    Protos.Script.newBuilder()
-                            .setProgram(ByteString.copyFrom(script.getProgram()))
-                            .setCreationTimestamp(script.getCreationTimeSeconds() * 1000)
-                            .build();
+            walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
 
-            walletBuilder.addWatchedScript(protoScript);
+            for (Script script : wallet.getWatchedScripts())
+                walletBuilder.addWatchedScript(makeScriptProto(script));
         }
 
         // Populate the lastSeenBlockHash field.
@@ -228,7 +258,8 @@ public class WalletProtobufSerializer {
             walletBuilder.setKeyRotationTime(timeSecs);
         }
 
-        populateExtensions(wallet, walletBuilder);
+        if (complete)
+            populateExtensions(wallet, walletBuilder);
 
         for (Map.Entry<String, ByteString> entry : wallet.getTags().entrySet()) {
             Protos.Tag.Builder tag = Protos.Tag.newBuilder().setTag(entry.getKey()).setData(entry.getValue());
@@ -248,20 +279,30 @@ public class WalletProtobufSerializer {
         // Populate the wallet version.
         walletBuilder.setVersion(wallet.getVersion());
 
-        return walletBuilder.build();
+        return walletBuilder;
     }
 
     private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
-        for (WalletExtension extension : wallet.getExtensions().values()) {
-            Protos.Extension.Builder proto = Protos.Extension.newBuilder();
-            proto.setId(extension.getWalletExtensionID());
-            proto.setMandatory(extension.isWalletExtensionMandatory());
-            proto.setData(ByteString.copyFrom(extension.serializeWalletExtension()));
-            walletBuilder.addExtension(proto);
-        }
+        for (WalletExtension extension : wallet.getExtensions().values())
+            walletBuilder.addExtension(makeExtensionProto(extension, extension.serializeWalletExtension()));
+    }
+
+    static Protos.Extension makeExtensionProto(WalletExtension extension, byte[] data) {
+        Protos.Extension.Builder proto = Protos.Extension.newBuilder();
+        proto.setId(extension.getWalletExtensionID());
+        proto.setMandatory(extension.isWalletExtensionMandatory());
+        proto.setData(ByteString.copyFrom(data));
+        return proto.build();
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    static Protos.Script makeScriptProto(Script script) {
+        return Protos.Script.newBuilder()
+                .setProgram(ByteString.copyFrom(script.getProgram()))
+                .setCreationTimestamp(script.getCreationTimeSeconds() * 1000)
+                .build();
+    }
+
+    static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
@@ -409,6 +450,16 @@ public class WalletProtobufSerializer {
         return Sha256Hash.wrap(bs.toByteArray());
     }
 
+    /** Loads wallet data from the given protocol buffer, for the network parameters it names. */
+    Wallet readWallet(Protos.Wallet walletProto, boolean forceReset, @Nullable WalletExtension[] extensions)
+            throws UnreadableWalletException {
+        final String paramsID = walletProto.getNetworkIdentifier();
+        NetworkParameters params = NetworkParameters.fromID(paramsID);
+        if (params == null)
+            throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+        return readWallet(params, extensions, walletProto, forceReset);
+    }
+
     /**
      * <p>Loads wallet data from the given protocol buffer and inserts it into the given Wallet object. This is primarily
      * useful when you wish to pre-register extension objects. Note that if loading fails the provided Wallet object
@@ -442,12 +493,7 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(InputStream input, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
         try {
-            Protos.Wallet walletProto = parseToProto(input);
-            final String paramsID = walletProto.getNetworkIdentifier();
-            NetworkParameters params = NetworkParameters.fromID(paramsID);
-            if (params == null)
-                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
-            return readWallet(params, extensions, walletProto, forceReset);
+            return readWalletStreaming(input, forceReset, extensions);
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         } catch (IllegalStateException e) {
@@ -491,11 +537,120 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
                              Protos.Wallet walletProto, boolean forceReset) throws UnreadableWalletException {
+        if (forceReset)
+            return readWallet(params, extensions, walletProto, null);
+        TransactionDecoder decoder = new TransactionDecoder(params);
+        try {
+            for (Protos.Transaction txProto : walletProto.getTransactionList())
+                decoder.add(txProto);
+            return readWallet(params, extensions, walletProto, decoder);
+        } finally {
+            decoder.close();
+        }
+    }
+
+    // Reads the wallet field by field. Transactions are handed to a decoder as soon as they have been read, instead of
+    // parsing the whole wallet into memory first.
+    private Wallet readWalletStreaming(InputStream input, boolean forceReset, @Nullable WalletExtension[] extensions)
+            throws IOException, UnreadableWalletException {
+        Stopwatch watch = Stopwatch.createStarted();
+        CodedInputStream codedInput = CodedInputStream.newInstance(input);
+        codedInput.setSizeLimit(WALLET_SIZE_LIMIT);
+        // Everything but the transactions, to be parsed in one go at the end.
+        ByteString.Output rest = ByteString.newOutput();
+        CodedOutputStream restOutput = CodedOutputStream.newInstance(rest);
+        NetworkParameters params = null;
+        TransactionDecoder decoder = null;
+        // Transactions that come before the network identifier, which is normally the first field.
+        List<ByteString> early = new ArrayList<>();
+        try {
+            while (true) {
+                int tag = codedInput.readTag();
+                if (tag == 0)
+                    break;
+                if (tag == NETWORK_IDENTIFIER_TAG && params == null) {
+                    String paramsID = codedInput.readString();
+                    restOutput.writeString(Protos.Wallet.NETWORK_IDENTIFIER_FIELD_NUMBER, paramsID);
+                    params = NetworkParameters.fromID(paramsID);
+                    if (params == null)
+                        throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+                    if (!forceReset) {
+                        decoder = new TransactionDecoder(params);
+                        for (ByteString txBytes : early)
+                            decoder.add(txBytes);
+                        early = null;
+                    }
+                } else if (tag == TRANSACTION_TAG) {
+                    ByteString txBytes = codedInput.readBytes();
+                    if (decoder != null)
+                        decoder.add(txBytes);
+                    else if (!forceReset)
+                        early.add(txBytes);
+                } else if (!copyField(tag, codedInput, restOutput)) {
+                    break;
+                }
+            }
+            restOutput.flush();
+            Protos.Wallet walletProto = Protos.Wallet.parseFrom(rest.toByteString());
+            if (params == null)
+                throw new UnreadableWalletException("Wallet has no network parameters ID");
+            log.info("Read {} bytes of wallet in {}", codedInput.getTotalBytesRead(), watch);
+            return readWallet(params, extensions, walletProto, decoder);
+        } finally {
+            if (decoder != null)
+                decoder.close();
+        }
+    }
+
+    // Copies the field with the given tag, which was just read, from input to output. Returns false if the tag ends a
+    // group, like CodedInputStream.skipField.
+    private static boolean copyField(int tag, CodedInputStream input, CodedOutputStream output) throws IOException {
+        switch (WireFormat.getTagWireType(tag)) {
+            case WireFormat.WIRETYPE_VARINT:
+                output.writeUInt32NoTag(tag);
+                output.writeUInt64NoTag(input.readRawVarint64());
+                return true;
+            case WireFormat.WIRETYPE_FIXED64:
+                output.writeUInt32NoTag(tag);
+                output.writeFixed64NoTag(input.readRawLittleEndian64());
+                return true;
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+                output.writeUInt32NoTag(tag);
+                output.writeBytesNoTag(input.readBytes());
+                return true;
+            case WireFormat.WIRETYPE_START_GROUP:
+                output.writeUInt32NoTag(tag);
+                while (true) {
+                    int groupTag = input.readTag();
+                    if (groupTag == 0 || !copyField(groupTag, input, output))
+                        break;
+                }
+                int endTag = WireFormat.getTagFieldNumber(tag) << 3 | WireFormat.WIRETYPE_END_GROUP;
+                input.checkLastTagWas(endTag);
+                output.writeUInt32NoTag(endTag);
+                return true;
+            case WireFormat.WIRETYPE_END_GROUP:
+                return false;
+            case WireFormat.WIRETYPE_FIXED32:
+                output.writeUInt32NoTag(tag);
+                output.writeFixed32NoTag(input.readRawLittleEndian32());
+                return true;
+            default:
+                throw new InvalidProtocolBufferException("Protocol message tag had invalid wire type.");
+        }
+    }
+
+    // Transactions are taken from the decoder, which must have been given all of them, rather than from the protocol
+    // buffer. Without a decoder, no transactions are loaded, see forceReset.
+    private Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
+                              Protos.Wallet walletProto, @Nullable TransactionDecoder decoder)
+            throws UnreadableWalletException {
         if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
             throw new UnreadableWalletException.FutureVersion();
         if (!walletProto.getNetworkIdentifier().equals(params.getId()))
             throw new UnreadableWalletException.WrongNetwork();
 
+        Stopwatch keysWatch = Stopwatch.createStarted();
         // Read the scrypt parameters that specify how encryption and decryption is performed.
         KeyChainGroup keyChainGroup;
         if (walletProto.hasEncryptionParameters()) {
@@ -506,6 +661,7 @@ public class WalletProtobufSerializer {
             keyChainGroup = KeyChainGroup.fromProtobufUnencrypted(params, walletProto.getKeyList(), keyChainFactory);
         }
         Wallet wallet = factory.create(params, keyChainGroup);
+        keysWatch.stop();
 
         List<Script> scripts = Lists.newArrayList();
         for (Protos.Script protoScript : walletProto.getWatchedScriptList()) {
@@ -525,22 +681,35 @@ public class WalletProtobufSerializer {
             wallet.setDescription(walletProto.getDescription());
         }
 
-        if (forceReset) {
+        Stopwatch decodeWatch = Stopwatch.createUnstarted();
+        Stopwatch connectWatch = Stopwatch.createUnstarted();
+        if (decoder == null) {
             // Should mirror Wallet.reset()
             wallet.setLastBlockSeenHash(null);
             wallet.setLastBlockSeenHeight(-1);
             wallet.setLastBlockSeenTimeSecs(0);
         } else {
-            // Read all transactions and insert into the txMap.
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                readTransaction(txProto, wallet.getParams());
+            // Wait for all transactions to be decoded and insert them into the txMap.
+            decodeWatch.start();
+            List<Protos.Transaction> txProtos = new ArrayList<>();
+            for (DecodedBatch batch : decoder.finish()) {
+                for (int i = 0; i < batch.protos.size(); i++) {
+                    ByteString hash = batch.protos.get(i).getHash();
+                    if (txMap.containsKey(hash))
+                        throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(hash));
+                    txMap.put(hash, batch.transactions.get(i));
+                }
+                txProtos.addAll(batch.protos);
             }
+            decodeWatch.stop();
 
             // Update transaction outputs to point to inputs that spend them
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+            connectWatch.start();
+            for (Protos.Transaction txProto : txProtos) {
                 WalletTransaction wtx = connectTransactionOutputs(params, txProto);
                 wallet.addWalletTransaction(wtx);
             }
+            connectWatch.stop();
 
             // Update the lastBlockSeenHash.
             if (!walletProto.hasLastSeenBlockHash()) {
@@ -561,10 +730,13 @@ public class WalletProtobufSerializer {
             }
         }
 
+        Stopwatch extensionsWatch = Stopwatch.createStarted();
         loadExtensions(wallet, extensions != null ? extensions : new WalletExtension[0], walletProto);
+        extensionsWatch.stop();
 
         for (Protos.Tag tag : walletProto.getTagsList()) {
-            wallet.setTag(tag.getTag(), tag.getData());
+            if (!WalletJournal.isJournalTag(tag.getTag()))
+                wallet.setTag(tag.getTag(), tag.getData());
         }
 
         for (Protos.TransactionSigner signerProto : walletProto.getTransactionSignersList()) {
@@ -583,6 +755,10 @@ public class WalletProtobufSerializer {
             wallet.setVersion(walletProto.getVersion());
         }
 
+        log.info("Loaded wallet with {} transactions: keys {}, decoding {} on {} threads, connecting {}, extensions {}",
+                txMap.size(), keysWatch, decodeWatch, decoder != null ? decoder.threads : 0, connectWatch,
+                extensionsWatch);
+
         // Make sure the object can be re-used to read another wallet without corruption.
         txMap.clear();
 
@@ -638,7 +814,8 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    private static Transaction readTransaction(Protos.Transaction txProto, NetworkParameters params)
+            throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
 
         tx.setVersion(txProto.getVersion());
@@ -708,9 +885,115 @@ public class WalletProtobufSerializer {
         Sha256Hash protoHash = byteStringToHash(txProto.getHash());
         if (!tx.getHash().equals(protoHash))
             throw new UnreadableWalletException(String.format(Locale.US, "Transaction did not deserialize completely: %s vs %s", tx.getHash(), protoHash));
-        if (txMap.containsKey(txProto.getHash()))
-            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
-        txMap.put(txProto.getHash(), tx);
+        return tx;
+    }
+
+    private static class DecodedBatch {
+        final List<Protos.Transaction> protos;
+        final List<Transaction> transactions;
+
+        DecodedBatch(List<Protos.Transaction> protos, List<Transaction> transactions) {
+            this.protos = protos;
+            this.transactions = transactions;
+        }
+    }
+
+    /**
+     * Decodes transactions in batches while the rest of the wallet is still being read, on a pool of threads unless
+     * only one thread is to be used. Decoding includes hashing each transaction, which is most of the work. The
+     * decoded transactions come out in the order they were added, and are connected on the calling thread.
+     */
+    private class TransactionDecoder {
+        private final NetworkParameters params;
+        private final int threads;
+        @Nullable private final ExecutorService executor;
+        private final List<Future<DecodedBatch>> batches = new ArrayList<>();
+        // Either serialized or parsed transactions.
+        private List<Object> pending = new ArrayList<>(DECODE_BATCH_SIZE);
+
+        TransactionDecoder(NetworkParameters params) {
+            this.params = params;
+            this.threads = readThreads;
+            this.executor = threads > 1
+                    ? Executors.newFixedThreadPool(threads, new ContextPropagatingThreadFactory("Wallet reader"))
+                    : null;
+        }
+
+        void add(ByteString txBytes) throws IOException, UnreadableWalletException {
+            addPending(txBytes);
+        }
+
+        void add(Protos.Transaction txProto) throws UnreadableWalletException {
+            try {
+                addPending(txProto);
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Cannot happen, nothing is parsed.
+            }
+        }
+
+        private void addPending(Object tx) throws IOException, UnreadableWalletException {
+            pending.add(tx);
+            if (pending.size() == DECODE_BATCH_SIZE)
+                submit();
+        }
+
+        private void submit() throws IOException, UnreadableWalletException {
+            final List<Object> batch = pending;
+            pending = new ArrayList<>(DECODE_BATCH_SIZE);
+            if (executor == null) {
+                batches.add(Futures.immediateFuture(decode(batch)));
+            } else {
+                batches.add(executor.submit(new Callable<DecodedBatch>() {
+                    @Override
+                    public DecodedBatch call() throws Exception {
+                        return decode(batch);
+                    }
+                }));
+            }
+        }
+
+        private DecodedBatch decode(List<Object> batch) throws IOException, UnreadableWalletException {
+            List<Protos.Transaction> protos = new ArrayList<>(batch.size());
+            List<Transaction> transactions = new ArrayList<>(batch.size());
+            for (Object tx : batch) {
+                Protos.Transaction txProto = tx instanceof ByteString ? Protos.Transaction.parseFrom((ByteString) tx)
+                        : (Protos.Transaction) tx;
+                protos.add(txProto);
+                transactions.add(readTransaction(txProto, params));
+            }
+            return new DecodedBatch(protos, transactions);
+        }
+
+        /** Waits for all transactions added to be decoded, and returns them in batches. */
+        List<DecodedBatch> finish() throws UnreadableWalletException {
+            List<DecodedBatch> decoded = new ArrayList<>(batches.size() + 1);
+            try {
+                if (!pending.isEmpty())
+                    submit();
+                for (Future<DecodedBatch> batch : batches)
+                    decoded.add(batch.get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UnreadableWalletException)
+                    throw (UnreadableWalletException) cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new UnreadableWalletException("Could not parse transaction", cause);
+            } catch (IOException e) {
+                throw new UnreadableWalletException("Could not parse transaction", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UnreadableWalletException("Interrupted whilst decoding transactions", e);
+            }
+            return decoded;
+        }
+
+        void close() {
+            if (executor != null)
+                executor.shutdownNow();
+        }
     }
 
     private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
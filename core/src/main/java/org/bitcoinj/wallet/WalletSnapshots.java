@@ -0,0 +1,323 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.script.Script;
+
+import com.google.protobuf.CodedOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Takes snapshots of a wallet for saving it, so that the wallet lock is held while the state of the wallet is
+ * captured, but not while it is serialized and written to disk.</p>
+ *
+ * <p>Capturing the state is kept cheap by reusing the serialized form of each transaction from the previous snapshot
+ * if it didn't change since, apart from its depth, which is brought up to date later without the lock. That is the
+ * case for nearly all transactions, so the lock is held for little more than a pass over the transaction pools. Keys
+ * and watched scripts are reused the same way, while extensions and the fields of the wallet itself are serialized
+ * anew each time.</p>
+ *
+ * <p>Snapshots are handed to their writer in the order they were taken, one at a time, so that an older snapshot never
+ * overwrites a newer one. A writer must not take the wallet lock: the thread that took the next snapshot may hold it
+ * while waiting for its turn.</p>
+ */
+class WalletSnapshots {
+    private static final Logger log = LoggerFactory.getLogger(WalletSnapshots.class);
+
+    /** Writes a snapshot somewhere, see {@link #save(Writer)}. */
+    interface Writer {
+        void write(Snapshot snapshot) throws IOException;
+    }
+
+    private final Wallet wallet;
+
+    // The parts of the previous snapshot that can be reused, guarded by the wallet lock.
+    private Map<Sha256Hash, CachedTransaction> transactions = new HashMap<>();
+    private long keyStamp;
+    private List<Protos.Key> keys;
+    private long scriptStamp;
+    private List<Protos.Script> scripts;
+    private long nextTicket;
+
+    // The ticket of the snapshot whose turn it is to be written, guarded by the monitor of turn.
+    private final Object turn = new Object();
+    private long currentTicket;
+
+    private volatile long lastLockHeldNanos;
+    private volatile long maxLockHeldNanos;
+
+    private static class CachedTransaction {
+        final long stamp;
+        final Protos.Transaction proto;
+
+        CachedTransaction(long stamp, Protos.Transaction proto) {
+            this.stamp = stamp;
+            this.proto = proto;
+        }
+    }
+
+    WalletSnapshots(Wallet wallet) {
+        this.wallet = wallet;
+    }
+
+    /**
+     * Takes a snapshot of the wallet, holding the wallet lock, and then passes it to the writer without holding the
+     * lock, once all snapshots taken before have been written.
+     */
+    void save(Writer writer) throws IOException {
+        Snapshot snapshot;
+        long ticket;
+        wallet.lock.lock();
+        try {
+            snapshot = take();
+            ticket = nextTicket++;
+        } finally {
+            wallet.lock.unlock();
+        }
+        boolean interrupted = false;
+        synchronized (turn) {
+            while (currentTicket != ticket) {
+                try {
+                    turn.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            try {
+                writer.write(snapshot);
+            } finally {
+                currentTicket++;
+                turn.notifyAll();
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /** Returns for how long the wallet lock was held to take the last snapshot, in nanoseconds. */
+    long getLastLockHeldNanos() {
+        return lastLockHeldNanos;
+    }
+
+    /** Returns for how long the wallet lock was held to take any snapshot so far, at most, in nanoseconds. */
+    long getMaxLockHeldNanos() {
+        return maxLockHeldNanos;
+    }
+
+    // Must be called with the wallet lock held.
+    private Snapshot take() {
+        long start = System.nanoTime();
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        Protos.Wallet fields = serializer.walletToProto(wallet, false).build();
+
+        int size = 0;
+        for (WalletTransaction.Pool pool : WalletTransaction.Pool.values())
+            size += wallet.getTransactionPool(pool).size();
+        Sha256Hash[] hashes = new Sha256Hash[size];
+        long[] stamps = new long[size];
+        Protos.Transaction[] protos = new Protos.Transaction[size];
+        int[] depths = new int[size];
+        Map<Sha256Hash, CachedTransaction> cache = new HashMap<>(size * 2);
+        int i = 0, reused = 0;
+        for (WalletTransaction.Pool pool : WalletTransaction.Pool.values()) {
+            for (Map.Entry<Sha256Hash, Transaction> entry : wallet.getTransactionPool(pool).entrySet()) {
+                Transaction tx = entry.getValue();
+                long stamp = stamp(pool, tx);
+                CachedTransaction cached = transactions.get(entry.getKey());
+                if (cached != null && cached.stamp == stamp)
+                    reused++;
+                else
+                    cached = new CachedTransaction(stamp, WalletProtobufSerializer.makeTxProto(new WalletTransaction(pool, tx)));
+                cache.put(entry.getKey(), cached);
+                hashes[i] = entry.getKey();
+                stamps[i] = stamp;
+                protos[i] = cached.proto;
+                depths[i] = tx.hasConfidence() ? tx.getConfidence().getDepthInBlocks() : 0;
+                i++;
+            }
+        }
+        transactions = cache;
+
+        long keys = wallet.getKeyChainGroupSerializationStamp();
+        if (this.keys == null || keys != keyStamp) {
+            this.keys = Collections.unmodifiableList(wallet.serializeKeyChainGroupToProtobuf());
+            keyStamp = keys;
+        }
+        List<Script> watchedScripts = wallet.getWatchedScripts();
+        long scripts = stamp(watchedScripts);
+        if (this.scripts == null || scripts != scriptStamp) {
+            List<Protos.Script> protoScripts = new ArrayList<>(watchedScripts.size());
+            for (Script script : watchedScripts)
+                protoScripts.add(WalletProtobufSerializer.makeScriptProto(script));
+            this.scripts = Collections.unmodifiableList(protoScripts);
+            scriptStamp = scripts;
+        }
+        List<Protos.Extension> extensions = new ArrayList<>();
+        for (WalletExtension extension : wallet.getExtensions().values())
+            extensions.add(WalletProtobufSerializer.makeExtensionProto(extension, extension.serializeWalletExtension()));
+
+        long lockHeld = System.nanoTime() - start;
+        lastLockHeldNanos = lockHeld;
+        if (lockHeld > maxLockHeldNanos)
+            maxLockHeldNanos = lockHeld;
+        log.debug("Took a snapshot of {} transactions, {} of them reused, in {} µs", size, reused, lockHeld / 1000);
+        return new Snapshot(fields, hashes, stamps, protos, depths, keyStamp, this.keys, scriptStamp, this.scripts,
+                extensions, lockHeld);
+    }
+
+    /**
+     * The state of a wallet at one point in time, in serialized form. Instances are immutable and can be used without
+     * holding the wallet lock.
+     */
+    static class Snapshot {
+        private final Protos.Wallet fields;
+        private final Sha256Hash[] hashes;
+        private final long[] stamps;
+        private final Protos.Transaction[] transactions;
+        private final int[] depths;
+        private final long keyStamp;
+        private final List<Protos.Key> keys;
+        private final long scriptStamp;
+        private final List<Protos.Script> scripts;
+        private final List<Protos.Extension> extensions;
+        private final long lockHeldNanos;
+
+        private Snapshot(Protos.Wallet fields, Sha256Hash[] hashes, long[] stamps, Protos.Transaction[] transactions,
+                         int[] depths, long keyStamp, List<Protos.Key> keys, long scriptStamp,
+                         List<Protos.Script> scripts, List<Protos.Extension> extensions, long lockHeldNanos) {
+            this.fields = fields;
+            this.hashes = hashes;
+            this.stamps = stamps;
+            this.transactions = transactions;
+            this.depths = depths;
+            this.keyStamp = keyStamp;
+            this.keys = keys;
+            this.scriptStamp = scriptStamp;
+            this.scripts = scripts;
+            this.extensions = extensions;
+            this.lockHeldNanos = lockHeldNanos;
+        }
+
+        /** Returns the fields of the wallet itself, without transactions, keys, watched scripts and extensions. */
+        Protos.Wallet getFields() {
+            return fields;
+        }
+
+        int getTransactionCount() {
+            return hashes.length;
+        }
+
+        Sha256Hash getTransactionHash(int index) {
+            return hashes[index];
+        }
+
+        /**
+         * Returns a value that changes whenever the transaction at the given index would be serialized differently,
+         * apart from its depth.
+         */
+        long getTransactionStamp(int index) {
+            return stamps[index];
+        }
+
+        Protos.Transaction getTransaction(int index) {
+            Protos.Transaction tx = transactions[index];
+            if (tx.hasConfidence() && tx.getConfidence().hasDepth() && tx.getConfidence().getDepth() != depths[index])
+                tx = tx.toBuilder().setConfidence(tx.getConfidence().toBuilder().setDepth(depths[index])).build();
+            return tx;
+        }
+
+        /** See {@link KeyChainGroup#getSerializationStamp()}. */
+        long getKeyStamp() {
+            return keyStamp;
+        }
+
+        List<Protos.Key> getKeys() {
+            return keys;
+        }
+
+        /** Returns a value that changes whenever the watched scripts change. */
+        long getScriptStamp() {
+            return scriptStamp;
+        }
+
+        List<Protos.Script> getScripts() {
+            return scripts;
+        }
+
+        List<Protos.Extension> getExtensions() {
+            return extensions;
+        }
+
+        /** Returns for how long the wallet lock was held to take this snapshot, in nanoseconds. */
+        long getLockHeldNanos() {
+            return lockHeldNanos;
+        }
+
+        /** Returns the whole wallet, as {@link WalletProtobufSerializer#walletToProto(Wallet)} would. */
+        Protos.Wallet.Builder toProto() {
+            Protos.Wallet.Builder builder = fields.toBuilder();
+            for (int i = 0; i < transactions.length; i++)
+                builder.addTransaction(getTransaction(i));
+            builder.addAllKey(keys);
+            builder.addAllWatchedScript(scripts);
+            builder.addAllExtension(extensions);
+            return builder;
+        }
+
+        /** Writes the whole wallet to the given stream, as {@link WalletProtobufSerializer#writeWallet} would. */
+        void writeTo(OutputStream output) throws IOException {
+            CodedOutputStream codedOutput = CodedOutputStream.newInstance(output);
+            toProto().build().writeTo(codedOutput);
+            codedOutput.flush();
+        }
+    }
+
+    /**
+     * Returns a value that changes whenever the wallet transaction would be serialized differently, apart from its
+     * depth: the pool it is in, combined with the latest modification stamp of the transaction and its confidence.
+     */
+    private static long stamp(WalletTransaction.Pool pool, Transaction tx) {
+        long stamp = tx.getModificationStamp();
+        if (tx.hasConfidence())
+            stamp = Math.max(stamp, tx.getConfidence().getModificationStamp());
+        return stamp * WalletTransaction.Pool.values().length + pool.ordinal();
+    }
+
+    private static long stamp(List<Script> scripts) {
+        long stamp = scripts.size();
+        for (Script script : scripts)
+            stamp = mix(mix(stamp, Arrays.hashCode(script.getProgram())), script.getCreationTimeSeconds());
+        return stamp;
+    }
+
+    private static long mix(long stamp, long value) {
+        stamp = (stamp ^ value) * 0x9E3779B97F4A7C15L;
+        return stamp ^ (stamp >>> 29);
+    }
+}
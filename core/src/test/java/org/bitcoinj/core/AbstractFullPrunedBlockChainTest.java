@@ -35,8 +35,12 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.bitcoinj.core.Coin.FIFTY_COINS;
 import static org.junit.Assert.*;
@@ -122,6 +126,48 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void testGeneratedChainPipelined() throws Exception {
+        // Same as testGeneratedChain, but valid blocks are added in runs via addAll(), which prefetches outputs
+        FullBlockTestGenerator generator = new FullBlockTestGenerator(PARAMS);
+        RuleList blockList = generator.getBlocksToTest(false, false, null);
+
+        store = createStore(PARAMS, blockList.maximumReorgBlockCount);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+
+        List<Block> run = new ArrayList<>();
+        int runConnects = 0;
+        FullBlockTestGenerator.BlockAndValidity last = null;
+        for (Rule rule : blockList.list) {
+            if (!(rule instanceof FullBlockTestGenerator.BlockAndValidity))
+                continue;
+            FullBlockTestGenerator.BlockAndValidity block = (FullBlockTestGenerator.BlockAndValidity) rule;
+            last = block;
+            if (!block.throwsException) {
+                run.add(block.block);
+                if (block.connects)
+                    runConnects++;
+                continue;
+            }
+            assertEquals(runConnects, chain.addAll(run.iterator(), 4));
+            run.clear();
+            runConnects = 0;
+            try {
+                chain.add(block.block);
+                fail("Block didn't match throws flag on block " + block.ruleName);
+            } catch (VerificationException e) {
+                // Expected.
+            }
+            assertEquals(block.hashChainTipAfterBlock, chain.getChainHead().getHeader().getHash());
+        }
+        assertEquals(runConnects, chain.addAll(run.iterator(), 4));
+        assertEquals(last.hashChainTipAfterBlock, chain.getChainHead().getHeader().getHash());
+        assertEquals(last.heightAfterBlock, chain.getChainHead().getHeight());
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Test
     public void skipScripts() throws Exception {
         store = createStore(PARAMS, 10);
@@ -286,6 +332,55 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void testBatchedTransactionOutputLookups() throws Exception {
+        store = createStore(PARAMS, 10);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+
+        ECKey outKey = new ECKey();
+        int height = 1;
+        Block rollingBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+        chain.add(rollingBlock);
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            chain.add(rollingBlock);
+        }
+        rollingBlock = rollingBlock.createNextBlock(null);
+        Transaction t = new Transaction(PARAMS);
+        t.addOutput(new TransactionOutput(PARAMS, t, Coin.COIN, new ECKey()));
+        t.addOutput(new TransactionOutput(PARAMS, t, Coin.COIN, new ECKey()));
+        t.addSignedInput(new TransactionOutPoint(PARAMS, 0, coinbase.getHash()),
+                coinbase.getOutput(0).getScriptPubKey(), outKey);
+        rollingBlock.addTransaction(t);
+        rollingBlock.solve();
+        chain.add(rollingBlock);
+
+        Sha256Hash unknown = Sha256Hash.of(new byte[] { 1 });
+        List<TransactionOutPoint> outPoints = Arrays.asList(
+                new TransactionOutPoint(PARAMS, 1, t.getHash()),
+                new TransactionOutPoint(PARAMS, 0, coinbase.getHash()), // spent
+                new TransactionOutPoint(PARAMS, 0, unknown),
+                new TransactionOutPoint(PARAMS, 0, t.getHash()),
+                new TransactionOutPoint(PARAMS, 2, t.getHash()));
+        List<UTXO> outputs = store.getTransactionOutputs(outPoints);
+        assertEquals(outPoints.size(), outputs.size());
+        for (int i = 0; i < outPoints.size(); i++)
+            assertEquals(store.getTransactionOutput(outPoints.get(i).getHash(), outPoints.get(i).getIndex()),
+                    outputs.get(i));
+        assertNotNull(outputs.get(0));
+        assertNotNull(outputs.get(3));
+
+        Map<Sha256Hash, Integer> numOutputs = new HashMap<>();
+        numOutputs.put(t.getHash(), 2);
+        numOutputs.put(coinbase.getHash(), 1);
+        numOutputs.put(unknown, 1);
+        assertEquals(Collections.singleton(t.getHash()), store.getTransactionsWithUnspentOutputs(numOutputs));
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Test
     public void testUTXOProviderWithWallet() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
@@ -0,0 +1,164 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.CachingFullPrunedBlockStore;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.MemoryFullPrunedBlockStore;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * A CachingFullPrunedBlockStore in front of a MemoryFullPrunedBlockStore, with a cache so small that it is flushed
+ * after every block, as the undoable blocks are only pruned once the verified chain head is flushed.
+ */
+public class CachingFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        return new CachingFullPrunedBlockStore(new MemoryFullPrunedBlockStore(params, blockCount), 1);
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        // No-op, because it's not persistent
+    }
+
+    @Test
+    public void writeBack() throws Exception {
+        MemoryFullPrunedBlockStore underlying = new MemoryFullPrunedBlockStore(PARAMS, 10);
+        CachingFullPrunedBlockStore cache = new CachingFullPrunedBlockStore(underlying, 1024 * 1024);
+        Script script = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, new ECKey()));
+        UTXO kept = new UTXO(Sha256Hash.of(new byte[] { 1 }), 0, Coin.COIN, 1, false, script);
+        UTXO spent = new UTXO(Sha256Hash.of(new byte[] { 2 }), 0, Coin.COIN, 1, false, script);
+
+        cache.beginDatabaseBatchWrite();
+        cache.addUnspentTransactionOutput(kept);
+        cache.addUnspentTransactionOutput(spent);
+        cache.commitDatabaseBatchWrite();
+        cache.beginDatabaseBatchWrite();
+        cache.removeUnspentTransactionOutput(spent);
+        cache.commitDatabaseBatchWrite();
+        assertNull(underlying.getTransactionOutput(kept.getHash(), 0));
+        assertEquals(1, cache.getAbsorbedOutputs());
+
+        // Aborted changes are forgotten.
+        cache.beginDatabaseBatchWrite();
+        cache.removeUnspentTransactionOutput(kept);
+        assertNull(cache.getTransactionOutput(kept.getHash(), 0));
+        cache.abortDatabaseBatchWrite();
+        assertEquals(kept, cache.getTransactionOutput(kept.getHash(), 0));
+
+        // Only the output that survived reaches the underlying store.
+        cache.flush();
+        assertEquals(kept, underlying.getTransactionOutput(kept.getHash(), 0));
+        assertNull(underlying.getTransactionOutput(spent.getHash(), 0));
+        assertEquals(1, cache.getFlushedChanges());
+
+        // Spending a flushed output writes the removal on the next flush.
+        cache.beginDatabaseBatchWrite();
+        cache.removeUnspentTransactionOutput(kept);
+        cache.commitDatabaseBatchWrite();
+        assertFalse(cache.hasUnspentOutputs(kept.getHash(), 1));
+        assertTrue(underlying.hasUnspentOutputs(kept.getHash(), 1));
+        cache.flush();
+        assertFalse(underlying.hasUnspentOutputs(kept.getHash(), 1));
+    }
+
+    @Test
+    public void committedOutputs() throws Exception {
+        MemoryFullPrunedBlockStore underlying = new MemoryFullPrunedBlockStore(PARAMS, 10);
+        CachingFullPrunedBlockStore cache = new CachingFullPrunedBlockStore(underlying, 1024 * 1024);
+        Script script = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, new ECKey()));
+        UTXO flushed = new UTXO(Sha256Hash.of(new byte[] { 1 }), 0, Coin.COIN, 1, false, script);
+        UTXO cached = new UTXO(Sha256Hash.of(new byte[] { 2 }), 0, Coin.COIN, 1, false, script);
+        UTXO added = new UTXO(Sha256Hash.of(new byte[] { 3 }), 0, Coin.COIN, 1, false, script);
+        cache.beginDatabaseBatchWrite();
+        cache.addUnspentTransactionOutput(flushed);
+        cache.commitDatabaseBatchWrite();
+        cache.flush();
+        cache.beginDatabaseBatchWrite();
+        cache.addUnspentTransactionOutput(cached);
+        cache.commitDatabaseBatchWrite();
+        List<TransactionOutPoint> outPoints = Arrays.asList(
+                new TransactionOutPoint(PARAMS, 0, flushed.getHash()),
+                new TransactionOutPoint(PARAMS, 0, cached.getHash()),
+                new TransactionOutPoint(PARAMS, 0, added.getHash()));
+
+        // The batch write in progress isn't seen.
+        cache.beginDatabaseBatchWrite();
+        cache.removeUnspentTransactionOutput(flushed);
+        cache.removeUnspentTransactionOutput(cached);
+        cache.addUnspentTransactionOutput(added);
+        assertEquals(Arrays.asList(flushed, cached, null), cache.getCommittedTransactionOutputs(outPoints));
+        cache.commitDatabaseBatchWrite();
+        assertEquals(Arrays.asList(null, null, added), cache.getCommittedTransactionOutputs(outPoints));
+    }
+
+    @Test
+    public void failedCommitIsRolledBack() throws Exception {
+        final boolean[] failCommit = { false };
+        MemoryFullPrunedBlockStore underlying = new MemoryFullPrunedBlockStore(PARAMS, 10) {
+            @Override
+            public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+                if (failCommit[0])
+                    throw new BlockStoreException("Commit failed");
+                super.commitDatabaseBatchWrite();
+            }
+        };
+        // Small enough to write to the underlying store on every commit.
+        CachingFullPrunedBlockStore cache = new CachingFullPrunedBlockStore(underlying, 1);
+        Script script = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, new ECKey()));
+        UTXO kept = new UTXO(Sha256Hash.of(new byte[] { 1 }), 0, Coin.COIN, 1, false, script);
+        UTXO added = new UTXO(Sha256Hash.of(new byte[] { 2 }), 0, Coin.COIN, 1, false, script);
+
+        cache.beginDatabaseBatchWrite();
+        cache.addUnspentTransactionOutput(kept);
+        cache.commitDatabaseBatchWrite();
+        assertEquals(kept, underlying.getTransactionOutput(kept.getHash(), 0));
+        assertEquals(1, cache.getFlushedChanges());
+
+        failCommit[0] = true;
+        cache.beginDatabaseBatchWrite();
+        cache.removeUnspentTransactionOutput(kept);
+        cache.addUnspentTransactionOutput(added);
+        try {
+            cache.commitDatabaseBatchWrite();
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        // Neither the cache nor the underlying store kept any of the batch.
+        assertEquals(kept, cache.getTransactionOutput(kept.getHash(), 0));
+        assertNull(cache.getTransactionOutput(added.getHash(), 0));
+        assertEquals(kept, underlying.getTransactionOutput(kept.getHash(), 0));
+        assertNull(underlying.getTransactionOutput(added.getHash(), 0));
+        assertEquals(1, cache.getFlushedChanges());
+
+        failCommit[0] = false;
+        cache.beginDatabaseBatchWrite();
+        cache.removeUnspentTransactionOutput(kept);
+        cache.commitDatabaseBatchWrite();
+        assertNull(underlying.getTransactionOutput(kept.getHash(), 0));
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.CachingFullPrunedBlockStore;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.LevelDBFullPrunedBlockStore;
+import org.junit.After;
+
+import java.io.File;
+
+/**
+ * A CachingFullPrunedBlockStore in front of a LevelDBFullPrunedBlockStore, which isn't safe for use from several
+ * threads, so {@link FullPrunedBlockChain#addAll(java.util.Iterator, int)} must only read what was committed to it.
+ */
+public class CachingLevelDBFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    @After
+    public void tearDown() throws Exception {
+        deleteFiles();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        deleteFiles();
+        // Small enough to be written to LevelDB every few blocks.
+        return new CachingFullPrunedBlockStore(new LevelDBFullPrunedBlockStore(params, "test-caching-leveldb",
+                blockCount), 16 * 1024);
+    }
+
+    private void deleteFiles() {
+        File f = new File("test-caching-leveldb");
+        if (f.exists()) {
+            for (File c : f.listFiles())
+                c.delete();
+        }
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        // No-op, the files are deleted when the store is created
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.listeners.DownloadProgressTracker;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.testing.InboundMessageQueuer;
+import org.bitcoinj.testing.TestWithPeerGroup;
+import org.bitcoinj.utils.Threading;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+@RunWith(value = Parameterized.class)
+public class HeadersFirstDownloadTest extends TestWithPeerGroup {
+    private static final int CHAIN_LENGTH = 70;
+
+    private List<Block> remoteChain;
+    private Map<Sha256Hash, Block> remoteBlocks;
+
+    @Parameterized.Parameters
+    public static Collection<ClientType[]> parameters() {
+        return Arrays.asList(new ClientType[] {ClientType.NIO_CLIENT_MANAGER},
+                             new ClientType[] {ClientType.BLOCKING_CLIENT_MANAGER});
+    }
+
+    public HeadersFirstDownloadTest(ClientType clientType) {
+        super(clientType);
+    }
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        super.setUp();
+        // A chain with recent blocks, so the wallet needs their bodies, and a payment to the wallet halfway up.
+        remoteChain = new ArrayList<>();
+        remoteBlocks = new HashMap<>();
+        Block prev = blockStore.getChainHead().getHeader();
+        Address other = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        for (int height = 1; height <= CHAIN_LENGTH; height++) {
+            // Version 1 blocks, so the coinbase doesn't need the height, which the test filter can't match on.
+            Block block = prev.createNextBlock(other, Block.BLOCK_VERSION_GENESIS, Utils.currentTimeSeconds() + height,
+                    Block.BLOCK_HEIGHT_UNKNOWN);
+            boolean retarget = height % UNITTEST.getInterval() == 0;
+            if (retarget) {
+                // The blocks come much faster than the target, so difficulty goes up by the maximum of four times.
+                block.setDifficultyTarget(
+                        Utils.encodeCompactBits(prev.getDifficultyTargetAsInteger().shiftRight(2)));
+            }
+            if (height == CHAIN_LENGTH / 2)
+                block.addTransaction(FakeTxBuilder.createFakeTx(UNITTEST, COIN, wallet.currentReceiveAddress()));
+            if (retarget || height == CHAIN_LENGTH / 2)
+                block.solve();
+            remoteChain.add(block);
+            remoteBlocks.put(block.getHash(), block);
+            prev = block;
+        }
+        remoteVersionMessage.bestHeight = CHAIN_LENGTH;
+        peerGroup.setHeadersFirstDownload(true);
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        super.tearDown();
+    }
+
+    @Test
+    public void downloadsFromAllPeers() throws Exception {
+        peerGroup.start();
+        StandIn[] standIns = { new StandIn(connectPeer(1)), new StandIn(connectPeer(2)), new StandIn(connectPeer(3)) };
+        DownloadProgressTracker tracker = new DownloadProgressTracker();
+        peerGroup.startBlockChainDownload(tracker);
+        serveUntilSynced(standIns);
+
+        assertEquals(remoteChain.get(CHAIN_LENGTH - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertEquals(COIN, wallet.getBalance());
+        tracker.getFuture().get(10, TimeUnit.SECONDS);
+        for (StandIn standIn : standIns)
+            assertTrue(standIn + " served no blocks", standIn.blocksServed > 0);
+        // Headers only come from the download peer.
+        int headerRequests = 0;
+        for (StandIn standIn : standIns)
+            headerRequests += standIn.headerRequests > 0 ? 1 : 0;
+        assertEquals(1, headerRequests);
+    }
+
+    @Test
+    public void silentPeerIsWorkedAround() throws Exception {
+        peerGroup.start();
+        StandIn[] standIns = { new StandIn(connectPeer(1)), new StandIn(connectPeer(2)) };
+        // The second peer accepts requests for blocks but never answers them.
+        standIns[1].silent = true;
+        peerGroup.startBlockChainDownload(new DownloadProgressTracker());
+        serveUntilSynced(standIns);
+
+        assertEquals(remoteChain.get(CHAIN_LENGTH - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertEquals(COIN, wallet.getBalance());
+        assertTrue(standIns[1].blocksRequested > 0);
+        assertEquals(0, standIns[1].blocksServed);
+    }
+
+    @Test
+    public void fastCatchupTimeIsAppliedOutsideLock() throws Exception {
+        // The peer claims to have no blocks, so their bodies aren't requested from it.
+        remoteVersionMessage.bestHeight = 0;
+        peerGroup.start();
+        StandIn standIn = new StandIn(connectPeer(1));
+        peerGroup.startBlockChainDownload(new DownloadProgressTracker());
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (standIn.headerRequests == 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            if (!standIn.serve())
+                Thread.sleep(1);
+        }
+        // Blocks must be added to the chain without holding the lock of the peer group, which peer threads take after
+        // the locks of the chain and the wallets.
+        final AtomicBoolean addedUnderLock = new AtomicBoolean();
+        blockChain.addNewBestBlockListener(Threading.SAME_THREAD, new NewBestBlockListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) {
+                if (peerGroup.lock.isHeldByCurrentThread())
+                    addedUnderLock.set(true);
+            }
+        });
+        // Now only the headers are needed, so the download completes without any bodies.
+        peerGroup.setFastCatchupTimeSecs(Utils.currentTimeSeconds() + CHAIN_LENGTH + 1);
+        while (blockChain.getBestChainHeight() < CHAIN_LENGTH) {
+            assertTrue("Download didn't finish, at height " + blockChain.getBestChainHeight(),
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals(remoteChain.get(CHAIN_LENGTH - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertFalse(addedUnderLock.get());
+        assertEquals(0, standIn.blocksRequested);
+    }
+
+    // Answers the requests of the peers until the chain has caught up. When nothing happens, time is moved on so the
+    // download gives up on the requests that weren't answered.
+    private void serveUntilSynced(StandIn[] standIns) throws Exception {
+        long deadline = System.currentTimeMillis() + 30 * 1000;
+        long idleSince = System.currentTimeMillis();
+        while (blockChain.getBestChainHeight() < CHAIN_LENGTH) {
+            assertTrue("Download didn't finish, at height " + blockChain.getBestChainHeight(),
+                    System.currentTimeMillis() < deadline);
+            boolean busy = false;
+            for (StandIn standIn : standIns)
+                busy |= standIn.serve();
+            if (busy) {
+                idleSince = System.currentTimeMillis();
+            } else if (System.currentTimeMillis() - idleSince > 200) {
+                Utils.rollMockClockMillis(HeadersFirstDownload.REQUEST_TIMEOUT_MILLIS + 1);
+                idleSince = System.currentTimeMillis();
+            } else {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    // A remote peer that has the whole chain and sends the blocks of each request in reverse order.
+    private class StandIn {
+        final InboundMessageQueuer channel;
+        boolean silent;
+        int headerRequests, blocksRequested, blocksServed;
+
+        StandIn(InboundMessageQueuer channel) {
+            this.channel = channel;
+        }
+
+        boolean serve() throws Exception {
+            Message m = channel.nextMessage();
+            if (m == null)
+                return false;
+            if (m instanceof GetHeadersMessage) {
+                headerRequests++;
+                int start = 0;
+                for (Sha256Hash hash : ((GetHeadersMessage) m).getLocator()) {
+                    Block known = remoteBlocks.get(hash);
+                    if (known != null) {
+                        start = remoteChain.indexOf(known) + 1;
+                        break;
+                    }
+                }
+                List<Block> headers = new ArrayList<>();
+                for (int i = start; i < remoteChain.size() && headers.size() < HeadersMessage.MAX_HEADERS; i++)
+                    headers.add(remoteChain.get(i).cloneAsHeader());
+                inbound(channel, new HeadersMessage(UNITTEST, headers));
+            } else if (m instanceof GetDataMessage) {
+                List<InventoryItem> items = new ArrayList<>(((GetDataMessage) m).getItems());
+                blocksRequested += items.size();
+                if (silent)
+                    return true;
+                Collections.reverse(items);
+                for (InventoryItem item : items) {
+                    Block block = remoteBlocks.get(item.hash);
+                    if (item.type == InventoryItem.Type.FilteredBlock) {
+                        FilteredBlock filteredBlock = channel.lastReceivedFilter.applyAndUpdate(block);
+                        inbound(channel, filteredBlock);
+                        for (Transaction tx : filteredBlock.getAssociatedTransactions().values())
+                            inbound(channel, tx);
+                    } else {
+                        inbound(channel, block);
+                    }
+                    blocksServed++;
+                }
+            } else if (m instanceof Ping) {
+                inbound(channel, new Pong(((Ping) m).getNonce()));
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "StandIn{" + channel.peer + "}";
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Computes the Merkle root of a block with many transactions, node by node with a new {@link MessageDigest} each (as
+ * {@link Block} used to), node by node with {@link Sha256Hash#hashTwice(byte[], int, int, byte[], int, int)}, and
+ * level by level with each implementation of {@link Sha256Hash#hashTwice64(byte[], int, byte[], int, int)}. It is not
+ * an automated unit-test, run it manually with the test classpath:
+ * {@code MerkleRootBenchmark [transactions=4000] [iterations=500]}
+ */
+public class MerkleRootBenchmark {
+    public static void main(String[] args) throws Exception {
+        int numTransactions = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        byte[][] leaves = new byte[numTransactions][32];
+        Random random = new Random(0);
+        for (byte[] leaf : leaves)
+            random.nextBytes(leaf);
+
+        System.out.println("Java " + System.getProperty("java.version") + ", " + numTransactions
+                + " transactions, default engine " + Sha256d64.INSTANCE);
+        System.out.println("method                          root (us)");
+        byte[] expected = null;
+        for (int method = 0; method < 4; method++) {
+            long nanos = 0;
+            byte[] root = null;
+            // The first half warms up.
+            for (int i = 0; i < iterations * 2; i++) {
+                long start = System.nanoTime();
+                root = method < 2 ? rootByNode(leaves, method == 0) : rootByLevel(leaves,
+                        method == 2 ? Sha256d64.DIGEST : Sha256d64.PURE_JAVA);
+                if (i >= iterations)
+                    nanos += System.nanoTime() - start;
+            }
+            if (expected == null)
+                expected = root;
+            else if (!Arrays.equals(expected, root))
+                throw new IllegalStateException("Roots differ");
+            String name = new String[] { "per node, new digest", "per node, thread-local digest",
+                    "per level, digest", "per level, java" }[method];
+            System.out.printf("%-30s %10.1f%n", name, nanos / 1e3 / iterations);
+        }
+    }
+
+    private static byte[] rootByNode(byte[][] leaves, boolean newDigest) {
+        byte[][] level = leaves;
+        while (level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < next.length; i++) {
+                byte[] left = level[i * 2], right = level[Math.min(i * 2 + 1, level.length - 1)];
+                if (newDigest) {
+                    MessageDigest digest = Sha256Hash.newDigest();
+                    digest.update(left);
+                    digest.update(right);
+                    next[i] = digest.digest(digest.digest());
+                } else {
+                    next[i] = Sha256Hash.hashTwice(left, 0, 32, right, 0, 32);
+                }
+            }
+            level = next;
+        }
+        return level[0];
+    }
+
+    private static byte[] rootByLevel(byte[][] leaves, Sha256d64 engine) {
+        int levelSize = leaves.length;
+        byte[] level = new byte[(levelSize + 1) / 2 * 2 * 32];
+        for (int i = 0; i < levelSize; i++)
+            System.arraycopy(leaves[i], 0, level, i * 32, 32);
+        while (levelSize > 1) {
+            if (levelSize % 2 == 1)
+                System.arraycopy(level, (levelSize - 1) * 32, level, levelSize * 32, 32);
+            levelSize = (levelSize + 1) / 2;
+            engine.hash(level, 0, level, 0, levelSize);
+        }
+        return Arrays.copyOf(level, 32);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.io.ByteStreams;
+import org.bitcoinj.params.MainNetParams;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Measures the bytes allocated and the time taken to deserialize a block and an inventory message, both the way a
+ * message is read from a connection's read buffer and the way {@link PeerSocketHandler} hands over the buffer of a
+ * message that didn't fit into it. It is not an automated unit-test, run it manually with the test classpath on a
+ * HotSpot JVM: {@code MessageParsingBenchmark [iterations=2000]}
+ */
+public class MessageParsingBenchmark {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        new Context(PARAMS);
+        BitcoinSerializer serializer = new BitcoinSerializer(PARAMS, false);
+
+        byte[] blockPayload = ByteStreams.toByteArray(MessageParsingBenchmark.class.getResourceAsStream("block169482.dat"));
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            inv.addItem(new InventoryItem(InventoryItem.Type.Transaction, Sha256Hash.wrap(hash)));
+        }
+
+        System.out.println("message                     bytes allocated   time (us)");
+        run("block, from read buffer", serializer, "block", blockPayload, false, iterations);
+        run("block, handed over", serializer, "block", blockPayload, true, iterations);
+        run("inv (1000 items)", serializer, "inv", inv.bitcoinSerialize(), false, iterations);
+    }
+
+    private static void run(String name, BitcoinSerializer serializer, String command, byte[] payload,
+                            boolean handOver, int iterations) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(command, payload, bos);
+        byte[] message = bos.toByteArray();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocated = 0, nanos = 0;
+        // The first half warms up.
+        for (int i = 0; i < iterations * 2; i++) {
+            ByteBuffer buffer = ByteBuffer.wrap(message);
+            byte[] copy = handOver ? payload.clone() : null;
+            long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            Message parsed;
+            if (handOver) {
+                serializer.seekPastMagicBytes(buffer);
+                parsed = serializer.deserializePayload(serializer.deserializeHeader(buffer), copy);
+            } else {
+                parsed = serializer.deserialize(buffer);
+            }
+            // Everything that receives a block needs the transaction hashes, if only to check the merkle root.
+            if (parsed instanceof Block)
+                for (Transaction tx : ((Block) parsed).getTransactions())
+                    tx.getHash();
+            if (i >= iterations) {
+                nanos += System.nanoTime() - start;
+                allocated += threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            }
+        }
+        System.out.printf("%-26s %16d   %9.1f%n", name, allocated / iterations, nanos / 1e3 / iterations);
+    }
+}
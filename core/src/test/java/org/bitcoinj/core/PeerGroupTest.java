@@ -65,7 +65,8 @@ public class PeerGroupTest extends TestWithPeerGroup {
     @Parameterized.Parameters
     public static Collection<ClientType[]> parameters() {
         return Arrays.asList(new ClientType[] {ClientType.NIO_CLIENT_MANAGER},
-                             new ClientType[] {ClientType.BLOCKING_CLIENT_MANAGER});
+                             new ClientType[] {ClientType.BLOCKING_CLIENT_MANAGER},
+                             new ClientType[] {ClientType.SHARDED_NIO_CLIENT_MANAGER});
     }
 
     public PeerGroupTest(ClientType clientType) {
@@ -70,7 +70,8 @@ public class PeerTest extends TestWithNetworkConnections {
         return Arrays.asList(new ClientType[] {ClientType.NIO_CLIENT_MANAGER},
                              new ClientType[] {ClientType.BLOCKING_CLIENT_MANAGER},
                              new ClientType[] {ClientType.NIO_CLIENT},
-                             new ClientType[] {ClientType.BLOCKING_CLIENT});
+                             new ClientType[] {ClientType.BLOCKING_CLIENT},
+                             new ClientType[] {ClientType.SHARDED_NIO_CLIENT_MANAGER});
     }
 
     public PeerTest(ClientType clientType) {
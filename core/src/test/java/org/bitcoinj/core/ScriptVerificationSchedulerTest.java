@@ -0,0 +1,105 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class ScriptVerificationSchedulerTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final Script SPENDABLE = new ScriptBuilder().smallNum(1).build();
+    private static final Script UNSPENDABLE = new ScriptBuilder().smallNum(0).build();
+    private static final Set<VerifyFlag> NO_FLAGS = EnumSet.noneOf(VerifyFlag.class);
+
+    private ForkJoinPool pool;
+    private ScriptVerificationScheduler scheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        // A single worker takes the inputs in the order they were submitted.
+        pool = new ForkJoinPool(1, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        scheduler = new ScriptVerificationScheduler(new Context(UNITTEST), pool);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void verifiesAllInputs() throws Exception {
+        ScriptVerificationScheduler.Batch batch = scheduler.newBatch();
+        for (int i = 0; i < 10; i++)
+            batch.add(transaction(i + 1), Collections.singletonList(SPENDABLE), NO_FLAGS);
+        batch.verify();
+        assertEquals(10, batch.getVerifiedCount());
+    }
+
+    @Test
+    public void stopsAtFirstFailure() throws Exception {
+        ScriptVerificationScheduler.Batch batch = scheduler.newBatch();
+        for (int i = 0; i < 20; i++)
+            batch.add(transaction(1), Collections.singletonList(SPENDABLE), NO_FLAGS);
+        // The most expensive input is verified first, so none of the others are.
+        batch.add(transaction(10), Collections.singletonList(UNSPENDABLE), NO_FLAGS);
+        try {
+            batch.verify();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(1, batch.getVerifiedCount());
+    }
+
+    @Test
+    public void verifiesInOrderOfDecreasingCost() throws Exception {
+        ScriptVerificationScheduler.Batch batch = scheduler.newBatch();
+        // Added first, but the cheapest input is verified last.
+        batch.add(transaction(1), Collections.singletonList(UNSPENDABLE), NO_FLAGS);
+        for (int i = 0; i < 20; i++)
+            batch.add(transaction(2 + i % 5), Collections.singletonList(SPENDABLE), NO_FLAGS);
+        try {
+            batch.verify();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(21, batch.getVerifiedCount());
+    }
+
+    // A transaction with one input and the given number of outputs, which makes up its cost.
+    private static Transaction transaction(int outputs) {
+        Transaction tx = new Transaction(UNITTEST);
+        tx.addInput(new TransactionInput(UNITTEST, tx, new byte[0],
+                new TransactionOutPoint(UNITTEST, 0, Sha256Hash.ZERO_HASH)));
+        for (int i = 0; i < outputs; i++)
+            tx.addOutput(Coin.COIN, SPENDABLE);
+        return tx;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class Sha256d64Test {
+    @Test
+    public void matchesHashTwice() {
+        Random random = new Random(0);
+        int count = 17;
+        byte[] input = new byte[count * 64 + 3];
+        random.nextBytes(input);
+        byte[] expected = new byte[count * 32];
+        for (int i = 0; i < count; i++)
+            System.arraycopy(Sha256Hash.hashTwice(input, 3 + i * 64, 64), 0, expected, i * 32, 32);
+
+        for (Sha256d64 engine : new Sha256d64[] { Sha256d64.DIGEST, Sha256d64.PURE_JAVA }) {
+            byte[] output = new byte[count * 32 + 5];
+            engine.hash(input, 3, output, 5, count);
+            assertArrayEquals(engine.toString(), expected, Arrays.copyOfRange(output, 5, output.length));
+
+            // In place, as the Merkle tree uses it.
+            byte[] inPlace = Arrays.copyOf(input, input.length);
+            engine.hash(inPlace, 3, inPlace, 3, count);
+            assertArrayEquals(engine.toString(), expected, Arrays.copyOfRange(inPlace, 3, 3 + count * 32));
+        }
+    }
+}
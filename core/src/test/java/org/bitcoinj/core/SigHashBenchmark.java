@@ -0,0 +1,70 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+
+/**
+ * Measures the cost of calculating the signature hashes of all inputs of large consolidation transactions, once with
+ * a {@link SigHashContext} shared by all inputs and once with the context rebuilt for every input, which is what
+ * {@link Transaction#hashForSignature(int, byte[], byte)} used to cost. It is not an automated unit-test, run it
+ * manually with the test classpath: {@code SigHashBenchmark [rounds=5]}
+ */
+public class SigHashBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        new Context(PARAMS);
+        byte[] connectedScript = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, new ECKey())).getProgram();
+        System.out.println("inputs     shared (ms)   per input (us)   rebuilt (ms)   per input (us)");
+        for (int numInputs : new int[] { 10, 100, 250, 500, 1000 }) {
+            Transaction tx = createConsolidation(numInputs);
+            long shared = Long.MAX_VALUE, rebuilt = Long.MAX_VALUE;
+            for (int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                SigHashContext context = tx.getSigHashContext();
+                for (int i = 0; i < numInputs; i++)
+                    context.hashForSignature(i, connectedScript, Transaction.SigHash.ALL.byteValue());
+                shared = Math.min(shared, System.nanoTime() - start);
+                tx.invalidateSigHashContext();
+
+                start = System.nanoTime();
+                for (int i = 0; i < numInputs; i++) {
+                    tx.invalidateSigHashContext();
+                    tx.hashForSignature(i, connectedScript, Transaction.SigHash.ALL.byteValue());
+                }
+                rebuilt = Math.min(rebuilt, System.nanoTime() - start);
+            }
+            System.out.printf("%6d   %12.2f   %14.2f   %12.2f   %14.2f%n", numInputs,
+                    shared / 1e6, shared / 1e3 / numInputs, rebuilt / 1e6, rebuilt / 1e3 / numInputs);
+        }
+    }
+
+    private static Transaction createConsolidation(int numInputs) {
+        Transaction tx = new Transaction(PARAMS);
+        for (int i = 0; i < numInputs; i++) {
+            // A typical P2PKH scriptSig: a 72 byte signature and a 33 byte compressed key.
+            byte[] scriptSig = new ScriptBuilder().data(new byte[72]).data(new byte[33]).build().getProgram();
+            tx.addInput(new TransactionInput(PARAMS, tx, scriptSig,
+                    new TransactionOutPoint(PARAMS, i, Sha256Hash.of(Utils.HEX.decode(String.format("%08x", i))))));
+        }
+        tx.addOutput(Coin.COIN, LegacyAddress.fromKey(PARAMS, new ECKey()));
+        return tx;
+    }
+}
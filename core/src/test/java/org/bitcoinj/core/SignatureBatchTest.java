@@ -0,0 +1,60 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class SignatureBatchTest {
+    @Test
+    public void verify() {
+        // Fewer checks than the initial capacity, so that adding them has to grow the buffer.
+        SignatureBatch batch = new SignatureBatch(2);
+        ECKey key = new ECKey();
+        int count = 50;
+        for (int i = 0; i < count; i++) {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i });
+            ECKey.ECDSASignature signature = key.sign(hash);
+            if (i % 7 == 3)
+                hash = Sha256Hash.of(new byte[] { (byte) (i + 1) }); // signature of the wrong data
+            byte[] pubKey = i % 11 == 5 ? new byte[] { 2, 3, 4 } : key.getPubKey(); // undecodable key
+            assertEquals(i, batch.add(hash.getBytes(), signature, pubKey));
+        }
+        assertEquals(count, batch.size());
+
+        boolean[] sequential = batch.verify(null);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        boolean[] parallel = batch.verify(pool);
+        pool.shutdown();
+        for (int i = 0; i < count; i++) {
+            boolean expected = i % 7 != 3 && i % 11 != 5;
+            assertEquals("check " + i, expected, sequential[i]);
+            assertEquals("check " + i, expected, parallel[i]);
+        }
+        assertEquals(3, batch.verifyAll(null));
+    }
+
+    @Test
+    public void empty() {
+        SignatureBatch batch = new SignatureBatch();
+        assertEquals(0, batch.verify(null).length);
+        assertEquals(-1, batch.verifyAll(null));
+    }
+}
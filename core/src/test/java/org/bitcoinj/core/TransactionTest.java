@@ -436,4 +436,83 @@ public class TransactionTest {
             };
         }
     }
+
+    @Test
+    public void sigHashContextMatchesCopiedTransaction() {
+        Transaction tx = new Transaction(UNITTEST);
+        for (int i = 0; i < 5; i++) {
+            TransactionInput input = tx.addInput(Sha256Hash.of(new byte[] { (byte) i }), i, new ScriptBuilder().number(i).build());
+            input.setSequenceNumber(TransactionInput.NO_SEQUENCE - i);
+        }
+        for (int i = 0; i < 3; i++)
+            tx.addOutput(Coin.valueOf(i + 1, 0), ADDRESS);
+        tx.setLockTime(1234);
+        byte[] connectedScript = ScriptBuilder.createOutputScript(ADDRESS).getProgram();
+        byte[] sigHashTypes = { 0, 1, 2, 3, 4, (byte) 0x81, (byte) 0x82, (byte) 0x83 };
+        for (byte sigHashType : sigHashTypes)
+            for (int i = 0; i < tx.getInputs().size(); i++)
+                assertEquals(copiedHashForSignature(tx, i, connectedScript, sigHashType),
+                        tx.hashForSignature(i, connectedScript, sigHashType));
+    }
+
+    @Test
+    public void sigHashContextInvalidation() {
+        Transaction tx = FakeTxBuilder.createFakeTx(UNITTEST);
+        byte[] connectedScript = ScriptBuilder.createOutputScript(ADDRESS).getProgram();
+        SigHashContext context = tx.getSigHashContext();
+        Sha256Hash hash = context.hashForSignature(0, connectedScript, Transaction.SigHash.ALL.byteValue());
+
+        // Input scripts are cleared for hashing, so setting them must not rebuild the context.
+        tx.getInput(0).setScriptSig(new ScriptBuilder().data(new byte[71]).build());
+        assertSame(context, tx.getSigHashContext());
+
+        tx.getInput(0).setSequenceNumber(0);
+        assertNotSame(context, tx.getSigHashContext());
+        assertNotEquals(hash, tx.hashForSignature(0, connectedScript, Transaction.SigHash.ALL.byteValue()));
+
+        context = tx.getSigHashContext();
+        tx.getOutput(0).setValue(Coin.SATOSHI);
+        assertNotSame(context, tx.getSigHashContext());
+        assertEquals(copiedHashForSignature(tx, 0, connectedScript, Transaction.SigHash.ALL.byteValue()),
+                tx.hashForSignature(0, connectedScript, Transaction.SigHash.ALL.byteValue()));
+    }
+
+    /** Calculates the legacy signature hash by modifying a copy of the transaction, as described by the protocol. */
+    private static Sha256Hash copiedHashForSignature(Transaction original, int inputIndex, byte[] connectedScript,
+                                                     byte sigHashType) {
+        Transaction tx = new Transaction(UNITTEST, original.bitcoinSerialize());
+        List<TransactionInput> inputs = new ArrayList<>(tx.getInputs());
+        List<TransactionOutput> outputs = new ArrayList<>(tx.getOutputs());
+        for (TransactionInput input : inputs)
+            input.clearScriptBytes();
+        inputs.get(inputIndex).setScriptBytes(connectedScript);
+        int baseType = sigHashType & 0x1f;
+        if (baseType == Transaction.SigHash.NONE.value || baseType == Transaction.SigHash.SINGLE.value) {
+            if (baseType == Transaction.SigHash.NONE.value) {
+                outputs.clear();
+            } else {
+                if (inputIndex >= outputs.size())
+                    return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+                outputs = new ArrayList<>(outputs.subList(0, inputIndex + 1));
+                for (int i = 0; i < inputIndex; i++)
+                    outputs.set(i, new TransactionOutput(UNITTEST, null, Coin.NEGATIVE_SATOSHI, new byte[0]));
+            }
+            for (int i = 0; i < inputs.size(); i++)
+                if (i != inputIndex)
+                    inputs.get(i).setSequenceNumber(0);
+        }
+        if ((sigHashType & Transaction.SigHash.ANYONECANPAY.value) != 0)
+            inputs = Collections.singletonList(inputs.get(inputIndex));
+        Transaction copy = new Transaction(UNITTEST);
+        copy.setVersion((int) tx.getVersion());
+        for (TransactionInput input : inputs)
+            copy.addInput(input.duplicateDetached());
+        for (TransactionOutput output : outputs)
+            copy.addOutput(new TransactionOutput(UNITTEST, null, output.getValue(), output.getScriptBytes()));
+        copy.setLockTime(tx.getLockTime());
+        byte[] serialized = copy.bitcoinSerialize();
+        byte[] withType = Arrays.copyOf(serialized, serialized.length + 4);
+        Utils.uint32ToByteArrayLE(0x000000ff & sigHashType, withType, serialized.length);
+        return Sha256Hash.twiceOf(withType);
+    }
 }
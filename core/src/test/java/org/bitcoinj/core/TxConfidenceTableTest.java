@@ -21,6 +21,7 @@ import org.bitcoinj.testing.*;
 import org.bitcoinj.utils.*;
 import org.junit.*;
 
+import java.math.*;
 import java.net.*;
 
 import static org.bitcoinj.core.Coin.*;
@@ -99,4 +100,43 @@ public class TxConfidenceTableTest {
         assertEquals(3, tx2.getConfidence().numBroadcastPeers());
         assertEquals(3, table.numBroadcastPeers(tx1.getHash()));
     }
+
+    @Test
+    public void depthFollowsNewBestBlocks() throws Exception {
+        TransactionConfidence confidence = table.getOrCreate(tx1.getHash());
+        assertTrue(table.newBestBlock(block(10, 10)));
+        assertEquals(0, confidence.getDepthInBlocks());
+        confidence.setAppearedAtChainHeight(10);
+        assertEquals(1, confidence.getDepthInBlocks());
+        assertTrue(table.newBestBlock(block(11, 11)));
+        assertEquals(2, confidence.getDepthInBlocks());
+        // Another wallet reporting the same block, or one that is still catching up.
+        assertFalse(table.newBestBlock(block(11, 11)));
+        assertFalse(table.newBestBlock(block(5, 5)));
+        assertEquals(2, confidence.getDepthInBlocks());
+        assertEquals(11, table.getBestChainHeight());
+
+        // A depth that was set directly is as of the height it implies.
+        confidence.setDepthInBlocks(5);
+        assertEquals(5, confidence.getDepthInBlocks());
+        assertTrue(table.newBestBlock(block(15, 15)));
+        assertEquals(6, confidence.getDepthInBlocks());
+        assertEquals(7, confidence.incrementDepthInBlocks());
+
+        // Appearing in a block the best chain isn't reported up to yet.
+        TransactionConfidence later = table.getOrCreate(Sha256Hash.of(new byte[] { 1 }));
+        later.setAppearedAtChainHeight(16);
+        assertEquals(1, later.getDepthInBlocks());
+        assertTrue(table.newBestBlock(block(17, 17)));
+        assertEquals(2, later.getDepthInBlocks());
+
+        confidence.setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
+        assertTrue(table.newBestBlock(block(18, 18)));
+        assertEquals(0, confidence.getDepthInBlocks());
+    }
+
+    // A block at the given height with the given chain work.
+    private static StoredBlock block(int height, long work) {
+        return new StoredBlock(UNITTEST.getGenesisBlock().cloneAsHeader(), BigInteger.valueOf(work), height);
+    }
 }
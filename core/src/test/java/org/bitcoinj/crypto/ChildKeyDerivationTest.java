@@ -22,6 +22,9 @@ import org.bitcoinj.params.*;
 import org.junit.*;
 import org.spongycastle.crypto.params.*;
 
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
 import static org.bitcoinj.core.Utils.*;
 import static org.junit.Assert.*;
 
@@ -138,6 +141,38 @@ public class ChildKeyDerivationTest {
         assertArrayEquals(key2.chainCode, key3.chainCode);
     }
 
+    @Test
+    public void deriveChildKeysEqualsOneByOne() throws Exception {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey("batches of keys".getBytes());
+        DeterministicKey account = HDKeyDerivation.deriveChildKey(master, ChildNumber.ZERO_HARDENED);
+        DeterministicKey watching = account.dropPrivateBytes().dropParent();
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            for (DeterministicKey parent : new DeterministicKey[] { account, watching }) {
+                for (ForkJoinPool p : new ForkJoinPool[] { null, pool }) {
+                    List<DeterministicKey> keys = HDKeyDerivation.deriveChildKeys(parent, 5, 300, p);
+                    assertEquals(300, keys.size());
+                    for (int i = 0; i < keys.size(); i++) {
+                        DeterministicKey expected = HDKeyDerivation.deriveChildKey(parent, 5 + i);
+                        DeterministicKey key = keys.get(i);
+                        assertEquals(parent == watching, key.isPubKeyOnly());
+                        assertEquals(expected.getPath(), key.getPath());
+                        assertArrayEquals(expected.getPubKey(), key.getPubKey());
+                        assertArrayEquals(expected.getChainCode(), key.getChainCode());
+                        assertEquals(expected.getPubKeyPoint(), key.getPubKeyPoint());
+                        assertSame(parent, key.getParent());
+                    }
+                }
+            }
+            // Private key bytes are still derived from a parent that has them.
+            DeterministicKey key = HDKeyDerivation.deriveChildKeys(account, 0, 1, null).get(0);
+            assertEquals(HDKeyDerivation.deriveChildKey(account, 0).getPrivKey(), key.getPrivKey());
+            assertTrue(HDKeyDerivation.deriveChildKeys(account, 0, 0, pool).isEmpty());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     @Test
     public void encryptedDerivation() throws Exception {
         // Check that encrypting a parent key in the hierarchy and then deriving from it yields a DeterministicKey
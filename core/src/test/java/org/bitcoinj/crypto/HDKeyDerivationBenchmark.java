@@ -0,0 +1,60 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Times deriving the public keys of many children of a spending and of a watching parent: one by one, the way lookahead
+ * used to, and with {@link HDKeyDerivation#deriveChildKeys(DeterministicKey, int, int, ForkJoinPool)} on the calling
+ * thread and on all processors. It is not an automated unit-test, run it manually with the test classpath and a large
+ * enough heap: {@code HDKeyDerivationBenchmark [keys=100000]}
+ */
+public class HDKeyDerivationBenchmark {
+    public static void main(String[] args) throws Exception {
+        int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey("benchmark seed bytes".getBytes());
+        DeterministicKey spending = HDKeyDerivation.deriveChildKey(master, ChildNumber.ZERO_HARDENED);
+        DeterministicKey watching = spending.dropPrivateBytes().dropParent();
+        ForkJoinPool pool = new ForkJoinPool();
+
+        System.out.println("Java " + System.getProperty("java.version") + ", "
+                + Runtime.getRuntime().availableProcessors() + " processors");
+        System.out.println("parent     one by one (ms)  batch (ms)  batch on pool (ms)");
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up.
+            for (DeterministicKey parent : new DeterministicKey[] { spending, watching }) {
+                long start = System.nanoTime();
+                for (int i = 0; i < numKeys; i++)
+                    HDKeyDerivation.deriveThisOrNextChildKey(parent, i).dropPrivateBytes().getPubKeyHash();
+                long oneByOne = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (DeterministicKey key : HDKeyDerivation.deriveChildKeys(parent, 0, numKeys, null))
+                    key.getPubKeyHash();
+                long batch = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (DeterministicKey key : HDKeyDerivation.deriveChildKeys(parent, 0, numKeys, pool))
+                    key.getPubKeyHash();
+                long onPool = System.nanoTime() - start;
+                if (round > 0)
+                    System.out.printf("%-10s %15.0f  %10.0f  %18.0f%n", parent == spending ? "spending" : "watching",
+                            oneByOne / 1e6, batch / 1e6, onPool / 1e6);
+            }
+        }
+        pool.shutdown();
+    }
+}
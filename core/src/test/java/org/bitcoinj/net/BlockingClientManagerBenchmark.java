@@ -0,0 +1,224 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.MainNetParams;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the memory and the latency of many connections to peers on the loopback interface for a
+ * {@link NioClientManager}, a {@link BlockingClientManager} on platform threads and, if the runtime has them, a
+ * {@link BlockingClientManager} on virtual threads. Once all are connected, every connection sends a ping at the same
+ * time, which the peer echoes. The peers run in the same process behind a {@link NioServer}, so their share of the
+ * memory is the same for every manager. Resident memory is only available on Linux. The file descriptor limit must
+ * be above twice the number of connections. It is not an automated unit-test, run it manually with the test classpath
+ * and a large enough heap: {@code BlockingClientManagerBenchmark [connections=1000,5000,10000]}
+ */
+public class BlockingClientManagerBenchmark {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress(InetAddress.getLoopbackAddress(), 4253);
+    private static final Semaphore accepted = new Semaphore(0);
+    private static final AtomicInteger open = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        String[] counts = (args.length > 0 ? args[0] : "1000,5000,10000").split(",");
+        new Context(PARAMS);
+
+        NioServer server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                return new Echo();
+            }
+        }, ADDRESS);
+        server.startAsync().awaitRunning();
+        try {
+            if (!BlockingClientManager.isVirtualThreadSupported())
+                System.out.println("Virtual threads aren't supported by this runtime, leaving them out");
+            System.out.println("client manager                  connections   heap KB/conn   direct KB/conn   RSS KB/conn"
+                    + "   threads   ping p50 (ms)   ping p99 (ms)");
+            for (String count : counts) {
+                int connections = Integer.parseInt(count.trim());
+                run("NioClientManager", new NioClientManager(), connections);
+                run("BlockingClientManager", new BlockingClientManager(), connections);
+                if (BlockingClientManager.isVirtualThreadSupported())
+                    run("BlockingClientManager, virtual",
+                            new BlockingClientManager(SocketFactory.getDefault(), true), connections);
+            }
+        } finally {
+            server.stopAsync().awaitTerminated();
+        }
+    }
+
+    private static void run(String name, ClientConnectionManager manager, int connections) throws Exception {
+        Footprint before = Footprint.measure();
+        manager.startAsync().awaitRunning();
+        try {
+            CountDownLatch connected = new CountDownLatch(connections);
+            CountDownLatch ponged = new CountDownLatch(connections);
+            Pinger[] pingers = new Pinger[connections];
+            for (int i = 0; i < connections; i++) {
+                pingers[i] = new Pinger(connected, ponged);
+                manager.openConnection(ADDRESS, pingers[i]);
+                // Connect one by one, connections beyond the server's backlog would be dropped.
+                if (!accepted.tryAcquire(10, TimeUnit.SECONDS))
+                    throw new IllegalStateException("Connection " + i + " wasn't accepted");
+            }
+            if (!connected.await(1, TimeUnit.MINUTES))
+                throw new IllegalStateException("Timed out with " + connected.getCount() + " connections not open");
+            Footprint after = Footprint.measure();
+
+            for (Pinger pinger : pingers)
+                pinger.ping();
+            if (!ponged.await(5, TimeUnit.MINUTES))
+                throw new IllegalStateException("Timed out with " + ponged.getCount() + " pings not answered");
+            long[] latencies = new long[connections];
+            for (int i = 0; i < connections; i++)
+                latencies[i] = pingers[i].latencyNanos;
+            Arrays.sort(latencies);
+
+            System.out.println(String.format("%-31s %11d %14.1f %16.1f %13s %9d %15.2f %15.2f", name, connections,
+                    (after.heap - before.heap) / 1024.0 / connections,
+                    (after.direct - before.direct) / 1024.0 / connections,
+                    before.rss >= 0 ? String.format("%.1f", (after.rss - before.rss) / 1024.0 / connections) : "n/a",
+                    after.threads - before.threads, latencies[connections / 2] / 1e6,
+                    latencies[connections * 99 / 100] / 1e6));
+        } finally {
+            manager.stopAsync().awaitTerminated();
+            // Let the peers notice, so that the next run starts from the same footprint.
+            long deadline = System.currentTimeMillis() + 60000;
+            while (open.get() > 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(50);
+        }
+    }
+
+    private static class Footprint {
+        long heap, direct, rss;
+        int threads;
+
+        static Footprint measure() throws InterruptedException {
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+                Thread.sleep(100);
+            }
+            Footprint footprint = new Footprint();
+            Runtime runtime = Runtime.getRuntime();
+            footprint.heap = runtime.totalMemory() - runtime.freeMemory();
+            for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+                if (pool.getName().equals("direct"))
+                    footprint.direct = pool.getMemoryUsed();
+            footprint.rss = residentBytes();
+            footprint.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            return footprint;
+        }
+
+        // Returns the resident memory of this process, or -1 if not known.
+        private static long residentBytes() {
+            try {
+                for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII))
+                    if (line.startsWith("VmRSS:"))
+                        return Long.parseLong(line.substring(6).replace("kB", "").trim()) * 1024;
+            } catch (IOException e) {
+                // Not on Linux.
+            }
+            return -1;
+        }
+    }
+
+    private static class Pinger extends PeerSocketHandler {
+        private final CountDownLatch connected, ponged;
+        private volatile long sentNanos;
+        volatile long latencyNanos;
+
+        Pinger(CountDownLatch connected, CountDownLatch ponged) {
+            super(PARAMS, ADDRESS);
+            this.connected = connected;
+            this.ponged = ponged;
+        }
+
+        void ping() {
+            sentNanos = System.nanoTime();
+            sendMessage(new Ping(sentNanos));
+        }
+
+        @Override
+        protected void processMessage(Message m) {
+            if (m instanceof Ping) {
+                latencyNanos = System.nanoTime() - sentNanos;
+                ponged.countDown();
+            }
+        }
+
+        @Override
+        public void connectionOpened() {
+            connected.countDown();
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+    }
+
+    // Sends back whatever it receives.
+    private static class Echo implements StreamConnection {
+        private MessageWriteTarget writeTarget;
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) throws Exception {
+            byte[] bytes = new byte[buff.remaining()];
+            buff.get(bytes);
+            writeTarget.writeBytes(bytes);
+            return buff.position();
+        }
+
+        @Override
+        public void connectionOpened() {
+            open.incrementAndGet();
+            accepted.release();
+        }
+
+        @Override
+        public void connectionClosed() {
+            open.decrementAndGet();
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+            this.writeTarget = writeTarget;
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return 4096;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ConnectionHandlerTest {
+    private Selector selector;
+    private ShortWriteChannel channel;
+    private TestKey key;
+    private TestConnection connection;
+    private Set<ConnectionHandler> handlers;
+    private ConnectionHandler handler;
+    private ByteArrayOutputStream expected;
+
+    @Before
+    public void setUp() throws Exception {
+        ConnectionHandler.bufferPool.clear();
+        selector = Selector.open();
+        channel = new ShortWriteChannel();
+        key = new TestKey(channel, selector);
+        connection = new TestConnection();
+        handlers = new HashSet<>();
+        handler = new ConnectionHandler(connection, key, handlers);
+        key.attach(handler);
+        expected = new ByteArrayOutputStream();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        selector.close();
+    }
+
+    @Test
+    public void appendsToPartlyWrittenBuffer() throws Exception {
+        write(100);
+        assertEquals(1, key.wakeups);
+        assertTrue(key.writing());
+
+        channel.accept = 30;
+        ConnectionHandler.handleKey(key);
+        assertEquals(30, channel.output.size());
+        assertTrue(key.writing());
+
+        // Goes into the same pooled buffer, after the bytes that weren't written yet, without waking up the selector.
+        int wakeups = key.wakeups;
+        write(100);
+        assertEquals(wakeups, key.wakeups);
+        channel.accept = Integer.MAX_VALUE;
+        ConnectionHandler.handleKey(key);
+        assertArrayEquals(expected.toByteArray(), channel.output.toByteArray());
+        assertEquals(Arrays.asList(1, 1), channel.buffersPerWrite);
+        assertFalse(key.writing());
+        assertEquals(1, ConnectionHandler.bufferPool.size());
+
+        // Once the queue is empty, the next message wakes up the selector again and reuses the buffer.
+        write(100);
+        assertEquals(wakeups + 1, key.wakeups);
+        assertTrue(key.writing());
+        assertEquals(0, ConnectionHandler.bufferPool.size());
+        ConnectionHandler.handleKey(key);
+        assertArrayEquals(expected.toByteArray(), channel.output.toByteArray());
+        assertFalse(key.writing());
+        assertEquals(1, ConnectionHandler.bufferPool.size());
+    }
+
+    @Test
+    public void fullBufferStartsAnother() throws Exception {
+        // Four of these fit in a pooled buffer.
+        int size = ConnectionHandler.POOLED_BUFFER_SIZE / 4 - 10;
+        for (int i = 0; i < 5; i++)
+            write(size);
+        assertEquals(1, key.wakeups);
+        channel.accept = Integer.MAX_VALUE;
+        ConnectionHandler.handleKey(key);
+        assertArrayEquals(expected.toByteArray(), channel.output.toByteArray());
+        assertEquals(Arrays.asList(2), channel.buffersPerWrite);
+        assertEquals(2, ConnectionHandler.bufferPool.size());
+    }
+
+    @Test
+    public void batchesWrites() throws Exception {
+        int messages = ConnectionHandler.MAX_BUFFERS_PER_WRITE * 2 + 10;
+        int size = ConnectionHandler.SMALL_MESSAGE_SIZE + 1;
+        for (int i = 0; i < messages; i++)
+            write(size);
+        assertEquals(1, key.wakeups);
+
+        // Each write is handed as many of the remaining buffers as allowed, however few bytes it takes.
+        channel.accept = size * 50 + 7;
+        int remaining = messages;
+        while (key.writing()) {
+            int writes = channel.buffersPerWrite.size();
+            ConnectionHandler.handleKey(key);
+            assertEquals(writes + 1, channel.buffersPerWrite.size());
+            assertEquals(Math.min(remaining, ConnectionHandler.MAX_BUFFERS_PER_WRITE),
+                    (int) channel.buffersPerWrite.get(writes));
+            remaining = messages - channel.output.size() / size;
+        }
+        assertArrayEquals(expected.toByteArray(), channel.output.toByteArray());
+        // Large messages are queued as they are and not pooled.
+        assertEquals(0, ConnectionHandler.bufferPool.size());
+    }
+
+    @Test
+    public void writesAllWhenChannelTakesEverything() throws Exception {
+        int messages = ConnectionHandler.MAX_BUFFERS_PER_WRITE + 1;
+        for (int i = 0; i < messages; i++)
+            write(ConnectionHandler.SMALL_MESSAGE_SIZE + 1);
+        channel.accept = Integer.MAX_VALUE;
+        ConnectionHandler.handleKey(key);
+        assertArrayEquals(expected.toByteArray(), channel.output.toByteArray());
+        assertEquals(Arrays.asList(ConnectionHandler.MAX_BUFFERS_PER_WRITE, 1), channel.buffersPerWrite);
+        assertFalse(key.writing());
+    }
+
+    @Test
+    public void closeReturnsBuffers() throws Exception {
+        int size = ConnectionHandler.POOLED_BUFFER_SIZE / 4 - 10;
+        for (int i = 0; i < 5; i++)
+            write(size);
+        write(ConnectionHandler.SMALL_MESSAGE_SIZE + 1);
+        assertEquals(0, ConnectionHandler.bufferPool.size());
+        assertEquals(1, handlers.size());
+
+        handler.closeConnection();
+        assertEquals(0, channel.output.size());
+        assertEquals(2, ConnectionHandler.bufferPool.size());
+        assertFalse(channel.isOpen());
+        assertTrue(connection.closed);
+        assertTrue(handlers.isEmpty());
+        for (ByteBuffer buff : ConnectionHandler.bufferPool) {
+            assertEquals(0, buff.position());
+            assertEquals(buff.capacity(), buff.limit());
+        }
+    }
+
+    private void write(int size) throws IOException {
+        byte[] message = new byte[size];
+        for (int i = 0; i < size; i++)
+            message[i] = (byte) (expected.size() + i);
+        expected.write(message);
+        handler.writeBytes(message);
+    }
+
+    // Takes at most accept bytes per write and records them.
+    private static class ShortWriteChannel extends SocketChannel {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final List<Integer> buffersPerWrite = new ArrayList<>();
+        int accept;
+
+        ShortWriteChannel() {
+            super(SelectorProvider.provider());
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            buffersPerWrite.add(length);
+            int written = 0;
+            for (int i = offset; i < offset + length && written < accept; i++) {
+                byte[] bytes = new byte[Math.min(srcs[i].remaining(), accept - written)];
+                srcs[i].get(bytes);
+                output.write(bytes, 0, bytes.length);
+                written += bytes.length;
+            }
+            return written;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[] { src }, 0, 1);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            return 0;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) {
+            return 0;
+        }
+
+        @Override
+        public SocketChannel bind(SocketAddress local) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> SocketChannel setOption(SocketOption<T> name, T value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> T getOption(SocketOption<T> name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Set<SocketOption<?>> supportedOptions() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SocketChannel shutdownInput() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SocketChannel shutdownOutput() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket socket() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean isConnectionPending() {
+            return false;
+        }
+
+        @Override
+        public boolean connect(SocketAddress remote) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean finishConnect() {
+            return true;
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public SocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        protected void implCloseSelectableChannel() {
+        }
+
+        @Override
+        protected void implConfigureBlocking(boolean block) {
+        }
+    }
+
+    // Always ready to write, and counts how often the selector was woken up.
+    private static class TestKey extends SelectionKey {
+        private final SocketChannel channel;
+        private final Selector selector;
+        private int interestOps = SelectionKey.OP_READ;
+        private boolean cancelled;
+        int wakeups;
+
+        TestKey(SocketChannel channel, Selector selector) {
+            this.channel = channel;
+            this.selector = selector;
+        }
+
+        boolean writing() {
+            return (interestOps & SelectionKey.OP_WRITE) != 0;
+        }
+
+        @Override
+        public SelectableChannel channel() {
+            return channel;
+        }
+
+        @Override
+        public Selector selector() {
+            wakeups++;
+            return selector;
+        }
+
+        @Override
+        public boolean isValid() {
+            return !cancelled;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public int interestOps() {
+            return interestOps;
+        }
+
+        @Override
+        public SelectionKey interestOps(int ops) {
+            interestOps = ops;
+            return this;
+        }
+
+        @Override
+        public int readyOps() {
+            return SelectionKey.OP_WRITE;
+        }
+    }
+
+    private static class TestConnection implements StreamConnection {
+        boolean closed;
+
+        @Override
+        public void connectionClosed() {
+            closed = true;
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            return 0;
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return 1024;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.MainNetParams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the bytes allocated, the write system calls and the time it takes to send small messages (inv, getdata and
+ * ping) to a peer on the loopback interface through a {@link NioClientManager}. The messages are sent in bursts, the
+ * next burst once the peer got the last one. Allocations are counted over all threads, write system calls (which
+ * include waking up the selector) are read from {@code /proc/self/io} and only available on Linux. It is not an
+ * automated unit-test, run it manually with the test classpath on a HotSpot JVM:
+ * {@code MessageWriteBenchmark [messages=30000]}
+ */
+public class MessageWriteBenchmark {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress(InetAddress.getLoopbackAddress(), 4252);
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 30000;
+        new Context(PARAMS);
+
+        Random random = new Random(0);
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        inv.addItem(new InventoryItem(InventoryItem.Type.Transaction, Sha256Hash.wrap(hash)));
+        GetDataMessage getData = new GetDataMessage(PARAMS);
+        getData.addItem(new InventoryItem(InventoryItem.Type.Transaction, Sha256Hash.wrap(hash)));
+        Message[] mix = { inv, getData, new Ping(random.nextLong()) };
+        int[] sizes = new int[mix.length];
+        for (int i = 0; i < mix.length; i++) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            PARAMS.getDefaultSerializer().serialize(mix[i], bos);
+            sizes[i] = bos.size();
+        }
+
+        final AtomicLong received = new AtomicLong();
+        NioServer server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                return new Sink(received);
+            }
+        }, ADDRESS);
+        server.startAsync().awaitRunning();
+        NioClientManager manager = new NioClientManager();
+        manager.startAsync().awaitRunning();
+        try {
+            Sender sender = new Sender();
+            manager.openConnection(ADDRESS, sender).get();
+            System.out.println(messages + " messages, burst   bytes allocated/msg   write syscalls/msg   time/msg (us)");
+            for (int burst : new int[] { 1, 10, 100 }) {
+                // The first half warms up.
+                run(sender, mix, sizes, burst, messages, received, null);
+                run(sender, mix, sizes, burst, messages, received, String.valueOf(burst));
+            }
+        } finally {
+            manager.stopAsync().awaitTerminated();
+            server.stopAsync().awaitTerminated();
+        }
+    }
+
+    private static void run(Sender sender, Message[] mix, int[] sizes, int burst, int messages, AtomicLong received,
+                            String name) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = sum(threads.getThreadAllocatedBytes(threads.getAllThreadIds()));
+        long writesBefore = writeSyscalls();
+        long start = System.nanoTime();
+        long expected = received.get();
+        int sent = 0;
+        while (sent < messages) {
+            for (int i = 0; i < burst; i++, sent++) {
+                sender.sendMessage(mix[sent % mix.length]);
+                expected += sizes[sent % mix.length];
+            }
+            while (received.get() < expected)
+                Thread.yield();
+        }
+        long nanos = System.nanoTime() - start;
+        long writes = writeSyscalls() - writesBefore;
+        long allocated = sum(threads.getThreadAllocatedBytes(threads.getAllThreadIds())) - allocatedBefore;
+        if (name != null)
+            System.out.printf("%15s %21d %20s %15.1f%n", name, allocated / messages,
+                    writesBefore >= 0 ? String.format("%.2f", writes / (double) messages) : "n/a",
+                    nanos / 1e3 / messages);
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values)
+            if (value > 0)
+                sum += value;
+        return sum;
+    }
+
+    // Returns the number of write system calls of this process so far, or -1 if not known.
+    private static long writeSyscalls() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/io"), StandardCharsets.US_ASCII))
+                if (line.startsWith("syscw:"))
+                    return Long.parseLong(line.substring(6).trim());
+        } catch (IOException e) {
+            // Not on Linux.
+        }
+        return -1;
+    }
+
+    private static class Sender extends PeerSocketHandler {
+        Sender() {
+            super(PARAMS, ADDRESS);
+        }
+
+        @Override
+        protected void processMessage(Message m) {
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+    }
+
+    private static class Sink implements StreamConnection {
+        private final AtomicLong received;
+
+        Sink(AtomicLong received) {
+            this.received = received;
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            received.addAndGet(buff.remaining());
+            return buff.position(buff.limit()).position();
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return Message.MAX_SIZE;
+        }
+    }
+}
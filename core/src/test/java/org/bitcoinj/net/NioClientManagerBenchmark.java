@@ -0,0 +1,173 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.MainNetParams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many messages per second a client manager receives and parses from many connections to peers on the
+ * loopback interface, for a single {@link NioClientManager} and for a {@link ShardedNioClientManager}. Once all are
+ * connected, every peer sends the same number of inventory messages. It is not an automated unit-test, run it
+ * manually with the test classpath and a large enough heap:
+ * {@code NioClientManagerBenchmark [connections=200] [messages=500] [selectorThreads=cores]}
+ */
+public class NioClientManagerBenchmark {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress(InetAddress.getLoopbackAddress(), 4251);
+    private static final BlockingQueue<Sender> accepted = new LinkedBlockingQueue<>();
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int selectorThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        new Context(PARAMS);
+
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        Random random = new Random(0);
+        for (int i = 0; i < 50; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            inv.addItem(new InventoryItem(InventoryItem.Type.Transaction, Sha256Hash.wrap(hash)));
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        PARAMS.getDefaultSerializer().serialize(inv, bos);
+        byte[] message = bos.toByteArray();
+        final byte[] stream = new byte[message.length * messages];
+        for (int i = 0; i < messages; i++)
+            System.arraycopy(message, 0, stream, i * message.length, message.length);
+
+        NioServer server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                return new Sender(stream);
+            }
+        }, ADDRESS);
+        server.startAsync().awaitRunning();
+        try {
+            System.out.println(connections + " connections, " + messages + " messages of " + message.length
+                    + " bytes each");
+            System.out.println("client manager                       messages/s      MB/s");
+            for (int round = 0; round < 2; round++) {
+                run("NioClientManager", new NioClientManager(), connections, messages, stream.length);
+                run("ShardedNioClientManager, " + selectorThreads + " loops",
+                        new ShardedNioClientManager(selectorThreads), connections, messages, stream.length);
+            }
+        } finally {
+            server.stopAsync().awaitTerminated();
+        }
+    }
+
+    private static void run(String name, ClientConnectionManager manager, int connections, int messages,
+                            long bytesPerConnection) throws Exception {
+        manager.startAsync().awaitRunning();
+        try {
+            CountDownLatch done = new CountDownLatch(connections);
+            Sender[] senders = new Sender[connections];
+            for (int i = 0; i < connections; i++) {
+                manager.openConnection(ADDRESS, new Receiver(messages, done));
+                // Connect one by one, connections beyond the server's backlog would be dropped.
+                senders[i] = accepted.poll(10, TimeUnit.SECONDS);
+                if (senders[i] == null)
+                    throw new IllegalStateException("Connection " + i + " wasn't accepted");
+            }
+            long start = System.nanoTime();
+            for (Sender sender : senders)
+                sender.send();
+            if (!done.await(5, TimeUnit.MINUTES))
+                throw new IllegalStateException("Timed out with " + done.getCount() + " connections not done");
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("%-36s %10.0f %9.1f", name, connections * messages / seconds,
+                    connections * bytesPerConnection / seconds / 1e6));
+        } finally {
+            manager.stopAsync().awaitTerminated();
+        }
+    }
+
+    private static class Sender implements StreamConnection {
+        private final byte[] stream;
+        private MessageWriteTarget writeTarget;
+
+        Sender(byte[] stream) {
+            this.stream = stream;
+        }
+
+        void send() throws IOException {
+            writeTarget.writeBytes(stream);
+        }
+
+        @Override
+        public void connectionOpened() {
+            accepted.add(this);
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            return buff.position(buff.limit()).position();
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+            this.writeTarget = writeTarget;
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return Message.MAX_SIZE;
+        }
+    }
+
+    private static class Receiver extends PeerSocketHandler {
+        private final CountDownLatch done;
+        private int remaining;
+
+        Receiver(int messages, CountDownLatch done) {
+            super(PARAMS, ADDRESS);
+            this.remaining = messages;
+            this.done = done;
+        }
+
+        @Override
+        protected void processMessage(Message m) {
+            if (--remaining == 0)
+                done.countDown();
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ShardedNioClientManagerTest {
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress(InetAddress.getLoopbackAddress(), 4250);
+    private static final int NUMBERS = 50000;
+
+    private NioServer server;
+    private ShardedNioClientManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UnitTestParams.get()));
+        server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                return new NumberSender();
+            }
+        }, ADDRESS);
+        server.startAsync().awaitRunning();
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            if (manager != null)
+                manager.stopAsync().awaitTerminated();
+        } finally {
+            server.stopAsync().awaitTerminated();
+        }
+    }
+
+    @Test
+    public void connectionsReceiveInOrder() throws Exception {
+        manager = new ShardedNioClientManager(3, 2);
+        manager.startAsync().awaitRunning();
+        List<NumberReceiver> receivers = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            NumberReceiver receiver = new NumberReceiver(null);
+            manager.openConnection(ADDRESS, receiver).get(10, TimeUnit.SECONDS);
+            receivers.add(receiver);
+        }
+        assertEquals(12, manager.getConnectedClientCount());
+        for (NumberReceiver receiver : receivers) {
+            assertTrue(receiver.done.await(30, TimeUnit.SECONDS));
+            assertNull(receiver.error);
+        }
+
+        manager.closeConnections(5);
+        assertEquals(7, manager.getConnectedClientCount());
+        manager.stopAsync().awaitTerminated();
+        for (NumberReceiver receiver : receivers)
+            assertTrue(receiver.closed.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void slowConnectionDoesNotHoldUpOthers() throws Exception {
+        // With a single selector thread, the other connections are only served if the slow one isn't processed on it.
+        manager = new ShardedNioClientManager(1, 2);
+        manager.startAsync().awaitRunning();
+        CountDownLatch release = new CountDownLatch(1);
+        NumberReceiver slow = new NumberReceiver(release);
+        manager.openConnection(ADDRESS, slow).get(10, TimeUnit.SECONDS);
+        List<NumberReceiver> receivers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            NumberReceiver receiver = new NumberReceiver(null);
+            manager.openConnection(ADDRESS, receiver).get(10, TimeUnit.SECONDS);
+            receivers.add(receiver);
+        }
+        for (NumberReceiver receiver : receivers) {
+            assertTrue(receiver.done.await(30, TimeUnit.SECONDS));
+            assertNull(receiver.error);
+        }
+        assertEquals(1, slow.done.getCount());
+
+        release.countDown();
+        assertTrue(slow.done.await(30, TimeUnit.SECONDS));
+        assertNull(slow.error);
+    }
+
+    @Test
+    public void errorWhileReceivingClosesConnection() throws Exception {
+        manager = new ShardedNioClientManager(1, 2);
+        manager.startAsync().awaitRunning();
+        NumberReceiver broken = new NumberReceiver(null) {
+            @Override
+            public int receiveBytes(ByteBuffer buff) {
+                throw new Error("Broken receiver");
+            }
+        };
+        manager.openConnection(ADDRESS, broken).get(10, TimeUnit.SECONDS);
+        // Otherwise nothing would read from the connection anymore, but it would stay open.
+        assertTrue(broken.closed.await(10, TimeUnit.SECONDS));
+        assertEquals(0, manager.getConnectedClientCount());
+    }
+
+    // Sends the numbers from 0 to NUMBERS as soon as it is connected.
+    private static class NumberSender implements StreamConnection {
+        private MessageWriteTarget writeTarget;
+
+        @Override
+        public void connectionOpened() {
+            ByteBuffer numbers = ByteBuffer.allocate(NUMBERS * 4);
+            for (int i = 0; i < NUMBERS; i++)
+                numbers.putInt(i);
+            try {
+                writeTarget.writeBytes(numbers.array());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            return buff.position(buff.limit()).position();
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+            this.writeTarget = writeTarget;
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return 4096;
+        }
+    }
+
+    // Checks that the numbers arrive in order, optionally waiting for a latch before processing any.
+    private static class NumberReceiver implements StreamConnection {
+        @Nullable private final CountDownLatch gate;
+        final CountDownLatch done = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        private int expected;
+        volatile String error;
+
+        NumberReceiver(@Nullable CountDownLatch gate) {
+            this.gate = gate;
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) throws Exception {
+            if (gate != null)
+                gate.await();
+            while (buff.remaining() >= 4) {
+                int number = buff.getInt();
+                if (number != expected && error == null)
+                    error = "Expected " + expected + " but got " + number;
+                if (++expected == NUMBERS)
+                    done.countDown();
+            }
+            return buff.position();
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public void connectionClosed() {
+            closed.countDown();
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return 4096;
+        }
+    }
+}
@@ -311,6 +311,31 @@ public class ScriptTest {
         }
     }
 
+    @Test
+    public void dataDrivenScriptsWithDeferredSignatures() throws Exception {
+        JsonNode json = new ObjectMapper()
+                .readTree(new InputStreamReader(getClass().getResourceAsStream("script_tests.json"), StandardCharsets.UTF_8));
+        for (JsonNode test : json) {
+            if (test.size() == 1)
+                continue; // skip comment
+            Set<VerifyFlag> verifyFlags = parseVerifyFlags(test.get(2).asText());
+            boolean expectedValid = ScriptError.fromMnemonic(test.get(3).asText()).equals(ScriptError.SCRIPT_ERR_OK);
+            SignatureBatch signatures = new SignatureBatch();
+            boolean valid;
+            try {
+                Script scriptSig = parseScriptString(test.get(0).asText());
+                Script scriptPubKey = parseScriptString(test.get(1).asText());
+                Transaction txCredit = buildCreditingTransaction(scriptPubKey);
+                Transaction txSpend = buildSpendingTransaction(txCredit, scriptSig);
+                scriptSig.correctlySpends(txSpend, 0, scriptPubKey, verifyFlags, signatures);
+                valid = signatures.verifyAll(null) == -1;
+            } catch (ScriptException e) {
+                valid = false;
+            }
+            assertEquals(test.toString(), expectedValid, valid);
+        }
+    }
+
     private Map<TransactionOutPoint, Script> parseScriptPubKeys(JsonNode inputs) throws IOException {
         Map<TransactionOutPoint, Script> scriptPubKeys = new HashMap<>();
         for (JsonNode input : inputs) {
@@ -0,0 +1,105 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the memory footprint and lookup latency of {@link CompactUTXOSet} with the {@link HashMap} of
+ * {@link UTXO}s that {@link MemoryFullPrunedBlockStore} used before, for pay to pubkey hash outputs. It is not an
+ * automated unit-test, run it manually with the test classpath and a large enough heap and
+ * {@code -XX:MaxDirectMemorySize}: {@code CompactUTXOSetBenchmark [utxos=1000000] [lookups=1000000]}
+ */
+public class CompactUTXOSetBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    public static void main(String[] args) throws Exception {
+        int numUtxos = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int numLookups = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        new Context(PARAMS);
+        System.out.println("map                 heap (MB)   off-heap (MB)   bytes/output   lookup (ns)");
+        for (int run = 0; run < 2; run++) {
+            long heapBefore = usedHeap();
+            CompactUTXOSet compact = new CompactUTXOSet(PARAMS);
+            Map<StoredTransactionOutPoint, UTXO> map = run == 0 ? new HashMap<StoredTransactionOutPoint, UTXO>()
+                    : compact;
+            fill(map, numUtxos);
+            long heap = usedHeap() - heapBefore;
+            long offHeap = map == compact ? compact.getOffHeapBytes() : 0;
+
+            Random random = new Random(1);
+            // Warm up, then measure.
+            lookup(map, random, numUtxos, numLookups);
+            long start = System.nanoTime();
+            lookup(map, random, numUtxos, numLookups);
+            long nanos = System.nanoTime() - start;
+            System.out.printf("%-18s %10.1f   %13.1f   %12.1f   %11.0f%n", map.getClass().getSimpleName(),
+                    heap / 1e6, offHeap / 1e6, (double) (heap + offHeap) / numUtxos, (double) nanos / numLookups);
+            map.clear();
+        }
+    }
+
+    // Adds outputs of transactions with three outputs each, paying to a number of different addresses.
+    private static void fill(Map<StoredTransactionOutPoint, UTXO> map, int numUtxos) {
+        Random random = new Random(0);
+        Script[] scripts = new Script[1000];
+        String[] addresses = new String[scripts.length];
+        for (int i = 0; i < scripts.length; i++) {
+            Address address = LegacyAddress.fromKey(PARAMS, new ECKey());
+            scripts[i] = ScriptBuilder.createOutputScript(address);
+            addresses[i] = address.toString();
+        }
+        for (int i = 0; i < numUtxos; i++) {
+            Sha256Hash hash = hash(i / 3);
+            int script = random.nextInt(scripts.length);
+            // Every output is a separate object, as when read from a block.
+            UTXO out = new UTXO(hash, i % 3, Coin.valueOf(random.nextInt(Integer.MAX_VALUE)), i / 3000, false,
+                    new Script(scripts[script].getProgram().clone()), new String(addresses[script]));
+            map.put(new StoredTransactionOutPoint(out), out);
+        }
+    }
+
+    private static void lookup(Map<StoredTransactionOutPoint, UTXO> map, Random random, int numUtxos,
+                               int numLookups) {
+        for (int i = 0; i < numLookups; i++) {
+            int utxo = random.nextInt(numUtxos);
+            if (map.get(new StoredTransactionOutPoint(hash(utxo / 3), utxo % 3)) == null)
+                throw new IllegalStateException();
+        }
+    }
+
+    private static Sha256Hash hash(int tx) {
+        return Sha256Hash.of(Utils.reverseBytes(new byte[] { (byte) tx, (byte) (tx >> 8), (byte) (tx >> 16),
+                (byte) (tx >> 24) }));
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
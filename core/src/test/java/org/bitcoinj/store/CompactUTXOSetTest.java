@@ -0,0 +1,122 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.SegwitAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompactUTXOSetTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    @Test
+    public void roundTripsScripts() throws Exception {
+        ECKey key = new ECKey();
+        List<Script> scripts = new ArrayList<>();
+        scripts.add(ScriptBuilder.createOutputScript(LegacyAddress.fromKey(UNITTEST, key)));
+        scripts.add(ScriptBuilder.createP2SHOutputScript(new byte[20]));
+        scripts.add(ScriptBuilder.createOutputScript(SegwitAddress.fromKey(UNITTEST, key)));
+        scripts.add(ScriptBuilder.createOutputScript(SegwitAddress.fromHash(UNITTEST, new byte[32])));
+        scripts.add(ScriptBuilder.createOutputScript(key));
+        scripts.add(ScriptBuilder.createOutputScript(key.decompress()));
+        scripts.add(ScriptBuilder.createOpReturnScript(new byte[10]));
+        scripts.add(ScriptBuilder.createMultiSigOutputScript(2, ImmutableList.of(key, new ECKey(), new ECKey())));
+        scripts.add(new Script(new byte[0]));
+
+        CompactUTXOSet set = new CompactUTXOSet(UNITTEST);
+        List<UTXO> outputs = new ArrayList<>();
+        int i = 0;
+        for (Script script : scripts) {
+            String address;
+            try {
+                address = script.getToAddress(UNITTEST, true).toString();
+            } catch (Exception e) {
+                address = "";
+            }
+            outputs.add(new UTXO(Sha256Hash.of(new byte[] { (byte) i }), i, Coin.valueOf(i), i, i % 2 == 0, script,
+                    address));
+            i++;
+        }
+        // Addresses that don't match the script are kept as well.
+        outputs.add(new UTXO(Sha256Hash.of(new byte[] { (byte) i }), 0xFFFFFFFFL, Coin.COIN, 1, false,
+                scripts.get(0), "not derived"));
+        for (UTXO out : outputs)
+            assertNull(set.put(new StoredTransactionOutPoint(out), out));
+        assertEquals(outputs.size(), set.size());
+        assertEquals(2, set.getOverflowSize()); // the multisig script and the odd address
+        for (UTXO out : outputs) {
+            UTXO read = set.get(new StoredTransactionOutPoint(out));
+            assertEquals(out, read);
+            assertArrayEquals(out.getScript().getProgram(), read.getScript().getProgram());
+            assertEquals(out.getValue(), read.getValue());
+            assertEquals(out.getHeight(), read.getHeight());
+            assertEquals(out.isCoinbase(), read.isCoinbase());
+            assertEquals(out.getAddress(), read.getAddress());
+        }
+    }
+
+    @Test
+    public void matchesHashMap() throws Exception {
+        Script script = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(UNITTEST, new ECKey()));
+        CompactUTXOSet set = new CompactUTXOSet(UNITTEST);
+        Map<StoredTransactionOutPoint, UTXO> expected = new HashMap<>();
+        List<StoredTransactionOutPoint> keys = new ArrayList<>();
+        Random random = new Random(0);
+        // Few distinct hashes with many outputs each, so probe sequences run into each other.
+        for (int i = 0; i < 20000; i++) {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) random.nextInt(8) });
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, random.nextInt(3000));
+            if (random.nextInt(3) == 0 && !keys.isEmpty()) {
+                StoredTransactionOutPoint removed = keys.get(random.nextInt(keys.size()));
+                assertEquals(expected.remove(removed), set.remove(removed));
+            } else {
+                UTXO out = new UTXO(hash, key.getIndex(), Coin.valueOf(i), i, false, script);
+                assertEquals(expected.put(key, out), set.put(key, out));
+                keys.add(key);
+            }
+        }
+        assertEquals(expected.size(), set.size());
+        for (StoredTransactionOutPoint key : keys) {
+            UTXO out = expected.get(key);
+            UTXO read = set.get(key);
+            assertEquals(out, read);
+            if (out != null)
+                assertEquals(out.getValue(), read.getValue());
+        }
+        assertEquals(expected, new HashMap<>(set));
+        set.clear();
+        assertEquals(0, set.size());
+        assertNull(set.get(keys.get(0)));
+    }
+}
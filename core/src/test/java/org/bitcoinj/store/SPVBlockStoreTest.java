@@ -18,8 +18,14 @@
 package org.bitcoinj.store;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.ECKey;
@@ -78,4 +84,68 @@ public class SPVBlockStoreTest {
         store.close();
         store = new SPVBlockStore(UNITTEST, blockStoreFile);
     }
+
+    @Test
+    public void ringBufferWrapsAround() throws Exception {
+        final int capacity = 10;
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity);
+        Address to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        List<StoredBlock> blocks = new ArrayList<>();
+        StoredBlock block = store.getChainHead();
+        for (int i = 0; i < capacity * 2 + 3; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            blocks.add(block);
+        }
+        store.setChainHead(block);
+        store.close();
+
+        // Only the latest blocks are left, and they are found again after re-opening the store.
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity);
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock expected = i >= blocks.size() - capacity ? blocks.get(i) : null;
+            assertEquals(expected, store.get(blocks.get(i).getHeader().getHash()));
+        }
+        assertEquals(block, store.getChainHead());
+        store.close();
+    }
+
+    @Test
+    public void concurrentReads() throws Exception {
+        final SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, 50);
+        Address to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        final List<StoredBlock> blocks = new CopyOnWriteArrayList<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            // Blocks that are still in the ring must always be found, and found intact.
+                            int size = blocks.size();
+                            for (int i = Math.max(0, size - 25); i < size; i++)
+                                assertEquals(blocks.get(i), store.get(blocks.get(i).getHeader().getHash()));
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        StoredBlock block = store.getChainHead();
+        for (int i = 0; i < 1000; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            blocks.add(block);
+        }
+        done.set(true);
+        for (Thread reader : readers)
+            reader.join();
+        store.close();
+        assertNull(failure.get());
+    }
 }
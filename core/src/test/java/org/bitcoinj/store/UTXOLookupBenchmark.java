@@ -0,0 +1,101 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays the output lookups of mainnet-like blocks (about 2000 inputs spending random, mostly older outputs) against
+ * the full pruned block stores, once with {@link FullPrunedBlockStore#getTransactionOutput(Sha256Hash, long)} per
+ * input and once with a single {@link FullPrunedBlockStore#getTransactionOutputs(List)} per block. It is not an
+ * automated unit-test, run it manually with the test classpath:
+ * {@code UTXOLookupBenchmark [utxos=200000] [blocks=20] [inputsPerBlock=2000]}
+ */
+public class UTXOLookupBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    public static void main(String[] args) throws Exception {
+        int numUtxos = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int numBlocks = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int inputsPerBlock = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        new Context(PARAMS);
+        File dir = Files.createTempDirectory("utxo-lookup-benchmark").toFile();
+        FullPrunedBlockStore[] stores = {
+                new MemoryFullPrunedBlockStore(PARAMS, 10),
+                new H2FullPrunedBlockStore(PARAMS, new File(dir, "h2").getAbsolutePath(), 10),
+                new LevelDBFullPrunedBlockStore(PARAMS, new File(dir, "leveldb").getAbsolutePath(), 10)
+        };
+        System.out.println("store                           single (ms)   batched (ms)   inputs/s batched");
+        for (FullPrunedBlockStore store : stores) {
+            List<TransactionOutPoint> utxos = fill(store, numUtxos);
+            Random random = new Random(1);
+            long single = 0, batched = 0;
+            for (int block = 0; block < numBlocks; block++) {
+                List<TransactionOutPoint> inputs = new ArrayList<>(inputsPerBlock);
+                for (int i = 0; i < inputsPerBlock; i++)
+                    inputs.add(utxos.get(random.nextInt(utxos.size())));
+
+                long start = System.nanoTime();
+                for (TransactionOutPoint input : inputs)
+                    store.getTransactionOutput(input.getHash(), input.getIndex());
+                single += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                store.getTransactionOutputs(inputs);
+                batched += System.nanoTime() - start;
+            }
+            System.out.printf("%-30s %12.1f   %12.1f   %16.0f%n", store.getClass().getSimpleName(), single / 1e6,
+                    batched / 1e6, numBlocks * inputsPerBlock / (batched / 1e9));
+            store.close();
+        }
+    }
+
+    // Adds outputs of transactions with one to three outputs each, in batches like blocks.
+    private static List<TransactionOutPoint> fill(FullPrunedBlockStore store, int numUtxos) throws BlockStoreException {
+        Script script = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, new ECKey()));
+        Random random = new Random(0);
+        List<TransactionOutPoint> utxos = new ArrayList<>(numUtxos);
+        store.beginDatabaseBatchWrite();
+        for (int tx = 0; utxos.size() < numUtxos; tx++) {
+            byte[] hashBytes = new byte[32];
+            random.nextBytes(hashBytes);
+            Sha256Hash hash = Sha256Hash.wrap(hashBytes);
+            int numOutputs = 1 + random.nextInt(3);
+            for (int index = 0; index < numOutputs; index++) {
+                store.addUnspentTransactionOutput(new UTXO(hash, index, Coin.CENT, tx / 2000, false, script, ""));
+                utxos.add(new TransactionOutPoint(PARAMS, index, hash));
+            }
+            if (tx % 2000 == 1999) {
+                store.commitDatabaseBatchWrite();
+                store.beginDatabaseBatchWrite();
+            }
+        }
+        store.commitDatabaseBatchWrite();
+        Collections.shuffle(utxos, random);
+        return utxos;
+    }
+}
@@ -45,6 +45,8 @@ import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.DeterministicKeyChain;
 import org.bitcoinj.wallet.KeyChain;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
 
 import org.bitcoinj.wallet.MarriedKeyChain;
 import org.bitcoinj.wallet.Protos;
@@ -471,4 +473,68 @@ public class WalletProtobufSerializerTest {
         proto.setVersion(2);
         new WalletProtobufSerializer().readWallet(UNITTEST, null, proto.build());
     }
+
+    @Test
+    public void readManyTransactionsOnSeveralThreads() throws Exception {
+        // More transactions than are decoded in one batch, each spending the one before.
+        Transaction previous = createFakeTx(UNITTEST, COIN, myAddress);
+        myWallet.addWalletTransaction(new WalletTransaction(Pool.SPENT, previous));
+        for (int i = 0; i < 1200; i++) {
+            Transaction tx = new Transaction(UNITTEST);
+            tx.addInput(previous.getOutput(0)).connect(previous.getOutput(0));
+            tx.addOutput(COIN, myAddress);
+            myWallet.addWalletTransaction(new WalletTransaction(i < 1199 ? Pool.SPENT : Pool.UNSPENT, tx));
+            previous = tx;
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+
+        for (int threads = 1; threads <= 4; threads += 3) {
+            WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+            serializer.setReadThreads(threads);
+            Wallet wallet = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+            assertEquals(1201, wallet.getTransactions(true).size());
+            assertEquals(1200, wallet.getPoolSize(Pool.SPENT));
+            assertEquals(myWallet.getBalance(Wallet.BalanceType.ESTIMATED), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+            assertTrue(wallet.isConsistent());
+            assertEquals(previous, wallet.getTransaction(previous.getHash()));
+            assertEquals(wallet.getTransaction(previous.getInput(0).getOutpoint().getHash()).getOutput(0),
+                    wallet.getTransaction(previous.getHash()).getInput(0).getConnectedOutput());
+        }
+    }
+
+    @Test
+    public void readUnknownFields() throws Exception {
+        Transaction tx = createFakeTx(UNITTEST, COIN, myAddress);
+        myWallet.addWalletTransaction(new WalletTransaction(Pool.UNSPENT, tx));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+        // Fields of every wire type from a newer version, followed by a known one that must still be read.
+        CodedOutputStream codedOutput = CodedOutputStream.newInstance(output);
+        codedOutput.writeUInt64(1000, Long.MAX_VALUE);
+        codedOutput.writeFixed32(1001, 32);
+        codedOutput.writeFixed64(1002, 64);
+        codedOutput.writeString(1003, "unknown");
+        codedOutput.writeTag(1004, WireFormat.WIRETYPE_START_GROUP);
+        codedOutput.writeUInt32(1, 1);
+        codedOutput.writeTag(1004, WireFormat.WIRETYPE_END_GROUP);
+        codedOutput.writeString(Protos.Wallet.DESCRIPTION_FIELD_NUMBER, "after");
+        codedOutput.flush();
+
+        Wallet wallet = new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals("after", wallet.getDescription());
+        assertEquals(tx, wallet.getTransaction(tx.getHash()));
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test(expected = UnreadableWalletException.class)
+    public void duplicateTransaction() throws Exception {
+        Transaction tx = createFakeTx(UNITTEST, COIN, myAddress);
+        myWallet.addWalletTransaction(new WalletTransaction(Pool.UNSPENT, tx));
+        Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(myWallet);
+        proto = proto.toBuilder().addTransaction(proto.getTransaction(0)).build();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        proto.writeTo(output);
+        new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(output.toByteArray()));
+    }
 }
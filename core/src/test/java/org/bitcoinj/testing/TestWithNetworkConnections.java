@@ -65,7 +65,8 @@ public class TestWithNetworkConnections {
         NIO_CLIENT_MANAGER,
         BLOCKING_CLIENT_MANAGER,
         NIO_CLIENT,
-        BLOCKING_CLIENT
+        BLOCKING_CLIENT,
+        SHARDED_NIO_CLIENT_MANAGER
     }
     private final ClientType clientType;
     public TestWithNetworkConnections(ClientType clientType) {
@@ -74,6 +75,8 @@ public class TestWithNetworkConnections {
             channels = new NioClientManager();
         else if (clientType == ClientType.BLOCKING_CLIENT_MANAGER)
             channels = new BlockingClientManager();
+        else if (clientType == ClientType.SHARDED_NIO_CLIENT_MANAGER)
+            channels = new ShardedNioClientManager(2, 2);
         else
             channels = null;
     }
@@ -95,7 +98,7 @@ public class TestWithNetworkConnections {
         blockChain = new BlockChain(UNITTEST, wallet, blockStore);
 
         startPeerServers();
-        if (clientType == ClientType.NIO_CLIENT_MANAGER || clientType == ClientType.BLOCKING_CLIENT_MANAGER) {
+        if (channels != null) {
             channels.startAsync();
             channels.awaitRunning();
         }
@@ -157,7 +160,7 @@ public class TestWithNetworkConnections {
                 }
             }
         });
-        if (clientType == ClientType.NIO_CLIENT_MANAGER || clientType == ClientType.BLOCKING_CLIENT_MANAGER)
+        if (channels != null)
             channels.openConnection(new InetSocketAddress(InetAddress.getLoopbackAddress(), 2000), peer);
         else if (clientType == ClientType.NIO_CLIENT)
             new NioClient(new InetSocketAddress(InetAddress.getLoopbackAddress(), 2000), peer, 100);
@@ -41,7 +41,8 @@ public class TestWithPeerGroup extends TestWithNetworkConnections {
 
     public TestWithPeerGroup(ClientType clientType) {
         super(clientType);
-        if (clientType != ClientType.NIO_CLIENT_MANAGER && clientType != ClientType.BLOCKING_CLIENT_MANAGER)
+        if (clientType != ClientType.NIO_CLIENT_MANAGER && clientType != ClientType.BLOCKING_CLIENT_MANAGER
+                && clientType != ClientType.SHARDED_NIO_CLIENT_MANAGER)
             throw new RuntimeException();
         this.clientType = clientType;
     }
@@ -78,6 +79,8 @@ public class TestWithPeerGroup extends TestWithNetworkConnections {
     protected void initPeerGroup() {
         if (clientType == ClientType.NIO_CLIENT_MANAGER)
             peerGroup = createPeerGroup(new NioClientManager());
+        else if (clientType == ClientType.SHARDED_NIO_CLIENT_MANAGER)
+            peerGroup = createPeerGroup(new ShardedNioClientManager(2, 2));
         else
             peerGroup = createPeerGroup(new BlockingClientManager());
         peerGroup.setPingIntervalMsec(0);  // Disable the pings as they just get in the way of most tests.
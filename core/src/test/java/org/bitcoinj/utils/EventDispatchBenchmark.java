@@ -0,0 +1,111 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.Utils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how stale confidence events get when many transactions change depth at once, as when blocks arrive in
+ * quick succession: for every block, the depth of every transaction goes up and its listeners are queued, each
+ * taking a little while to run. Compares the {@link Threading.UserThread} with a {@link PartitionedExecutor} of one
+ * lane and one with a lane per core. Staleness is the time from a depth change to the listener seeing it. It is not
+ * an automated unit-test, run it manually with the test classpath:
+ * {@code EventDispatchBenchmark [transactions=2000] [blocks=10] [listenerMicros=50]}
+ */
+public class EventDispatchBenchmark {
+    public static void main(String[] args) throws Exception {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int blocks = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int listenerMicros = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        System.out.println(transactions + " transactions, " + blocks + " blocks, " + listenerMicros
+                + "us per listener call");
+        System.out.println("executor                        listener calls   drained (ms)   staleness max (ms)");
+        for (int round = 0; round < 2; round++) {
+            run("UserThread", new Threading.UserThread(), transactions, blocks, listenerMicros);
+            run("PartitionedExecutor, 1 lane", new PartitionedExecutor("benchmark", 1), transactions, blocks,
+                    listenerMicros);
+            run("PartitionedExecutor, lane per core", new PartitionedExecutor("benchmark", cores), transactions,
+                    blocks, listenerMicros);
+        }
+    }
+
+    private static void run(String name, Executor executor, int transactions, int blocks, final int listenerMicros)
+            throws Exception {
+        // When the depth of a transaction last changed, by depth.
+        final long[] changedAt = new long[blocks + 1];
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong maxStaleness = new AtomicLong();
+        TransactionConfidence.Listener listener = new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
+                long staleness = System.nanoTime() - changedAt[confidence.getDepthInBlocks()];
+                long max;
+                while ((max = maxStaleness.get()) < staleness && !maxStaleness.compareAndSet(max, staleness)) ;
+                calls.incrementAndGet();
+                long until = System.nanoTime() + listenerMicros * 1000L;
+                while (System.nanoTime() < until) ;
+            }
+        };
+        TransactionConfidence[] confidences = new TransactionConfidence[transactions];
+        for (int i = 0; i < transactions; i++) {
+            byte[] id = new byte[4];
+            Utils.uint32ToByteArrayBE(i, id, 0);
+            confidences[i] = new TransactionConfidence(Sha256Hash.of(id));
+            confidences[i].addEventListener(executor, listener);
+        }
+
+        long start = System.nanoTime();
+        for (int block = 1; block <= blocks; block++) {
+            changedAt[block] = System.nanoTime();
+            for (TransactionConfidence confidence : confidences) {
+                confidence.incrementDepthInBlocks();
+                confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.DEPTH);
+            }
+            // Blocks arrive faster than the listeners keep up with.
+            Thread.sleep(10);
+        }
+        waitFor(executor);
+        long drained = System.nanoTime() - start;
+        System.out.println(String.format("%-31s %14d %14.0f %20.0f", name, calls.get(), drained / 1e6,
+                maxStaleness.get() / 1e6));
+        for (TransactionConfidence confidence : confidences)
+            confidence.removeEventListener(listener);
+    }
+
+    private static void waitFor(Executor executor) throws InterruptedException {
+        if (executor instanceof PartitionedExecutor) {
+            ((PartitionedExecutor) executor).waitForLanes();
+        } else {
+            final CountDownLatch latch = new CountDownLatch(1);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            });
+            latch.await();
+        }
+    }
+}
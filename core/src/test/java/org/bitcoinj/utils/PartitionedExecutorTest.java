@@ -0,0 +1,210 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.TransactionConfidence;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PartitionedExecutorTest {
+    @Test
+    public void keyedTasksRunInOrder() {
+        PartitionedExecutor executor = new PartitionedExecutor("test", 3);
+        final List<List<Integer>> seen = new ArrayList<>();
+        for (int key = 0; key < 10; key++)
+            seen.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        for (int i = 0; i < 1000; i++) {
+            final int key = i % 10, value = i;
+            executor.execute(key, new Runnable() {
+                @Override
+                public void run() {
+                    seen.get(key).add(value);
+                }
+            });
+        }
+        executor.waitForLanes();
+        for (int key = 0; key < 10; key++) {
+            List<Integer> values = seen.get(key);
+            assertEquals(100, values.size());
+            for (int i = 0; i < values.size(); i++)
+                assertEquals(key + i * 10, (int) values.get(i));
+        }
+        assertEquals(1000 + 3, executor.getDispatchedCount()); // and a task per lane to wait for them
+        assertEquals(0, executor.getQueueDepth());
+    }
+
+    @Test
+    public void lanesRunInParallel() throws Exception {
+        PartitionedExecutor executor = new PartitionedExecutor("test", 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch ran = new CountDownLatch(1);
+        // Integers are their own hash code, so 0 and 1 go to different lanes.
+        executor.execute(0, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        executor.execute(1, new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        executor.waitForLanes();
+    }
+
+    @Test
+    public void waitingTasksAreSuperseded() {
+        PartitionedExecutor executor = new PartitionedExecutor("test", 1);
+        final CountDownLatch release = block(executor, "a");
+        final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+        for (int i = 0; i < 5; i++) {
+            executor.execute("a", "depth", record(seen, "a depth " + i));
+            executor.execute("b", "depth", record(seen, "b depth " + i));
+        }
+        executor.execute("a", "seen", record(seen, "a seen"));
+        executor.execute("a", record(seen, "a other"));
+        assertEquals(4, executor.getQueueDepth(0));
+        release.countDown();
+        executor.waitForLanes();
+
+        // Only the latest of each superseded task runs.
+        assertEquals(Arrays.asList("a depth 4", "b depth 4", "a seen", "a other"), seen);
+        assertEquals(8, executor.getSupersededCount());
+        assertTrue(executor.getMaxDispatchLatencyNanos() > 0);
+        assertTrue(executor.getMaxQueueDepth() >= 4);
+
+        // Once a task has been taken off its lane, the next one is queued again.
+        executor.execute("a", "depth", record(seen, "a depth 5"));
+        executor.waitForLanes();
+        assertEquals("a depth 5", seen.get(seen.size() - 1));
+        assertEquals(8, executor.getSupersededCount());
+
+        // A superseding task still runs after the tasks with the same key that were dispatched before it.
+        seen.clear();
+        CountDownLatch releaseAgain = block(executor, "a");
+        executor.execute("a", "depth", record(seen, "a depth 6"));
+        executor.execute("a", record(seen, "a other"));
+        executor.execute("a", "depth", record(seen, "a depth 7"));
+        assertEquals(2, executor.getQueueDepth(0));
+        releaseAgain.countDown();
+        executor.waitForLanes();
+        assertEquals(Arrays.asList("a other", "a depth 7"), seen);
+        assertEquals(9, executor.getSupersededCount());
+    }
+
+    @Test
+    public void floodOfSupersedingTasks() {
+        PartitionedExecutor executor = new PartitionedExecutor("test", 1);
+        CountDownLatch release = block(executor, "a");
+        List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+        executor.execute("a", record(seen, "a other"));
+        for (int i = 0; i < 10000; i++)
+            executor.execute("a", "depth", record(seen, "a depth " + i));
+        assertEquals(2, executor.getQueueDepth());
+        assertEquals(2, executor.getMaxQueueDepth());
+        assertEquals(9999, executor.getSupersededCount());
+        long dispatched = executor.getDispatchedCount();
+        release.countDown();
+        executor.waitForLanes();
+        assertEquals(Arrays.asList("a other", "a depth 9999"), seen);
+        // The two tasks and the one to wait for them, the superseded ones were skipped.
+        assertEquals(dispatched + 3, executor.getDispatchedCount());
+        assertEquals(0, executor.getQueueDepth());
+    }
+
+    @Test
+    public void confidenceChangesAreSupersededOnUserThread() {
+        Executor userThread = Threading.USER_THREAD;
+        PartitionedExecutor executor = new PartitionedExecutor("test", 2);
+        Threading.USER_THREAD = executor;
+        try {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+            TransactionConfidence confidence = new TransactionConfidence(hash);
+            final List<TransactionConfidence.Listener.ChangeReason> reasons = Collections.synchronizedList(
+                    new ArrayList<TransactionConfidence.Listener.ChangeReason>());
+            confidence.addEventListener(new TransactionConfidence.Listener() {
+                @Override
+                public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
+                    reasons.add(reason);
+                }
+            });
+            CountDownLatch release = block(executor, hash);
+            for (int i = 0; i < 3; i++) {
+                confidence.incrementDepthInBlocks();
+                confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.DEPTH);
+            }
+            confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
+            release.countDown();
+            Threading.waitForUserCode();
+            assertEquals(Arrays.asList(TransactionConfidence.Listener.ChangeReason.DEPTH,
+                    TransactionConfidence.Listener.ChangeReason.SEEN_PEERS), reasons);
+            assertEquals(2, executor.getSupersededCount());
+        } finally {
+            Threading.USER_THREAD = userThread;
+        }
+    }
+
+    // Holds up the lane of the given key until the returned latch is counted down.
+    private static CountDownLatch block(PartitionedExecutor executor, Object key) {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(key, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        try {
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        return release;
+    }
+
+    private static Runnable record(final List<String> seen, final String event) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                seen.add(event);
+            }
+        };
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.UnitTestParams;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times {@link Wallet#calculateAllSpendCandidates()} and {@link Wallet#completeTx(SendRequest)} for wallets with many
+ * unspent outputs of random value and depth, with the {@link DefaultCoinSelector} and with the
+ * {@link BranchAndBoundCoinSelector}. It is not an automated unit-test, run it manually with the test classpath and a
+ * large enough heap:
+ * {@code CoinSelectionBenchmark [outputs=10000,100000,1000000] [iterations=20]}
+ */
+public class CoinSelectionBenchmark {
+    private static final int OUTPUTS_PER_TX = 1000;
+
+    public static void main(String[] args) throws Exception {
+        String[] sizes = (args.length > 0 ? args[0] : "10000,100000,1000000").split(",");
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        NetworkParameters params = UnitTestParams.get();
+        Context.propagate(new Context(params, 100, Coin.ZERO, false));
+        Address to = LegacyAddress.fromKey(params, new ECKey());
+
+        System.out.println("Java " + System.getProperty("java.version"));
+        System.out.println("outputs    selector          fill (ms)  candidates (ms)  completeTx (ms)  inputs");
+        for (String size : sizes) {
+            int numOutputs = Integer.parseInt(size.trim());
+            Wallet wallet = new Wallet(params);
+            long start = System.nanoTime();
+            fill(wallet, numOutputs, new Random(numOutputs));
+            double fillMillis = (System.nanoTime() - start) / 1e6;
+            long candidatesNanos = 0;
+            for (int i = 0; i < iterations * 2; i++) {
+                start = System.nanoTime();
+                wallet.calculateAllSpendCandidates();
+                if (i >= iterations)
+                    candidatesNanos += System.nanoTime() - start;
+            }
+            for (int selector = 0; selector < 2; selector++) {
+                CoinSelector coinSelector = selector == 0 ? new DefaultCoinSelector()
+                        : new BranchAndBoundCoinSelector(Transaction.MIN_NONDUST_OUTPUT, 10, TimeUnit.MILLISECONDS);
+                Random random = new Random(0);
+                long nanos = 0;
+                int inputs = 0;
+                // The first half warms up.
+                for (int i = 0; i < iterations * 2; i++) {
+                    SendRequest req = SendRequest.to(to, Coin.valueOf(1000000 + random.nextInt(100000000)));
+                    req.coinSelector = coinSelector;
+                    req.shuffleOutputs = false;
+                    start = System.nanoTime();
+                    wallet.completeTx(req);
+                    if (i >= iterations) {
+                        nanos += System.nanoTime() - start;
+                        inputs += req.tx.getInputs().size();
+                    }
+                }
+                System.out.printf("%-10d %-17s %9.1f %16.2f %16.2f %7.1f%n", numOutputs,
+                        selector == 0 ? "default" : "branch and bound", fillMillis,
+                        candidatesNanos / 1e6 / iterations, nanos / 1e6 / iterations, (double) inputs / iterations);
+            }
+        }
+    }
+
+    private static void fill(Wallet wallet, int numOutputs, Random random) {
+        NetworkParameters params = wallet.getParams();
+        Address address = wallet.freshReceiveAddress();
+        for (int done = 0; done < numOutputs; done += OUTPUTS_PER_TX) {
+            Transaction tx = new Transaction(params);
+            byte[] prevHash = new byte[32];
+            random.nextBytes(prevHash);
+            tx.addInput(new TransactionInput(params, tx, new byte[0],
+                    new TransactionOutPoint(params, 0, Sha256Hash.wrap(prevHash))));
+            for (int i = 0; i < Math.min(OUTPUTS_PER_TX, numOutputs - done); i++)
+                tx.addOutput(new TransactionOutput(params, tx, Coin.valueOf(10000 + random.nextInt(10000000)),
+                        address));
+            TransactionConfidence confidence = tx.getConfidence();
+            confidence.setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+            confidence.setAppearedAtChainHeight(1);
+            confidence.setDepthInBlocks(1 + random.nextInt(1000));
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+        }
+    }
+}
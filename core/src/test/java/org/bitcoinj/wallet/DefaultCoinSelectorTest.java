@@ -23,6 +23,8 @@ import org.junit.*;
 
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.base.Preconditions.*;
 import static org.bitcoinj.core.Coin.*;
@@ -126,4 +128,91 @@ public class DefaultCoinSelectorTest extends TestWithWallet {
 
         assertTrue(selection.gathered.size() == 4);
     }
+
+    @Test
+    public void coinAgeOrderingWithoutOverflow() throws Exception {
+        // Products of value and depth that don't fit into a long must still be compared correctly. The older output
+        // of t2 outweighs the satoshi more in t1.
+        Transaction t1 = new Transaction(UNITTEST);
+        t1.addOutput(new TransactionOutput(UNITTEST, t1, NetworkParameters.MAX_MONEY, myAddress));
+        t1.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        t1.getConfidence().setDepthInBlocks(Integer.MAX_VALUE - 1);
+        Transaction t2 = new Transaction(UNITTEST);
+        t2.addOutput(new TransactionOutput(UNITTEST, t2, NetworkParameters.MAX_MONEY.subtract(SATOSHI), myAddress));
+        t2.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        t2.getConfidence().setDepthInBlocks(Integer.MAX_VALUE);
+        Transaction t3 = new Transaction(UNITTEST);
+        t3.addOutput(new TransactionOutput(UNITTEST, t3, COIN, myAddress));
+        t3.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        t3.getConfidence().setDepthInBlocks(Integer.MAX_VALUE);
+
+        ArrayList<TransactionOutput> candidates = new ArrayList<>();
+        candidates.add(t3.getOutput(0));
+        candidates.add(t1.getOutput(0));
+        candidates.add(t2.getOutput(0));
+        DefaultCoinSelector.sortOutputs(candidates);
+        assertEquals(t2.getOutput(0), candidates.get(0));
+        assertEquals(t1.getOutput(0), candidates.get(1));
+        assertEquals(t3.getOutput(0), candidates.get(2));
+    }
+
+    @Test
+    public void sortedOnceForAllFees() throws Exception {
+        final AtomicInteger sorts = new AtomicInteger();
+        DefaultCoinSelector selector = new DefaultCoinSelector() {
+            @Override
+            void sortCandidates(ArrayList<TransactionOutput> candidates) {
+                sorts.incrementAndGet();
+                super.sortCandidates(candidates);
+            }
+        };
+        for (int i = 0; i < 5; i++)
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        SendRequest req = SendRequest.to(LegacyAddress.fromKey(UNITTEST, new ECKey()), COIN.multiply(3));
+        req.coinSelector = selector;
+        wallet.completeTx(req);
+        assertEquals(1, sorts.get());
+
+        // Copies of the sorted candidates aren't sorted again, unless the selector changed them.
+        DefaultCoinSelector.SortedCandidates sorted = selector.sortedCopy(wallet.calculateAllSpendCandidates());
+        assertEquals(2, sorts.get());
+        selector.select(COIN, sorted.copy());
+        assertEquals(2, sorts.get());
+        List<TransactionOutput> changed = sorted.copy();
+        changed.remove(0);
+        selector.select(COIN, changed);
+        assertEquals(3, sorts.get());
+    }
+
+    @Test
+    public void branchAndBoundWithoutChange() throws Exception {
+        Transaction t = new Transaction(UNITTEST);
+        for (long value : new long[] { 5, 4, 4, 3, 2, 1 })
+            t.addOutput(new TransactionOutput(UNITTEST, t, CENT.multiply(value), myAddress));
+        t.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(Coin.ZERO, 1, TimeUnit.SECONDS);
+
+        // 10 cents can be paid exactly, e.g. with 5 + 4 + 1, where the default selector would pick 5 + 4 + 4.
+        CoinSelection selection = selector.select(CENT.multiply(10), t.getOutputs());
+        assertEquals(CENT.multiply(10), selection.valueGathered);
+        assertEquals(CENT.multiply(13),
+                new DefaultCoinSelector().select(CENT.multiply(10), t.getOutputs()).valueGathered);
+
+        // 20 cents can't be paid at all, which is left to the default selector to report.
+        selection = selector.select(CENT.multiply(20), t.getOutputs());
+        assertEquals(CENT.multiply(19), selection.valueGathered);
+        assertEquals(6, selection.gathered.size());
+
+        // With some excess allowed, 3 + 5/10 cents is paid with 4 cents rather than with change.
+        selector = new BranchAndBoundCoinSelector(CENT, 1, TimeUnit.SECONDS);
+        selection = selector.select(CENT.multiply(35).divide(10), t.getOutputs());
+        assertEquals(CENT.multiply(4), selection.valueGathered);
+        assertEquals(1, selection.gathered.size());
+
+        // Nothing within the cost of change, so the default selection is used.
+        selector = new BranchAndBoundCoinSelector(Coin.ZERO, 1, TimeUnit.SECONDS);
+        selection = selector.select(CENT.multiply(35).divide(10), t.getOutputs());
+        assertEquals(new DefaultCoinSelector().select(CENT.multiply(35).divide(10), t.getOutputs()).valueGathered,
+                selection.valueGathered);
+    }
 }
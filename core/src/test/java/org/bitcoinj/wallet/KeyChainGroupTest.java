@@ -81,6 +81,31 @@ public class KeyChainGroupTest {
         return chain;
     }
 
+    @Test
+    public void serializationStampGoesUpWithEveryChange() {
+        long stamp = group.getSerializationStamp();
+        group.freshKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        stamp = assertStampIncreased(stamp);
+        group.importKeys(new ECKey());
+        stamp = assertStampIncreased(stamp);
+        group.getActiveKeyChain().setLookaheadThreshold(1);
+        stamp = assertStampIncreased(stamp);
+        group.getActiveKeyChain().setSigsRequiredToSpend(2);
+        stamp = assertStampIncreased(stamp);
+        KeyParameter aesKey = new KeyCrypterScrypt(2).deriveKey("password");
+        group.encrypt(new KeyCrypterScrypt(2), aesKey);
+        stamp = assertStampIncreased(stamp);
+        assertEquals(stamp, group.getSerializationStamp());
+        // A group that was created later never hands out a stamp seen before.
+        assertTrue(new KeyChainGroup(MAINNET).getSerializationStamp() > stamp);
+    }
+
+    private long assertStampIncreased(long previous) {
+        long stamp = group.getSerializationStamp();
+        assertTrue(stamp > previous);
+        return stamp;
+    }
+
     @Test
     public void freshCurrentKeys() throws Exception {
         int numKeys = ((group.getLookaheadSize() + group.getLookaheadThreshold()) * 2)   // * 2 because of internal/external
@@ -172,6 +197,44 @@ public class KeyChainGroupTest {
         assertNull(group.findKeyFromPubHash(d.getPubKeyHash()));
     }
 
+    @Test
+    public void ownershipIndex() throws Exception {
+        OwnershipIndex index = group.getOwnershipIndex();
+        ECKey a = group.freshKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        ECKey c = new ECKey();
+        assertTrue(index.contains(OwnershipIndex.PUBKEY_HASH, a.getPubKeyHash()));
+        assertTrue(index.contains(OwnershipIndex.PUBKEY, a.getPubKey()));
+        assertFalse(index.contains(OwnershipIndex.PUBKEY, a.getPubKeyHash()));
+        assertFalse(index.contains(OwnershipIndex.PUBKEY_HASH, c.getPubKeyHash()));
+        group.importKeys(c);
+        assertTrue(index.contains(OwnershipIndex.PUBKEY_HASH, c.getPubKeyHash()));
+        assertEquals(group.numKeys() * 2, index.size());
+
+        // Encrypting replaces all chains.
+        KeyCrypterScrypt scrypt = new KeyCrypterScrypt(2);
+        group.encrypt(scrypt, scrypt.deriveKey("password"));
+        assertTrue(index.contains(OwnershipIndex.PUBKEY_HASH, a.getPubKeyHash()));
+        assertTrue(index.contains(OwnershipIndex.PUBKEY, c.getPubKey()));
+        assertEquals(group.numKeys() * 2, index.size());
+
+        assertTrue(group.removeImportedKey(group.findKeyFromPubKey(c.getPubKey())));
+        assertFalse(index.contains(OwnershipIndex.PUBKEY_HASH, c.getPubKeyHash()));
+        assertFalse(index.contains(OwnershipIndex.PUBKEY, c.getPubKey()));
+        assertTrue(index.contains(OwnershipIndex.PUBKEY, a.getPubKey()));
+    }
+
+    @Test
+    public void ownershipIndexForMarriedChains() throws Exception {
+        group = createMarriedKeyChainGroup();
+        OwnershipIndex index = group.getOwnershipIndex();
+        Address address = group.freshAddress(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        assertTrue(index.contains(OwnershipIndex.SCRIPT_HASH, address.getHash()));
+        assertFalse(index.contains(OwnershipIndex.PUBKEY_HASH, address.getHash()));
+        for (int i = 0; i < group.getLookaheadSize() + group.getLookaheadThreshold(); i++)
+            address = group.freshAddress(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        assertTrue(index.contains(OwnershipIndex.SCRIPT_HASH, address.getHash()));
+    }
+
     @Test
     public void currentP2SHAddress() throws Exception {
         group = createMarriedKeyChainGroup();
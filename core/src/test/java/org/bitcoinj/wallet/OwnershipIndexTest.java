@@ -0,0 +1,81 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OwnershipIndexTest {
+    @Test
+    public void kindsAreSeparate() {
+        OwnershipIndex index = new OwnershipIndex();
+        byte[] hash = new byte[20];
+        index.add(OwnershipIndex.PUBKEY_HASH, hash);
+        assertTrue(index.contains(OwnershipIndex.PUBKEY_HASH, hash));
+        assertTrue(index.contains(OwnershipIndex.PUBKEY_HASH, new byte[20]));
+        assertFalse(index.contains(OwnershipIndex.SCRIPT_HASH, hash));
+        assertFalse(index.contains(OwnershipIndex.PUBKEY_HASH, new byte[21]));
+        assertTrue(index.containsAny(OwnershipIndex.PUBKEY_HASH));
+        assertFalse(index.containsAny(OwnershipIndex.SCRIPT));
+        // Changing the bytes afterwards doesn't change what is owned.
+        hash[0] = 1;
+        assertFalse(index.contains(OwnershipIndex.PUBKEY_HASH, hash));
+    }
+
+    @Test
+    public void ownedUntilRemovedAsOftenAsAdded() {
+        OwnershipIndex index = new OwnershipIndex();
+        byte[] key = {2, 3, 4};
+        index.add(OwnershipIndex.PUBKEY, key);
+        index.add(OwnershipIndex.PUBKEY, key);
+        assertEquals(1, index.size());
+        assertTrue(index.remove(OwnershipIndex.PUBKEY, key));
+        assertTrue(index.contains(OwnershipIndex.PUBKEY, key));
+        assertTrue(index.remove(OwnershipIndex.PUBKEY, key));
+        assertFalse(index.contains(OwnershipIndex.PUBKEY, key));
+        assertFalse(index.remove(OwnershipIndex.PUBKEY, key));
+        assertEquals(0, index.size());
+        assertFalse(index.containsAny(OwnershipIndex.PUBKEY));
+    }
+
+    @Test
+    public void growsAndRemovesAtRandom() {
+        OwnershipIndex index = new OwnershipIndex();
+        Random random = new Random(42);
+        List<byte[]> owned = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            // Short data collides often.
+            byte[] data = new byte[1 + random.nextInt(3)];
+            random.nextBytes(data);
+            if (index.contains(OwnershipIndex.SCRIPT, data))
+                continue;
+            index.add(OwnershipIndex.SCRIPT, data);
+            owned.add(data);
+        }
+        assertEquals(owned.size(), index.size());
+        for (int i = 0; i < owned.size(); i += 2)
+            assertTrue(index.remove(OwnershipIndex.SCRIPT, owned.get(i)));
+        for (int i = 0; i < owned.size(); i++)
+            assertEquals(i % 2 == 1, index.contains(OwnershipIndex.SCRIPT, owned.get(i)));
+        assertEquals(owned.size() / 2, index.size());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.UnitTestParams;
+
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Times reading the most recent page of the transaction history, with {@link Wallet#getRecentTransactions(int, boolean)}
+ * and with {@link Wallet#getTransactionsByTime(Date, Date, HistoryPage.Cursor, int, boolean)}, and paging through a
+ * day of it. It is not an automated unit-test, run it manually with the test classpath and a large enough heap:
+ * {@code WalletHistoryBenchmark [transactions=10000,100000] [page size=50] [rounds=200]}
+ */
+public class WalletHistoryBenchmark {
+    public static void main(String[] args) throws Exception {
+        String[] sizes = (args.length > 0 ? args[0] : "10000,100000").split(",");
+        int pageSize = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        NetworkParameters params = UnitTestParams.get();
+        Context.propagate(new Context(params, 100, Coin.ZERO, false));
+
+        System.out.println("Java " + System.getProperty("java.version"));
+        System.out.println("transactions  recent (µs)  first page (µs)  day of pages (µs)");
+        for (String size : sizes) {
+            int numTransactions = Integer.parseInt(size.trim());
+            Wallet wallet = new Wallet(params);
+            long newest = fill(wallet, numTransactions, new Random(numTransactions));
+            Date since = new Date(newest - 24 * 60 * 60 * 1000L);
+            // The first half of the rounds warms up.
+            double recent = 0, first = 0, day = 0;
+            for (int round = 0; round < rounds * 2; round++) {
+                long start = System.nanoTime();
+                wallet.getRecentTransactions(pageSize, false);
+                long afterRecent = System.nanoTime();
+                wallet.getTransactionsByTime(null, null, null, pageSize, false);
+                long afterFirst = System.nanoTime();
+                HistoryPage page = null;
+                do {
+                    page = wallet.getTransactionsByTime(since, null, page != null ? page.getNextCursor() : null,
+                            pageSize, false);
+                } while (page.getNextCursor() != null);
+                long end = System.nanoTime();
+                if (round >= rounds) {
+                    recent += afterRecent - start;
+                    first += afterFirst - afterRecent;
+                    day += end - afterFirst;
+                }
+            }
+            System.out.printf("%-13d %11.1f %16.1f %18.1f%n", numTransactions, recent / 1e3 / rounds,
+                    first / 1e3 / rounds, day / 1e3 / rounds);
+        }
+    }
+
+    // One transaction every ten minutes, returns the update time of the newest.
+    private static long fill(Wallet wallet, int numTransactions, Random random) {
+        NetworkParameters params = wallet.getParams();
+        Address address = wallet.freshReceiveAddress();
+        long time = 1500000000000L;
+        for (int i = 0; i < numTransactions; i++) {
+            Transaction tx = new Transaction(params);
+            byte[] prevHash = new byte[32];
+            random.nextBytes(prevHash);
+            tx.addInput(new TransactionInput(params, tx, new byte[100],
+                    new TransactionOutPoint(params, 0, Sha256Hash.wrap(prevHash))));
+            tx.addOutput(new TransactionOutput(params, tx, Coin.valueOf(10000 + random.nextInt(1000000)), address));
+            time += 10 * 60 * 1000;
+            tx.setUpdateTime(new Date(time));
+            TransactionConfidence confidence = tx.getConfidence();
+            confidence.setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+            confidence.setAppearedAtChainHeight(1 + i);
+            confidence.setDepthInBlocks(numTransactions - i);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+        }
+        return time;
+    }
+}
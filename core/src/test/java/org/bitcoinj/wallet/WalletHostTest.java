@@ -0,0 +1,152 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.utils.BriefLogFormatter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.bitcoinj.testing.FakeTxBuilder.*;
+import static org.junit.Assert.*;
+
+public class WalletHostTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final Address OTHER_ADDRESS = LegacyAddress.fromKey(UNITTEST, new ECKey());
+
+    private MemoryBlockStore blockStore;
+    private BlockChain chain;
+    private WalletHost host;
+    private Wallet[] wallets;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(UNITTEST, 100, ZERO, false));
+        blockStore = new MemoryBlockStore(UNITTEST);
+        chain = new BlockChain(UNITTEST, blockStore);
+        host = new WalletHost(2);
+        host.addTo(chain);
+        wallets = new Wallet[3];
+        for (int i = 0; i < wallets.length; i++) {
+            wallets[i] = new Wallet(UNITTEST);
+            host.addWallet(wallets[i]);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        host.shutdown();
+    }
+
+    @Test
+    public void transactionsGoToTheirWallets() throws Exception {
+        Transaction toFirst = createFakeTx(UNITTEST, COIN, wallets[0].currentReceiveAddress());
+        Transaction toSecond = createFakeTx(UNITTEST, CENT, wallets[1].currentReceiveAddress());
+        Transaction toNobody = createFakeTx(UNITTEST, COIN, OTHER_ADDRESS);
+        addBlock(toFirst, toSecond, toNobody);
+
+        assertEquals(COIN, wallets[0].getBalance());
+        assertEquals(CENT, wallets[1].getBalance());
+        assertEquals(ZERO, wallets[2].getBalance());
+        assertEquals(1, wallets[0].getTransactions(true).size());
+        assertEquals(1, wallets[1].getTransactions(true).size());
+        assertTrue(wallets[2].getTransactions(true).isEmpty());
+        assertEquals(1, wallets[0].getTransaction(toFirst.getHash()).getConfidence().getDepthInBlocks());
+
+        // A payment from one hosted wallet to another reaches both.
+        Transaction payment = wallets[0].createSend(wallets[2].currentReceiveAddress(), CENT);
+        addBlock(payment);
+        assertEquals(COIN.subtract(CENT).subtract(payment.getFee()), wallets[0].getBalance());
+        assertEquals(CENT, wallets[2].getBalance());
+        assertTrue(wallets[1].getTransaction(payment.getHash()) == null);
+        assertNotSame(wallets[0].getTransaction(payment.getHash()), wallets[2].getTransaction(payment.getHash()));
+        assertEquals(2, wallets[0].getTransaction(toFirst.getHash()).getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void spendInSameBlock() throws Exception {
+        Transaction toFirst = createFakeTx(UNITTEST, COIN, wallets[0].currentReceiveAddress());
+        // Spends the output without a key of the wallet in the input, only the outpoint can find it.
+        Transaction spend = new Transaction(UNITTEST);
+        spend.addInput(toFirst.getOutput(0));
+        spend.addOutput(COIN, OTHER_ADDRESS);
+        addBlock(toFirst, spend);
+
+        assertEquals(2, wallets[0].getTransactions(true).size());
+        assertEquals(ZERO, wallets[0].getBalance());
+        assertEquals(TransactionConfidence.ConfidenceType.BUILDING,
+                wallets[0].getTransaction(spend.getHash()).getConfidence().getConfidenceType());
+    }
+
+    @Test
+    public void doubleSpendOfPendingTransaction() throws Exception {
+        Transaction toFirst = createFakeTx(UNITTEST, COIN, wallets[0].currentReceiveAddress());
+        addBlock(toFirst);
+        Transaction pending = wallets[0].createSend(OTHER_ADDRESS, CENT);
+        wallets[0].commitTx(pending);
+        // Spends the same output with an input that holds no key of the wallet, as a segwit input wouldn't.
+        Transaction doubleSpend = new Transaction(UNITTEST);
+        doubleSpend.addInput(toFirst.getOutput(0));
+        doubleSpend.addOutput(COIN, OTHER_ADDRESS);
+        addBlock(doubleSpend);
+
+        assertEquals(TransactionConfidence.ConfidenceType.DEAD,
+                wallets[0].getTransaction(pending.getHash()).getConfidence().getConfidenceType());
+        assertEquals(ZERO, wallets[0].getBalance());
+    }
+
+    @Test
+    public void newKeysAreIndexed() throws Exception {
+        int indexSize = host.getIndexSize();
+        // Beyond the look-ahead of the key chain.
+        Address fresh = null;
+        for (int i = 0; i < 200; i++)
+            fresh = wallets[1].freshReceiveAddress();
+        Transaction tx = createFakeTx(UNITTEST, COIN, fresh);
+        addBlock(tx);
+        assertEquals(COIN, wallets[1].getBalance());
+        assertTrue(host.getIndexSize() > indexSize);
+    }
+
+    @Test
+    public void removedWalletReceivesNothing() throws Exception {
+        assertTrue(host.removeWallet(wallets[1]));
+        assertFalse(host.removeWallet(wallets[1]));
+        addBlock(createFakeTx(UNITTEST, COIN, wallets[1].currentReceiveAddress()));
+        assertEquals(ZERO, wallets[1].getBalance());
+        assertEquals(2, host.getWallets().size());
+    }
+
+    private void addBlock(Transaction... transactions) throws Exception {
+        Block block = makeSolvedTestBlock(blockStore.getChainHead().getHeader(), transactions);
+        assertTrue(chain.add(block));
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.testing.TestWithWallet;
+
+import com.google.common.io.Files;
+import com.google.protobuf.ByteString;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class WalletJournalTest extends TestWithWallet {
+    private static final Address OTHER_ADDRESS = LegacyAddress.fromKey(UNITTEST, new ECKey());
+
+    private File directory;
+    private File file;
+    private File journalFile;
+    private WalletFiles files;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        directory = Files.createTempDir();
+        file = new File(directory, "test.wallet");
+        journalFile = WalletJournal.getJournalFile(file);
+        // A delay long enough for background saves not to get in the way.
+        files = wallet.autosaveToFile(file, 1, TimeUnit.HOURS, null, true);
+        files.saveNow();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        wallet.shutdownAutosaveAndWait();
+        for (File f : directory.listFiles())
+            f.delete();
+        directory.delete();
+        super.tearDown();
+    }
+
+    @Test
+    public void replaysChanges() throws Exception {
+        Sha256Hash snapshot = Sha256Hash.of(file);
+        long length = journalFile.length();
+        for (Runnable change : changes()) {
+            change.run();
+            files.saveNow();
+            assertTrue(journalFile.length() > length);
+            length = journalFile.length();
+            assertEquals(normalize(wallet), normalize(load(file)));
+        }
+        // Only the journal was written to.
+        assertEquals(snapshot, Sha256Hash.of(file));
+
+        // Compacting writes everything into the wallet file and starts an empty journal.
+        Protos.Wallet expected = normalize(wallet);
+        wallet.saveToFile(file);
+        assertNotEquals(snapshot, Sha256Hash.of(file));
+        assertEquals(16, journalFile.length());
+        assertEquals(expected, normalize(load(file)));
+        assertEquals(expected, normalize(loadWithoutJournal(file)));
+    }
+
+    @Test
+    public void tornWrites() throws Exception {
+        for (Runnable change : changes()) {
+            change.run();
+            long before = journalFile.length();
+            Protos.Wallet previous = normalize(load(file));
+            files.saveNow();
+            long after = journalFile.length();
+            byte[] journal = Files.toByteArray(journalFile);
+            assertEquals(normalize(wallet), normalize(load(file)));
+
+            // A record torn anywhere is ignored, and so is anything after it.
+            for (long cut = before; cut < after; cut += Math.max(1, (after - before) / 13))
+                assertEquals("cut at " + cut, previous, normalize(loadCopy(Arrays.copyOf(journal, (int) cut))));
+            assertEquals(previous, normalize(loadCopy(Arrays.copyOf(journal, (int) after - 1))));
+            byte[] corrupt = journal.clone();
+            corrupt[(int) (before + after) / 2] ^= 1;
+            assertEquals(previous, normalize(loadCopy(corrupt)));
+            byte[] garbage = Arrays.copyOf(journal, journal.length + 100);
+            Arrays.fill(garbage, journal.length, garbage.length, (byte) 0x55);
+            assertEquals(normalize(wallet), normalize(loadCopy(garbage)));
+        }
+    }
+
+    @Test
+    public void journalOfOtherSnapshotIsIgnored() throws Exception {
+        List<Runnable> changes = changes();
+        changes.get(0).run();
+        files.saveNow();
+        Protos.Wallet first = normalize(wallet);
+        byte[] oldJournal = Files.toByteArray(journalFile);
+        changes.get(1).run();
+        files.saveNow();
+        Protos.Wallet second = normalize(wallet);
+        assertEquals(second, normalize(load(file)));
+
+        // A crash in between replacing the wallet file and the journal when compacting leaves the old journal around.
+        wallet.saveToFile(file);
+        Files.write(oldJournal, journalFile);
+        assertEquals(second, normalize(load(file)));
+
+        // A wallet file written without a journal doesn't get an old journal applied either.
+        FileOutputStream stream = new FileOutputStream(file);
+        new WalletProtobufSerializer().writeWallet(wallet, stream);
+        stream.close();
+        assertEquals(second, normalize(load(file)));
+        assertNotEquals(first, second);
+    }
+
+    // Changes that touch transactions, confidence, blocks, keys and the wallet's own fields, one after the other.
+    private List<Runnable> changes() {
+        List<Runnable> changes = new ArrayList<>();
+        changes.add(new Runnable() {
+            @Override
+            public void run() {
+                sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+            }
+        });
+        changes.add(new Runnable() {
+            @Override
+            public void run() {
+                // Only the depth of the transaction changes.
+                sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN, OTHER_ADDRESS);
+                sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN, OTHER_ADDRESS);
+            }
+        });
+        changes.add(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Transaction spend = wallet.createSend(OTHER_ADDRESS, CENT);
+                    wallet.commitTx(spend);
+                } catch (InsufficientMoneyException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        changes.add(new Runnable() {
+            @Override
+            public void run() {
+                wallet.freshReceiveKey();
+                wallet.setDescription("journaled");
+                wallet.setTag("tag", ByteString.copyFromUtf8("value"));
+            }
+        });
+        changes.add(new Runnable() {
+            @Override
+            public void run() {
+                Transaction tx = createFakeTx(UNITTEST, Coin.valueOf(0, 5), myAddress);
+                wallet.receivePending(tx, null);
+                sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, tx);
+            }
+        });
+        changes.add(new Runnable() {
+            @Override
+            public void run() {
+                wallet.clearTransactions(0);
+            }
+        });
+        return changes;
+    }
+
+    // Loads the wallet file as it is now, with its journal as given.
+    private Wallet loadCopy(byte[] journal) throws Exception {
+        File copy = new File(directory, "copy.wallet");
+        Files.copy(file, copy);
+        Files.write(journal, WalletJournal.getJournalFile(copy));
+        return load(copy);
+    }
+
+    private static Wallet load(File file) throws Exception {
+        // Use a context of its own, so that the loaded transactions don't share their confidence with the wallet's.
+        Context context = Context.get();
+        Context.propagate(new Context(UNITTEST, 100, Coin.ZERO, false));
+        try {
+            return Wallet.loadFromFile(file);
+        } finally {
+            Context.propagate(context);
+        }
+    }
+
+    private static Wallet loadWithoutJournal(File file) throws Exception {
+        File copy = new File(file.getParentFile(), "plain.wallet");
+        Files.copy(file, copy);
+        return load(copy);
+    }
+
+    private static Protos.Wallet normalize(Wallet wallet) {
+        Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(wallet);
+        List<Protos.Transaction> transactions = new ArrayList<>(proto.getTransactionList());
+        Collections.sort(transactions, new Comparator<Protos.Transaction>() {
+            @Override
+            public int compare(Protos.Transaction a, Protos.Transaction b) {
+                return WalletProtobufSerializer.byteStringToHash(a.getHash())
+                        .compareTo(WalletProtobufSerializer.byteStringToHash(b.getHash()));
+            }
+        });
+        return proto.toBuilder().clearTransaction().addAllTransaction(transactions).build();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.UnitTestParams;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Times {@link Wallet#loadFromFile(File, WalletExtension...)} for wallets with many keys and transactions, where half
+ * of the transactions spend an output of the one before. It is not an automated unit-test, run it manually with the
+ * test classpath and a large enough heap: {@code WalletLoadBenchmark [transactions=10000,100000] [keys=1000]
+ * [iterations=5]}
+ */
+public class WalletLoadBenchmark {
+    public static void main(String[] args) throws Exception {
+        String[] sizes = (args.length > 0 ? args[0] : "10000,100000").split(",");
+        int numKeys = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        NetworkParameters params = UnitTestParams.get();
+        Context.propagate(new Context(params, 100, Coin.ZERO, false));
+
+        System.out.println("Java " + System.getProperty("java.version") + ", "
+                + Runtime.getRuntime().availableProcessors() + " processors");
+        System.out.println("transactions  keys    file (bytes)  load (ms)");
+        for (String size : sizes) {
+            int numTransactions = Integer.parseInt(size.trim());
+            Wallet wallet = new Wallet(params);
+            wallet.freshKeys(KeyChain.KeyPurpose.RECEIVE_FUNDS, numKeys);
+            fill(wallet, numTransactions, new Random(numTransactions));
+            File file = File.createTempFile("benchmark", ".wallet");
+            try {
+                wallet.saveToFile(file);
+                long nanos = 0;
+                // The first half warms up.
+                for (int i = 0; i < iterations * 2; i++) {
+                    // A context of its own, so that the confidence of the transactions isn't shared across loads.
+                    Context.propagate(new Context(params, 100, Coin.ZERO, false));
+                    long start = System.nanoTime();
+                    Wallet loaded = Wallet.loadFromFile(file);
+                    if (i >= iterations)
+                        nanos += System.nanoTime() - start;
+                    if (loaded.getTransactions(true).size() != numTransactions)
+                        throw new IllegalStateException("Loaded " + loaded.getTransactions(true).size());
+                }
+                if (!wallet.isConsistent())
+                    throw new IllegalStateException("Inconsistent wallet");
+                System.out.printf("%-13d %-7d %12d %10.1f%n", numTransactions, numKeys, file.length(),
+                        nanos / 1e6 / iterations);
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    private static void fill(Wallet wallet, int numTransactions, Random random) {
+        NetworkParameters params = wallet.getParams();
+        Address address = wallet.freshReceiveAddress();
+        Transaction previous = null;
+        for (int i = 0; i < numTransactions; i++) {
+            Transaction tx = new Transaction(params);
+            if (previous != null && i % 2 == 1) {
+                tx.addInput(previous.getOutput(0)).connect(previous.getOutput(0));
+            } else {
+                byte[] prevHash = new byte[32];
+                random.nextBytes(prevHash);
+                tx.addInput(new TransactionInput(params, tx, new byte[100],
+                        new TransactionOutPoint(params, 0, Sha256Hash.wrap(prevHash))));
+            }
+            tx.addOutput(new TransactionOutput(params, tx, Coin.valueOf(10000 + random.nextInt(1000000)), address));
+            tx.addOutput(new TransactionOutput(params, tx, Coin.valueOf(10000 + random.nextInt(1000000)),
+                    new ECKey()));
+            TransactionConfidence confidence = tx.getConfidence();
+            confidence.setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+            confidence.setAppearedAtChainHeight(1);
+            confidence.setDepthInBlocks(1 + random.nextInt(1000));
+            boolean spent = i % 2 == 0 && i + 1 < numTransactions;
+            wallet.addWalletTransaction(new WalletTransaction(
+                    spent ? WalletTransaction.Pool.SPENT : WalletTransaction.Pool.UNSPENT, tx));
+            previous = tx;
+        }
+    }
+}
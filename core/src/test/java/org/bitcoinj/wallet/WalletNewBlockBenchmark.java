@@ -0,0 +1,88 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.testing.FakeTxBuilder;
+
+import java.util.Random;
+
+/**
+ * Times {@link Wallet#notifyNewBestBlock(StoredBlock)} for wallets with many transactions that are all deeper than
+ * depth changes are reported for. It is not an automated unit-test, run it manually with the test classpath and a
+ * large enough heap: {@code WalletNewBlockBenchmark [transactions=10000,100000,500000] [blocks=1000]}
+ */
+public class WalletNewBlockBenchmark {
+    public static void main(String[] args) throws Exception {
+        String[] sizes = (args.length > 0 ? args[0] : "10000,100000,500000").split(",");
+        int numBlocks = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        NetworkParameters params = UnitTestParams.get();
+        Context.propagate(new Context(params, 100, Coin.ZERO, false));
+
+        System.out.println("Java " + System.getProperty("java.version"));
+        System.out.println("transactions  per block (µs)");
+        for (String size : sizes) {
+            int numTransactions = Integer.parseInt(size.trim());
+            Wallet wallet = new Wallet(params);
+            fill(wallet, numTransactions, new Random(numTransactions));
+            BlockStore blockStore = new MemoryBlockStore(params);
+            StoredBlock[] blocks = new StoredBlock[numBlocks * 2];
+            for (int i = 0; i < blocks.length; i++)
+                blocks[i] = FakeTxBuilder.createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).storedBlock;
+            // The first half warms up.
+            for (int i = 0; i < numBlocks; i++)
+                wallet.notifyNewBestBlock(blocks[i]);
+            long start = System.nanoTime();
+            for (int i = numBlocks; i < blocks.length; i++)
+                wallet.notifyNewBestBlock(blocks[i]);
+            long nanos = System.nanoTime() - start;
+            System.out.printf("%-13d %17.1f%n", numTransactions, nanos / 1e3 / numBlocks);
+        }
+    }
+
+    private static void fill(Wallet wallet, int numTransactions, Random random) {
+        NetworkParameters params = wallet.getParams();
+        Address address = wallet.freshReceiveAddress();
+        for (int i = 0; i < numTransactions; i++) {
+            Transaction tx = new Transaction(params);
+            byte[] prevHash = new byte[32];
+            random.nextBytes(prevHash);
+            tx.addInput(new TransactionInput(params, tx, new byte[100],
+                    new TransactionOutPoint(params, 0, Sha256Hash.wrap(prevHash))));
+            tx.addOutput(new TransactionOutput(params, tx, Coin.valueOf(10000 + random.nextInt(1000000)), address));
+            TransactionConfidence confidence = tx.getConfidence();
+            confidence.setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+            confidence.setAppearedAtChainHeight(1);
+            confidence.setDepthInBlocks(1000 + random.nextInt(1000));
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times {@link Wallet#isTransactionRelevant(Transaction)} for every transaction of full blocks, against wallets with
+ * an HD chain, imported keys and watched scripts. It is not an automated unit-test, run it manually with the test
+ * classpath and a large enough heap: {@code WalletRelevanceBenchmark [keys=1000,10000] [transactions=2500]
+ * [blocks=200]}
+ */
+public class WalletRelevanceBenchmark {
+    public static void main(String[] args) throws Exception {
+        String[] sizes = (args.length > 0 ? args[0] : "1000,10000").split(",");
+        int numTransactions = args.length > 1 ? Integer.parseInt(args[1]) : 2500;
+        int numBlocks = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        NetworkParameters params = UnitTestParams.get();
+        Context.propagate(new Context(params, 100, Coin.ZERO, false));
+
+        System.out.println("Java " + System.getProperty("java.version"));
+        System.out.println("keys          per block (ms)  outputs only (ms)  relevant");
+        for (String size : sizes) {
+            int numKeys = Integer.parseInt(size.trim());
+            Random random = new Random(numKeys);
+            Wallet wallet = new Wallet(params);
+            List<ECKey> keys = new ArrayList<ECKey>(wallet.freshKeys(KeyChain.KeyPurpose.RECEIVE_FUNDS, numKeys / 2));
+            for (int i = 0; i < numKeys / 2; i++) {
+                ECKey key = new ECKey();
+                wallet.importKey(key);
+                keys.add(key);
+            }
+            List<Script> watched = new ArrayList<>();
+            for (int i = 0; i < 10; i++)
+                watched.add(ScriptBuilder.createOutputScript(LegacyAddress.fromKey(params, new ECKey())));
+            wallet.addWatchedScripts(watched);
+
+            List<Transaction> block = makeBlock(params, keys, numTransactions, random);
+            // Don't time the garbage of setting up.
+            System.gc();
+            int relevant = 0;
+            long nanos = 0, outputNanos = 0;
+            // The first half warms up.
+            for (int i = 0; i < numBlocks * 2; i++) {
+                long start = System.nanoTime();
+                relevant = 0;
+                for (Transaction tx : block)
+                    if (wallet.isTransactionRelevant(tx))
+                        relevant++;
+                long middle = System.nanoTime();
+                // Only whether the outputs are the wallet's, without the checks of the inputs.
+                for (Transaction tx : block)
+                    tx.getValueSentToMe(wallet);
+                if (i >= numBlocks) {
+                    nanos += middle - start;
+                    outputNanos += System.nanoTime() - middle;
+                }
+            }
+            System.out.printf("%-13d %15.2f  %17.2f  %8d%n", numKeys, nanos / 1e6 / numBlocks,
+                    outputNanos / 1e6 / numBlocks, relevant);
+        }
+    }
+
+    // Transactions with two inputs and two outputs, one in a hundred of them paying to a key of the wallet.
+    private static List<Transaction> makeBlock(NetworkParameters params, List<ECKey> keys, int numTransactions,
+                                               Random random) {
+        List<Transaction> block = new ArrayList<>(numTransactions);
+        for (int i = 0; i < numTransactions; i++) {
+            Transaction tx = new Transaction(params);
+            for (int j = 0; j < 2; j++) {
+                byte[] prevHash = new byte[32];
+                random.nextBytes(prevHash);
+                tx.addInput(new TransactionInput(params, tx, new byte[107],
+                        new TransactionOutPoint(params, j, Sha256Hash.wrap(prevHash))));
+            }
+            Address to = random.nextInt(100) == 0 ? LegacyAddress.fromKey(params, keys.get(random.nextInt(keys.size())))
+                    : LegacyAddress.fromKey(params, new ECKey());
+            tx.addOutput(Coin.valueOf(10000 + random.nextInt(1000000)), to);
+            tx.addOutput(Coin.valueOf(10000 + random.nextInt(1000000)), LegacyAddress.fromKey(params, new ECKey()));
+            block.add(tx);
+        }
+        return block;
+    }
+}
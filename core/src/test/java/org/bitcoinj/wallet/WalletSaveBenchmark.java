@@ -0,0 +1,145 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.UnitTestParams;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Saves wallets with many transactions over and over, while another thread keeps taking the wallet lock the way
+ * {@link Wallet#receivePending(Transaction, List)} or {@link Wallet#notifyNewBestBlock} would, and prints how long
+ * saving took and how long that thread had to wait for the lock. Before each save one transaction is changed, like
+ * a new block or transaction would. It is not an automated unit-test, run it manually with the test classpath and a
+ * large enough heap: {@code WalletSaveBenchmark [transactions=10000,100000] [saves=10]}
+ */
+public class WalletSaveBenchmark {
+    public static void main(String[] args) throws Exception {
+        String[] sizes = (args.length > 0 ? args[0] : "10000,100000").split(",");
+        int saves = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        NetworkParameters params = UnitTestParams.get();
+        Context.propagate(new Context(params, 100, Coin.ZERO, false));
+        File directory = Files.createTempDir();
+
+        System.out.println("Java " + System.getProperty("java.version"));
+        System.out.println("transactions  saving     save (ms)  lock wait avg (ms)  lock wait max (ms)");
+        try {
+            for (String size : sizes) {
+                int numTransactions = Integer.parseInt(size.trim());
+                Wallet wallet = new Wallet(params);
+                List<Transaction> transactions = fill(wallet, numTransactions, new Random(numTransactions));
+                for (int journaled = 0; journaled < 2; journaled++) {
+                    File file = new File(directory, "benchmark" + journaled + ".wallet");
+                    WalletFiles files = new WalletFiles(wallet, file, 1, TimeUnit.HOURS, journaled == 1);
+                    // Warm up first.
+                    for (int i = 0; i < saves; i++)
+                        files.saveNow();
+                    LockWaiter waiter = new LockWaiter(wallet);
+                    Thread thread = new Thread(waiter, "lock waiter");
+                    thread.start();
+                    long nanos = 0;
+                    for (int i = 0; i < saves; i++) {
+                        wallet.lock.lock();
+                        try {
+                            transactions.get(i % transactions.size()).setMemo("save " + i);
+                        } finally {
+                            wallet.lock.unlock();
+                        }
+                        long start = System.nanoTime();
+                        files.saveNow();
+                        nanos += System.nanoTime() - start;
+                    }
+                    waiter.stop = true;
+                    thread.join();
+                    files.shutdownAndWait();
+                    System.out.printf("%-13d %-10s %9.1f %19.3f %19.3f%n", numTransactions,
+                            journaled == 1 ? "journaled" : "full", nanos / 1e6 / saves,
+                            waiter.totalWait / 1e6 / Math.max(1, waiter.count), waiter.maxWait / 1e6);
+                }
+            }
+        } finally {
+            for (File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+    }
+
+    private static class LockWaiter implements Runnable {
+        private final Wallet wallet;
+        volatile boolean stop;
+        long count, totalWait, maxWait;
+
+        LockWaiter(Wallet wallet) {
+            this.wallet = wallet;
+        }
+
+        @Override
+        public void run() {
+            while (!stop) {
+                long start = System.nanoTime();
+                wallet.lock.lock();
+                long wait = System.nanoTime() - start;
+                wallet.lock.unlock();
+                count++;
+                totalWait += wait;
+                maxWait = Math.max(maxWait, wait);
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(200));
+            }
+        }
+    }
+
+    private static List<Transaction> fill(Wallet wallet, int numTransactions, Random random) {
+        NetworkParameters params = wallet.getParams();
+        Address address = wallet.freshReceiveAddress();
+        List<Transaction> transactions = new ArrayList<>(numTransactions);
+        for (int i = 0; i < numTransactions; i++) {
+            Transaction tx = new Transaction(params);
+            byte[] prevHash = new byte[32];
+            random.nextBytes(prevHash);
+            tx.addInput(new TransactionInput(params, tx, new byte[100],
+                    new TransactionOutPoint(params, 0, Sha256Hash.wrap(prevHash))));
+            tx.addOutput(new TransactionOutput(params, tx, Coin.valueOf(10000 + random.nextInt(1000000)), address));
+            tx.addOutput(new TransactionOutput(params, tx, Coin.valueOf(10000 + random.nextInt(1000000)),
+                    new ECKey()));
+            TransactionConfidence confidence = tx.getConfidence();
+            confidence.setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+            confidence.setAppearedAtChainHeight(1);
+            confidence.setDepthInBlocks(1 + random.nextInt(1000));
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+            transactions.add(tx);
+        }
+        return transactions;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.testing.TestWithWallet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class WalletSnapshotsTest extends TestWithWallet {
+    private static final Address OTHER_ADDRESS = LegacyAddress.fromKey(UNITTEST, new ECKey());
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void snapshotsAreUpToDate() throws Exception {
+        Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        assertSnapshotUpToDate();
+
+        // Only the depth changes, which must not be taken from the previous snapshot.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(3, tx.getConfidence().getDepthInBlocks());
+        assertSnapshotUpToDate();
+
+        // A different peer, but as many of them as before and seen at the same time.
+        TransactionConfidence confidence = tx.getConfidence();
+        confidence.markBroadcastBy(new PeerAddress(UNITTEST, InetAddress.getByAddress(new byte[] { 1, 2, 3, 4 })));
+        Date seen = confidence.getLastBroadcastedAt();
+        assertSnapshotUpToDate();
+        confidence.clearBroadcastBy();
+        confidence.markBroadcastBy(new PeerAddress(UNITTEST, InetAddress.getByAddress(new byte[] { 5, 6, 7, 8 })));
+        confidence.setLastBroadcastedAt(seen);
+        assertSnapshotUpToDate();
+
+        wallet.commitTx(wallet.createSend(OTHER_ADDRESS, CENT));
+        wallet.freshReceiveKey();
+        wallet.setDescription("snapshot");
+        assertSnapshotUpToDate();
+    }
+
+    @Test
+    public void writesWithoutHoldingLockInOrder() throws Exception {
+        final WalletSnapshots snapshots = wallet.getSnapshots();
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        Thread first = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    snapshots.save(new WalletSnapshots.Writer() {
+                        @Override
+                        public void write(WalletSnapshots.Snapshot snapshot) {
+                            writing.countDown();
+                            try {
+                                proceed.await();
+                            } catch (InterruptedException e) {
+                                throw new RuntimeException(e);
+                            }
+                            written.add(snapshot.getFields().getDescription());
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        wallet.setDescription("first");
+        first.start();
+        assertTrue(writing.await(10, TimeUnit.SECONDS));
+
+        // The wallet can be changed while the first snapshot is being written, and a snapshot taken after it is
+        // written after it, even by a thread that holds the wallet lock.
+        Thread second = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    wallet.setDescription("second");
+                    snapshots.save(new WalletSnapshots.Writer() {
+                        @Override
+                        public void write(WalletSnapshots.Snapshot snapshot) {
+                            written.add(snapshot.getFields().getDescription());
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+        };
+        second.start();
+        // Wait for it to wait for its turn.
+        while (second.getState() != Thread.State.BLOCKED && second.getState() != Thread.State.WAITING)
+            Thread.sleep(1);
+        assertTrue(written.isEmpty());
+        proceed.countDown();
+        first.join();
+        second.join();
+        assertEquals(2, written.size());
+        assertEquals("first", written.get(0));
+        assertEquals("second", written.get(1));
+    }
+
+    private void assertSnapshotUpToDate() throws IOException {
+        // Serializing may look ahead in the key chains, so take the snapshot first.
+        Protos.Wallet snapshot = snapshot().toProto().build();
+        assertEquals(sorted(new WalletProtobufSerializer().walletToProto(wallet)), sorted(snapshot));
+    }
+
+    private WalletSnapshots.Snapshot snapshot() throws IOException {
+        final WalletSnapshots.Snapshot[] result = new WalletSnapshots.Snapshot[1];
+        wallet.getSnapshots().save(new WalletSnapshots.Writer() {
+            @Override
+            public void write(WalletSnapshots.Snapshot snapshot) {
+                result[0] = snapshot;
+            }
+        });
+        return result[0];
+    }
+
+    // Transactions come in no particular order.
+    private static Protos.Wallet sorted(Protos.Wallet wallet) {
+        List<Protos.Transaction> transactions = new ArrayList<>(wallet.getTransactionList());
+        Collections.sort(transactions, new Comparator<Protos.Transaction>() {
+            @Override
+            public int compare(Protos.Transaction a, Protos.Transaction b) {
+                return WalletProtobufSerializer.byteStringToHash(a.getHash())
+                        .compareTo(WalletProtobufSerializer.byteStringToHash(b.getHash()));
+            }
+        });
+        return wallet.toBuilder().clearTransaction().addAllTransaction(transactions).build();
+    }
+}
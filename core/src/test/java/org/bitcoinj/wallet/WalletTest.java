@@ -23,6 +23,7 @@ import org.bitcoinj.core.Address;
 import org.bitcoinj.core.Block;
 import org.bitcoinj.core.BlockChain;
 import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.InsufficientMoneyException;
 import org.bitcoinj.core.LegacyAddress;
@@ -568,11 +569,83 @@ public class WalletTest extends TestWithWallet {
         assertEquals(Coin.COIN.plus(Coin.COIN), wallet.getBalance(BalanceType.ESTIMATED));
     }
 
+    @Test
+    public void balanceIndexFollowsChanges() throws Exception {
+        // A watched output only becomes spendable once its key is imported.
+        ECKey watchedKey = new ECKey();
+        wallet.addWatchedAddress(LegacyAddress.fromKey(UNITTEST, watchedKey));
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN, LegacyAddress.fromKey(UNITTEST, watchedKey));
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        assertEquals(COIN.add(CENT), wallet.getBalance(BalanceType.AVAILABLE));
+        assertEquals(CENT, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+        wallet.importKey(watchedKey);
+        assertEquals(COIN.add(CENT), wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+        wallet.isConsistentOrThrow();
+
+        // Our own pending spend only becomes available once peers have seen it, which the wallet isn't told about.
+        Transaction spend = wallet.createSend(OTHER_ADDRESS, CENT);
+        wallet.commitTx(spend);
+        Coin change = spend.getValueSentToMe(wallet);
+        assertEquals(change.add(CENT), wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(CENT, wallet.getBalance(BalanceType.AVAILABLE));
+        spend.getConfidence().markBroadcastBy(new PeerAddress(UNITTEST, InetAddress.getByAddress(new byte[]{1,2,3,4})));
+        spend.getConfidence().markBroadcastBy(new PeerAddress(UNITTEST, InetAddress.getByAddress(new byte[]{5,6,7,8})));
+        assertEquals(change.add(CENT), wallet.getBalance(BalanceType.AVAILABLE));
+        wallet.isConsistentOrThrow();
+
+        // Changing the coin selector changes what is available.
+        Transaction received = createFakeTx(UNITTEST, COIN, myAddress);
+        wallet.receivePending(received, null);
+        assertEquals(change.add(CENT), wallet.getBalance(BalanceType.AVAILABLE));
+        wallet.allowSpendingUnconfirmedTransactions();
+        assertEquals(change.add(CENT).add(COIN), wallet.getBalance(BalanceType.AVAILABLE));
+        wallet.isConsistentOrThrow();
+        wallet.setCoinSelector(new DefaultCoinSelector());
+
+        // Confirming settles everything.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, spend, received);
+        assertEquals(change.add(CENT).add(COIN), wallet.getBalance(BalanceType.AVAILABLE));
+        assertEquals(change.add(CENT).add(COIN), wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        wallet.isConsistentOrThrow();
+    }
+
     // Intuitively you'd expect to be able to create a transaction with identical inputs and outputs and get an
     // identical result to Bitcoin Core. However the signatures are not deterministic - signing the same data
     // with the same key twice gives two different outputs. So we cannot prove bit-for-bit compatibility in this test
     // suite.
 
+    @Test
+    public void depthNotificationLimit() throws Exception {
+        wallet.setDepthNotificationLimit(2);
+        final List<Transaction> confTxns = new ArrayList<>();
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, new TransactionConfidenceEventListener() {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+                confTxns.add(tx);
+            }
+        });
+        Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        ListenableFuture<TransactionConfidence> future = tx.getConfidence().getDepthFuture(4, Threading.SAME_THREAD);
+        assertEquals(1, tx.getConfidence().getDepthInBlocks());
+        confTxns.clear();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(2, tx.getConfidence().getDepthInBlocks());
+        assertEquals(1, confTxns.size());
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(3, tx.getConfidence().getDepthInBlocks());
+        // Deeper than the limit, but reported on while the future is pending.
+        assertEquals(2, confTxns.size());
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(4, tx.getConfidence().getDepthInBlocks());
+        assertEquals(3, confTxns.size());
+        assertTrue(future.isDone());
+        // Now it isn't.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(5, tx.getConfidence().getDepthInBlocks());
+        assertEquals(3, confTxns.size());
+        assertEquals(5, wallet.getTransaction(tx.getHash()).getConfidence().getDepthInBlocks());
+    }
+
     @Test
     public void blockChainCatchup() throws Exception {
         // Test that we correctly process transactions arriving from the chain, with callbacks for inbound and outbound.
@@ -1505,6 +1578,84 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, transactions.size());
     }
 
+    @Test
+    public void transactionsPagedByTime() throws Exception {
+        Utils.setMockClock();
+        Transaction[] txns = new Transaction[5];
+        for (int i = 0; i < txns.length; i++) {
+            Utils.rollMockClock(60);
+            txns[i] = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(0, i + 1));
+        }
+        HistoryPage page = wallet.getTransactionsByTime(null, null, null, 2, false);
+        assertEquals(ImmutableList.of(txns[4], txns[3]), page.getTransactions());
+        // A transaction arriving in between doesn't shift the next page.
+        Utils.rollMockClock(60);
+        Transaction pending = sendMoneyToWallet(null, valueOf(0, 10));
+        page = wallet.getTransactionsByTime(null, null, page.getNextCursor(), 2, false);
+        assertEquals(ImmutableList.of(txns[2], txns[1]), page.getTransactions());
+        page = wallet.getTransactionsByTime(null, null, page.getNextCursor(), 2, false);
+        assertEquals(ImmutableList.of(txns[0]), page.getTransactions());
+        assertNull(page.getNextCursor());
+
+        // A time window, both ends included.
+        page = wallet.getTransactionsByTime(txns[1].getUpdateTime(), txns[3].getUpdateTime(), null, 10, false);
+        assertEquals(ImmutableList.of(txns[3], txns[2], txns[1]), page.getTransactions());
+        assertNull(page.getNextCursor());
+        assertEquals(pending, wallet.getRecentTransactions(1, false).get(0));
+
+        // Dead transactions are left out unless asked for.
+        Transaction doubleSpend = new Transaction(UNITTEST);
+        doubleSpend.addInput(pending.getInput(0).duplicateDetached());
+        doubleSpend.addOutput(valueOf(0, 10), OTHER_ADDRESS);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, doubleSpend);
+        assertEquals(ConfidenceType.DEAD, pending.getConfidence().getConfidenceType());
+        assertFalse(wallet.getTransactionsByTime(null, null, null, 10, false).getTransactions().contains(pending));
+        assertTrue(wallet.getTransactionsByTime(null, null, null, 10, true).getTransactions().contains(pending));
+    }
+
+    @Test
+    public void transactionsPagedByTimeChangedOutsideWallet() throws Exception {
+        Utils.setMockClock();
+        Transaction[] txns = new Transaction[3];
+        for (int i = 0; i < txns.length; i++) {
+            Utils.rollMockClock(60);
+            txns[i] = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(0, i + 1));
+        }
+        // Moved from before the window into it, where no page would come across it.
+        txns[0].setUpdateTime(new Date(txns[1].getUpdateTime().getTime() + 30 * 1000));
+        HistoryPage page = wallet.getTransactionsByTime(txns[1].getUpdateTime(), txns[2].getUpdateTime(), null, 10,
+                false);
+        assertEquals(ImmutableList.of(txns[2], txns[0], txns[1]), page.getTransactions());
+        // Moved from the back to the front.
+        txns[1].setUpdateTime(new Date(txns[2].getUpdateTime().getTime() + 60 * 1000));
+        assertEquals(ImmutableList.of(txns[1]), wallet.getRecentTransactions(1, false));
+    }
+
+    @Test
+    public void transactionsPagedByHeight() throws Exception {
+        Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Transaction tx2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        Transaction pending = sendMoneyToWallet(null, valueOf(0, 5));
+        int height1 = tx1.getConfidence().getAppearedAtChainHeight();
+        int height2 = tx2.getConfidence().getAppearedAtChainHeight();
+        assertTrue(height2 > height1);
+        // Pending transactions have no height.
+        HistoryPage page = wallet.getTransactionsByHeight(0, Integer.MAX_VALUE, null, 10);
+        assertEquals(ImmutableList.of(tx2, tx1), page.getTransactions());
+        page = wallet.getTransactionsByHeight(height1, height1, null, 10);
+        assertEquals(ImmutableList.of(tx1), page.getTransactions());
+
+        // Once confirmed, the pending transaction is the highest.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, pending);
+        page = wallet.getTransactionsByHeight(0, Integer.MAX_VALUE, null, 1);
+        assertEquals(ImmutableList.of(pending), page.getTransactions());
+        page = wallet.getTransactionsByHeight(0, Integer.MAX_VALUE, page.getNextCursor(), 1);
+        assertEquals(ImmutableList.of(tx2), page.getTransactions());
+        page = wallet.getTransactionsByHeight(0, Integer.MAX_VALUE, page.getNextCursor(), 1);
+        assertEquals(ImmutableList.of(tx1), page.getTransactions());
+        assertNull(page.getNextCursor());
+    }
+
     @Test
     public void keyCreationTime() throws Exception {
         Utils.setMockClock();
@@ -2984,6 +3135,28 @@ public class WalletTest extends TestWithWallet {
         assertArrayEquals(OTHER_ADDRESS.getHash(), tx.getOutput(0).getScriptPubKey().getPubKeyHash());
     }
 
+    @Test
+    public void loadedDepthWithoutAppearedAtHeight() throws Exception {
+        Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        assertEquals(2, tx.getConfidence().getDepthInBlocks());
+        // Older wallet files don't have the height a transaction appeared at.
+        Protos.Wallet.Builder protos = new WalletProtobufSerializer().walletToProto(wallet).toBuilder();
+        for (Protos.Transaction.Builder txProto : protos.getTransactionBuilderList())
+            txProto.getConfidenceBuilder().clearAppearedAtHeight();
+
+        // Loaded before any block was reported to the confidence table, the depth still grows with the chain.
+        Context.propagate(new Context(UNITTEST, 100, Coin.ZERO, false));
+        Wallet loaded = new WalletProtobufSerializer().readWallet(UNITTEST, null, protos.build());
+        TransactionConfidence confidence = loaded.getTransaction(tx.getHash()).getConfidence();
+        assertNotSame(tx.getConfidence(), confidence);
+        assertEquals(2, confidence.getDepthInBlocks());
+        loaded.notifyNewBestBlock(createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).storedBlock);
+        assertEquals(3, confidence.getDepthInBlocks());
+        loaded.notifyNewBestBlock(createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).storedBlock);
+        assertEquals(4, confidence.getDepthInBlocks());
+    }
+
     private Wallet roundTrip(Wallet wallet) throws UnreadableWalletException {
         Protos.Wallet protos = new WalletProtobufSerializer().walletToProto(wallet);
         return new WalletProtobufSerializer().readWallet(UNITTEST, null, protos);
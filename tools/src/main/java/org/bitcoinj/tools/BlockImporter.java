@@ -83,7 +83,11 @@ public class BlockImporter {
         BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
 
         //取回来block对象
-        for (Block block : loader)
-            chain.add(block);
+        if (chain instanceof FullPrunedBlockChain)
+            // Looks up the outputs spent by the next blocks while the current one is connected.
+            ((FullPrunedBlockChain) chain).addAll(loader.iterator(), 16);
+        else
+            for (Block block : loader)
+                chain.add(block);
     }
 }